@@ -0,0 +1,32 @@
+package eu.ybenouag.gpslogger;
+
+/**
+ * A task for the AsyncUpdateThread of GPSApplication: a typed opcode and its argument.
+ * <p>
+ * The tasks are not allocated for every fix: the AsyncTODOQueue stores the opcodes and the
+ * locations into its preallocated ring, and take() returns them into a single AsyncTODO owned
+ * by the AsyncUpdateThread, valid until the next take().
+ * The thread dispatches the opcodes with a switch, instead of comparing strings.
+ */
+class AsyncTODO {
+
+    static final int TASK_SHUTDOWN      = 0;        // Shuts down the AsyncUpdateThread
+    static final int TASK_NEWTRACK      = 1;        // Creates a new track
+    static final int TASK_ADDLOCATION   = 2;        // Adds a location to the current track
+    static final int TASK_UPDATEFIX     = 3;        // Updates the current fix
+
+    int taskType;
+    FixRecord location;
+    long addTime;                                   // The System.nanoTime() of the hand-off to the queue
+
+    AsyncTODO() {}
+
+    /**
+     * @param taskType the opcode of the task (TASK_...)
+     * @param location the location of the task, or null
+     */
+    AsyncTODO(int taskType, FixRecord location) {
+        this.taskType = taskType;
+        this.location = location;
+    }
+}
@@ -0,0 +1,382 @@
+package eu.ybenouag.gpslogger;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The FIFO of the AsyncUpdateThread of GPSApplication, with the conflation of the fix updates.
+ * <p>
+ * It is a preallocated single-producer / single-consumer ring: the opcodes and the locations are
+ * stored into arrays, and the two threads exchange only the head and the tail sequences,
+ * so the hand-off of a fix neither allocates nor takes a lock.
+ * All the tasks must be added by the same thread (the main thread of the app: the location updates,
+ * the EventBus NEW_TRACK posted by the UI and the shutdown broadcast), and taken by the AsyncUpdateThread.
+ * <p>
+ * A TASK_UPDATEFIX only refreshes the current fix, so only the newest one matters:
+ * - a new TASK_UPDATEFIX replaces the location of the one still waiting at the tail of the queue,
+ *   instead of being queued;
+ * - a TASK_ADDLOCATION supersedes the TASK_UPDATEFIX waiting before it, that is skipped.
+ * The other tasks are never reordered: the TASK_ADDLOCATIONs are executed in order,
+ * and a TASK_NEWTRACK or a TASK_SHUTDOWN is a barrier for the conflation.
+ * The slot of a waiting fix update is swapped atomically, so the consumer takes either the old
+ * or the new location, never a stale one.
+ * <p>
+ * The wait strategy sets how the consumer waits for an empty ring:
+ * - WAIT_BLOCKING: on a monitor, notified by the producer. No CPU while idle; the default;
+ * - WAIT_PARKING: spins, then yields, then parks until unparked by the producer;
+ * - WAIT_SPINNING: spins. The lowest latency, but a busy core: for the measures only.
+ * <p>
+ * The queue owns the FixRecords added: the ones replaced or superseded by a newer fix, and the ones
+ * dropped, are recycled here; the ones taken are owned by the consumer.
+ * The overflow policy sets what happens when the ring is full:
+ * - OVERFLOW_SPILL: the tasks go, in order, into an unbounded overflow list, until the consumer
+ *   catches up. Nothing is lost and the producer never waits; the default;
+ * - OVERFLOW_BLOCK: the producer waits for a free slot. Never on the main thread;
+ * - OVERFLOW_DROP: the task is dropped, and add() returns false.
+ */
+class AsyncTODOQueue {
+
+    static final int WAIT_BLOCKING      = 0;        // The consumer waits on a monitor
+    static final int WAIT_PARKING       = 1;        // The consumer spins, yields, then parks
+    static final int WAIT_SPINNING      = 2;        // The consumer spins
+
+    static final int OVERFLOW_SPILL     = 0;        // Full ring: the tasks go into the overflow list
+    static final int OVERFLOW_BLOCK     = 1;        // Full ring: the producer waits for a free slot
+    static final int OVERFLOW_DROP      = 2;        // Full ring: the task is dropped
+
+    static final int DEFAULT_CAPACITY   = 1024;     // The slots of the ring: more than 100 s of recorded fixes at 10 Hz
+
+    private static final int SPIN_TRIES     = 100;      // The empty polls of WAIT_PARKING before yielding
+    private static final int YIELD_TRIES    = 100;      // The yields of WAIT_PARKING (and OVERFLOW_BLOCK) before parking
+    private static final long PARK_NANOS    = 100000;   // The park of the producer waiting for a free slot
+
+    private final int mask;                         // The slots of the ring - 1 (a power of two)
+    private final int[] taskTypes;
+    private final AtomicReferenceArray<FixRecord> locations;
+    private final long[] addTimes;                  // The System.nanoTime() of the hand-off of the tasks
+    private final int waitStrategy;
+    private final int overflowPolicy;
+
+    private final AtomicLong head = new AtomicLong();   // The sequence of the next task to take
+    private final AtomicLong tail = new AtomicLong();   // The sequence of the next task to add
+
+    // Owned by the producer
+    private long producerTail;                      // The value of tail
+    private long cachedHead;                        // The last value of head read by the producer
+    private long pendingUpdateSequence = -1;        // The TASK_UPDATEFIX added last into the ring, or -1
+    private FixRecord pendingUpdateLocation;        // Its location, as stored
+
+    // Owned by the consumer
+    private long consumerHead;                      // The value of head
+    private long cachedTail;                        // The last value of tail read by the consumer
+    private final AsyncTODO taken = new AsyncTODO();    // The task returned by take()
+    private volatile Thread consumer;
+    private volatile boolean isConsumerWaiting;
+    private final Object monitor = new Object();    // The monitor of WAIT_BLOCKING
+
+    private final ArrayDeque<AsyncTODO> spill = new ArrayDeque<>();     // The overflow list, guarded by itself
+    private final AtomicInteger spilledPending = new AtomicInteger();   // The tasks into the overflow list
+
+    // Written by the producer only
+    private final AtomicLong addedTasks = new AtomicLong();         // The tasks added, the coalesced ones included
+    private final AtomicLong coalescedUpdates = new AtomicLong();   // The TASK_UPDATEFIXs replaced by a newer fix
+    private final AtomicLong spilledTasks = new AtomicLong();       // The tasks added to the overflow list
+    private final AtomicLong droppedTasks = new AtomicLong();       // The tasks dropped because of a full ring
+
+    AsyncTODOQueue() {
+        this(DEFAULT_CAPACITY, WAIT_BLOCKING, OVERFLOW_SPILL);
+    }
+
+    /**
+     * @param capacity the slots of the ring, rounded up to a power of two
+     * @param waitStrategy how the consumer waits for a task (WAIT_...)
+     * @param overflowPolicy what happens when the ring is full (OVERFLOW_...)
+     */
+    AsyncTODOQueue(int capacity, int waitStrategy, int overflowPolicy) {
+        int slots = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = slots - 1;
+        taskTypes = new int[slots];
+        locations = new AtomicReferenceArray<>(slots);
+        addTimes = new long[slots];
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    // ------------------------------------------------------------------------- Producer
+
+    /**
+     * Adds a task to the tail of the queue, conflating it with the pending fix update if any.
+     * It must always be called by the same thread.
+     * It doesn't wait, unless the ring is full with OVERFLOW_BLOCK.
+     *
+     * @param taskType the opcode of the task (AsyncTODO.TASK_...)
+     * @param location the location of the task, or null. It is owned by the queue from now on
+     * @return false if the task has been dropped because of a full ring (OVERFLOW_DROP)
+     */
+    boolean add(int taskType, FixRecord location) {
+        increment(addedTasks);
+        if (pendingUpdateSequence >= 0) {
+            int slot = (int) pendingUpdateSequence & mask;
+            if (taskType == AsyncTODO.TASK_UPDATEFIX) {
+                // Still waiting: it takes the newest fix. The swap fails if the consumer has just taken it
+                if (locations.compareAndSet(slot, pendingUpdateLocation, location)) {
+                    pendingUpdateLocation.recycle();
+                    pendingUpdateLocation = location;
+                    increment(coalescedUpdates);
+                    return true;
+                }
+            } else if (taskType == AsyncTODO.TASK_ADDLOCATION) {
+                // Superseded by a newer fix: skipped by take()
+                if (locations.compareAndSet(slot, pendingUpdateLocation, null)) {
+                    pendingUpdateLocation.recycle();
+                    increment(coalescedUpdates);
+                }
+            }
+            pendingUpdateSequence = -1;                                 // A barrier: no conflation across it
+            pendingUpdateLocation = null;
+        }
+        if ((spilledPending.get() > 0) || !hasFreeSlot()) return overflow(taskType, location);
+        publish(taskType, location);
+        return true;
+    }
+
+    /**
+     * @return true if the slot of producerTail has been released by the consumer
+     */
+    private boolean hasFreeSlot() {
+        if (producerTail - cachedHead <= mask) return true;
+        cachedHead = head.get();
+        return producerTail - cachedHead <= mask;
+    }
+
+    /**
+     * Stores the task into the slot of producerTail, then publishes it to the consumer.
+     */
+    private void publish(int taskType, FixRecord location) {
+        long sequence = producerTail;
+        int slot = (int) sequence & mask;
+        taskTypes[slot] = taskType;
+        addTimes[slot] = System.nanoTime();
+        locations.lazySet(slot, location);
+        producerTail = sequence + 1;
+        if (waitStrategy == WAIT_SPINNING) tail.lazySet(producerTail);
+        else {
+            tail.set(producerTail);                                     // Ordered before the read of isConsumerWaiting
+            signal();
+        }
+        if (taskType == AsyncTODO.TASK_UPDATEFIX) {
+            pendingUpdateSequence = sequence;
+            pendingUpdateLocation = location;
+        }
+    }
+
+    /**
+     * Applies the overflow policy to a task that doesn't fit into the ring.
+     */
+    private boolean overflow(int taskType, FixRecord location) {
+        switch (overflowPolicy) {
+            case OVERFLOW_BLOCK:
+                int tries = 0;
+                while (!hasFreeSlot()) {
+                    if (tries++ < YIELD_TRIES) Thread.yield();
+                    else LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                publish(taskType, location);
+                return true;
+            case OVERFLOW_DROP:
+                increment(droppedTasks);
+                if (location != null) location.recycle();
+                return false;
+            default:
+                synchronized (spill) {
+                    // The same conflation of the ring, on the last task of the overflow list
+                    AsyncTODO last = spill.peekLast();
+                    if ((last != null) && (last.taskType == AsyncTODO.TASK_UPDATEFIX)) {
+                        if (taskType == AsyncTODO.TASK_UPDATEFIX) {
+                            last.location.recycle();
+                            last.location = location;
+                            increment(coalescedUpdates);
+                            return true;
+                        }
+                        if (taskType == AsyncTODO.TASK_ADDLOCATION) {
+                            spill.pollLast().location.recycle();
+                            spilledPending.decrementAndGet();
+                            increment(coalescedUpdates);
+                        }
+                    }
+                    AsyncTODO task = new AsyncTODO(taskType, location);
+                    task.addTime = System.nanoTime();
+                    spill.add(task);
+                    spilledPending.incrementAndGet();                   // Ordered before the read of isConsumerWaiting
+                }
+                increment(spilledTasks);
+                signal();
+                return true;
+        }
+    }
+
+    /**
+     * Wakes up the consumer, if it is waiting.
+     */
+    private void signal() {
+        if (!isConsumerWaiting) return;
+        if (waitStrategy == WAIT_BLOCKING) {
+            synchronized (monitor) {
+                monitor.notify();
+            }
+        } else LockSupport.unpark(consumer);
+    }
+
+    // ------------------------------------------------------------------------- Consumer
+
+    /**
+     * Takes the next task, waiting if the queue is empty.
+     * The superseded fix updates are skipped.
+     * It must always be called by the same thread.
+     *
+     * @return the task, valid until the next call. Its location is owned by the caller
+     */
+    AsyncTODO take() throws InterruptedException {
+        if (consumer == null) consumer = Thread.currentThread();
+        int tries = 0;
+        while (!poll()) await(tries++);
+        return taken;
+    }
+
+    /**
+     * Moves the next task, if any, into the taken AsyncTODO.
+     *
+     * @return false if the queue is empty
+     */
+    private boolean poll() {
+        while (true) {
+            long sequence = consumerHead;
+            if (sequence == cachedTail) {
+                cachedTail = tail.get();
+                if (sequence == cachedTail) {
+                    if (spilledPending.get() == 0) return false;
+                    // A task spilled after the last read of tail: the ones published into the ring before it come first
+                    cachedTail = tail.get();
+                    if (sequence == cachedTail) return pollSpill();
+                }
+            }
+            int slot = (int) sequence & mask;
+            int taskType = taskTypes[slot];
+            FixRecord location;
+            if (taskType == AsyncTODO.TASK_UPDATEFIX) location = locations.getAndSet(slot, null);   // Stops the conflation on it
+            else {
+                location = locations.get(slot);
+                locations.lazySet(slot, null);                          // Doesn't keep the location alive
+            }
+            consumerHead = sequence + 1;
+            head.lazySet(consumerHead);                                 // Releases the slot
+            if ((taskType == AsyncTODO.TASK_UPDATEFIX) && (location == null)) continue;    // Superseded
+            taken.taskType = taskType;
+            taken.location = location;
+            taken.addTime = addTimes[slot];
+            return true;
+        }
+    }
+
+    private boolean pollSpill() {
+        synchronized (spill) {
+            AsyncTODO task = spill.poll();
+            if (task == null) return false;
+            spilledPending.decrementAndGet();
+            taken.taskType = task.taskType;
+            taken.location = task.location;
+            taken.addTime = task.addTime;
+            return true;
+        }
+    }
+
+    /**
+     * @return true if no task is waiting, as seen by the consumer
+     */
+    private boolean isEmpty() {
+        return (tail.get() == consumerHead) && (spilledPending.get() == 0);
+    }
+
+    /**
+     * Waits for a task, according to the wait strategy.
+     *
+     * @param tries the empty polls so far
+     */
+    private void await(int tries) throws InterruptedException {
+        switch (waitStrategy) {
+            case WAIT_SPINNING:
+                if (Thread.interrupted()) throw new InterruptedException();
+                break;
+            case WAIT_PARKING:
+                if (tries < SPIN_TRIES) break;
+                if (tries < SPIN_TRIES + YIELD_TRIES) {
+                    Thread.yield();
+                    break;
+                }
+                isConsumerWaiting = true;                               // Ordered before the read of tail
+                if (isEmpty()) LockSupport.park(this);
+                isConsumerWaiting = false;
+                if (Thread.interrupted()) throw new InterruptedException();
+                break;
+            default:
+                synchronized (monitor) {
+                    isConsumerWaiting = true;
+                    try {
+                        while (isEmpty()) monitor.wait();
+                    } finally {
+                        isConsumerWaiting = false;
+                    }
+                }
+        }
+    }
+
+    // ------------------------------------------------------------------------- Counters
+
+    private static void increment(AtomicLong counter) {
+        counter.lazySet(counter.get() + 1);                             // A single writer: no atomic increment needed
+    }
+
+    /**
+     * @return the number of tasks waiting to be taken, the superseded fix updates included
+     */
+    int size() {
+        return (int) (tail.get() - head.get()) + spilledPending.get();
+    }
+
+    /**
+     * @return the number of fix updates replaced by a newer fix before being executed
+     */
+    long getCoalescedUpdates() {
+        return coalescedUpdates.get();
+    }
+
+    long getAddedTasks() {
+        return addedTasks.get();
+    }
+
+    /**
+     * @return the number of tasks that didn't fit into the ring and went into the overflow list
+     */
+    long getSpilledTasks() {
+        return spilledTasks.get();
+    }
+
+    /**
+     * @return the number of tasks dropped because of a full ring
+     */
+    long getDroppedTasks() {
+        return droppedTasks.get();
+    }
+
+    /**
+     * @return the counters of the queue, as a line of text
+     */
+    String getReport() {
+        return String.format(Locale.US, "Recording queue: %d pending, %d tasks, %d fix updates coalesced, %d spilled, %d dropped\n",
+                size(), addedTasks.get(), coalescedUpdates.get(), spilledTasks.get(), droppedTasks.get());
+    }
+}
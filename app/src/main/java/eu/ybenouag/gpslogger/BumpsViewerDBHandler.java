@@ -6,72 +6,59 @@ import android.util.Log;
 
 import androidx.annotation.RequiresApi;
 
-import com.google.firebase.crashlytics.buildtools.reloc.org.apache.commons.io.IOUtils;
-
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.ProtocolException;
-import java.net.URI;
-import java.nio.charset.StandardCharsets;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.List;
 
 public class BumpsViewerDBHandler extends AsyncTask<String, Void, Object> {
 
-    final private URI bumpsViewerServerEndPoint = URI.create("https://bumps-viewer-server.azurewebsites.net");
-
+    private final UploadTransport transport;
 
-    public BumpsViewerDBHandler() {
+    public BumpsViewerDBHandler(UploadTransport transport) {
+        this.transport = transport;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.KITKAT)
     @Override
     protected Object doInBackground(String... params) {
+        return request(transport, params);
+    }
+
+    /**
+     * Executes a request to the DB endpoints, blocking the calling thread
+     * until the server replies.
+     *
+     * @param transport the transport of the request
+     * @param params the type of the request, followed by its arguments
+     * @return the parsed JSON reply of the server, or null in case of error
+     */
+    @RequiresApi(api = Build.VERSION_CODES.KITKAT)
+    static Object request(UploadTransport transport, String... params) {
 
         String requestType = params[0];
-        URI serverEndPoint;
+        String path;
         switch (requestType) {
             case "validateTeamInfo":
-                 serverEndPoint = bumpsViewerServerEndPoint.resolve("/db/team/name");
+                path = "/db/team/name";
                 break;
             case "getDivisions":
-                serverEndPoint = bumpsViewerServerEndPoint.resolve("/db/get-divisions");
+                path = "/db/get-divisions";
                 break;
             case "saveDebugData":
-                serverEndPoint = bumpsViewerServerEndPoint.resolve("/db/location");
-                break;
+                // The crew id, the latitude, the longitude, the track number and the time of the fix: saved without session
+                return saveDebugData(transport, 0, params[1], new StreamedFix(0, Long.parseLong(params[5]),
+                        Double.parseDouble(params[2]), Double.parseDouble(params[3]), Integer.parseInt(params[4])));
             default:
                 throw new IllegalStateException("Unexpected value: " + requestType);
         }
 
-        HttpsURLConnection connection = null;
-        try {
-            connection = (HttpsURLConnection) serverEndPoint.toURL().openConnection();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        assert connection != null;
-
-        connection.setRequestProperty("User-Agent", "android-app-gps-logger");
-        connection.setRequestProperty("Content-Type", "application/json");
-
+        JSONObject body = null;
         if (!requestType.equals("getDivisions")) {
-            try {
-                connection.setRequestMethod("POST");
-            } catch (ProtocolException e) {
-                e.printStackTrace();
-            }
-
-            JSONObject body = new JSONObject();
+            body = new JSONObject();
 
             if(requestType.equals("validateTeamInfo")) {
                 String crewName = params[1];
@@ -80,54 +67,140 @@ public class BumpsViewerDBHandler extends AsyncTask<String, Void, Object> {
                     body.put("crew_name", crewName);
                     body.put("division", division);
                 } catch (JSONException e) {
-                    e.printStackTrace();
-                }
-            } else if(requestType.equals("saveDebugData")) {
-                String crewId = params[1];
-                double latitude = Double.parseDouble(params[2]);
-                double longitude = Double.parseDouble(params[3]);
-                int trackNumber = Integer.parseInt(params[4]);
-                DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.getDefault()); // Quoted "Z" to indicate UTC, no timezone offset
-                String timestamp = df.format(new Date());
-                try {
-                    body.put("crew_id", crewId);
-                    body.put("track_num", trackNumber);
-                    body.put("timestamp", timestamp);
-                    body.put("latitude", latitude);
-                    body.put("longitude", longitude);
-                } catch (JSONException e) {
-                    e.printStackTrace();
+                    Log.w("myApp", "[#] BumpsViewerDBHandler.java - Unable to build the request: " + e);
                 }
             } else {
                 return null;
             }
-            connection.setDoOutput(true);
-            try {
-                connection.getOutputStream().write(body.toString().getBytes());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
+        // The team and divisions requests are interactive (the user is waiting): no retries
+        return send(transport, path, body, 1);
+    }
+
+    /**
+     * Saves a position as debug data, blocking the calling thread until the server replies.
+     * The position carries the time of the fix and its sequence number, so that a retried request
+     * doesn't save it twice.
+     *
+     * @param transport the transport of the request
+     * @param sessionId the session of the sequence number (see StreamOutbox), or 0
+     * @param crewId the id of the crew
+     * @param fix the position
+     * @return the status of the reply of the server, or null in case of error
+     */
+    static Object saveDebugData(UploadTransport transport, long sessionId, String crewId, StreamedFix fix) {
+        StreamPayloadWriter payload = StreamPayloadWriter.get().writeDebugData(sessionId, crewId, fix);
+        return send(transport, "/db/location", "application/json",
+                payload.getBuffer(), payload.size(), BumpsViewerResilience.MAX_ATTEMPTS);
+    }
 
+    /**
+     * Saves a batch of positions as debug data in a single request,
+     * blocking the calling thread until the server replies.
+     * Every position carries its own sequence number, fix time and track number.
+     *
+     * @param transport the transport of the request
+     * @param sessionId the session of the sequence numbers (see StreamOutbox)
+     * @param crewId the id of the crew
+     * @param fixes the positions, in chronological order
+     * @return the status of the reply of the server, or null in case of error
+     */
+    @RequiresApi(api = Build.VERSION_CODES.KITKAT)
+    static Object saveDebugData(UploadTransport transport, long sessionId, String crewId, List<StreamedFix> fixes) {
+        StreamPayloadWriter payload = StreamPayloadWriter.get().writeDebugDataBatch(sessionId, crewId, fixes);
+        return send(transport, "/db/location/batch", "application/json",
+                payload.getBuffer(), payload.size(), BumpsViewerResilience.MAX_ATTEMPTS);
+    }
+
+    /**
+     * Saves a batch of positions, encoded by the StreamBinaryCodec, as debug data in a single request,
+     * blocking the calling thread until the server replies.
+     *
+     * @param transport the transport of the request
+     * @param encodedFixes the message encoded by StreamBinaryCodec.encode()
+     * @return the status of the reply of the server, null in case of error,
+     *         or BumpsViewerStreamHandler.NOT_ACCEPTED if the server doesn't support the binary encoding
+     */
+    static Object saveEncodedDebugData(UploadTransport transport, byte[] encodedFixes) {
+        return send(transport, "/db/location/batch", StreamBinaryCodec.CONTENT_TYPE,
+                encodedFixes, encodedFixes.length, BumpsViewerResilience.MAX_ATTEMPTS);
+    }
+
+    /**
+     * Sends a request and parses the reply.
+     *
+     * @param transport the transport of the request
+     * @param path the path of the endpoint
+     * @param body the JSON body to POST, or null for a GET request
+     * @param maxAttempts the maximum number of attempts
+     * @return the parsed JSON reply of the server, or null in case of error
+     */
+    private static Object send(UploadTransport transport, String path, JSONObject body, int maxAttempts) {
+        byte[] data = (body != null) ? body.toString().getBytes() : null;
         try {
-            if (connection.getResponseCode() == 200) {
-                InputStream responseBody = connection.getInputStream();
-                String responseBodyReader =
-                        IOUtils.toString(responseBody, StandardCharsets.UTF_8);
+            BumpsViewerHttpClient.Response response = (data != null)
+                    ? execute(BumpsViewerResilience.ENDPOINT_TEAM, transport, path, "application/json", data, data.length, maxAttempts)
+                    : execute(BumpsViewerResilience.ENDPOINT_TEAM, transport, path, null, null, 0, maxAttempts);
+            if (response.status == 200) {
                 JSONParser parser = new JSONParser();
-                Object json= parser.parse(responseBodyReader);
-                connection.disconnect();
-                return json;
+                return parser.parse(response.getBodyAsString());
             } else {
-                Log.w("DB Error","Got response" + connection.getResponseCode());
+                Log.w("myApp", "[#] BumpsViewerDBHandler.java - " + path + " replied HTTP " + response.status);
                 return null;
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.w("myApp", "[#] BumpsViewerDBHandler.java - " + path + " failed: " + e);
         } catch (ParseException e) {
-            e.printStackTrace();
+            Log.w("myApp", "[#] BumpsViewerDBHandler.java - Unable to parse the reply of " + path + ": " + e);
+        }
+        return null;
+    }
+
+    /**
+     * POSTs a debug data body and reads the status of the reply.
+     *
+     * @param transport the transport of the request
+     * @param path the path of the endpoint
+     * @param contentType the content type of the body
+     * @param body the buffer that contains the body to POST
+     * @param bodyLength the length of the body in the buffer
+     * @param maxAttempts the maximum number of attempts
+     * @return the status of the reply of the server, null in case of error,
+     *         or BumpsViewerStreamHandler.NOT_ACCEPTED if the server refused the binary encoding
+     */
+    private static Object send(UploadTransport transport, String path, String contentType, byte[] body, int bodyLength, int maxAttempts) {
+        try {
+            BumpsViewerHttpClient.Response response = execute(BumpsViewerResilience.ENDPOINT_UPLOADS,
+                    transport, path, contentType, body, bodyLength, maxAttempts);
+            if (response.status == 200) {
+                return StreamReplyParser.parseStatus(response.body);       // Only the status is needed
+            } else if (BumpsViewerStreamHandler.isNotAccepted(response.status) && StreamBinaryCodec.CONTENT_TYPE.equals(contentType)) {
+                return BumpsViewerStreamHandler.NOT_ACCEPTED;
+            }
+        } catch (IOException e) {
+            // Counted by the StreamMetrics, like the error replies
         }
         return null;
     }
 
+    /**
+     * Executes a request with the given transport, through the resilience layer
+     * (timeouts, retries and the circuit breaker of the class of the endpoint).
+     *
+     * @param endpoint the class of the endpoint (BumpsViewerResilience.ENDPOINT_UPLOADS or ENDPOINT_TEAM)
+     * @param body the buffer that contains the body to POST, or null for a GET request
+     * @param bodyLength the length of the body in the buffer
+     */
+    private static BumpsViewerHttpClient.Response execute(int endpoint, final UploadTransport transport, final String path, final String contentType,
+                                                          final byte[] body, final int bodyLength, int maxAttempts) throws IOException {
+        return BumpsViewerResilience.getInstance(endpoint).execute(new BumpsViewerResilience.Call() {
+            @Override
+            public BumpsViewerHttpClient.Response execute() throws IOException {
+                return (body != null)
+                        ? transport.post(path, contentType, body, bodyLength)
+                        : transport.get(path);
+            }
+        }, maxAttempts);
+    }
+
 }
@@ -0,0 +1,513 @@
+package eu.ybenouag.gpslogger;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The HTTP/1.1 client shared by the BumpsViewerStreamHandler and the BumpsViewerDBHandler.
+ * <p>
+ * It keeps a pool of persistent (keep-alive) connections for every server, so that consecutive
+ * requests don't pay again for the TCP and TLS handshakes:
+ * - the response bodies are always read until the end (also in case of errors), in order to
+ *   leave the connections reusable;
+ * - all the TLS sockets are created by the same SSLContext, whose client session cache allows
+ *   the resumption of the TLS sessions when a new connection must be opened;
+ * - the DNS lookups are cached for DNS_CACHE_TTL milliseconds.
+ * The counters of opened and reused connections are exposed for diagnostics.
+ */
+public class BumpsViewerHttpClient {
+
+    public static final String USER_AGENT           = "android-app-gps-logger";
+
+    private static final int  DEFAULT_CONNECT_TIMEOUT   = 10000;    // The default connection timeout, in ms
+    private static final int  DEFAULT_READ_TIMEOUT      = 15000;    // The default read timeout, in ms
+    private static final long KEEP_ALIVE_TIMEOUT        = 30000;    // The time (ms) an idle connection is kept in the pool
+    private static final int  MAX_IDLE_CONNECTIONS      = 4;        // The maximum number of idle connections per server
+    private static final long DNS_CACHE_TTL             = 300000;   // The time (ms) a DNS lookup is cached
+    private static final int  TLS_SESSION_CACHE_TIMEOUT = 86400;    // The lifetime (s) of the cached TLS sessions
+    static final int          MAX_BODY_SIZE             = 65536;    // The maximum size (bytes) of a reply body: the replies are small JSON objects
+
+    private static BumpsViewerHttpClient singleton;
+
+    /**
+     * @return the instance shared by all the handlers
+     */
+    public static synchronized BumpsViewerHttpClient getInstance() {
+        if (singleton == null) singleton = new BumpsViewerHttpClient();
+        return singleton;
+    }
+
+    /**
+     * The reply of the server. The body is always fully read.
+     */
+    public static class Response {
+        public final int status;
+        public final byte[] body;
+
+        Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        public String getBodyAsString() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * A socket to a server, with its buffered streams.
+     */
+    private static class Connection {
+        final String key;
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long idleSince;
+
+        Connection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    private static class CachedAddresses {
+        final InetAddress[] addresses;
+        final long expiration;
+
+        CachedAddresses(InetAddress[] addresses, long expiration) {
+            this.addresses = addresses;
+            this.expiration = expiration;
+        }
+    }
+
+    private final Map<String, ArrayDeque<Connection>> idleConnections = new HashMap<>();
+    private final Map<String, CachedAddresses> dnsCache = new HashMap<>();
+    private SSLSocketFactory sslSocketFactory;
+
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int readTimeout    = DEFAULT_READ_TIMEOUT;
+
+    private final AtomicLong requests           = new AtomicLong();
+    private final AtomicLong connectionsOpened  = new AtomicLong();
+    private final AtomicLong connectionsReused  = new AtomicLong();
+    private final AtomicLong dnsLookups         = new AtomicLong();
+    private final AtomicLong bytesSent          = new AtomicLong();     // Request lines, headers and bodies
+    private final AtomicLong bytesReceived      = new AtomicLong();     // Status lines, headers and bodies
+
+    public BumpsViewerHttpClient() {
+    }
+
+    public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        connectTimeout = connectTimeoutMillis;
+        readTimeout = readTimeoutMillis;
+    }
+
+    /**
+     * Executes a GET request.
+     */
+    public Response get(URI uri) throws IOException {
+        return execute("GET", uri, null, null, 0);
+    }
+
+    /**
+     * Executes a POST request.
+     */
+    public Response post(URI uri, String contentType, byte[] body) throws IOException {
+        return execute("POST", uri, contentType, body, body.length);
+    }
+
+    /**
+     * Executes a POST request, whose body is the first bodyLength bytes of the given array
+     * (for example a pooled buffer).
+     */
+    public Response post(URI uri, String contentType, byte[] body, int bodyLength) throws IOException {
+        return execute("POST", uri, contentType, body, bodyLength);
+    }
+
+    /**
+     * Executes a request, blocking the calling thread until the whole reply is received.
+     * A pooled connection is used if available. If the pooled connection turns out to be
+     * closed by the server, the request is sent again once on a new connection.
+     *
+     * @param method the HTTP method
+     * @param uri the absolute URI (http or https)
+     * @param contentType the content type of the body, or null
+     * @param body the body of the request, or null
+     * @param bodyLength the number of bytes of the body to send
+     * @return the reply of the server
+     * @throws IOException in case of network error
+     */
+    public Response execute(String method, URI uri, String contentType, byte[] body, int bodyLength) throws IOException {
+        requests.incrementAndGet();
+        Connection connection = takeIdleConnection(key(uri));
+        if (connection != null) {
+            try {
+                return exchange(connection, method, uri, contentType, body, bodyLength);
+            } catch (SocketTimeoutException e) {
+                throw e;                                // The server is slow, not gone
+            } catch (IOException e) {
+                // The server closed the idle connection: retry on a new one
+                Log.w("myApp", "[#] BumpsViewerHttpClient.java - Stale pooled connection: " + e);
+            }
+        }
+        return exchange(openConnection(uri), method, uri, contentType, body, bodyLength);
+    }
+
+    /**
+     * Closes all the idle connections.
+     */
+    public void evictAll() {
+        synchronized (idleConnections) {
+            for (ArrayDeque<Connection> deque : idleConnections.values()) {
+                for (Connection connection : deque) connection.close();
+            }
+            idleConnections.clear();
+        }
+    }
+
+    // ------------------------------------------------------------------------- Counters
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    public long getConnectionsReused() {
+        return connectionsReused.get();
+    }
+
+    public long getDnsLookups() {
+        return dnsLookups.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    // ------------------------------------------------------------------------- Connections
+
+    private static String key(URI uri) {
+        return uri.getScheme() + "://" + uri.getHost() + ":" + port(uri);
+    }
+
+    private static int port(URI uri) {
+        if (uri.getPort() != -1) return uri.getPort();
+        return isSecure(uri) ? 443 : 80;
+    }
+
+    private static boolean isSecure(URI uri) {
+        return "https".equalsIgnoreCase(uri.getScheme()) || "wss".equalsIgnoreCase(uri.getScheme());
+    }
+
+    private Connection takeIdleConnection(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (idleConnections) {
+            ArrayDeque<Connection> deque = idleConnections.get(key);
+            if (deque == null) return null;
+            Connection connection;
+            while ((connection = deque.pollLast()) != null) {
+                if ((now - connection.idleSince < KEEP_ALIVE_TIMEOUT) && !connection.socket.isClosed()) {
+                    connectionsReused.incrementAndGet();
+                    return connection;
+                }
+                connection.close();
+            }
+            return null;
+        }
+    }
+
+    private void releaseConnection(Connection connection) {
+        connection.idleSince = System.currentTimeMillis();
+        synchronized (idleConnections) {
+            ArrayDeque<Connection> deque = idleConnections.get(connection.key);
+            if (deque == null) {
+                deque = new ArrayDeque<>();
+                idleConnections.put(connection.key, deque);
+            }
+            if (deque.size() >= MAX_IDLE_CONNECTIONS) deque.pollFirst().close();
+            deque.addLast(connection);
+        }
+    }
+
+    private Connection openConnection(URI uri) throws IOException {
+        return new Connection(key(uri), openSocket(uri));
+    }
+
+    /**
+     * Opens a new socket to the server of the given URI (TLS for https and wss),
+     * with the timeouts and the DNS cache of the client.
+     * It is not pooled: the caller owns it (for example the StreamChannel).
+     */
+    Socket openSocket(URI uri) throws IOException {
+        String host = uri.getHost();
+        int port = port(uri);
+        IOException lastException = null;
+        for (InetAddress address : resolve(host)) {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.connect(new InetSocketAddress(address, port), connectTimeout);
+                socket.setSoTimeout(readTimeout);
+                if (isSecure(uri)) {
+                    SSLSocket sslSocket = (SSLSocket) getSSLSocketFactory().createSocket(socket, host, port, true);
+                    sslSocket.startHandshake();
+                    if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, sslSocket.getSession())) {
+                        sslSocket.close();
+                        throw new SSLPeerUnverifiedException("Hostname " + host + " not verified");
+                    }
+                    socket = sslSocket;
+                }
+                connectionsOpened.incrementAndGet();
+                return socket;
+            } catch (SSLPeerUnverifiedException e) {
+                throw e;
+            } catch (IOException e) {
+                socket.close();
+                lastException = e;
+                synchronized (dnsCache) {
+                    dnsCache.remove(host);              // The address may be outdated
+                }
+            }
+        }
+        throw lastException != null ? lastException : new UnknownHostException(host);
+    }
+
+    private InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        synchronized (dnsCache) {
+            CachedAddresses cached = dnsCache.get(host);
+            if ((cached != null) && (cached.expiration > now)) return cached.addresses;
+        }
+        dnsLookups.incrementAndGet();
+        InetAddress[] addresses = InetAddress.getAllByName(host);
+        synchronized (dnsCache) {
+            dnsCache.put(host, new CachedAddresses(addresses, now + DNS_CACHE_TTL));
+        }
+        return addresses;
+    }
+
+    private synchronized SSLSocketFactory getSSLSocketFactory() throws IOException {
+        if (sslSocketFactory == null) {
+            try {
+                SSLContext sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, null, null);
+                sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_CACHE_TIMEOUT);
+                sslSocketFactory = sslContext.getSocketFactory();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to initialize TLS", e);
+            }
+        }
+        return sslSocketFactory;
+    }
+
+    // ------------------------------------------------------------------------- HTTP/1.1 exchange
+
+    private Response exchange(Connection connection, String method, URI uri, String contentType, byte[] body, int bodyLength) throws IOException {
+        boolean reusable = false;
+        try {
+            connection.socket.setSoTimeout(readTimeout);
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            if (uri.getRawQuery() != null) path += "?" + uri.getRawQuery();
+            StringBuilder head = new StringBuilder(256);
+            head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(uri.getHost());
+            if (uri.getPort() != -1) head.append(':').append(uri.getPort());
+            head.append("\r\n");
+            head.append("User-Agent: ").append(USER_AGENT).append("\r\n");
+            head.append("Accept: application/json\r\n");
+            head.append("Connection: keep-alive\r\n");
+            if (body != null) {
+                if (contentType != null) head.append("Content-Type: ").append(contentType).append("\r\n");
+                head.append("Content-Length: ").append(bodyLength).append("\r\n");
+            }
+            head.append("\r\n");
+            byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+            connection.out.write(headBytes);
+            if (body != null) connection.out.write(body, 0, bodyLength);
+            connection.out.flush();
+            bytesSent.addAndGet(headBytes.length + (body != null ? bodyLength : 0));
+
+            // Status line
+            String statusLine = readLine(connection.in);
+            if (statusLine == null) throw new EOFException("Connection closed by the server");
+            String[] statusParts = statusLine.split(" ", 3);
+            if ((statusParts.length < 2) || !statusParts[0].startsWith("HTTP/1.")) throw new IOException("Unexpected status line: " + statusLine);
+            int status = (int) parseNumber(statusParts[1], 10, 999, statusLine);
+            long headLength = statusLine.length() + 2;
+
+            // Headers
+            long contentLength = -1;
+            boolean chunked = false;
+            boolean keepAlive = statusParts[0].equals("HTTP/1.1");
+            String line;
+            while ((line = readLine(connection.in)) != null && !line.isEmpty()) {
+                headLength += line.length() + 2;
+                int colon = line.indexOf(':');
+                if (colon <= 0) continue;
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+                String value = line.substring(colon + 1).trim();
+                switch (name) {
+                    case "content-length":
+                        contentLength = parseNumber(value, 10, Integer.MAX_VALUE, line);
+                        break;
+                    case "transfer-encoding":
+                        chunked = value.toLowerCase(Locale.US).contains("chunked");
+                        break;
+                    case "connection":
+                        if (value.equalsIgnoreCase("close")) keepAlive = false;
+                        else if (value.equalsIgnoreCase("keep-alive")) keepAlive = true;
+                        break;
+                }
+            }
+            if (line == null) throw new EOFException("Connection closed by the server");
+
+            // Body, always drained in order to leave the connection reusable
+            byte[] responseBody;
+            if (method.equals("HEAD") || (status / 100 == 1) || (status == 204) || (status == 304)) responseBody = new byte[0];
+            else if (chunked) responseBody = readChunked(connection.in);
+            else if (contentLength >= 0) responseBody = readFixed(connection.in, contentLength);
+            else {
+                responseBody = readToEnd(connection.in);
+                keepAlive = false;
+            }
+            reusable = keepAlive;
+            bytesReceived.addAndGet(headLength + 2 + responseBody.length);
+            return new Response(status, responseBody);
+        } finally {
+            if (reusable) releaseConnection(connection);
+            else connection.close();
+        }
+    }
+
+    /**
+     * Parses a number of the reply. A malformed reply (for example mangled by a proxy) is an IOException,
+     * as a broken connection, and not a NumberFormatException that would escape the callers.
+     *
+     * @param value the number
+     * @param radix 10, or 16 for the chunk sizes
+     * @param max the maximum value accepted
+     * @param line the line of the reply, for the message
+     * @return the number, from 0 to max
+     * @throws IOException if the number is malformed or out of range
+     */
+    private static long parseNumber(String value, int radix, long max, String line) throws IOException {
+        try {
+            long number = Long.parseLong(value, radix);
+            if ((number >= 0) && (number <= max)) return number;
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IOException("Malformed reply: " + line);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if ((length > 0) && (sb.charAt(length - 1) == '\r')) sb.setLength(length - 1);
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Checks the size of a reply body before it is read, so that a wrong Content-Length
+     * or chunk size can't make the client allocate (or read) more than MAX_BODY_SIZE bytes.
+     *
+     * @throws IOException if the body is too large
+     */
+    private static void checkBodySize(long size) throws IOException {
+        if (size > MAX_BODY_SIZE) throw new IOException("Reply body too large: " + size + " bytes");
+    }
+
+    private static byte[] readFixed(InputStream in, long length) throws IOException {
+        checkBodySize(length);
+        byte[] data = new byte[(int) length];
+        int offset = 0;
+        while (offset < length) {
+            int n = in.read(data, offset, (int) length - offset);
+            if (n == -1) throw new EOFException("Unexpected end of the body");
+            offset += n;
+        }
+        return data;
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String sizeLine = readLine(in);
+            if (sizeLine == null) throw new EOFException("Unexpected end of the chunked body");
+            int semicolon = sizeLine.indexOf(';');
+            long size = parseNumber((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16, Integer.MAX_VALUE, sizeLine);
+            checkBodySize(body.size() + size);
+            if (size == 0) {
+                String trailer;
+                do {
+                    trailer = readLine(in);             // Skips the trailers
+                } while ((trailer != null) && !trailer.isEmpty());
+                return body.toByteArray();
+            }
+            body.write(readFixed(in, size));
+            readLine(in);                               // The CRLF after the chunk
+        }
+    }
+
+    private static byte[] readToEnd(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            checkBodySize(body.size() + n);
+            body.write(buffer, 0, n);
+        }
+        return body.toByteArray();
+    }
+}
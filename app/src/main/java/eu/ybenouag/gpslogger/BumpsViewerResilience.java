@@ -0,0 +1,236 @@
+package eu.ybenouag.gpslogger;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The resilience layer of the calls to the Bumps Viewer server, shared by the
+ * BumpsViewerStreamHandler and the BumpsViewerDBHandler.
+ * <p>
+ * - Every call has explicit connect and read timeouts (set on the BumpsViewerHttpClient)
+ *   and a total deadline, retries included;
+ * - the network errors and the 5xx / 429 replies are retried a bounded number of times,
+ *   waiting an exponential backoff with full jitter, so that the clients don't retry in lockstep;
+ * - a circuit breaker counts the consecutive failures: when they reach the threshold the circuit opens
+ *   and the calls fail immediately, without touching the network, for OPEN_DURATION milliseconds.
+ *   Then a single trial call is let through (half-open): if it succeeds the circuit closes again,
+ *   otherwise it opens for another period.
+ * Every class of endpoints has its own instance, and so its own breaker: a brownout of the position uploads
+ * must not refuse the team and divisions requests of the user, and the other way round.
+ * The state of the breaker and the counters are exposed for diagnostics.
+ */
+public class BumpsViewerResilience {
+
+    public static final int CONNECT_TIMEOUT     = 5000;     // The connection timeout, in ms
+    public static final int READ_TIMEOUT        = 10000;    // The read timeout, in ms
+    public static final long CALL_DEADLINE      = 20000;    // The maximum duration (ms) of a call, retries included
+    public static final int MAX_ATTEMPTS        = 3;        // The default maximum number of attempts of a call
+    public static final long BACKOFF_BASE       = 500;      // The backoff (ms) before the first retry, before the jitter
+    public static final long BACKOFF_CAP        = 4000;     // The maximum backoff (ms)
+    public static final int FAILURE_THRESHOLD   = 5;        // The consecutive failures that open the circuit
+    public static final long OPEN_DURATION      = 30000;    // The time (ms) the circuit stays open
+
+    public static final int STATE_CLOSED        = 0;        // The calls go through
+    public static final int STATE_OPEN          = 1;        // The calls fail immediately
+    public static final int STATE_HALF_OPEN     = 2;        // A trial call is in progress
+
+    public static final int ENDPOINT_UPLOADS    = 0;        // The uploads of the positions (stream and debug data)
+    public static final int ENDPOINT_TEAM       = 1;        // The team and divisions requests
+    public static final int ENDPOINTS           = 2;        // The number of classes of endpoints
+    public static final String[] ENDPOINT_NAMES = {"uploads", "team"};
+
+    private static final BumpsViewerResilience[] instances = new BumpsViewerResilience[ENDPOINTS];
+
+    /**
+     * @param endpoint the class of the endpoints called (ENDPOINT_UPLOADS or ENDPOINT_TEAM)
+     * @return the instance shared by all the handlers that call that class of endpoints
+     */
+    public static synchronized BumpsViewerResilience getInstance(int endpoint) {
+        if (instances[endpoint] == null)
+            instances[endpoint] = new BumpsViewerResilience(BumpsViewerHttpClient.getInstance(), ENDPOINT_NAMES[endpoint]);
+        return instances[endpoint];
+    }
+
+    /**
+     * A request to the server.
+     */
+    public interface Call {
+        BumpsViewerHttpClient.Response execute() throws IOException;
+    }
+
+    /**
+     * Thrown when a call is short-circuited by the open circuit breaker.
+     */
+    public static class CircuitOpenException extends IOException {
+        CircuitOpenException() {
+            super("Circuit breaker open");
+        }
+    }
+
+    private final String name;                                          // The name of the class of endpoints, for the log
+    private final Random random = new Random();
+
+    private int  state = STATE_CLOSED;
+    private int  consecutiveFailures;
+    private long openedAt;
+
+    private final AtomicLong calls          = new AtomicLong();     // The calls executed
+    private final AtomicLong retries        = new AtomicLong();     // The retries of the failed attempts
+    private final AtomicLong failedCalls    = new AtomicLong();     // The calls failed after all the attempts
+    private final AtomicLong shortCircuited = new AtomicLong();     // The calls refused by the open circuit
+    private final AtomicLong circuitOpenings = new AtomicLong();    // The times the circuit has been opened
+
+    BumpsViewerResilience(BumpsViewerHttpClient httpClient, String name) {
+        this.name = name;
+        httpClient.setTimeouts(CONNECT_TIMEOUT, READ_TIMEOUT);
+    }
+
+    /**
+     * Executes a call, with the default maximum number of attempts.
+     */
+    public BumpsViewerHttpClient.Response execute(Call call) throws IOException {
+        return execute(call, MAX_ATTEMPTS);
+    }
+
+    /**
+     * Executes a call, retrying the transient failures, unless the circuit is open.
+     *
+     * @param call the request to execute
+     * @param maxAttempts the maximum number of attempts; 1 for the interactive calls,
+     *                    that should not keep the user waiting
+     * @return the reply of the server; it can be a 5xx reply, if the last attempt got it
+     * @throws CircuitOpenException if the circuit is open
+     * @throws IOException the network error of the last attempt
+     */
+    public BumpsViewerHttpClient.Response execute(Call call, int maxAttempts) throws IOException {
+        calls.incrementAndGet();
+        long deadline = System.currentTimeMillis() + CALL_DEADLINE;
+        for (int attempt = 1; ; attempt++) {
+            if (!acquirePermission()) {
+                shortCircuited.incrementAndGet();
+                throw new CircuitOpenException();
+            }
+            BumpsViewerHttpClient.Response response = null;
+            IOException exception = null;
+            try {
+                response = call.execute();
+            } catch (IOException e) {
+                exception = e;
+            } catch (RuntimeException e) {
+                recordOutcome(false);                           // Never leaves the circuit half-open
+                throw e;
+            }
+            boolean failed = (exception != null) || isTransientStatus(response.status);
+            recordOutcome(!failed);
+            if (!failed) return response;
+
+            long backoff = backoff(attempt);
+            if ((attempt >= maxAttempts) || (System.currentTimeMillis() + backoff > deadline) || (getState() == STATE_OPEN)) {
+                failedCalls.incrementAndGet();
+                if (exception != null) throw exception;
+                return response;
+            }
+            retries.incrementAndGet();
+            Log.w("myApp", "[#] BumpsViewerResilience.java - " + name + ": attempt " + attempt + " failed ("
+                    + (exception != null ? exception.toString() : "HTTP " + response.status) + "), retrying in " + backoff + " ms");
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failedCalls.incrementAndGet();
+                if (exception != null) throw exception;
+                return response;
+            }
+        }
+    }
+
+    /**
+     * @return true if the HTTP status is a transient failure of the server, worth a retry
+     */
+    static boolean isTransientStatus(int status) {
+        return (status >= 500) || (status == 429) || (status == 408);
+    }
+
+    /**
+     * @return the backoff before the retry of the given attempt: a random time between 0
+     *         and BACKOFF_BASE * 2^(attempt-1), capped to BACKOFF_CAP (full jitter)
+     */
+    private long backoff(int attempt) {
+        long ceiling = Math.min(BACKOFF_CAP, BACKOFF_BASE << Math.min(attempt - 1, 16));
+        synchronized (random) {
+            return (long) (random.nextDouble() * ceiling);
+        }
+    }
+
+    private synchronized boolean acquirePermission() {
+        switch (state) {
+            case STATE_OPEN:
+                if (System.currentTimeMillis() - openedAt < OPEN_DURATION) return false;
+                state = STATE_HALF_OPEN;                        // Lets a trial call through
+                return true;
+            case STATE_HALF_OPEN:
+                return false;                                   // A trial call is already in progress
+            default:
+                return true;
+        }
+    }
+
+    private synchronized void recordOutcome(boolean success) {
+        if (success) {
+            if (state != STATE_CLOSED) Log.w("myApp", "[#] BumpsViewerResilience.java - " + name + ": circuit closed");
+            state = STATE_CLOSED;
+            consecutiveFailures = 0;
+            return;
+        }
+        consecutiveFailures++;
+        if ((state == STATE_HALF_OPEN) || (consecutiveFailures >= FAILURE_THRESHOLD)) {
+            if (state != STATE_OPEN) {
+                circuitOpenings.incrementAndGet();
+                Log.w("myApp", "[#] BumpsViewerResilience.java - " + name + ": circuit opened after " + consecutiveFailures + " consecutive failures");
+            }
+            state = STATE_OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return the time, in milliseconds, before the open circuit lets a trial call through (0 if not open)
+     */
+    public synchronized long getRemainingOpenTime() {
+        if (state != STATE_OPEN) return 0;
+        return Math.max(0, OPEN_DURATION - (System.currentTimeMillis() - openedAt));
+    }
+
+    // ------------------------------------------------------------------------- Diagnostics
+
+    public synchronized int getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getFailedCalls() {
+        return failedCalls.get();
+    }
+
+    public long getShortCircuitedCalls() {
+        return shortCircuited.get();
+    }
+
+    public long getCircuitOpenings() {
+        return circuitOpenings.get();
+    }
+}
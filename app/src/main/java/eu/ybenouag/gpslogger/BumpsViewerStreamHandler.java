@@ -2,90 +2,163 @@ package eu.ybenouag.gpslogger;
 
 import android.os.AsyncTask;
 import android.os.Build;
-import android.util.Log;
 
 import androidx.annotation.RequiresApi;
 
-import com.google.firebase.crashlytics.buildtools.reloc.org.apache.commons.io.IOUtils;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
-
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.ProtocolException;
-import java.net.URI;
-import java.nio.charset.StandardCharsets;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.List;
 
 public class BumpsViewerStreamHandler extends AsyncTask<Object, Void, Object> {
 
-    final private URI bumpsViewerServerEndPoint = URI.create("https://bumps-viewer-server.azurewebsites.net");
-    // final private URI bumpsViewerServerEndPoint = URI.create("http://172.31.144.1:8091");
+    // The reply returned when the server doesn't accept a request that is not supported
+    // by all the servers (the combined ingest endpoint or the binary encoding of the fixes)
+    static final Object NOT_ACCEPTED = new Object();
+
+    private final UploadTransport transport;
 
-    public BumpsViewerStreamHandler() {
+    public BumpsViewerStreamHandler(UploadTransport transport) {
+        this.transport = transport;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.KITKAT)
     @Override
     protected Object doInBackground(Object... params) {
+        // The crew id, the crew name, the latitude, the longitude and the time of the fix: sent without session
+        return sendLocation(transport, 0, (String) params[0], (String) params[1],
+                new StreamedFix(0, (long) params[4], (double) params[2], (double) params[3], 0));
+    }
 
-        URI serverEndPoint =  bumpsViewerServerEndPoint.resolve("/api/data-collection");
-        HttpsURLConnection connection = null;
-        try {
-            connection = (HttpsURLConnection) serverEndPoint.toURL().openConnection();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        assert connection != null;
-        
-        connection.setRequestProperty("User-Agent", "android-app-gps-logger");
-        connection.setRequestProperty("Content-Type", "application/json");
-        try {
-            connection.setRequestMethod("POST");
-        } catch (ProtocolException ex) {
-            ex.printStackTrace();
-        }
-        JSONObject body = new JSONObject();
-        try {
-            body.put("crewId", (String) params[0]);
-            body.put("crewName", (String) params[1]);
-            body.put("latitude", (double) params[2]);
-            body.put("longitude", (double) params[3]);
-        } catch (JSONException ex) {
-            ex.printStackTrace();
-        }
-        connection.setDoOutput(true);
-        try {
-            connection.getOutputStream().write(body.toString().getBytes());
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
+    /**
+     * Sends a position to the live stream endpoint, blocking the calling thread
+     * until the server replies.
+     * It is used by the LocationUploader thread, that already runs off the recording path.
+     * The position carries its sequence number and fix time, so that the server can discard
+     * a position older than the current one.
+     *
+     * @param transport the transport of the request
+     * @param sessionId the session of the sequence number (see StreamOutbox), or 0
+     * @param crewId the id of the crew
+     * @param crewName the name of the crew
+     * @param fix the position
+     * @return the status of the reply of the server, or null in case of error
+     */
+    @RequiresApi(api = Build.VERSION_CODES.KITKAT)
+    static Object sendLocation(UploadTransport transport, long sessionId, String crewId, String crewName, StreamedFix fix) {
+        return post(transport, "/api/data-collection", StreamPayloadWriter.get().writeLocation(sessionId, crewId, crewName, fix));
+    }
 
-        Log.w("Streaming","Sending the data to the web server: " + body);
+    /**
+     * Sends a batch of positions to the live stream endpoint in a single request,
+     * blocking the calling thread until the server replies.
+     *
+     * @param transport the transport of the request
+     * @param sessionId the session of the sequence numbers (see StreamOutbox)
+     * @param crewId the id of the crew
+     * @param crewName the name of the crew
+     * @param fixes the positions, in chronological order
+     * @return the status of the reply of the server, or null in case of error
+     */
+    @RequiresApi(api = Build.VERSION_CODES.KITKAT)
+    static Object sendLocations(UploadTransport transport, long sessionId, String crewId, String crewName, List<StreamedFix> fixes) {
+        return post(transport, "/api/data-collection/batch", StreamPayloadWriter.get().writeLocations(sessionId, crewId, crewName, fixes));
+    }
+
+    /**
+     * Sends a batch of positions, encoded by the StreamBinaryCodec, to the live stream endpoint
+     * in a single request, blocking the calling thread until the server replies.
+     *
+     * @param transport the transport of the request
+     * @param encodedFixes the message encoded by StreamBinaryCodec.encode()
+     * @return the status of the reply of the server, null in case of error,
+     *         or NOT_ACCEPTED if the server doesn't support the binary encoding
+     */
+    static Object sendEncodedLocations(UploadTransport transport, byte[] encodedFixes) {
+        return post(transport, "/api/data-collection/batch", StreamBinaryCodec.CONTENT_TYPE, encodedFixes, encodedFixes.length, true);
+    }
 
+    /**
+     * Sends some positions to the combined ingest endpoint, that updates the live position
+     * and saves the debug data with a single request, blocking the calling thread until the server replies.
+     * Every position carries its sequence number, fix time and track number: the server stores it once,
+     * also if the request is retried or if it arrives after a newer one.
+     *
+     * @param transport the transport of the request
+     * @param sessionId the session of the sequence numbers (see StreamOutbox)
+     * @param crewId the id of the crew
+     * @param crewName the name of the crew
+     * @param fixes the positions, in chronological order
+     * @return the status of the reply of the server, null in case of error,
+     *         or NOT_ACCEPTED if the server doesn't support the combined ingest
+     */
+    @RequiresApi(api = Build.VERSION_CODES.KITKAT)
+    static Object ingest(UploadTransport transport, long sessionId, String crewId, String crewName, List<StreamedFix> fixes) {
+        StreamPayloadWriter payload = StreamPayloadWriter.get().writeIngest(sessionId, crewId, crewName, fixes);
+        return post(transport, "/api/ingest", "application/json", payload.getBuffer(), payload.size(), true);
+    }
+
+    /**
+     * Sends some positions, encoded by the StreamBinaryCodec, to the combined ingest endpoint,
+     * blocking the calling thread until the server replies.
+     *
+     * @param transport the transport of the request
+     * @param encodedFixes the message encoded by StreamBinaryCodec.encode()
+     * @return the status of the reply of the server, null in case of error,
+     *         or NOT_ACCEPTED if the server doesn't support the combined ingest or the binary encoding
+     */
+    static Object ingestEncoded(UploadTransport transport, byte[] encodedFixes) {
+        return post(transport, "/api/ingest", StreamBinaryCodec.CONTENT_TYPE, encodedFixes, encodedFixes.length, true);
+    }
+
+    /**
+     * POSTs the JSON body, written by the StreamPayloadWriter, to the given path.
+     *
+     * @return the status of the reply of the server, or null in case of error
+     */
+    private static Object post(UploadTransport transport, String path, StreamPayloadWriter payload) {
+        return post(transport, path, "application/json", payload.getBuffer(), payload.size(), false);
+    }
+
+    /**
+     * POSTs the body to the given path with the given transport,
+     * through the resilience layer (timeouts, retries and circuit breaker).
+     *
+     * @param negotiated true if the request may not be supported by the server
+     * @return the status of the reply of the server, null in case of error,
+     *         or NOT_ACCEPTED if the server refused a negotiated request
+     */
+    private static Object post(final UploadTransport transport, final String path, final String contentType,
+                               final byte[] body, final int bodyLength, boolean negotiated) {
         try {
-            if (connection.getResponseCode() == 200) {
-                InputStream responseBody = connection.getInputStream();
-                String responseBodyReader =
-                        IOUtils.toString(responseBody, StandardCharsets.UTF_8);
-                JSONParser parser = new JSONParser();
-                Object json= parser.parse(responseBodyReader);
-                connection.disconnect();
-                return json;
-            } else {
-                Log.w("DB Error","Got reponse" + connection.getResponseCode());
-                return null;
+            BumpsViewerHttpClient.Response response = BumpsViewerResilience.getInstance(BumpsViewerResilience.ENDPOINT_UPLOADS).execute(new BumpsViewerResilience.Call() {
+                @Override
+                public BumpsViewerHttpClient.Response execute() throws IOException {
+                    return transport.post(path, contentType, body, bodyLength);
+                }
+            });
+            if (response.status == 200) {
+                return StreamReplyParser.parseStatus(response.body);       // Only the status is needed
+            } else if (negotiated && isNotAccepted(response.status)) {
+                return NOT_ACCEPTED;
             }
         } catch (IOException e) {
-            e.printStackTrace();
-        } catch (ParseException e) {
-            e.printStackTrace();
+            // Counted by the StreamMetrics, like the error replies
         }
         return null;
     }
 
+    /**
+     * @return true if the HTTP status means that the server doesn't understand the request body
+     *         (415 Unsupported Media Type, or 400 / 404 from a server that predates the encoding)
+     */
+    static boolean isNotAccepted(int status) {
+        return (status == 415) || (status == 400) || (status == 404);
+    }
+
+    /**
+     * @return true if the status of the reply of the server is 1
+     */
+    static boolean isStatusOk(Object reply) {
+        return (reply instanceof Long) && ((Long) reply == 1L);
+    }
+
 }
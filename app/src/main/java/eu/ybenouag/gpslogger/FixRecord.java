@@ -0,0 +1,273 @@
+package eu.ybenouag.gpslogger;
+
+import android.location.Location;
+
+import static eu.ybenouag.gpslogger.GPSApplication.NOT_AVAILABLE;
+
+/**
+ * A fix of the recording, as primitive fields: the compact and mutable counterpart of the LocationExtended.
+ * <p>
+ * The records are recycled through a small pool, like the android.os.Message: the LocationListener
+ * takes one with obtain() and fills it from the Location with set(), the last stage that uses it
+ * gives it back with recycle(). So the path from onLocationChanged() to the track statistics
+ * doesn't allocate anything for a fix.
+ * The owner of a record is the one that holds it: it is handed off with the record,
+ * and it must not be used anymore after the hand-off or the recycle().
+ * The values not available are NOT_AVAILABLE, as for the getters of the LocationExtended.
+ * The EGM96 correction is looked up only once, the first time it is asked, on the thread that needs it.
+ * <p>
+ * The code that still needs a Location (or a LocationExtended) builds one with toLocation().
+ */
+class FixRecord {
+
+    static final int MAX_POOL_SIZE = 64;            // The maximum number of recycled records kept
+
+    private static final Object poolLock = new Object();
+    private static FixRecord pool;                  // The first recycled record, or null
+    private static int poolSize;
+    private static long allocatedRecords;           // The records created because the pool was empty
+
+    private String provider;
+    private double latitude;
+    private double longitude;
+    private double altitude;
+    private float speed;
+    private float bearing;
+    private float accuracy;
+    private long time;                              // The time of the fix, in milliseconds since epoch (UTC)
+    private int numberOfSatellites;
+    private int numberOfSatellitesUsedInFix;
+    private double altitudeEGM96Correction;
+    private FixRecord next;                         // The next recycled record into the pool
+
+    FixRecord() {
+        clear();
+    }
+
+    /**
+     * @return a record taken from the pool, or a new one if the pool is empty. Its values are not available.
+     */
+    static FixRecord obtain() {
+        FixRecord record;
+        synchronized (poolLock) {
+            record = pool;
+            if (record != null) {
+                pool = record.next;
+                record.next = null;
+                poolSize--;
+            } else allocatedRecords++;
+        }
+        return record != null ? record : new FixRecord();
+    }
+
+    /**
+     * Gives back the record to the pool. It must not be used anymore.
+     */
+    void recycle() {
+        clear();
+        synchronized (poolLock) {
+            if (poolSize < MAX_POOL_SIZE) {
+                next = pool;
+                pool = this;
+                poolSize++;
+            }
+        }
+    }
+
+    /**
+     * @return the number of records created because the pool was empty
+     */
+    static long getAllocatedRecords() {
+        synchronized (poolLock) {
+            return allocatedRecords;
+        }
+    }
+
+    private void clear() {
+        provider = null;
+        latitude = 0;
+        longitude = 0;
+        altitude = NOT_AVAILABLE;
+        speed = NOT_AVAILABLE;
+        bearing = NOT_AVAILABLE;
+        accuracy = NOT_AVAILABLE;
+        time = 0;
+        numberOfSatellites = NOT_AVAILABLE;
+        numberOfSatellitesUsedInFix = NOT_AVAILABLE;
+        altitudeEGM96Correction = NOT_AVAILABLE;
+    }
+
+    /**
+     * Copies the values of a Location, without looking up the EGM96 correction.
+     *
+     * @param location the fix
+     * @param numberOfSatellites the satellites in view, or NOT_AVAILABLE
+     * @param numberOfSatellitesUsedInFix the satellites used in fix, or NOT_AVAILABLE
+     * @return this record
+     */
+    FixRecord set(Location location, int numberOfSatellites, int numberOfSatellitesUsedInFix) {
+        provider = location.getProvider();
+        latitude = location.getLatitude();
+        longitude = location.getLongitude();
+        altitude = location.hasAltitude() ? location.getAltitude() : NOT_AVAILABLE;
+        speed = location.hasSpeed() ? location.getSpeed() : NOT_AVAILABLE;
+        bearing = location.hasBearing() ? location.getBearing() : NOT_AVAILABLE;
+        accuracy = location.hasAccuracy() ? location.getAccuracy() : NOT_AVAILABLE;
+        time = location.getTime();
+        this.numberOfSatellites = numberOfSatellites;
+        this.numberOfSatellitesUsedInFix = numberOfSatellitesUsedInFix;
+        altitudeEGM96Correction = NOT_AVAILABLE;
+        return this;
+    }
+
+    /**
+     * Copies the values of another record, the EGM96 correction included.
+     *
+     * @return this record
+     */
+    FixRecord copyFrom(FixRecord record) {
+        provider = record.provider;
+        latitude = record.latitude;
+        longitude = record.longitude;
+        altitude = record.altitude;
+        speed = record.speed;
+        bearing = record.bearing;
+        accuracy = record.accuracy;
+        time = record.time;
+        numberOfSatellites = record.numberOfSatellites;
+        numberOfSatellitesUsedInFix = record.numberOfSatellitesUsedInFix;
+        altitudeEGM96Correction = record.altitudeEGM96Correction;
+        return this;
+    }
+
+    /**
+     * The adapter for the code that still needs a Location.
+     *
+     * @param location the Location to fill (for example a reused one), or null for a new one
+     * @return the Location, with the values of this record
+     */
+    Location toLocation(Location location) {
+        if (location == null) location = new Location(provider != null ? provider : "gps");
+        else location.reset();
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        location.setTime(time);
+        if (altitude != NOT_AVAILABLE) location.setAltitude(altitude);
+        if (speed != NOT_AVAILABLE) location.setSpeed(speed);
+        if (bearing != NOT_AVAILABLE) location.setBearing(bearing);
+        if (accuracy != NOT_AVAILABLE) location.setAccuracy(accuracy);
+        return location;
+    }
+
+    /**
+     * The distance to another record, computed as Location.distanceTo() does.
+     *
+     * @param destination the other record
+     * @return the distance, in meters
+     */
+    float distanceTo(FixRecord destination) {
+        return distanceBetween(latitude, longitude, destination.latitude, destination.longitude);
+    }
+
+    /**
+     * The ellipsoidal distance between two positions, on the WGS84 ellipsoid, with the inverse formula
+     * of Vincenty: the algorithm of Location.distanceBetween(), in plain Java, so that the same
+     * distance is computed without the Android framework, and without allocating the results array.
+     *
+     * @return the distance, in meters
+     */
+    static float distanceBetween(double latitude1, double longitude1, double latitude2, double longitude2) {
+        final int maxIterations = 20;
+        double lat1 = Math.toRadians(latitude1);
+        double lat2 = Math.toRadians(latitude2);
+        double lon1 = Math.toRadians(longitude1);
+        double lon2 = Math.toRadians(longitude2);
+
+        double a = 6378137.0;                                   // WGS84 semi-major axis
+        double b = 6356752.3142;                                // WGS84 semi-minor axis
+        double f = (a - b) / a;
+        double aSqMinusBSqOverBSq = (a * a - b * b) / (b * b);
+
+        double l = lon2 - lon1;
+        double aA = 0.0;
+        double u1 = Math.atan((1.0 - f) * Math.tan(lat1));
+        double u2 = Math.atan((1.0 - f) * Math.tan(lat2));
+        double cosU1 = Math.cos(u1);
+        double cosU2 = Math.cos(u2);
+        double sinU1 = Math.sin(u1);
+        double sinU2 = Math.sin(u2);
+        double cosU1cosU2 = cosU1 * cosU2;
+        double sinU1sinU2 = sinU1 * sinU2;
+
+        double sigma = 0.0;
+        double deltaSigma = 0.0;
+        double lambda = l;                                      // The initial guess
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            double lambdaOrig = lambda;
+            double cosLambda = Math.cos(lambda);
+            double sinLambda = Math.sin(lambda);
+            double t1 = cosU2 * sinLambda;
+            double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            double sinSigma = Math.sqrt(t1 * t1 + t2 * t2);
+            double cosSigma = sinU1sinU2 + cosU1cosU2 * cosLambda;
+            sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = (sinSigma == 0) ? 0.0 : cosU1cosU2 * sinLambda / sinSigma;
+            double cosSqAlpha = 1.0 - sinAlpha * sinAlpha;
+            double cos2SM = (cosSqAlpha == 0) ? 0.0 : cosSigma - 2.0 * sinU1sinU2 / cosSqAlpha;
+            double uSquared = cosSqAlpha * aSqMinusBSqOverBSq;
+            aA = 1 + (uSquared / 16384.0) * (4096.0 + uSquared * (-768 + uSquared * (320.0 - 175.0 * uSquared)));
+            double bB = (uSquared / 1024.0) * (256.0 + uSquared * (-128.0 + uSquared * (74.0 - 47.0 * uSquared)));
+            double cC = (f / 16.0) * cosSqAlpha * (4.0 + f * (4.0 - 3.0 * cosSqAlpha));
+            double cos2SMSq = cos2SM * cos2SM;
+            deltaSigma = bB * sinSigma * (cos2SM + (bB / 4.0) * (cosSigma * (-1.0 + 2.0 * cos2SMSq)
+                    - (bB / 6.0) * cos2SM * (-3.0 + 4.0 * sinSigma * sinSigma) * (-3.0 + 4.0 * cos2SMSq)));
+            lambda = l + (1.0 - cC) * f * sinAlpha * (sigma + cC * sinSigma * (cos2SM + cC * cosSigma * (-1.0 + 2.0 * cos2SM * cos2SM)));
+            double delta = (lambda - lambdaOrig) / lambda;
+            if (Math.abs(delta) < 1.0e-12) break;
+        }
+        return (float) (b * aA * (sigma - deltaSigma));
+    }
+
+    // ------------------------------------------------------------------------- Getters
+
+    public double getLatitude() { return latitude; }
+
+    public double getLongitude() { return longitude; }
+
+    public double getAltitude() { return altitude; }
+
+    public float getSpeed() { return speed; }
+
+    public float getAccuracy() { return accuracy; }
+
+    public float getBearing() { return bearing; }
+
+    public long getTime() { return time; }
+
+    public boolean hasAltitude() { return altitude != NOT_AVAILABLE; }
+
+    public boolean hasSpeed() { return speed != NOT_AVAILABLE; }
+
+    public boolean hasAccuracy() { return accuracy != NOT_AVAILABLE; }
+
+    public boolean hasBearing() { return bearing != NOT_AVAILABLE; }
+
+    public int getNumberOfSatellites() {
+        return numberOfSatellites;
+    }
+
+    public int getNumberOfSatellitesUsedInFix() {
+        return numberOfSatellitesUsedInFix;
+    }
+
+    /**
+     * @return the altitude correction, in meters, based on EGM96, or NOT_AVAILABLE if the EGM96 is not loaded
+     */
+    public double getAltitudeEGM96Correction() {
+        if (altitudeEGM96Correction == NOT_AVAILABLE) {
+            EGM96 egm96 = EGM96.getInstance();
+            if ((egm96 != null) && egm96.isLoaded()) altitudeEGM96Correction = egm96.getEGMCorrection(latitude, longitude);
+        }
+        return altitudeEGM96Correction;
+    }
+}
@@ -217,6 +217,15 @@ public class FragmentSettings extends PreferenceFragmentCompat {
             }
         });
 
+        EditTextPreference datagramPortETP = getPreferenceManager().findPreference("prefStreamDatagramPort");
+        datagramPortETP.setOnBindEditTextListener(new EditTextPreference.OnBindEditTextListener() {
+            @Override
+            public void onBindEditText(EditText editText) {
+                editText.setInputType(InputType.TYPE_CLASS_NUMBER);
+                editText.selectAll();
+            }
+        });
+
         EditTextPreference altitudeCorrectionETP = getPreferenceManager().findPreference("prefAltitudeCorrectionRaw");
         altitudeCorrectionETP.setOnBindEditTextListener(new EditTextPreference.OnBindEditTextListener() {
             @Override
@@ -278,6 +287,7 @@ public class FragmentSettings extends PreferenceFragmentCompat {
         EditTextPreference pGPSDistance = findPreference("prefGPSdistanceRaw");
         EditTextPreference pGPSInterval = findPreference("prefGPSinterval");
         ListPreference pGPSUpdateFrequency = findPreference("prefGPSupdatefrequency");
+        ListPreference pRecordingPolicy = findPreference("prefRecordingPolicy");
         ListPreference pKMLAltitudeMode = findPreference("prefKMLAltitudeMode");
         ListPreference pGPXVersion = findPreference("prefGPXVersion");
         ListPreference pShowTrackStatsType = findPreference("prefShowTrackStatsType");
@@ -462,6 +472,7 @@ public class FragmentSettings extends PreferenceFragmentCompat {
         pUMSpeed.setSummary(pUMSpeed.getEntry());
         pUM.setSummary(pUM.getEntry());
         pGPSUpdateFrequency.setSummary(pGPSUpdateFrequency.getEntry());
+        pRecordingPolicy.setSummary(pRecordingPolicy.getEntry());
         pKMLAltitudeMode.setSummary(pKMLAltitudeMode.getEntry());
         pGPXVersion.setSummary(pGPXVersion.getEntry());
         pShowTrackStatsType.setSummary(pShowTrackStatsType.getEntry());
@@ -0,0 +1,73 @@
+package eu.ybenouag.gpslogger;
+
+import android.app.Dialog;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
+import androidx.fragment.app.DialogFragment;
+
+/**
+ * The debug screen of the live streaming: shows the report of the metrics
+ * (see GPSApplication.getMetricsReport()), refreshed every second,
+ * and writes it to file on request.
+ */
+public class FragmentStreamingStatsDialog extends DialogFragment {
+
+    private static final long REFRESH_INTERVAL = 1000;          // The refresh interval of the report, in ms
+
+    private final Handler handler = new Handler();
+    private TextView tvReport;
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            if (tvReport != null) tvReport.setText(GPSApplication.getInstance().getMetricsReport());
+            handler.postDelayed(this, REFRESH_INTERVAL);
+        }
+    };
+
+    @NonNull
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        LayoutInflater inflater = getActivity().getLayoutInflater();
+        final View view = inflater.inflate(R.layout.fragment_streaming_stats_dialog, null);
+        tvReport = view.findViewById(R.id.id_streaming_stats_textView_report);
+
+        builder.setTitle(R.string.streaming_stats_title)
+                .setView(view)
+                .setNeutralButton(R.string.streaming_stats_save, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int id) {
+                        String fileName = GPSApplication.getInstance().dumpStreamingMetrics();
+                        Toast.makeText(GPSApplication.getInstance().getApplicationContext(), fileName != null
+                                ? getString(R.string.streaming_stats_saved, fileName)
+                                : getString(R.string.streaming_stats_not_saved), Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .setPositiveButton(R.string.about_ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int id) {}
+                });
+        return builder.create();
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        handler.post(refresh);
+    }
+
+    @Override
+    public void onPause() {
+        handler.removeCallbacks(refresh);
+        super.onPause();
+    }
+}
@@ -251,6 +251,13 @@ public class GPSActivity extends AppCompatActivity {
             aboutDialog.show(fm, "");
             return true;
         }
+        if (id == R.id.action_streaming_stats) {
+            // Shows the Streaming Statistics Dialog
+            FragmentManager fm = getSupportFragmentManager();
+            FragmentStreamingStatsDialog streamingStatsDialog = new FragmentStreamingStatsDialog();
+            streamingStatsDialog.show(fm, "");
+            return true;
+        }
         if (id == R.id.action_online_help) {
             if (isBrowserInstalled()) {
                 // Opens the default browser and shows the Getting Started Guide page
@@ -69,13 +69,17 @@ import org.greenrobot.eventbus.Subscribe;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.LinkedBlockingQueue;
 
 public class GPSApplication extends Application implements LocationListener {
 
@@ -85,6 +89,8 @@ public class GPSApplication extends Application implements LocationListener {
     private static final int STABILIZER_TIME = 3000;                // The application discards fixes for 3000 ms (minimum)
     private static final int DEFAULT_SWITCHOFF_HANDLER_TIME = 5000; // Default time for turning off GPS on exit
     private static final int GPS_UNAVAILABLE_HANDLER_TIME = 7000;   // The "GPS temporary unavailable" time
+    private static final int SHUTDOWN_FLUSH_TIMEOUT = 2000;         // The time (ms) the shutdown waits for the pipeline to persist the fixes
+    private static final int SHUTDOWN_DEADLINE = 5000;              // The time (ms) of the whole shutdown, the last uploads included
 
     private static final int MAX_ACTIVE_EXPORTER_THREADS = 3;       // The maximum number of Exporter threads to run simultaneously
     private static final int EXPORTING_STATUS_CHECK_INTERVAL = 16;  // The app updates the progress of exportation every 16 milliseconds
@@ -102,12 +108,6 @@ public class GPSApplication extends Application implements LocationListener {
     public static final int JOB_TYPE_SHARE      = 3;                // Bulk Share
     public static final int JOB_TYPE_DELETE     = 4;                // Bulk Delete
 
-    private static final String TASK_SHUTDOWN       = "TASK_SHUTDOWN";      // The AsyncTodo Type to Shut down the DB connection
-    private static final String TASK_NEWTRACK       = "TASK_NEWTRACK";      // The AsyncTodo Type to create a new track into DB
-    private static final String TASK_ADDLOCATION    = "TASK_ADDLOCATION";   // The AsyncTodo Type to create a new track into DB
-    private static final String TASK_UPDATEFIX      = "TASK_UPDATEFIX";     // The AsyncTodo Type to update the current FIX
-    private static final String TASK_DELETETRACKS   = "TASK_DELETETRACKS";  // The AsyncTodo Type to delete some tracks
-
     public static final String FLAG_RECORDING       = "flagRecording";      // The persistent Flag is set when the app is recording, in order to detect Background Crashes
     public static final String FILETYPE_KML         = ".kml";
     public static final String FILETYPE_GPX         = ".gpx";
@@ -136,6 +136,7 @@ public class GPSApplication extends Application implements LocationListener {
     private float   prefGPSdistance             = 0f;            // The distance filter value
     private float   prefGPSinterval             = 0f;            // The interval filter value
     private long    prefGPSupdatefrequency      = 1000L;         // The GPS Update frequency in milliseconds
+    private int     prefRecordingPolicy         = RecordingRule.POLICY_FILTERS_OR;    // How the filters are combined: 0="OR"; 1="AND"; 2="Adaptive"
     private boolean prefEGM96AltitudeCorrection;                 // True if the EGM96 altitude correction is active
     private double  prefAltitudeCorrection      = 0d;            // The manual offset for the altitude correction, in meters     // If true the TXT file are exported on Share/Export
     private int     prefKMLAltitudeMode         = 0;             // The altitude mode for KML files: 1="clampToGround"; 0="absolute"
@@ -143,6 +144,7 @@ public class GPSApplication extends Application implements LocationListener {
     private int     prefShowDirections          = 0;             // Visualization of headings: 0="NSWE"; 1="Degrees"
     private boolean prefShowLocalTime           = true;          // I true the app shows GPS Time instead of local time
     private String  prefExportFolder            = "";            // The folder for tracks exportation
+    private String  prefStreamServer            = "";            // The Bumps Viewer server; empty for the default one
 
     private boolean mustUpdatePrefs             = true;          // True if preferences needs to be updated
 
@@ -153,9 +155,7 @@ public class GPSApplication extends Application implements LocationListener {
     private boolean isBackgroundActivityRestricted;              // True if the App is Background Restricted
     private boolean isBatteryOptimisedWarningVisible = true;     // True if the App shows the warning when the battery optimisation is active
 
-    private LocationExtended prevFix            = null;          // The previous fix
-    private LocationExtended prevRecordedFix    = null;          // The previous recorded fix
-    private boolean isPrevFixRecorded;                           // true if the previous fix has been recorded
+    private final RecordingPolicy recordingPolicy = new RecordingPolicy();   // Decides which fixes are recorded. Used by the main thread
     private boolean isFirstFixFound;                             // True if at less one fix has been obtained
 
     private MyGPSStatus gpsStatusListener;                       // The listener for the GPS Status changes events
@@ -191,8 +191,12 @@ public class GPSApplication extends Application implements LocationListener {
     private int stabilizer = numberOfStabilizationSamples;       // The number of stabilization FIXes before the first valid Location
     private int handlerTime = DEFAULT_SWITCHOFF_HANDLER_TIME;              // The time for the GPS update requests deactivation
 
-    private LocationExtended currentLocationExtended = null;     // The current Location
-    private Track currentTrack = null;                           // The current track. Used for adding Trackpoints and Annotations
+    private final FixRecord currentFix = new FixRecord();        // The current fix, set by the AsyncUpdateThread. Guarded by itself
+    private boolean isCurrentFixAvailable;                       // True once the current fix has been set. Guarded by currentFix
+    private LocationExtended currentLocationExtended = null;     // The current Location, built from currentFix when asked. Guarded by currentFix
+    private volatile Track currentTrack = null;                  // The current track. Used for adding Trackpoints and Annotations. Created in onCreate(), then set by the track stage
+    private volatile boolean isCurrentTrackEmpty = true;         // False once a location is handed off for the current track, true again at NEW_TRACK.
+                                                                 // In order with the asyncTODOQueue, unlike the track updated later by the track stage
 
     private final List<Track> arrayListTracks
             = Collections.synchronizedList(new ArrayList<>());             // The list of Tracks
@@ -475,8 +479,26 @@ public class GPSApplication extends Application implements LocationListener {
         Log.w("myApp", "[#] GPSApplication.java - prefExportFolder = " + folder);
     }
 
+    /**
+     * @return the current fix, or null if none. It is built from the current FixRecord only when asked,
+     * so that the recording doesn't allocate anything when nobody shows it
+     */
     public LocationExtended getCurrentLocationExtended() {
-        return currentLocationExtended;
+        synchronized (currentFix) {
+            if ((currentLocationExtended == null) && isCurrentFixAvailable) currentLocationExtended = new LocationExtended(currentFix);
+            return currentLocationExtended;
+        }
+    }
+
+    /**
+     * Sets the current fix, copying the given record.
+     */
+    private void setCurrentFix(FixRecord fix) {
+        synchronized (currentFix) {
+            currentFix.copyFrom(fix);
+            isCurrentFixAvailable = true;
+            currentLocationExtended = null;
+        }
     }
 
     public Track getCurrentTrack() {
@@ -496,7 +518,7 @@ public class GPSApplication extends Application implements LocationListener {
     }
 
     public void setRecording(boolean recordingState) {
-        prevRecordedFix = null;
+        recordingPolicy.resetRecordedFix();
         isRecording = recordingState;
         EventBus.getDefault().post(EventBusMSG.UPDATE_TRACK);
         if (isRecording) addPreferenceFlag_NoBackup(FLAG_RECORDING);
@@ -733,10 +755,16 @@ public class GPSApplication extends Application implements LocationListener {
 
         super.onCreate();
 
+        // The transport of the requests to the Bumps Viewer server (or to a local stand-in)
+        prefStreamServer = PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).getString("prefStreamServer", "");
+        UploadTransport uploadTransport = HttpUploadTransport.create(prefStreamServer);
+        Log.w("myApp", "[#] GPSApplication.java - Bumps Viewer server = " + uploadTransport.getEndPoint());
+
         streamLocationManager = new StreamLocationManager();
+        streamLocationManager.setTransport(uploadTransport);
 
         try {
-            teamDetailsManager = new TeamDetailsManager();
+            teamDetailsManager = new TeamDetailsManager(uploadTransport);
         } catch (IOException e) {
             e.printStackTrace();
         } catch (ExecutionException e) {
@@ -817,7 +845,9 @@ public class GPSApplication extends Application implements LocationListener {
                 e.printStackTrace();
                 Log.w("myApp", "[#] GPSApplication.java - Unable to create " + sd.getAbsolutePath());
             }
-        }         // Get the last track
+        }
+
+        currentTrack = new Track();                     // The current track, before the track stage starts: there are no stored tracks to resume
 
         // Init Async operations
         asyncPrepareActionmodeToolbar = new AsyncPrepareActionmodeToolbar();
@@ -826,7 +856,12 @@ public class GPSApplication extends Application implements LocationListener {
         // Load Settings
         LoadPreferences();
 
-        // Starts the Thread that manages the queue of the operation on the Database
+        // Opens the outbox of the live streaming, and replays the fixes not yet uploaded
+        if (preferenceFlagExists(FLAG_RECORDING)) Log.w("myApp", "[#] GPSApplication.java - The previous recording was interrupted, replaying the pending fixes");
+        streamLocationManager.openOutbox(new File(getApplicationContext().getFilesDir(), "stream_outbox.dat"));
+
+        // Starts the Thread that manages the queue of the operation on the Database, and the stages of the recording pipeline
+        for (RecordingStage stage : recordingStages) stage.start();
         asyncUpdateThread.start();
 
         // Registers the Broadcast Receiver for ACTION_SHUTDOWN, ACTION_SCREEN_OFF, and ACTION_SCREEN_ON
@@ -852,7 +887,7 @@ public class GPSApplication extends Application implements LocationListener {
         //if ((loc != null) && (loc.getProvider().equals(LocationManager.GPS_PROVIDER)) {
         if (loc != null) {      // Location data is valid
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {          // For API >= 18
-                if ((prevFix == null) || (loc.isFromMockProvider() != isMockProvider)) {  // Reset the number of satellites when the provider changes between GPS and MOCK
+                if ((!recordingPolicy.hasPrevFix()) || (loc.isFromMockProvider() != isMockProvider)) {  // Reset the number of satellites when the provider changes between GPS and MOCK
                     if (loc.isFromMockProvider() != isMockProvider) {
                         numberOfSatellitesTotal = NOT_AVAILABLE;
                         numberOfSatellitesUsedInFix = NOT_AVAILABLE;
@@ -870,10 +905,9 @@ public class GPSApplication extends Application implements LocationListener {
             if (loc.getTime() <= 1388534400000L)                                        // if the Location Time is <= 01/01/2014 00:00:00.000
                 loc.setTime(loc.getTime() + 619315200000L);                             // Timestamp incremented by 1024×7×24×60×60×1000 = 619315200000 ms
             // This value must be doubled every 1024 weeks !!!
-            LocationExtended eloc = new LocationExtended(loc);
-            eloc.setNumberOfSatellites(getNumberOfSatellitesTotal());
-            eloc.setNumberOfSatellitesUsedInFix(getNumberOfSatellitesUsedInFix());
-            boolean forceRecord = false;
+            // The fix is taken from the pool: it is owned by the AsyncTODOQueue once handed off,
+            // so the RecordingPolicy keeps its own copies
+            FixRecord fix = FixRecord.obtain().set(loc, getNumberOfSatellitesTotal(), getNumberOfSatellitesUsedInFix());
 
             gpsUnavailableHandler.removeCallbacks(gpsUnavailableRunnable);                            // Cancel the previous unavail countdown handler
             gpsUnavailableHandler.postDelayed(gpsUnavailableRunnable, GPS_UNAVAILABLE_HANDLER_TIME);  // starts the unavailability timeout (in 7 sec.)
@@ -886,66 +920,18 @@ public class GPSApplication extends Application implements LocationListener {
                 }
                 else stabilizer--;
                 if (stabilizer <= 0) gpsStatus = GPS_OK;
-                prevFix = eloc;
-                prevRecordedFix = eloc;
-                isPrevFixRecorded = true;
-            }
-
-            // Save fix in case this is a STOP or a START (the speed is "old>0 and new=0" or "old=0 and new>0")
-            if ((prevFix != null) && (prevFix.getLocation().hasSpeed()) && (eloc.getLocation().hasSpeed()) && (gpsStatus == GPS_OK) && (isRecording)
-                    && (((eloc.getLocation().getSpeed() == 0) && (prevFix.getLocation().getSpeed() != 0)) || ((eloc.getLocation().getSpeed() != 0) && (prevFix.getLocation().getSpeed() == 0)))) {
-                if (!isPrevFixRecorded) {                   // Record the old sample if not already recorded
-                    AsyncTODO ast = new AsyncTODO();
-                    ast.taskType = TASK_ADDLOCATION;
-                    ast.location = prevFix;
-                    asyncTODOQueue.add(ast);
-                    prevRecordedFix = prevFix;
-                    isPrevFixRecorded = true;
-                }
-                forceRecord = true;                         // + Force to record the new
+                recordingPolicy.stabilize(fix);
             }
 
             if (gpsStatus == GPS_OK) {
-                AsyncTODO ast = new AsyncTODO();
-
-                // Distance Filter and Interval Filter in AND
-                // The Trackpoint is recorded when both filters are True.
-//                if ((isRecording) && ((prevRecordedFix == null)
-//                        || (forceRecord)
-//                        || (((loc.getTime() - prevRecordedFix.getTime()) >= (prefGPSinterval * 1000.0f))
-//                        && (loc.distanceTo(prevRecordedFix.getLocation()) >= prefGPSdistance)))) {
-
-                // Distance Filter and Interval Filter in OR
-                // The Trackpoint is recorded when at less one filter is True.
-                if ((isRecording) && ((prevRecordedFix == null)
-                        || (forceRecord)                                                                        // Forced to record the point
-                        || ((prefGPSinterval == 0) && (prefGPSdistance == 0))                                   // No filters enabled --> it records all the points
-                        || ((prefGPSinterval > 0)
-                            && (prefGPSdistance > 0)                                                            // Both filters enabled, check conditions in OR
-                            && (((loc.getTime() - prevRecordedFix.getTime()) >= (prefGPSinterval * 1000.0f))
-                                || (loc.distanceTo(prevRecordedFix.getLocation()) >= prefGPSdistance)))
-                        || ((prefGPSinterval > 0)
-                            && (prefGPSdistance == 0)                                                           // Only interval filter enabled
-                            && ((loc.getTime() - prevRecordedFix.getTime()) >= (prefGPSinterval * 1000.0f)))
-                        || ((prefGPSinterval == 0)
-                            && (prefGPSdistance > 0)                                                            // Only distance filter enabled
-                            && ((loc.distanceTo(prevRecordedFix.getLocation()) >= prefGPSdistance)))
-                        || (currentTrack.getNumberOfLocations() == 0))){                                        // It is the first point of a track
-
-                    prevRecordedFix = eloc;
-                    ast.taskType = TASK_ADDLOCATION;
-                    ast.location = eloc;
-                    asyncTODOQueue.add(ast);
-                    isPrevFixRecorded = true;
-                } else {
-                    ast.taskType = TASK_UPDATEFIX;
-                    ast.location = eloc;
-                    asyncTODOQueue.add(ast);
-                    isPrevFixRecorded = false;
-                }
-                prevFix = eloc;
+                int decision = recordingPolicy.evaluate(fix, isRecording, isCurrentTrackEmpty);
+                if ((decision & RecordingPolicy.DECISION_RECORD_PREVIOUS) != 0)       // A START or a STOP: the old sample first
+                    asyncTODOQueue.add(AsyncTODO.TASK_ADDLOCATION, FixRecord.obtain().copyFrom(recordingPolicy.getPreviousFix()));
+                if ((decision & RecordingPolicy.DECISION_RECORD) != 0) asyncTODOQueue.add(AsyncTODO.TASK_ADDLOCATION, fix);
+                else asyncTODOQueue.add(AsyncTODO.TASK_UPDATEFIX, fix);
+                if ((decision & (RecordingPolicy.DECISION_RECORD | RecordingPolicy.DECISION_RECORD_PREVIOUS)) != 0) isCurrentTrackEmpty = false;
                 isFirstFixFound = true;
-            }
+            } else fix.recycle();                           // Not handed off
         }
     }
 
@@ -994,15 +980,14 @@ public class GPSApplication extends Application implements LocationListener {
     @Subscribe
     public void onEvent(Short msg) {
         if (msg == EventBusMSG.NEW_TRACK) {
-            AsyncTODO ast = new AsyncTODO();
-            ast.taskType = TASK_NEWTRACK;
-            ast.location = null;
-            asyncTODOQueue.add(ast);
+            isCurrentTrackEmpty = true;
+            asyncTODOQueue.add(AsyncTODO.TASK_NEWTRACK, null);
             return;
         }
         if (msg == EventBusMSG.APP_PAUSE) {
             disableLocationUpdatesHandler.postDelayed(disableLocationUpdatesRunnable, getHandlerTime());  // Starts the switch-off handler (delayed by HandlerTimer)
-            if ((currentTrack.getNumberOfLocations() == 0) && (currentTrack.getNumberOfPlacemarks() == 0)
+            Track track = currentTrack;
+            if (isCurrentTrackEmpty && (track.getNumberOfLocations() == 0) && (track.getNumberOfPlacemarks() == 0)
                 && (!isRecording) && (!isPlacemarkRequested)) stopAndUnbindGPSService();
             System.gc();                                // Clear mem from released objects with Garbage Collector
             return;
@@ -1045,27 +1030,43 @@ public class GPSApplication extends Application implements LocationListener {
     }
 
     /**
-     * Gently shuts off the thread that manages the Database, waiting the end
-     * of the transaction queue.
+     * Gently shuts off the thread that manages the Database, draining the recording pipeline
+     * within a deadline:
+     * 1. the tasks already queued go through the pipeline, until the fixes are appended to the outbox
+     *    of the live streaming (at most SHUTDOWN_FLUSH_TIMEOUT);
+     * 2. the outbox is forced to the storage, and the uploads go on until the end of SHUTDOWN_DEADLINE;
+     * 3. the fixes not uploaded stay into the outbox, and are replayed at the next start.
+     * The counts of the fixes flushed, uploaded and deferred are logged and added to the metrics report.
      * This method is called by the ActionBroadcastReceiver when it
      * receives a Intent.ACTION_SHUTDOWN.
      */
     public void onShutdown() {
         gpsStatus = GPS_SEARCHING;
         Log.w("myApp", "[#] GPSApplication.java - onShutdown()");
-        AsyncTODO ast = new AsyncTODO();
-        ast.taskType = TASK_SHUTDOWN;
-        ast.location = null;
-        asyncTODOQueue.add(ast);
-        if (asyncUpdateThread.isAlive()) {
-            try {
-                Log.w("myApp", "[#] GPSApplication.java - onShutdown(): asyncUpdateThread isAlive. join...");
-                asyncUpdateThread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                Log.w("myApp", "[#] GPSApplication.java - onShutdown() InterruptedException: " + e);
-            }
+        long start = System.currentTimeMillis();
+        long firstSequence = streamLocationManager.getNextSequence();
+        int pendingFixes = streamLocationManager.getNumberOfPendingFixes();
+        asyncTODOQueue.add(AsyncTODO.TASK_SHUTDOWN, null);
+        boolean isFlushed = false;
+        try {
+            Log.w("myApp", "[#] GPSApplication.java - onShutdown(): flushing the recording pipeline...");
+            long flushDeadline = start + SHUTDOWN_FLUSH_TIMEOUT;
+            asyncUpdateThread.join(Math.max(1, flushDeadline - System.currentTimeMillis()));
+            isFlushed = !asyncUpdateThread.isAlive()
+                    && trackStage.join(Math.max(1, flushDeadline - System.currentTimeMillis()))
+                    && persistenceStage.join(Math.max(1, flushDeadline - System.currentTimeMillis()));
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Log.w("myApp", "[#] GPSApplication.java - onShutdown() InterruptedException: " + e);
         }
+        int notFlushedTasks = asyncTODOQueue.size() + trackStage.size() + persistenceStage.size();
+        int deferredFixes = streamLocationManager.drainAndStop(start + SHUTDOWN_DEADLINE);
+        long flushedFixes = streamLocationManager.getNextSequence() - firstSequence;
+        long uploadedFixes = Math.max(0, pendingFixes + flushedFixes - deferredFixes);
+        shutdownReport = String.format(Locale.US, "Shutdown: %d fixes flushed, %d uploaded, %d deferred to the next start, "
+                + "%d tasks not flushed (%s), in %d ms\n", flushedFixes, uploadedFixes, deferredFixes, notFlushedTasks,
+                isFlushed ? "pipeline drained" : "pipeline timed out", System.currentTimeMillis() - start);
+        Log.w("myApp", "[#] GPSApplication.java - onShutdown(): " + shutdownReport.trim());
     }
 
     /**
@@ -1328,6 +1329,51 @@ public class GPSApplication extends Application implements LocationListener {
         }
     }
 
+    /**
+     * @return the report of the metrics of the recording queue and of the live streaming, as text
+     */
+    public String getMetricsReport() {
+        StringBuilder sb = new StringBuilder(asyncTODOQueue.getReport());
+        String report = shutdownReport;
+        if (report != null) sb.append(report);
+        sb.append(recordingPolicy.getReport());
+        sb.append(ingestMetrics.getReport(asyncTODOQueue.size()));
+        for (RecordingStage stage : recordingStages) sb.append(stage.getReport());
+        return sb.append(streamLocationManager.getMetricsReport()).toString();
+    }
+
+    /**
+     * Writes the report of the live streaming metrics into a text file of the export folder
+     * (or of the files folder of the app, if the export folder is not writable), for the post-race analysis.
+     *
+     * @return the name of the written file, or null in case of error
+     */
+    public String dumpStreamingMetrics() {
+        String fileName = "Streaming_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".txt";
+        byte[] report = getMetricsReport().getBytes(StandardCharsets.UTF_8);
+        OutputStream out = null;
+        try {
+            if (isExportFolderWritable()) {
+                DocumentFile folder = prefExportFolder.startsWith("content")
+                        ? DocumentFile.fromTreeUri(this, Uri.parse(prefExportFolder))
+                        : DocumentFile.fromFile(new File(prefExportFolder));
+                DocumentFile document = (folder != null) ? folder.createFile("text/plain", fileName) : null;
+                if (document != null) out = getContentResolver().openOutputStream(document.getUri());
+            }
+            if (out == null) {
+                File folder = getExternalFilesDir(null);
+                out = new FileOutputStream(new File(folder != null ? folder : getFilesDir(), fileName));
+            }
+            out.write(report);
+            out.close();
+            Log.w("myApp", "[#] GPSApplication.java - Streaming metrics written to " + fileName);
+            return fileName;
+        } catch (IOException | SecurityException e) {
+            Log.w("myApp", "[#] GPSApplication.java - Unable to write the streaming metrics: " + e);
+            return null;
+        }
+    }
+
     // ---------------------------------------------------------------------- Preferences
 
     /**
@@ -1387,6 +1433,14 @@ public class GPSApplication extends Application implements LocationListener {
         }
 
         Log.w("myApp", "[#] GPSApplication.java - prefGPSdistance = " + prefGPSdistance + " m");
+        try {
+            prefRecordingPolicy = Integer.parseInt(preferences.getString("prefRecordingPolicy", "0"));
+        }
+        catch(NumberFormatException nfe) {
+            prefRecordingPolicy = RecordingRule.POLICY_FILTERS_OR;
+        }
+        recordingPolicy.setRule(RecordingRule.fromPreferences(prefRecordingPolicy, prefGPSinterval, prefGPSdistance));
+        Log.w("myApp", "[#] GPSApplication.java - Recording rule: " + recordingPolicy.getProgram());
 
         prefEGM96AltitudeCorrection = preferences.getBoolean("prefEGM96AltitudeCorrection", false);
         prefAltitudeCorrection = Double.parseDouble(preferences.getString("prefAltitudeCorrection", "0"));
@@ -1413,6 +1467,68 @@ public class GPSApplication extends Application implements LocationListener {
         // Update the GPS Update Frequency if needed
         if (oldGPSupdatefrequency != prefGPSupdatefrequency) updateGPSLocationFrequency();
 
+        // Live streaming
+        try {
+            streamLocationManager.setBatching(preferences.getBoolean("prefStreamBatching", false),
+                    Integer.parseInt(preferences.getString("prefStreamBatchSize", String.valueOf(StreamLocationManager.DEFAULT_BATCH_SIZE))),
+                    Long.parseLong(preferences.getString("prefStreamBatchWindow", String.valueOf(StreamLocationManager.DEFAULT_BATCH_WINDOW))),
+                    Long.parseLong(preferences.getString("prefStreamBatchMaxLatency", String.valueOf(StreamLocationManager.DEFAULT_BATCH_MAX_LATENCY))));
+        }
+        catch(NumberFormatException nfe) {
+            streamLocationManager.setBatching(preferences.getBoolean("prefStreamBatching", false),
+                    StreamLocationManager.DEFAULT_BATCH_SIZE,
+                    StreamLocationManager.DEFAULT_BATCH_WINDOW,
+                    StreamLocationManager.DEFAULT_BATCH_MAX_LATENCY);
+        }
+        Log.w("myApp", "[#] GPSApplication.java - prefStreamBatching = " + streamLocationManager.isBatchingEnabled());
+        try {
+            streamLocationManager.getUploadPolicy().configure(preferences.getBoolean("prefStreamAdaptiveRate", false),
+                    Float.parseFloat(preferences.getString("prefStreamStationarySpeed", String.valueOf(StreamUploadPolicy.DEFAULT_STATIONARY_SPEED))),
+                    Float.parseFloat(preferences.getString("prefStreamRacingSpeed", String.valueOf(StreamUploadPolicy.DEFAULT_RACING_SPEED))),
+                    Long.parseLong(preferences.getString("prefStreamHeartbeatInterval", String.valueOf(StreamUploadPolicy.DEFAULT_HEARTBEAT_INTERVAL))),
+                    Long.parseLong(preferences.getString("prefStreamMaxInterval", String.valueOf(StreamUploadPolicy.DEFAULT_MAX_INTERVAL))),
+                    Float.parseFloat(preferences.getString("prefStreamBearingThreshold", String.valueOf(StreamUploadPolicy.DEFAULT_BEARING_THRESHOLD))),
+                    Float.parseFloat(preferences.getString("prefStreamTolerance", String.valueOf(StreamUploadPolicy.DEFAULT_TOLERANCE))));
+        } catch (NumberFormatException nfe) {
+            streamLocationManager.getUploadPolicy().configure(preferences.getBoolean("prefStreamAdaptiveRate", false),
+                    StreamUploadPolicy.DEFAULT_STATIONARY_SPEED,
+                    StreamUploadPolicy.DEFAULT_RACING_SPEED,
+                    StreamUploadPolicy.DEFAULT_HEARTBEAT_INTERVAL,
+                    StreamUploadPolicy.DEFAULT_MAX_INTERVAL,
+                    StreamUploadPolicy.DEFAULT_BEARING_THRESHOLD,
+                    StreamUploadPolicy.DEFAULT_TOLERANCE);
+        }
+        Log.w("myApp", "[#] GPSApplication.java - prefStreamAdaptiveRate = " + streamLocationManager.getUploadPolicy().isEnabled());
+        try {
+            streamLocationManager.setUploadConcurrency(
+                    Integer.parseInt(preferences.getString("prefStreamLiveWindow", String.valueOf(LocationUploader.DEFAULT_LIVE_WINDOW))),
+                    Integer.parseInt(preferences.getString("prefStreamBulkConcurrency", String.valueOf(LocationUploader.DEFAULT_BULK_CONCURRENCY))));
+        } catch (NumberFormatException nfe) {
+            streamLocationManager.setUploadConcurrency(LocationUploader.DEFAULT_LIVE_WINDOW, LocationUploader.DEFAULT_BULK_CONCURRENCY);
+        }
+        Log.w("myApp", "[#] GPSApplication.java - prefStreamBulkConcurrency = "
+                + streamLocationManager.getLocationUploader().getConcurrency(LocationUploader.LANE_BULK));
+        streamLocationManager.setBinaryEncoding(preferences.getBoolean("prefStreamBinary", false));
+        Log.w("myApp", "[#] GPSApplication.java - prefStreamBinary = " + preferences.getBoolean("prefStreamBinary", false));
+        streamLocationManager.setStreamChannel(preferences.getBoolean("prefStreamChannel", false));
+        Log.w("myApp", "[#] GPSApplication.java - prefStreamChannel = " + preferences.getBoolean("prefStreamChannel", false));
+        int datagramPort;
+        try {
+            datagramPort = Integer.parseInt(preferences.getString("prefStreamDatagramPort", "0"));
+        } catch (NumberFormatException nfe) {
+            datagramPort = 0;
+        }
+        streamLocationManager.setDatagramMode(preferences.getBoolean("prefStreamDatagram", false), datagramPort);
+        Log.w("myApp", "[#] GPSApplication.java - prefStreamDatagram = " + streamLocationManager.isDatagramModeActive());
+        String server = preferences.getString("prefStreamServer", "");
+        if (!server.equals(prefStreamServer)) {
+            prefStreamServer = server;
+            UploadTransport uploadTransport = HttpUploadTransport.create(prefStreamServer);
+            streamLocationManager.setTransport(uploadTransport);
+            if (teamDetailsManager != null) teamDetailsManager.setTransport(uploadTransport);
+            Log.w("myApp", "[#] GPSApplication.java - Bumps Viewer server = " + uploadTransport.getEndPoint());
+        }
+
         // Load EGM Grid if needed
         EGM96 egm96 = EGM96.getInstance();
         if (egm96 != null) {
@@ -1483,33 +1599,140 @@ public class GPSApplication extends Application implements LocationListener {
         }
     }
 
+    private final AsyncTODOQueue asyncTODOQueue = new AsyncTODOQueue(AsyncTODOQueue.DEFAULT_CAPACITY,
+            AsyncTODOQueue.WAIT_BLOCKING, AsyncTODOQueue.OVERFLOW_SPILL);   // The FIFO for asynchronous DB operations, with the fix updates coalesced
+
+    // ---------------------------------------------------------------------------------------------- The recording pipeline
+    //
+    // onLocationChanged() --> asyncTODOQueue --> ingest (AsyncUpdateThread) --> track statistics --> persistence --> upload
+    //                                                         |                        |
+    //                                                         +---------> UI publication <-------+
+    //
+    // Every stage has its own thread and its own bounded hand-off, so that a slow stage (the file I/O of the
+    // persistence, the EventBus subscribers) doesn't stall the others. The TASK_SHUTDOWN goes through all of them.
+
+    private static final int UI_STAGE_CAPACITY = 4;                     // The UI messages waiting, coalesced by type
+
+    private final RecordingStage.Metrics ingestMetrics = new RecordingStage.Metrics("ingest");
+    private volatile String shutdownReport;                             // The outcome of onShutdown(), or null
+
     /**
-     * The Class defines a Database transaction to be enqueued
+     * Updates the statistics of the current track with the recorded locations, and creates the new tracks.
      */
-    private static class AsyncTODO {
-        String taskType;
-        LocationExtended location;
-    }
+    private final RecordingStage trackStage = new RecordingStage("track", RecordingStage.DEFAULT_CAPACITY, false,
+            new RecordingStage.Handler() {
+                @Override
+                public void handle(int type, Object item) {
+                    switch (type) {
+                        case AsyncTODO.TASK_SHUTDOWN:
+                            persistenceStage.add(AsyncTODO.TASK_SHUTDOWN, null);
+                            uiStage.add(AsyncTODO.TASK_SHUTDOWN, null);
+                            break;
+
+                        // Task: Create new track (if needed)
+                        case AsyncTODO.TASK_NEWTRACK:
+                            Track track = currentTrack;
+                            if ((track.getNumberOfLocations() != 0) || (track.getNumberOfPlacemarks() != 0)) {
+                                // ---- Delete 2 thumbs files forward - in case of user deleted DB in App manager (pngs could be already presents for the new IDS)
+                                String fname = (track.getId() + 1) +".png";
+                                File file = new File(getApplicationContext().getFilesDir() + "/Thumbnails/", fname);
+                                if (file.exists ()) file.delete ();
+                                fname = (track.getId() + 2) +".png";
+                                file = new File(getApplicationContext().getFilesDir() + "/Thumbnails/", fname);
+                                if (file.exists ()) file.delete ();
+                                track = new Track();
+                                // ----
+                                Log.w("myApp", "[#] GPSApplication.java - TASK_NEWTRACK: " + track.getId());
+                            } else Log.w("myApp", "[#] GPSApplication.java - TASK_NEWTRACK: Track " + track.getId() + " already empty (New track not created)");
+                            currentTrack = track;
+                            uiStage.add(AsyncTODO.TASK_NEWTRACK, null);
+                            break;
+
+                        // Task: Add location to current track
+                        case AsyncTODO.TASK_ADDLOCATION:
+                            try {
+                                currentTrack.add((FixRecord) item);
+                            } catch (RuntimeException e) {
+                                // The statistics are lost for this fix, the location is still persisted and uploaded
+                                Log.w("myApp", "[#] GPSApplication.java - TASK_ADDLOCATION: Track statistics not updated: " + e);
+                            }
+                            persistenceStage.add(AsyncTODO.TASK_ADDLOCATION, item);
+                            uiStage.add(AsyncTODO.TASK_ADDLOCATION, null);
+                            break;
+                    }
+                }
+            });
 
-    private final BlockingQueue<AsyncTODO> asyncTODOQueue
-            = new LinkedBlockingQueue<>();                      // The FIFO for asynchronous DB operations
+    /**
+     * Appends the recorded locations to the outbox of the live streaming.
+     */
+    private final RecordingStage persistenceStage = new RecordingStage("persist", RecordingStage.DEFAULT_CAPACITY, false,
+            new RecordingStage.Handler() {
+                @Override
+                public void handle(int type, Object item) {
+                    if (type == AsyncTODO.TASK_SHUTDOWN) uploadStage.add(AsyncTODO.TASK_SHUTDOWN, null);
+                    else if (type == AsyncTODO.TASK_ADDLOCATION) {
+                        FixRecord location = (FixRecord) item;
+                        StreamedFix fix = streamLocationManager.persistLocationData(location.getTime(),
+                                location.getLatitude(),
+                                location.getLongitude(),
+                                location.getSpeed(),
+                                location.getBearing());
+                        location.recycle();                             // The last stage of the location
+                        if (fix != null) uploadStage.add(AsyncTODO.TASK_ADDLOCATION, fix);
+                    }
+                }
+            });
 
     /**
-     * The Thread that manages and executes the Database operations asynchronously.
+     * Hands off the persisted locations to the LocationUploader (non-blocking).
+     */
+    private final RecordingStage uploadStage = new RecordingStage("upload", RecordingStage.DEFAULT_CAPACITY, false,
+            new RecordingStage.Handler() {
+                @Override
+                public void handle(int type, Object item) {
+                    if (type == AsyncTODO.TASK_ADDLOCATION) streamLocationManager.scheduleUpload((StreamedFix) item);
+                }
+            });
+
+    /**
+     * Posts the EventBus messages of the fixes and of the track, when the screen is on.
+     * Only the newest message of every type matters, so they are coalesced.
+     */
+    private final RecordingStage uiStage = new RecordingStage("ui", UI_STAGE_CAPACITY, true,
+            new RecordingStage.Handler() {
+                @Override
+                public void handle(int type, Object item) {
+                    if (!isScreenOn) return;
+                    switch (type) {
+                        case AsyncTODO.TASK_UPDATEFIX:
+                            EventBus.getDefault().post(EventBusMSG.UPDATE_FIX);
+                            break;
+                        case AsyncTODO.TASK_NEWTRACK:
+                        case AsyncTODO.TASK_ADDLOCATION:
+                            EventBus.getDefault().post(EventBusMSG.UPDATE_TRACK);
+                            break;
+                    }
+                }
+            });
+
+    private final RecordingStage[] recordingStages = { trackStage, persistenceStage, uploadStage, uiStage };
+
+    /**
+     * The Thread that manages and executes the Database operations asynchronously:
+     * the ingest stage of the recording pipeline.
      * It takes one by one the elements of the asyncTODOQueue and executes them
-     * in FIFO order.
+     * in FIFO order, dispatching them by opcode: it sets the current fix,
+     * then hands off the rest of the work to the next stages.
+     * The FixRecords taken are recycled by the last stage that uses them.
      * When the asyncTODOQueue list is empty, the thread blocks waiting the next item.
      */
     private class AsyncUpdateThreadClass extends Thread {
 
-        Track track;
-        LocationExtended locationExtended;
-
         public AsyncUpdateThreadClass() {}
 
         public void run() {
 
-            track = currentTrack;
             EventBus.getDefault().post(EventBusMSG.UPDATE_TRACK);
 
             boolean shutdown = false;
@@ -1522,57 +1745,37 @@ public class GPSApplication extends Application implements LocationListener {
                     Log.w("myApp", "[!] Buffer not available: " + e.getMessage());
                     break;
                 }
-
-                // Task: Safely Shutdown
-                if (asyncTODO.taskType.equals(TASK_SHUTDOWN)) {
-                    shutdown = true;
-                    Log.w("myApp", "[#] GPSApplication.java - AsyncUpdateThreadClass: SHUTDOWN EVENT.");
-                }
-
-                // Task: Create new track (if needed)
-                if (asyncTODO.taskType.equals(TASK_NEWTRACK)) {
-                    if ((track.getNumberOfLocations() != 0) || (track.getNumberOfPlacemarks() != 0)) {
-                        // ---- Delete 2 thumbs files forward - in case of user deleted DB in App manager (pngs could be already presents for the new IDS)
-                        String fname = (track.getId() + 1) +".png";
-                        File file = new File(getApplicationContext().getFilesDir() + "/Thumbnails/", fname);
-                        if (file.exists ()) file.delete ();
-                        fname = (track.getId() + 2) +".png";
-                        file = new File(getApplicationContext().getFilesDir() + "/Thumbnails/", fname);
-                        if (file.exists ()) file.delete ();
-                        track = new Track();
-                        // ----
-                        Log.w("myApp", "[#] GPSApplication.java - TASK_NEWTRACK: " + track.getId());
-                        currentTrack = track;
-                    } else Log.w("myApp", "[#] GPSApplication.java - TASK_NEWTRACK: Track " + track.getId() + " already empty (New track not created)");
-                    currentTrack = track;
-                    EventBus.getDefault().post(EventBusMSG.UPDATE_TRACK);
-                }
-
-                // Task: Add location to current track
-                if (asyncTODO.taskType.equals(TASK_ADDLOCATION)) {
-                    locationExtended = new LocationExtended(asyncTODO.location.getLocation());
-                    locationExtended.setNumberOfSatellites(asyncTODO.location.getNumberOfSatellites());
-                    locationExtended.setNumberOfSatellitesUsedInFix(asyncTODO.location.getNumberOfSatellitesUsedInFix());
-                    currentLocationExtended = locationExtended;
-                    if (isScreenOn) EventBus.getDefault().post(EventBusMSG.UPDATE_FIX);
-                    try {
-                        streamLocationManager.streamLocationData(locationExtended.getLatitude(),
-                                locationExtended.getLongitude());
-                    } catch (ExecutionException e) {
-                        e.printStackTrace();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    if (isScreenOn) EventBus.getDefault().post(EventBusMSG.UPDATE_TRACK);
-                }
-
-                // Task: Update current Fix
-                if (asyncTODO.taskType.equals(TASK_UPDATEFIX)) {
-                    currentLocationExtended = new LocationExtended(asyncTODO.location.getLocation());
-                    currentLocationExtended.setNumberOfSatellites(asyncTODO.location.getNumberOfSatellites());
-                    currentLocationExtended.setNumberOfSatellitesUsedInFix(asyncTODO.location.getNumberOfSatellitesUsedInFix());
-                    if (isScreenOn) EventBus.getDefault().post(EventBusMSG.UPDATE_FIX);
+                long start = System.nanoTime();
+
+                switch (asyncTODO.taskType) {
+
+                    // Task: Safely Shutdown, after the tasks already handed off to the next stages
+                    case AsyncTODO.TASK_SHUTDOWN:
+                        shutdown = true;
+                        trackStage.add(AsyncTODO.TASK_SHUTDOWN, null);
+                        Log.w("myApp", "[#] GPSApplication.java - AsyncUpdateThreadClass: SHUTDOWN EVENT.");
+                        break;
+
+                    // Task: Create new track (if needed), in order with the locations
+                    case AsyncTODO.TASK_NEWTRACK:
+                        trackStage.add(AsyncTODO.TASK_NEWTRACK, null);
+                        break;
+
+                    // Task: Add location to current track
+                    case AsyncTODO.TASK_ADDLOCATION:
+                        setCurrentFix(asyncTODO.location);
+                        uiStage.add(AsyncTODO.TASK_UPDATEFIX, null);
+                        trackStage.add(AsyncTODO.TASK_ADDLOCATION, asyncTODO.location);   // Then persisted, and recycled
+                        break;
+
+                    // Task: Update current Fix
+                    case AsyncTODO.TASK_UPDATEFIX:
+                        setCurrentFix(asyncTODO.location);
+                        asyncTODO.location.recycle();
+                        uiStage.add(AsyncTODO.TASK_UPDATEFIX, null);
+                        break;
                 }
+                ingestMetrics.record(start - asyncTODO.addTime, System.nanoTime() - start);
             }
         }
     }
@@ -0,0 +1,78 @@
+package eu.ybenouag.gpslogger;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * The UploadTransport over HTTP (or HTTPS), through the shared keep-alive BumpsViewerHttpClient.
+ */
+public class HttpUploadTransport implements UploadTransport {
+
+    public static final URI DEFAULT_END_POINT = URI.create("https://bumps-viewer-server.azurewebsites.net");
+
+    private final URI endPoint;
+    private final BumpsViewerHttpClient httpClient;
+
+    /**
+     * @param endPoint the base URI of the server, like http://192.168.1.10:8091
+     * @param httpClient the client that executes the requests
+     */
+    public HttpUploadTransport(URI endPoint, BumpsViewerHttpClient httpClient) {
+        this.endPoint = endPoint;
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * Creates the transport to the given server, using the shared client.
+     *
+     * @param server the base URI of the server; empty (or invalid) for the Bumps Viewer server
+     */
+    public static HttpUploadTransport create(String server) {
+        URI endPoint = DEFAULT_END_POINT;
+        if ((server != null) && !server.trim().isEmpty()) {
+            try {
+                URI uri = new URI(server.trim());
+                if (("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme())) && (uri.getHost() != null)) {
+                    endPoint = uri;
+                } else Log.w("myApp", "[#] HttpUploadTransport.java - Unsupported server " + server + ", using " + DEFAULT_END_POINT);
+            } catch (URISyntaxException e) {
+                Log.w("myApp", "[#] HttpUploadTransport.java - Invalid server " + server + ", using " + DEFAULT_END_POINT);
+            }
+        }
+        return new HttpUploadTransport(endPoint, BumpsViewerHttpClient.getInstance());
+    }
+
+    @Override
+    public BumpsViewerHttpClient.Response get(String path) throws IOException {
+        return execute("GET", path, null, null, 0);
+    }
+
+    @Override
+    public BumpsViewerHttpClient.Response post(String path, String contentType, byte[] body, int bodyLength) throws IOException {
+        return execute("POST", path, contentType, body, bodyLength);
+    }
+
+    /**
+     * Executes the request, recording its latency and its outcome into the StreamMetrics.
+     */
+    private BumpsViewerHttpClient.Response execute(String method, String path, String contentType, byte[] body, int bodyLength) throws IOException {
+        StreamMetrics metrics = StreamMetrics.getInstance();
+        long start = System.nanoTime();
+        try {
+            BumpsViewerHttpClient.Response response = httpClient.execute(method, endPoint.resolve(path), contentType, body, bodyLength);
+            metrics.recordRequest(path, System.nanoTime() - start, response.status);
+            return response;
+        } catch (IOException e) {
+            metrics.recordNetworkError(path, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public URI getEndPoint() {
+        return endPoint;
+    }
+}
@@ -49,6 +49,29 @@ public class LocationExtended {
         }
     }
 
+    /**
+     * The adapter of a FixRecord, for the code that still needs a LocationExtended.
+     * The EGM96 correction is the one of the record, looked up if not yet done.
+     *
+     * @param fix the record to copy
+     */
+    LocationExtended(FixRecord fix) {
+        this(fix, null);
+    }
+
+    /**
+     * The adapter of a FixRecord, that fills the given Location.
+     *
+     * @param fix the record to copy
+     * @param location the Location to fill, or null for a new one
+     */
+    LocationExtended(FixRecord fix, Location location) {
+        this.location = fix.toLocation(location);
+        altitudeEGM96Correction = fix.getAltitudeEGM96Correction();
+        numberOfSatellites = fix.getNumberOfSatellites();
+        numberOfSatellitesUsedInFix = fix.getNumberOfSatellitesUsedInFix();
+    }
+
     // ------------------------------------------------------------------------- Getters and Setters
 
     public Location getLocation() {
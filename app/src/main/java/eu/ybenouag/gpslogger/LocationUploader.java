@@ -0,0 +1,336 @@
+package eu.ybenouag.gpslogger;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The upload stage of the live streaming.
+ * It sends the data to the Bumps Viewer server on its own threads, with bounded hand-off queues,
+ * so that the AsyncUpdateThread of GPSApplication never waits for the network.
+ * <p>
+ * The jobs are scheduled by traffic class, on two lanes:
+ * - LANE_LIVE, the live position: strict priority and a small in-flight window. While a live job
+ *   is waiting, no bulk job is started;
+ * - LANE_BULK, the persistence of the fixes (debug data and catch-up of the outbox): deferred while
+ *   the live lane is busy, and executed with its own concurrency limit.
+ * So a slow debug write doesn't delay the live position behind it.
+ * When the queue of a lane is full its oldest pending job is dropped, being the most outdated one.
+ * The outcome of every job is reported to the Listener and accumulated into the counters of its lane
+ * and into the StreamMetrics.
+ */
+public class LocationUploader {
+
+    public static final int LANE_LIVE                   = 0;        // The traffic class of the live position
+    public static final int LANE_BULK                   = 1;        // The traffic class of the persistence
+    public static final int LANES                       = 2;
+
+    public static final int DEFAULT_QUEUE_CAPACITY      = 64;       // The maximum number of pending bulk jobs
+    public static final int DEFAULT_LIVE_WINDOW         = 1;        // The maximum number of live jobs in flight
+    public static final int DEFAULT_BULK_CONCURRENCY    = 2;        // The maximum number of bulk jobs in flight
+    private static final int LIVE_QUEUE_CAPACITY        = 8;        // The maximum number of pending live jobs
+
+    static final String[] LANE_NAMES = { "live", "bulk" };
+
+    /**
+     * A unit of work of the upload stage.
+     * It is executed on an upload thread and may block on the network.
+     */
+    public interface Job {
+        /**
+         * @return true if the data has been accepted by the server
+         */
+        boolean upload();
+
+        /**
+         * @return the number of fixes carried by the job
+         */
+        int getNumberOfFixes();
+    }
+
+    /**
+     * Receives the outcome of the uploads.
+     * The methods are called on the upload threads.
+     */
+    public interface Listener {
+        void onUploadCompleted(int numberOfFixes, long latencyMillis);
+        void onUploadFailed(int numberOfFixes, long latencyMillis);
+    }
+
+    /**
+     * The queue, the concurrency limit and the counters of a traffic class.
+     */
+    private static class Lane {
+        final ArrayDeque<Task> queue = new ArrayDeque<>();
+        final int capacity;
+        int concurrency;                                            // The maximum number of jobs in flight
+        int inFlight;                                               // The jobs being executed
+
+        final AtomicLong submittedJobs  = new AtomicLong();         // The jobs handed off to the lane
+        final AtomicLong completedJobs  = new AtomicLong();         // The jobs accepted by the server
+        final AtomicLong failedJobs     = new AtomicLong();         // The jobs failed
+        final AtomicLong droppedJobs    = new AtomicLong();         // The jobs dropped because of a full queue
+        volatile long lastLatencyMillis = GPSApplication.NOT_AVAILABLE;
+
+        Lane(int capacity, int concurrency) {
+            this.capacity = capacity;
+            this.concurrency = concurrency;
+        }
+    }
+
+    /**
+     * A job waiting into a lane.
+     */
+    private static class Task {
+        final Job job;
+        final int lane;
+        final long submitTime;
+
+        Task(Job job, int lane, long submitTime) {
+            this.job = job;
+            this.lane = lane;
+            this.submitTime = submitTime;
+        }
+    }
+
+    private final Lane[] lanes = new Lane[LANES];
+    private final List<Thread> workers = new ArrayList<>();
+    private boolean isShutdown;
+    private volatile Listener listener;
+    private volatile Runnable jobEndListener;                       // Run at the end of every job, once it is no longer in flight
+    private volatile long lastLatencyMillis = GPSApplication.NOT_AVAILABLE;
+
+    public LocationUploader() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates the upload stage. Its threads are started at the first jobs.
+     *
+     * @param queueCapacity the maximum number of pending bulk jobs
+     */
+    public LocationUploader(int queueCapacity) {
+        lanes[LANE_LIVE] = new Lane(LIVE_QUEUE_CAPACITY, DEFAULT_LIVE_WINDOW);
+        lanes[LANE_BULK] = new Lane(queueCapacity, DEFAULT_BULK_CONCURRENCY);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets a callback run on the upload thread at the end of every job, after its lane counts it out of the jobs
+     * in flight: a waiter can check getQueueDepth() and getInFlight() again without polling.
+     */
+    public void setJobEndListener(Runnable jobEndListener) {
+        this.jobEndListener = jobEndListener;
+    }
+
+    /**
+     * Sets the maximum number of jobs of a lane executed at the same time.
+     * The jobs already in flight are not interrupted.
+     *
+     * @param lane LANE_LIVE or LANE_BULK
+     * @param concurrency the maximum number of jobs in flight, at least 1
+     */
+    public synchronized void setConcurrency(int lane, int concurrency) {
+        lanes[lane].concurrency = Math.max(1, concurrency);
+        notifyAll();
+    }
+
+    public synchronized int getConcurrency(int lane) {
+        return lanes[lane].concurrency;
+    }
+
+    /**
+     * Hands off a job to the bulk lane, without waiting for its execution.
+     *
+     * @param job the job to execute
+     */
+    public void submit(Job job) {
+        submit(job, LANE_BULK);
+    }
+
+    /**
+     * Hands off a job to the given lane, without waiting for its execution.
+     *
+     * @param job the job to execute
+     * @param lane LANE_LIVE or LANE_BULK
+     */
+    public synchronized void submit(Job job, int lane) {
+        if (isShutdown) return;
+        Lane l = lanes[lane];
+        l.submittedJobs.incrementAndGet();
+        if (l.queue.size() >= l.capacity) {
+            l.queue.poll();                                         // Drops the oldest pending job
+            l.droppedJobs.incrementAndGet();
+        }
+        l.queue.add(new Task(job, lane, System.nanoTime()));
+        // A thread for every job that can be in flight, started at the first jobs
+        int threads = 0;
+        for (Lane each : lanes) threads += each.concurrency;
+        while (workers.size() < threads) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "LocationUploader-" + (workers.size() + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Stops the upload threads. The pending jobs are discarded.
+     */
+    public void shutdown() {
+        List<Thread> threads;
+        synchronized (this) {
+            isShutdown = true;
+            for (Lane l : lanes) l.queue.clear();
+            threads = new ArrayList<>(workers);
+            notifyAll();
+        }
+        for (Thread worker : threads) worker.interrupt();
+    }
+
+    /**
+     * @return the next job that can be started, or null if none.
+     *         The live jobs have strict priority: while one is waiting, no bulk job is started.
+     */
+    private Task next() {
+        Lane live = lanes[LANE_LIVE];
+        if (!live.queue.isEmpty()) return live.inFlight < live.concurrency ? live.queue.poll() : null;
+        Lane bulk = lanes[LANE_BULK];
+        if (!bulk.queue.isEmpty() && (bulk.inFlight < bulk.concurrency)) return bulk.queue.poll();
+        return null;
+    }
+
+    /**
+     * The loop of the upload threads: executes the jobs, in order of priority, until the shutdown.
+     */
+    private void work() {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                while (true) {
+                    if (isShutdown) return;
+                    task = next();
+                    if (task != null) break;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                lanes[task.lane].inFlight++;
+            }
+            try {
+                execute(task);
+            } finally {
+                synchronized (this) {
+                    lanes[task.lane].inFlight--;
+                    notifyAll();
+                }
+                Runnable r = jobEndListener;
+                if (r != null) r.run();
+            }
+        }
+    }
+
+    private void execute(Task task) {
+        Job job = task.job;
+        Lane lane = lanes[task.lane];
+        boolean uploaded;
+        try {
+            uploaded = job.upload();
+        } catch (RuntimeException e) {
+            Log.w("myApp", "[#] LocationUploader.java - Upload failed: " + e);
+            uploaded = false;
+        }
+        if (job.getNumberOfFixes() == 0) return;                    // Nothing has been sent
+        long latencyNanos = System.nanoTime() - task.submitTime;
+        StreamMetrics.getInstance().recordUpload(task.lane, latencyNanos, uploaded, job.getNumberOfFixes());
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+        lastLatencyMillis = latencyMillis;
+        lane.lastLatencyMillis = latencyMillis;
+        Listener l = listener;
+        if (uploaded) {
+            lane.completedJobs.incrementAndGet();
+            if (l != null) l.onUploadCompleted(job.getNumberOfFixes(), latencyMillis);
+        } else {
+            lane.failedJobs.incrementAndGet();
+            if (l != null) l.onUploadFailed(job.getNumberOfFixes(), latencyMillis);
+        }
+    }
+
+    // ------------------------------------------------------------------------- Counters
+
+    public long getSubmittedJobs() {
+        return lanes[LANE_LIVE].submittedJobs.get() + lanes[LANE_BULK].submittedJobs.get();
+    }
+
+    public long getCompletedJobs() {
+        return lanes[LANE_LIVE].completedJobs.get() + lanes[LANE_BULK].completedJobs.get();
+    }
+
+    public long getFailedJobs() {
+        return lanes[LANE_LIVE].failedJobs.get() + lanes[LANE_BULK].failedJobs.get();
+    }
+
+    public long getDroppedJobs() {
+        return lanes[LANE_LIVE].droppedJobs.get() + lanes[LANE_BULK].droppedJobs.get();
+    }
+
+    public synchronized int getQueueDepth() {
+        return lanes[LANE_LIVE].queue.size() + lanes[LANE_BULK].queue.size();
+    }
+
+    public long getSubmittedJobs(int lane) {
+        return lanes[lane].submittedJobs.get();
+    }
+
+    public long getCompletedJobs(int lane) {
+        return lanes[lane].completedJobs.get();
+    }
+
+    public long getFailedJobs(int lane) {
+        return lanes[lane].failedJobs.get();
+    }
+
+    public long getDroppedJobs(int lane) {
+        return lanes[lane].droppedJobs.get();
+    }
+
+    public synchronized int getQueueDepth(int lane) {
+        return lanes[lane].queue.size();
+    }
+
+    /**
+     * @return the number of jobs of the given lane being executed
+     */
+    public synchronized int getInFlight(int lane) {
+        return lanes[lane].inFlight;
+    }
+
+    /**
+     * @return the time, in milliseconds, between the hand-off and the end of the last job
+     */
+    public long getLastLatencyMillis() {
+        return lastLatencyMillis;
+    }
+
+    /**
+     * @return the time, in milliseconds, between the hand-off and the end of the last job of the given lane
+     */
+    public long getLastLatencyMillis(int lane) {
+        return lanes[lane].lastLatencyMillis;
+    }
+}
@@ -0,0 +1,285 @@
+package eu.ybenouag.gpslogger;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which fixes of onLocationChanged() are recorded into the track, with a RecordingRule.
+ * The rule is compiled when it is set (see RecordingRule.compile()), and every fix is evaluated
+ * by a single loop over the compiled clauses. The default rule, as the policy POLICY_FILTERS_OR
+ * of the preferences, records:
+ * - the first fix (after the stabilization, or after a change of the recording state);
+ * - a fix that starts or stops a movement (the speed passes from 0 to &gt; 0, or the reverse),
+ *   together with the previous fix, if not yet recorded;
+ * - the fixes that pass the interval filter or the distance filter (in OR), or all of them
+ *   if no filter is enabled;
+ * - the first fix of a track.
+ * The other fixes only update the current fix.
+ * <p>
+ * It keeps its own copies of the previous fix and of the previous recorded fix, so the fixes
+ * evaluated can be handed off right after.
+ * It is used by the main thread only, and it doesn't allocate anything.
+ * <p>
+ * The distance filter uses a local projection: the distance from the previous recorded fix is
+ * approximated on the plane tangent to the ellipsoid at its latitude, with the radii of curvature
+ * of that latitude computed once (equirectangular). Only when the approximation is close to the
+ * threshold (within DISTANCE_TOLERANCE), or the fixes are too far apart or too close to a pole,
+ * the exact ellipsoidal distance of FixRecord.distanceTo() (the algorithm of Location.distanceTo()) is computed.
+ * So the decisions are the ones of the exact distance.
+ */
+class RecordingPolicy {
+
+    static final int DECISION_UPDATE            = 0;        // The fix updates the current fix only
+    static final int DECISION_RECORD            = 1;        // The fix is recorded
+    static final int DECISION_RECORD_PREVIOUS   = 2;        // The previous fix is recorded before it (a flag)
+
+    static final double DISTANCE_TOLERANCE      = 0.01;     // The maximum relative error of the local projection, with a margin
+    static final double DISTANCE_MARGIN         = 0.1;      // An absolute margin (m), for the thresholds near 0
+    private static final double MAX_LOCAL_DEGREES   = 0.1;      // The maximum difference of latitude or longitude of the local projection
+    private static final double MAX_LOCAL_LATITUDE  = 80;       // The maximum absolute latitude of the local projection
+    private static final double REFERENCE_STEP      = 0.01;     // The change of latitude (deg) that updates the radii of curvature
+
+    private static final double WGS84_A         = 6378137.0;            // The semi-major axis (m)
+    private static final double WGS84_E2        = 0.00669437999014;     // The first eccentricity, squared
+
+    private volatile RecordingRule.Program program =        // The compiled rule; set by the main thread, read by the reports too
+            RecordingRule.fromPreferences(RecordingRule.POLICY_FILTERS_OR, 0, 0).compile();
+
+    private final FixRecord prevFix = new FixRecord();          // The previous fix
+    private final FixRecord olderFix = new FixRecord();         // The fix before it, returned by getPreviousFix()
+    private final FixRecord prevRecordedFix = new FixRecord();  // The previous recorded fix
+    private boolean hasPrevFix;
+    private boolean hasPrevRecordedFix;
+    private boolean isPrevFixRecorded;                      // true if the previous fix has been recorded
+
+    // The local projection around the previous recorded fix
+    private double referenceLatitude = Double.NaN;          // The latitude of the radii of curvature
+    private double metersPerDegreeLatitude;
+    private double metersPerDegreeLongitude;
+
+    // Written by the main thread only
+    private final AtomicLong evaluatedFixes = new AtomicLong();
+    private final AtomicLong recordedFixes = new AtomicLong();      // The fixes recorded, the forced ones included
+    private final AtomicLong forcedFixes = new AtomicLong();        // The fixes recorded at a start or a stop
+    private final AtomicLong distanceChecks = new AtomicLong();
+    private final AtomicLong exactDistances = new AtomicLong();     // The distance checks that computed the exact distance
+
+    /**
+     * Compiles and sets the rule. The previous fixes are kept.
+     *
+     * @param rule the rule, for example RecordingRule.fromPreferences()
+     * @throws IllegalArgumentException if the rule is too complex
+     */
+    void setRule(RecordingRule rule) {
+        program = rule.compile();
+    }
+
+    /**
+     * @return the compiled rule
+     */
+    RecordingRule.Program getProgram() {
+        return program;
+    }
+
+    /**
+     * Forgets the previous recorded fix: the next fix evaluated is recorded.
+     */
+    void resetRecordedFix() {
+        hasPrevRecordedFix = false;
+    }
+
+    /**
+     * @return true if at least one fix has been evaluated or stabilized
+     */
+    boolean hasPrevFix() {
+        return hasPrevFix;
+    }
+
+    /**
+     * @return the fix before the last one evaluated: the one to record for DECISION_RECORD_PREVIOUS.
+     * It is valid until the next evaluate()
+     */
+    FixRecord getPreviousFix() {
+        return olderFix;
+    }
+
+    /**
+     * Takes a fix received while the GPS is stabilizing as the previous fix, and as the previous recorded one.
+     */
+    void stabilize(FixRecord fix) {
+        setPrevFix(fix);
+        setPrevRecordedFix(fix);
+        isPrevFixRecorded = true;
+    }
+
+    /**
+     * Decides whether a fix is recorded. To be called for every fix when the GPS is OK.
+     *
+     * @param fix the fix
+     * @param isRecording true if the recording is active
+     * @param isTrackEmpty true if the current track has no locations
+     * @return DECISION_UPDATE or DECISION_RECORD, with the flag DECISION_RECORD_PREVIOUS
+     */
+    int evaluate(FixRecord fix, boolean isRecording, boolean isTrackEmpty) {
+        increment(evaluatedFixes);
+        RecordingRule.Program program = this.program;
+        if (!isRecording) {
+            setPrevFix(fix);
+            isPrevFixRecorded = false;
+            return DECISION_UPDATE;
+        }
+
+        // A STOP or a START (the speed is "old>0 and new=0" or "old=0 and new>0")
+        boolean isStartOrStop = (program.usesStartStop) && hasPrevFix && (prevFix.hasSpeed()) && (fix.hasSpeed())
+                && (((fix.getSpeed() == 0) && (prevFix.getSpeed() != 0)) || ((fix.getSpeed() != 0) && (prevFix.getSpeed() == 0)));
+        setPrevFix(fix);
+
+        if (isMet(program, fix, isTrackEmpty, isStartOrStop)) {
+            int decision = DECISION_RECORD;
+            if (isStartOrStop) {
+                if (!isPrevFixRecorded) {                   // Record the old sample if not already recorded
+                    decision |= DECISION_RECORD_PREVIOUS;
+                    increment(recordedFixes);
+                }
+                increment(forcedFixes);
+            }
+            setPrevRecordedFix(fix);
+            isPrevFixRecorded = true;
+            increment(recordedFixes);
+            return decision;
+        }
+        isPrevFixRecorded = false;
+        return DECISION_UPDATE;
+    }
+
+    /**
+     * @return true if all the terms of at least one clause of the program are met
+     */
+    private boolean isMet(RecordingRule.Program program, FixRecord fix, boolean isTrackEmpty, boolean isStartOrStop) {
+        int[] clauseStarts = program.clauseStarts;
+        int[] opcodes = program.opcodes;
+        double[] values = program.values;
+        for (int clause = 0; clause < clauseStarts.length - 1; clause++) {
+            int term = clauseStarts[clause];
+            int end = clauseStarts[clause + 1];
+            while ((term < end) && isTermMet(opcodes[term], values[term], fix, isTrackEmpty, isStartOrStop)) term++;
+            if (term == end) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the condition of a term is met by the fix.
+     * The conditions on the previous recorded fix are met if there is none
+     */
+    private boolean isTermMet(int opcode, double value, FixRecord fix, boolean isTrackEmpty, boolean isStartOrStop) {
+        switch (opcode) {
+            case RecordingRule.RULE_ALWAYS:
+                return true;
+            case RecordingRule.RULE_FIRST_POINT:
+                return !hasPrevRecordedFix;
+            case RecordingRule.RULE_TRACK_START:
+                return isTrackEmpty;
+            case RecordingRule.RULE_START_STOP:
+                return isStartOrStop;
+            case RecordingRule.RULE_ACCURACY:
+                return (!fix.hasAccuracy()) || (fix.getAccuracy() <= value);
+            case RecordingRule.RULE_INTERVAL:
+                return (!hasPrevRecordedFix) || ((fix.getTime() - prevRecordedFix.getTime()) >= ((float) value * 1000.0f));
+            case RecordingRule.RULE_SPEED_CHANGE:
+                // Not met without both the speeds: a change can't be seen
+                return (!hasPrevRecordedFix) || ((fix.hasSpeed()) && (prevRecordedFix.hasSpeed())
+                        && (Math.abs(fix.getSpeed() - prevRecordedFix.getSpeed()) >= value));
+            case RecordingRule.RULE_HEADING_CHANGE:
+                if (!hasPrevRecordedFix) return true;
+                if ((!fix.hasBearing()) || (!prevRecordedFix.hasBearing())) return false;
+                float turn = Math.abs(fix.getBearing() - prevRecordedFix.getBearing()) % 360;
+                return Math.min(turn, 360 - turn) >= value;
+            case RecordingRule.RULE_DISTANCE:
+                return (!hasPrevRecordedFix) || (isDistanceReached(fix, (float) value));
+            default:
+                return false;
+        }
+    }
+
+    private void setPrevFix(FixRecord fix) {
+        olderFix.copyFrom(prevFix);
+        prevFix.copyFrom(fix);
+        hasPrevFix = true;
+    }
+
+    private void setPrevRecordedFix(FixRecord fix) {
+        prevRecordedFix.copyFrom(fix);
+        hasPrevRecordedFix = true;
+        double latitude = fix.getLatitude();
+        if (!(Math.abs(latitude - referenceLatitude) < REFERENCE_STEP)) updateLocalProjection(latitude);
+    }
+
+    /**
+     * Computes the meters per degree of latitude and of longitude at the given latitude,
+     * from the radii of curvature of the WGS84 ellipsoid.
+     */
+    private void updateLocalProjection(double latitude) {
+        referenceLatitude = latitude;
+        double sin = Math.sin(Math.toRadians(latitude));
+        double w = 1 - WGS84_E2 * sin * sin;
+        double meridian = WGS84_A * (1 - WGS84_E2) / (w * Math.sqrt(w));   // The meridional radius of curvature
+        double normal = WGS84_A / Math.sqrt(w);                             // The prime vertical radius of curvature
+        metersPerDegreeLatitude = Math.toRadians(meridian);
+        metersPerDegreeLongitude = Math.toRadians(normal * Math.cos(Math.toRadians(latitude)));
+    }
+
+    /**
+     * @return true if the distance between the fix and the previous recorded fix is at least the given distance (m)
+     */
+    private boolean isDistanceReached(FixRecord fix, float distance) {
+        increment(distanceChecks);
+        double dLatitude = fix.getLatitude() - prevRecordedFix.getLatitude();
+        double dLongitude = fix.getLongitude() - prevRecordedFix.getLongitude();
+        if ((Math.abs(dLatitude) < MAX_LOCAL_DEGREES) && (Math.abs(dLongitude) < MAX_LOCAL_DEGREES)
+                && (Math.abs(referenceLatitude) < MAX_LOCAL_LATITUDE)) {
+            double dy = dLatitude * metersPerDegreeLatitude;
+            double dx = dLongitude * metersPerDegreeLongitude;
+            double squared = dx * dx + dy * dy;                             // Compared to the squared bounds: no sqrt
+            double upper = distance * (1 + DISTANCE_TOLERANCE) + DISTANCE_MARGIN;
+            if (squared >= upper * upper) return true;
+            double lower = distance * (1 - DISTANCE_TOLERANCE) - DISTANCE_MARGIN;
+            if ((lower > 0) && (squared < lower * lower)) return false;
+        }
+        increment(exactDistances);
+        return fix.distanceTo(prevRecordedFix) >= distance;
+    }
+
+    // ------------------------------------------------------------------------- Counters
+
+    private static void increment(AtomicLong counter) {
+        counter.lazySet(counter.get() + 1);                             // A single writer: no atomic increment needed
+    }
+
+    long getEvaluatedFixes() {
+        return evaluatedFixes.get();
+    }
+
+    long getRecordedFixes() {
+        return recordedFixes.get();
+    }
+
+    long getDistanceChecks() {
+        return distanceChecks.get();
+    }
+
+    /**
+     * @return the number of distance checks that computed the exact distance
+     */
+    long getExactDistances() {
+        return exactDistances.get();
+    }
+
+    /**
+     * @return the compiled rule and the counters of the policy, as two lines of text
+     */
+    String getReport() {
+        return "Recording rule: " + program + "\n" + String.format(Locale.US, "Recording policy: %d fixes, %d recorded (%d forced), %d distance checks, %d exact\n",
+                evaluatedFixes.get(), recordedFixes.get(), forcedFixes.get(), distanceChecks.get(), exactDistances.get());
+    }
+}
@@ -0,0 +1,328 @@
+package eu.ybenouag.gpslogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A rule of the RecordingPolicy: a condition on a fix, that decides whether it is recorded.
+ * <p>
+ * The rules are immutable and composable: the conditions (interval, distance, heading change,
+ * speed change, accuracy, start or stop, first point, start of a track) are combined with
+ * anyOf() and allOf(). For example the default policy, from the preferences, is:
+ * anyOf(firstPoint(), startStop(), trackStart(), anyOf(interval(5), distance(10))).
+ * The conditions on the movement compare the fix with the previous recorded fix, and are met
+ * if there is none. A change of speed or of heading is not met if one of the values is missing,
+ * a fix without accuracy passes the accuracy gate.
+ * <p>
+ * A rule is not evaluated as it is: compile() turns it into a Program, a flat list of clauses
+ * in OR of conditions in AND (the disjunctive normal form), simplified, with the cheap conditions
+ * first and the distance last, so the RecordingPolicy evaluates it with a single loop and a switch.
+ */
+class RecordingRule {
+
+    // The conditions, in order of cost: the opcodes of a Program
+    static final int RULE_ALWAYS            = 0;        // Always met
+    static final int RULE_FIRST_POINT       = 1;        // No previous recorded fix (after the stabilization or a change of the recording)
+    static final int RULE_TRACK_START       = 2;        // The current track has no locations
+    static final int RULE_START_STOP        = 3;        // The speed passes from 0 to > 0, or the reverse. The previous fix is recorded too
+    static final int RULE_ACCURACY          = 4;        // The accuracy is at most the value (m)
+    static final int RULE_INTERVAL          = 5;        // At least the value (s) from the previous recorded fix
+    static final int RULE_SPEED_CHANGE      = 6;        // The speed changed of at least the value (m/s) from the previous recorded fix
+    static final int RULE_HEADING_CHANGE    = 7;        // The bearing changed of at least the value (deg) from the previous recorded fix
+    static final int RULE_DISTANCE          = 8;        // At least the value (m) from the previous recorded fix
+    static final int RULE_ANY_OF            = 9;        // At least one of the rules
+    static final int RULE_ALL_OF            = 10;       // All the rules
+
+    // The policies of the preferences
+    static final int POLICY_FILTERS_OR      = 0;        // The interval filter OR the distance filter (the default)
+    static final int POLICY_FILTERS_AND     = 1;        // The interval filter AND the distance filter
+    static final int POLICY_ADAPTIVE        = 2;        // The filters in OR, plus the turns and the speed changes; inaccurate fixes skipped
+
+    static final float ADAPTIVE_HEADING_CHANGE  = 30;   // The turn (deg) recorded by POLICY_ADAPTIVE
+    static final float ADAPTIVE_MIN_DISTANCE    = 5;    // The minimum distance (m) of a turn, so that the noise at low speed is not a turn
+    static final float ADAPTIVE_SPEED_CHANGE    = 2;    // The speed change (m/s) recorded by POLICY_ADAPTIVE
+    static final float ADAPTIVE_ACCURACY        = 30;   // The worst accuracy (m) recorded by the filters of POLICY_ADAPTIVE
+
+    static final int MAX_PROGRAM_TERMS      = 256;      // The maximum size of a compiled rule
+
+    private static final String[] NAMES = { "always", "first point", "track start", "start/stop", "accuracy <= %s m",
+            "interval >= %s s", "speed change >= %s m/s", "heading change >= %s deg", "distance >= %s m", "any", "all" };
+
+    final int type;
+    final double value;                             // The threshold of the condition
+    private final RecordingRule[] rules;            // The rules of RULE_ANY_OF and RULE_ALL_OF
+
+    private RecordingRule(int type, double value, RecordingRule[] rules) {
+        this.type = type;
+        this.value = value;
+        this.rules = rules;
+    }
+
+    // ------------------------------------------------------------------------- Rules
+
+    static RecordingRule always() { return new RecordingRule(RULE_ALWAYS, 0, null); }
+
+    static RecordingRule firstPoint() { return new RecordingRule(RULE_FIRST_POINT, 0, null); }
+
+    static RecordingRule trackStart() { return new RecordingRule(RULE_TRACK_START, 0, null); }
+
+    static RecordingRule startStop() { return new RecordingRule(RULE_START_STOP, 0, null); }
+
+    static RecordingRule accuracy(float meters) { return new RecordingRule(RULE_ACCURACY, meters, null); }
+
+    static RecordingRule interval(float seconds) { return new RecordingRule(RULE_INTERVAL, seconds, null); }
+
+    static RecordingRule speedChange(float metersPerSecond) { return new RecordingRule(RULE_SPEED_CHANGE, metersPerSecond, null); }
+
+    static RecordingRule headingChange(float degrees) { return new RecordingRule(RULE_HEADING_CHANGE, degrees, null); }
+
+    static RecordingRule distance(float meters) { return new RecordingRule(RULE_DISTANCE, meters, null); }
+
+    /**
+     * @return a rule met if at least one of the rules is met (never met if there are no rules)
+     */
+    static RecordingRule anyOf(RecordingRule... rules) { return new RecordingRule(RULE_ANY_OF, 0, rules.clone()); }
+
+    /**
+     * @return a rule met if all the rules are met (always met if there are no rules)
+     */
+    static RecordingRule allOf(RecordingRule... rules) { return new RecordingRule(RULE_ALL_OF, 0, rules.clone()); }
+
+    /**
+     * Builds the rule of a policy of the preferences.
+     * A filter is disabled if its value is 0; with no filters enabled all the fixes are recorded.
+     *
+     * @param policy the policy (POLICY_...)
+     * @param interval the interval filter (s)
+     * @param distance the distance filter (m)
+     * @return the rule
+     */
+    static RecordingRule fromPreferences(int policy, float interval, float distance) {
+        RecordingRule filters;
+        if (policy == POLICY_FILTERS_AND) filters = allOf(interval(interval), distance(distance));   // A filter at 0 is always met
+        else {
+            List<RecordingRule> enabled = new ArrayList<>();
+            if (interval > 0) enabled.add(interval(interval));
+            if (distance > 0) enabled.add(distance(distance));
+            filters = enabled.isEmpty() ? always() : anyOf(enabled.toArray(new RecordingRule[0]));
+            if (policy == POLICY_ADAPTIVE) {
+                filters = allOf(accuracy(ADAPTIVE_ACCURACY), anyOf(filters,
+                        allOf(distance(ADAPTIVE_MIN_DISTANCE), headingChange(ADAPTIVE_HEADING_CHANGE)),
+                        speedChange(ADAPTIVE_SPEED_CHANGE)));
+            }
+        }
+        return anyOf(firstPoint(), startStop(), trackStart(), filters);
+    }
+
+    @Override
+    public String toString() {
+        if (rules == null) return String.format(Locale.US, NAMES[type], formatValue(value));
+        StringBuilder sb = new StringBuilder(NAMES[type]).append('(');
+        for (int i = 0; i < rules.length; i++) sb.append(i == 0 ? "" : ", ").append(rules[i]);
+        return sb.append(')').toString();
+    }
+
+    private static String formatValue(double value) {
+        return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    // ------------------------------------------------------------------------- Compilation
+
+    /**
+     * A compiled rule: the clauses, in OR, of the conditions, in AND.
+     * The clause i is made of the terms from clauseStarts[i] to clauseStarts[i + 1] - 1.
+     */
+    static class Program {
+        final int[] clauseStarts;                   // The first term of every clause, then the number of terms
+        final int[] opcodes;                        // The condition of every term (RULE_...)
+        final double[] values;                      // Its threshold
+        final boolean usesStartStop;                // True if the rule has a RULE_START_STOP, even if simplified
+        private final String rule;
+
+        private Program(List<int[]> clauses, List<double[]> clauseValues, boolean usesStartStop, String rule) {
+            clauseStarts = new int[clauses.size() + 1];
+            int terms = 0;
+            for (int i = 0; i < clauses.size(); i++) {
+                clauseStarts[i] = terms;
+                terms += clauses.get(i).length;
+            }
+            clauseStarts[clauses.size()] = terms;
+            opcodes = new int[terms];
+            values = new double[terms];
+            for (int i = 0; i < clauses.size(); i++) {
+                System.arraycopy(clauses.get(i), 0, opcodes, clauseStarts[i], clauses.get(i).length);
+                System.arraycopy(clauseValues.get(i), 0, values, clauseStarts[i], clauses.get(i).length);
+            }
+            this.usesStartStop = usesStartStop;
+            this.rule = rule;
+        }
+
+        int getClauses() {
+            return clauseStarts.length - 1;
+        }
+
+        /**
+         * @return the rule, then the compiled clauses
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(rule).append(" ->");
+            for (int i = 0; i < getClauses(); i++) {
+                sb.append(i == 0 ? " " : " | ");
+                if (clauseStarts[i] == clauseStarts[i + 1]) sb.append(NAMES[RULE_ALWAYS]);
+                for (int t = clauseStarts[i]; t < clauseStarts[i + 1]; t++) {
+                    sb.append(t == clauseStarts[i] ? "" : " & ").append(new RecordingRule(opcodes[t], values[t], null));
+                }
+            }
+            if (getClauses() == 0) sb.append(" never");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Compiles the rule into the disjunctive normal form:
+     * - the nested RULE_ANY_OF and RULE_ALL_OF are flattened, and RULE_ALL_OF is distributed over RULE_ANY_OF;
+     * - RULE_ALWAYS, and a distance of 0, are removed from the clauses; a clause that is always met makes the others useless;
+     * - the same condition twice in a clause keeps the strictest threshold;
+     * - the clauses that contain another clause are removed;
+     * - the terms of a clause are sorted by cost, the clauses by their most expensive term.
+     *
+     * @return the program of the rule
+     * @throws IllegalArgumentException if the program is bigger than MAX_PROGRAM_TERMS
+     */
+    Program compile() {
+        List<RecordingRule[]> clauses = toClauses();
+        List<int[]> opcodes = new ArrayList<>();
+        List<double[]> values = new ArrayList<>();
+        for (RecordingRule[] clause : clauses) {
+            // One term for every condition, with the strictest threshold
+            double[] thresholds = new double[RULE_DISTANCE + 1];
+            boolean[] isUsed = new boolean[RULE_DISTANCE + 1];
+            for (RecordingRule term : clause) {
+                if ((term.type == RULE_ALWAYS) || ((term.type == RULE_DISTANCE) && (term.value <= 0))) continue;
+                thresholds[term.type] = !isUsed[term.type] ? term.value
+                        : term.type == RULE_ACCURACY ? Math.min(thresholds[term.type], term.value)
+                        : Math.max(thresholds[term.type], term.value);
+                isUsed[term.type] = true;
+            }
+            int size = 0;
+            for (boolean used : isUsed) size += used ? 1 : 0;
+            int[] clauseOpcodes = new int[size];
+            double[] clauseValues = new double[size];
+            size = 0;
+            for (int type = 0; type < isUsed.length; type++) {     // In order of cost
+                if (!isUsed[type]) continue;
+                clauseOpcodes[size] = type;
+                clauseValues[size++] = thresholds[type];
+            }
+            if (clauseOpcodes.length == 0) {                        // Always met: the only clause
+                opcodes.clear();
+                values.clear();
+                opcodes.add(clauseOpcodes);
+                values.add(clauseValues);
+                break;
+            }
+            opcodes.add(clauseOpcodes);
+            values.add(clauseValues);
+        }
+        removeSubsumed(opcodes, values);
+        sortByCost(opcodes, values);
+        return new Program(opcodes, values, hasStartStop(), toString());
+    }
+
+    /**
+     * @return true if the rule has a RULE_START_STOP: the previous fix is recorded with a fix recorded at a start or a stop,
+     * even if the start or stop was not needed to record it (as by anyOf(startStop(), always()), compiled as always)
+     */
+    private boolean hasStartStop() {
+        if (type == RULE_START_STOP) return true;
+        if (rules != null) for (RecordingRule rule : rules) if (rule.hasStartStop()) return true;
+        return false;
+    }
+
+    /**
+     * @return the clauses of the rule, as lists of conditions
+     */
+    private List<RecordingRule[]> toClauses() {
+        List<RecordingRule[]> clauses = new ArrayList<>();
+        switch (type) {
+            case RULE_ANY_OF:
+                for (RecordingRule rule : rules) clauses.addAll(rule.toClauses());
+                break;
+            case RULE_ALL_OF:
+                clauses.add(new RecordingRule[0]);
+                for (RecordingRule rule : rules) {
+                    List<RecordingRule[]> product = new ArrayList<>();
+                    for (RecordingRule[] left : clauses) {
+                        for (RecordingRule[] right : rule.toClauses()) {
+                            RecordingRule[] clause = Arrays.copyOf(left, left.length + right.length);
+                            System.arraycopy(right, 0, clause, left.length, right.length);
+                            product.add(clause);
+                        }
+                    }
+                    clauses = checkSize(product);             // Before the product grows further
+                }
+                break;
+            default:
+                clauses.add(new RecordingRule[] { this });
+        }
+        return checkSize(clauses);
+    }
+
+    private List<RecordingRule[]> checkSize(List<RecordingRule[]> clauses) {
+        int terms = 0;
+        for (RecordingRule[] clause : clauses) terms += Math.max(1, clause.length);
+        if (terms > MAX_PROGRAM_TERMS) throw new IllegalArgumentException("Rule too complex: " + this);
+        return clauses;
+    }
+
+    /**
+     * Removes the clauses that are met whenever a shorter one is met.
+     */
+    private static void removeSubsumed(List<int[]> opcodes, List<double[]> values) {
+        for (int i = opcodes.size() - 1; i >= 0; i--) {
+            for (int j = 0; j < opcodes.size(); j++) {
+                if ((i != j) && (opcodes.get(j).length <= opcodes.get(i).length)
+                        && ((opcodes.get(j).length < opcodes.get(i).length) || (j < i))
+                        && isSubset(opcodes.get(j), values.get(j), opcodes.get(i), values.get(i))) {
+                    opcodes.remove(i);
+                    values.remove(i);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if every term of the first clause is in the second one, with the same threshold
+     */
+    private static boolean isSubset(int[] opcodes, double[] values, int[] otherOpcodes, double[] otherValues) {
+        for (int i = 0; i < opcodes.length; i++) {
+            boolean isFound = false;
+            for (int j = 0; j < otherOpcodes.length; j++) isFound |= (opcodes[i] == otherOpcodes[j]) && (values[i] == otherValues[j]);
+            if (!isFound) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sorts the clauses by their most expensive term (the last one), then by the next ones.
+     */
+    private static void sortByCost(List<int[]> opcodes, List<double[]> values) {
+        for (int i = 1; i < opcodes.size(); i++) {          // An insertion sort: stable, and the lists are short
+            for (int j = i; (j > 0) && (compareCost(opcodes.get(j - 1), opcodes.get(j)) > 0); j--) {
+                opcodes.set(j, opcodes.set(j - 1, opcodes.get(j)));
+                values.set(j, values.set(j - 1, values.get(j)));
+            }
+        }
+    }
+
+    private static int compareCost(int[] clause, int[] other) {
+        for (int i = clause.length - 1, j = other.length - 1; (i >= 0) && (j >= 0); i--, j--) {
+            if (clause[i] != other[j]) return clause[i] - other[j];
+        }
+        return clause.length - other.length;
+    }
+}
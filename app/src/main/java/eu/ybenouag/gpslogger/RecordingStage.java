@@ -0,0 +1,261 @@
+package eu.ybenouag.gpslogger;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stage of the recording pipeline of GPSApplication.
+ * <p>
+ * The work that follows onLocationChanged() is split into stages (ingest, track statistics,
+ * persistence, upload, UI publication), every one with its own thread and its own bounded
+ * hand-off, so that a slow stage doesn't stall the others:
+ * the AsyncUpdateThread (ingest) takes the tasks from the AsyncTODOQueue and hands them off
+ * to the next stages, that execute them here, in order, on the thread of the stage.
+ * <p>
+ * The items are the opcodes of the AsyncTODO with their argument, stored into preallocated arrays.
+ * When the queue is full the producer waits for room (the back pressure of a lossless stage),
+ * unless the stage is coalescing: then an item is dropped if another one of the same type is
+ * already waiting, as for the UI messages, where only the newest matters.
+ * A TASK_SHUTDOWN is executed like the other items, then the thread ends: the handler forwards it
+ * to the next stages, so that the pipeline stops after the items already queued.
+ * <p>
+ * Every stage measures the time its items wait into the queue and the time of their execution:
+ * see Metrics.
+ */
+class RecordingStage {
+
+    static final int DEFAULT_CAPACITY = 256;        // The items that can wait into a lossless stage
+
+    /**
+     * Executes the items of a stage, on the thread of the stage.
+     */
+    interface Handler {
+        /**
+         * @param type the opcode of the item (AsyncTODO.TASK_...)
+         * @param item the argument of the item, or null
+         */
+        void handle(int type, Object item);
+    }
+
+    /**
+     * The throughput, the queue time and the execution time of a stage.
+     * The recording is lock-free and allocation-free.
+     */
+    static class Metrics {
+        private final String name;
+        private final long startTime = System.nanoTime();
+        private final AtomicLong executedItems = new AtomicLong();
+        private final AtomicLong coalescedItems = new AtomicLong();     // The items dropped by a coalescing stage
+        private final AtomicLong blockedAdds = new AtomicLong();        // The hand-offs that waited for room
+        private final StreamMetrics.Histogram queueTimes = new StreamMetrics.Histogram();
+        private final StreamMetrics.Histogram executionTimes = new StreamMetrics.Histogram();
+
+        Metrics(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param queueNanos the time the item waited into the queue
+         * @param executionNanos the time of its execution
+         */
+        void record(long queueNanos, long executionNanos) {
+            executedItems.incrementAndGet();
+            queueTimes.record(TimeUnit.NANOSECONDS.toMicros(queueNanos));
+            executionTimes.record(TimeUnit.NANOSECONDS.toMicros(executionNanos));
+        }
+
+        long getExecutedItems() {
+            return executedItems.get();
+        }
+
+        long getCoalescedItems() {
+            return coalescedItems.get();
+        }
+
+        long getBlockedAdds() {
+            return blockedAdds.get();
+        }
+
+        StreamMetrics.Histogram getQueueTimes() {
+            return queueTimes;
+        }
+
+        StreamMetrics.Histogram getExecutionTimes() {
+            return executionTimes;
+        }
+
+        /**
+         * @param pending the items waiting into the queue of the stage
+         * @return the metrics, as a line of text
+         */
+        String getReport(int pending) {
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            return String.format(Locale.US, "Stage %s: %d items (%.2f/s), %d pending, queue p50 %d us p99 %d us, "
+                            + "execution p50 %d us p99 %d us max %d us, %d coalesced, %d blocked\n",
+                    name, executedItems.get(), seconds > 0 ? executedItems.get() / seconds : 0, pending,
+                    queueTimes.getPercentile(50), queueTimes.getPercentile(99),
+                    executionTimes.getPercentile(50), executionTimes.getPercentile(99), executionTimes.getMax(),
+                    coalescedItems.get(), blockedAdds.get());
+        }
+    }
+
+    private final String name;
+    private final Handler handler;
+    private final boolean isCoalescing;
+    private final Metrics metrics;
+
+    // The queue, guarded by this
+    private final int[] types;
+    private final Object[] items;
+    private final long[] addTimes;                  // The System.nanoTime() of the hand-off of the items
+    private int head;                               // The index of the next item to execute
+    private int size;
+    private int pendingTypes;                       // The types waiting into a coalescing stage, as bits
+    private boolean isShutdown;                     // True once a TASK_SHUTDOWN has been added
+    private Thread thread;
+
+    /**
+     * @param name the name of the stage, for the thread and the metrics
+     * @param capacity the maximum number of items waiting
+     * @param isCoalescing if true an item is dropped when one of the same type is already waiting
+     * @param handler the executor of the items
+     */
+    RecordingStage(String name, int capacity, boolean isCoalescing, Handler handler) {
+        this.name = name;
+        this.handler = handler;
+        this.isCoalescing = isCoalescing;
+        metrics = new Metrics(name);
+        types = new int[capacity];
+        items = new Object[capacity];
+        addTimes = new long[capacity];
+    }
+
+    /**
+     * Starts the thread of the stage.
+     */
+    synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "Recording-" + name);
+        thread.start();
+    }
+
+    /**
+     * Hands off an item to the stage.
+     * It waits while the queue is full, unless the stage is coalescing.
+     * The items added after a TASK_SHUTDOWN are ignored.
+     *
+     * @param type the opcode of the item (AsyncTODO.TASK_...)
+     * @param item the argument of the item, or null
+     */
+    void add(int type, Object item) {
+        long addTime = System.nanoTime();
+        synchronized (this) {
+            if (isShutdown) return;
+            if (isCoalescing && (type != AsyncTODO.TASK_SHUTDOWN)) {
+                if ((pendingTypes & (1 << type)) != 0) {
+                    metrics.coalescedItems.incrementAndGet();
+                    return;
+                }
+                pendingTypes |= 1 << type;
+            }
+            if (size == types.length) {
+                metrics.blockedAdds.incrementAndGet();
+                while (size == types.length) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Log.w("myApp", "[#] RecordingStage.java - " + name + ": hand-off interrupted");
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            int tail = (head + size) % types.length;
+            types[tail] = type;
+            items[tail] = item;
+            addTimes[tail] = addTime;
+            size++;
+            if (type == AsyncTODO.TASK_SHUTDOWN) isShutdown = true;
+            if (size == 1) notifyAll();                                 // The thread may be waiting for an item
+        }
+    }
+
+    /**
+     * The loop of the thread: executes the items in order, until a TASK_SHUTDOWN.
+     */
+    private void work() {
+        while (true) {
+            int type;
+            Object item;
+            long addTime;
+            synchronized (this) {
+                while (size == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Log.w("myApp", "[#] RecordingStage.java - " + name + ": interrupted");
+                        return;
+                    }
+                }
+                type = types[head];
+                item = items[head];
+                addTime = addTimes[head];
+                items[head] = null;                                     // Doesn't keep the item alive
+                head = (head + 1) % types.length;
+                if (size-- == types.length) notifyAll();                // A producer may be waiting for room
+                if (isCoalescing) pendingTypes &= ~(1 << type);
+            }
+            long start = System.nanoTime();
+            try {
+                handler.handle(type, item);
+            } catch (RuntimeException e) {
+                Log.w("myApp", "[#] RecordingStage.java - " + name + ": " + e);
+            }
+            metrics.record(start - addTime, System.nanoTime() - start);
+            if (type == AsyncTODO.TASK_SHUTDOWN) return;
+        }
+    }
+
+    /**
+     * Waits for the end of the thread of the stage.
+     *
+     * @param millis the maximum time to wait, in milliseconds (0 = forever)
+     * @return true if the thread has ended (or has never been started)
+     */
+    boolean join(long millis) throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        if (t == null) return true;
+        t.join(millis);
+        return !t.isAlive();
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the metrics of the stage, as a line of text
+     */
+    String getReport() {
+        return metrics.getReport(size());
+    }
+}
@@ -0,0 +1,182 @@
+package eu.ybenouag.gpslogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The compact binary encoding of the streamed fixes.
+ * <p>
+ * A message is made of a session header, that carries the session of the sequence numbers
+ * and the crew identity once, followed by the fixes:
+ * <pre>
+ *   byte      MAGIC ('B')
+ *   byte      VERSION
+ *   long      session id              (8 bytes, big-endian; only from version 2)
+ *   string    crew id                 (varint length + 1, 0 for null, then the UTF-8 bytes)
+ *   string    crew name
+ *   varint    number of fixes
+ *   for every fix, the zigzag varint of the difference from the previous fix (0 for the first one) of:
+ *     sequence, time (ms), latitude (1e-7 degrees), longitude (1e-7 degrees), track number
+ * </pre>
+ * The coordinates are fixed-point integers with a resolution of 1e-7 degrees (~1 cm).
+ * Between two consecutive fixes the deltas are small, so a fix usually takes 7-10 bytes,
+ * against the ~150 bytes of the JSON bodies of the stream and the saveDebugData requests.
+ * <p>
+ * The server may not accept this encoding: in that case the uploads fall back to JSON.
+ */
+class StreamBinaryCodec {
+
+    static final String CONTENT_TYPE        = "application/vnd.bumps.fixes";
+
+    private static final int MAGIC          = 'B';
+    private static final int VERSION        = 2;
+    private static final int VERSION_1      = 1;                // Without the session id
+    private static final double FIXED_POINT = 1e7;              // The units per degree of the coordinates
+
+    /**
+     * A decoded message.
+     */
+    static class Message {
+        final long sessionId;                   // The session of the sequence numbers, 0 if unknown
+        final String crewId;
+        final String crewName;
+        final List<StreamedFix> fixes;
+
+        Message(long sessionId, String crewId, String crewName, List<StreamedFix> fixes) {
+            this.sessionId = sessionId;
+            this.crewId = crewId;
+            this.crewName = crewName;
+            this.fixes = fixes;
+        }
+    }
+
+    /**
+     * Encodes a message.
+     *
+     * @param sessionId the session of the sequence numbers of the fixes
+     * @param crewId the id of the crew
+     * @param crewName the name of the crew
+     * @param fixes the positions, in chronological order
+     * @return the encoded message
+     */
+    static byte[] encode(long sessionId, String crewId, String crewName, List<StreamedFix> fixes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(24 + fixes.size() * 10);
+        out.write(MAGIC);
+        out.write(VERSION);
+        for (int shift = 56; shift >= 0; shift -= 8) out.write((int) (sessionId >>> shift));
+        writeString(out, crewId);
+        writeString(out, crewName);
+        writeVarint(out, fixes.size());
+        long previousSequence = 0;
+        long previousTime = 0;
+        long previousLatitude = 0;
+        long previousLongitude = 0;
+        long previousTrack = 0;
+        for (StreamedFix fix : fixes) {
+            long latitude = toFixedPoint(fix.latitude);
+            long longitude = toFixedPoint(fix.longitude);
+            writeVarint(out, zigzag(fix.sequence - previousSequence));
+            writeVarint(out, zigzag(fix.time - previousTime));
+            writeVarint(out, zigzag(latitude - previousLatitude));
+            writeVarint(out, zigzag(longitude - previousLongitude));
+            writeVarint(out, zigzag(fix.trackNumber - previousTrack));
+            previousSequence = fix.sequence;
+            previousTime = fix.time;
+            previousLatitude = latitude;
+            previousLongitude = longitude;
+            previousTrack = fix.trackNumber;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a message.
+     *
+     * @param data the encoded message
+     * @return the decoded message
+     * @throws IOException if the data is not a valid message
+     */
+    static Message decode(byte[] data) throws IOException {
+        if ((data.length < 2) || (data[0] != MAGIC)) throw new IOException("Not a binary fixes message");
+        if ((data[1] != VERSION) && (data[1] != VERSION_1)) throw new IOException("Unsupported version " + data[1]);
+        int[] position = { 2 };                                 // The read position, after MAGIC and VERSION
+        long sessionId = 0;
+        if (data[1] == VERSION) {
+            if (data.length < 10) throw new IOException("Truncated message");
+            for (int i = 0; i < 8; i++) sessionId = (sessionId << 8) | (data[position[0]++] & 0xFF);
+        }
+        String crewId = readString(data, position);
+        String crewName = readString(data, position);
+        long count = readVarint(data, position);
+        if (count > data.length) throw new IOException("Invalid number of fixes " + count);
+        List<StreamedFix> fixes = new ArrayList<>((int) count);
+        long sequence = 0;
+        long time = 0;
+        long latitude = 0;
+        long longitude = 0;
+        long track = 0;
+        for (int i = 0; i < count; i++) {
+            sequence += unzigzag(readVarint(data, position));
+            time += unzigzag(readVarint(data, position));
+            latitude += unzigzag(readVarint(data, position));
+            longitude += unzigzag(readVarint(data, position));
+            track += unzigzag(readVarint(data, position));
+            fixes.add(new StreamedFix(sequence, time, latitude / FIXED_POINT, longitude / FIXED_POINT, (int) track));
+        }
+        if (position[0] != data.length) throw new IOException("Unexpected data after the fixes");
+        return new Message(sessionId, crewId, crewName, fixes);
+    }
+
+    static long toFixedPoint(double degrees) {
+        return Math.round(degrees * FIXED_POINT);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] data, int[] position) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= data.length) throw new IOException("Truncated message");
+            byte b = data[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(byte[] data, int[] position) throws IOException {
+        long length = readVarint(data, position) - 1;
+        if (length < 0) return null;
+        if (length > data.length - position[0]) throw new IOException("Truncated message");
+        String value = new String(data, position[0], (int) length, StandardCharsets.UTF_8);
+        position[0] += (int) length;
+        return value;
+    }
+}
@@ -0,0 +1,387 @@
+package eu.ybenouag.gpslogger;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The persistent live streaming channel: a WebSocket (RFC 6455) connection to the /api/stream
+ * endpoint of the Bumps Viewer server, an alternative to a request per upload.
+ * <p>
+ * The positions go up as binary frames, each one carrying a message of the StreamBinaryCodec
+ * (a few bytes of frame header instead of the request line and the headers of every request).
+ * The server replies on the same connection with small binary frames, read by the reader thread
+ * of the channel and reported to the Listener:
+ * - RESUME, sent once after the handshake: the last sequence number of the crew stored by the server,
+ *   so that after a reconnection the client sends again only the fixes that the server didn't receive;
+ * - ACK: the last sequence number stored by the server;
+ * - HINT: the minimum interval between two uploads wanted by the server (0 = no limit),
+ *   for example when nobody is watching the race.
+ * Every server frame is a type byte followed by a big-endian value (8 bytes for RESUME and ACK,
+ * 4 bytes for HINT).
+ */
+class StreamChannel {
+
+    static final String PATH                = "/api/stream";
+
+    static final byte FRAME_ACK             = 1;            // The server frame that acknowledges a sequence number
+    static final byte FRAME_HINT            = 2;            // The server frame that suggests an upload interval
+    static final byte FRAME_RESUME          = 3;            // The server frame that tells where to resume after a connection
+
+    private static final String WEBSOCKET_GUID  = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OPCODE_BINARY      = 0x2;
+    private static final int OPCODE_CLOSE       = 0x8;
+    private static final int OPCODE_PING        = 0x9;
+    private static final int OPCODE_PONG        = 0xA;
+    private static final int MAX_SERVER_FRAME   = 1024;     // The maximum size of the frames received
+
+    /**
+     * Receives the messages of the server and the state of the connection.
+     * The methods are called on the reader thread of the channel.
+     */
+    interface Listener {
+        void onResume(StreamChannel channel, long sequence);
+        void onAcknowledged(StreamChannel channel, long sequence);
+        void onHint(StreamChannel channel, long interval);
+        void onClosed(StreamChannel channel, IOException cause);
+    }
+
+    /**
+     * Thrown when the server doesn't upgrade the connection: it doesn't support the channel.
+     */
+    static class HandshakeRejectedException extends IOException {
+        final int status;
+
+        HandshakeRejectedException(int status) {
+            super("WebSocket handshake rejected with HTTP " + status);
+            this.status = status;
+        }
+    }
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Listener listener;
+    private final byte[] mask = new byte[4];
+    private byte[] frameBuffer = new byte[256];
+    private volatile boolean closed;
+
+    private final AtomicLong framesSent     = new AtomicLong();
+    private final AtomicLong bytesSent      = new AtomicLong();
+
+    private StreamChannel(Socket socket, Listener listener) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.listener = listener;
+    }
+
+    /**
+     * Opens the channel: connects, upgrades the connection to WebSocket and starts the reader thread.
+     * Blocks the calling thread until the handshake completes.
+     *
+     * @param endPoint the base URI of the server (http or https)
+     * @param sessionId the session of the sequence numbers (see StreamOutbox), for the RESUME frame
+     * @param crewId the id of the crew, for the RESUME frame
+     * @param httpClient the client that opens the socket (TLS, timeouts and DNS cache)
+     * @param listener the receiver of the messages of the server
+     * @return the open channel
+     * @throws HandshakeRejectedException if the server doesn't support the channel
+     * @throws IOException in case of network error
+     */
+    static StreamChannel open(URI endPoint, long sessionId, String crewId, BumpsViewerHttpClient httpClient, Listener listener) throws IOException {
+        URI uri = endPoint.resolve(PATH);
+        Socket socket = httpClient.openSocket(uri);
+        StreamChannel channel = new StreamChannel(socket, listener);
+        try {
+            channel.handshake(uri, sessionId, crewId);
+        } catch (IOException e) {
+            channel.closeSocket();
+            throw e;
+        }
+        socket.setSoTimeout(0);                             // The reader waits for the server as long as needed
+        Thread readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                channel.read();
+            }
+        }, "StreamChannel");
+        readerThread.setDaemon(true);
+        readerThread.start();
+        return channel;
+    }
+
+    /**
+     * Sends a binary frame. It can be called by any thread.
+     *
+     * @param data the buffer that contains the payload
+     * @param length the length of the payload in the buffer
+     * @throws IOException if the channel is closed or in case of network error (the channel is then closed)
+     */
+    synchronized void send(byte[] data, int length) throws IOException {
+        if (closed) throw new IOException("Channel closed");
+        try {
+            writeFrame(OPCODE_BINARY, data, length);
+        } catch (IOException e) {
+            close(e);
+            throw e;
+        }
+        framesSent.incrementAndGet();
+    }
+
+    boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Closes the channel. The Listener receives onClosed() once.
+     */
+    void close() {
+        close(null);
+    }
+
+    long getFramesSent() {
+        return framesSent.get();
+    }
+
+    /**
+     * @return the bytes sent, frame headers included
+     */
+    long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    // ------------------------------------------------------------------------- Handshake
+
+    private void handshake(URI uri, long sessionId, String crewId) throws IOException {
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        String key = Base64.encodeToString(nonce, Base64.NO_WRAP);
+        StringBuilder head = new StringBuilder(256);
+        head.append("GET ").append(PATH).append("?crewId=").append(urlEncode(crewId))
+                .append("&session=").append(String.format(Locale.US, "%016x", sessionId)).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(uri.getHost());
+        if (uri.getPort() != -1) head.append(':').append(uri.getPort());
+        head.append("\r\n");
+        head.append("User-Agent: ").append(BumpsViewerHttpClient.USER_AGENT).append("\r\n");
+        head.append("Upgrade: websocket\r\n");
+        head.append("Connection: Upgrade\r\n");
+        head.append("Sec-WebSocket-Key: ").append(key).append("\r\n");
+        head.append("Sec-WebSocket-Version: 13\r\n\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+
+        String statusLine = readLine();
+        if (statusLine == null) throw new EOFException("Connection closed by the server");
+        String[] statusParts = statusLine.split(" ", 3);
+        if ((statusParts.length < 2) || !statusParts[0].startsWith("HTTP/1.")) throw new IOException("Unexpected status line: " + statusLine);
+        int status;
+        try {
+            status = Integer.parseInt(statusParts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected status line: " + statusLine);
+        }
+        String accept = null;
+        String line;
+        while (((line = readLine()) != null) && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if ((colon > 0) && line.substring(0, colon).trim().toLowerCase(Locale.US).equals("sec-websocket-accept")) {
+                accept = line.substring(colon + 1).trim();
+            }
+        }
+        if (line == null) throw new EOFException("Connection closed by the server");
+        if (status != 101) throw new HandshakeRejectedException(status);
+        if (!expectedAccept(key).equals(accept)) throw new IOException("Invalid Sec-WebSocket-Accept");
+    }
+
+    /**
+     * @return the value of the Sec-WebSocket-Accept header that proves the upgrade of the given key
+     */
+    static String expectedAccept(String key) throws IOException {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.encodeToString(digest, Base64.NO_WRAP);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String urlEncode(String value) throws IOException {
+        try {
+            return URLEncoder.encode(String.valueOf(value), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if ((length > 0) && (sb.charAt(length - 1) == '\r')) sb.setLength(length - 1);
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    // ------------------------------------------------------------------------- Frames
+
+    /**
+     * Writes a frame, masked as required for the frames of the clients.
+     */
+    private void writeFrame(int opcode, byte[] data, int length) throws IOException {
+        int headerLength = (length < 126) ? 6 : (length < 65536) ? 8 : 14;
+        if (frameBuffer.length < headerLength + length) frameBuffer = new byte[headerLength + length];
+        frameBuffer[0] = (byte) (0x80 | opcode);                    // FIN, no fragmentation
+        int position = 2;
+        if (length < 126) frameBuffer[1] = (byte) (0x80 | length);
+        else if (length < 65536) {
+            frameBuffer[1] = (byte) (0x80 | 126);
+            frameBuffer[position++] = (byte) (length >>> 8);
+            frameBuffer[position++] = (byte) length;
+        } else {
+            frameBuffer[1] = (byte) (0x80 | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) frameBuffer[position++] = (byte) ((long) length >>> shift);
+        }
+        random.nextBytes(mask);
+        System.arraycopy(mask, 0, frameBuffer, position, 4);
+        position += 4;
+        for (int i = 0; i < length; i++) frameBuffer[position + i] = (byte) (data[i] ^ mask[i & 3]);
+        out.write(frameBuffer, 0, position + length);
+        out.flush();
+        bytesSent.addAndGet(position + length);
+    }
+
+    /**
+     * The loop of the reader thread: reads the frames of the server until the channel is closed.
+     */
+    private void read() {
+        IOException cause = null;
+        try {
+            byte[] payload = new byte[MAX_SERVER_FRAME];
+            while (!closed) {
+                int b0 = in.read();
+                int b1 = in.read();
+                if ((b0 == -1) || (b1 == -1)) throw new EOFException("Connection closed by the server");
+                int opcode = b0 & 0x0F;
+                long length = b1 & 0x7F;
+                if (length == 126) length = (readByte() << 8) | readByte();
+                else if (length == 127) {
+                    length = 0;
+                    for (int i = 0; i < 8; i++) length = (length << 8) | readByte();
+                }
+                if (((b0 & 0x80) == 0) || (length > MAX_SERVER_FRAME)) throw new IOException("Unsupported frame");
+                byte[] frameMask = null;
+                if ((b1 & 0x80) != 0) {
+                    frameMask = new byte[4];
+                    readFully(frameMask, 4);
+                }
+                readFully(payload, (int) length);
+                if (frameMask != null) for (int i = 0; i < length; i++) payload[i] ^= frameMask[i & 3];
+
+                switch (opcode) {
+                    case OPCODE_BINARY:
+                        dispatch(payload, (int) length);
+                        break;
+                    case OPCODE_PING:
+                        synchronized (this) {
+                            writeFrame(OPCODE_PONG, payload, (int) length);
+                        }
+                        break;
+                    case OPCODE_CLOSE:
+                        throw new EOFException("Channel closed by the server");
+                    default:
+                        break;                                  // Text and pong frames are ignored
+                }
+            }
+        } catch (IOException e) {
+            cause = e;
+        }
+        close(closed ? null : cause);
+    }
+
+    private void dispatch(byte[] payload, int length) {
+        if (length < 1) return;
+        switch (payload[0]) {
+            case FRAME_ACK:
+                if (length >= 9) listener.onAcknowledged(this, readLong(payload, 1, 8));
+                break;
+            case FRAME_RESUME:
+                if (length >= 9) listener.onResume(this, readLong(payload, 1, 8));
+                break;
+            case FRAME_HINT:
+                if (length >= 5) listener.onHint(this, readLong(payload, 1, 4));
+                break;
+            default:
+                break;                                          // Unknown messages, from newer servers
+        }
+    }
+
+    private static long readLong(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) value = (value << 8) | (data[offset + i] & 0xFF);
+        return value;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b == -1) throw new EOFException("Connection closed by the server");
+        return b;
+    }
+
+    private void readFully(byte[] data, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int n = in.read(data, offset, length - offset);
+            if (n == -1) throw new EOFException("Connection closed by the server");
+            offset += n;
+        }
+    }
+
+    private void close(IOException cause) {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            if (cause == null) {
+                try {
+                    writeFrame(OPCODE_CLOSE, new byte[0], 0);
+                } catch (IOException e) {
+                    // The connection is already gone
+                }
+            }
+        }
+        closeSocket();
+        if (cause != null) Log.w("myApp", "[#] StreamChannel.java - Channel closed: " + cause);
+        listener.onClosed(this, cause);
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
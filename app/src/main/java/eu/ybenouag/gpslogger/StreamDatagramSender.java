@@ -0,0 +1,337 @@
+package eu.ybenouag.gpslogger;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Locale;
+
+/**
+ * The lossy datagram lane of the live streaming: every live position goes to the server
+ * as a single UDP datagram, at once, without acknowledgements or retransmissions.
+ * <p>
+ * For the live race viewer a late position is worse than a lost one: a lost datagram is just
+ * superseded by the next one. The datagrams are sent by a dedicated thread, latest-wins like the
+ * StreamLiveLane, so that neither the uploads nor a slow send delay the newer positions.
+ * All the fixes are still persisted by the reliable lane (the StreamOutbox, over HTTP or the StreamChannel).
+ * <p>
+ * A session is the life of a sender. Every datagram carries the random id of the session, a sequence
+ * number and the time it was sent, so that the server can measure the loss rate and the one-way latency
+ * of the session: it reports them back with a REPORT datagram every REPORT_INTERVAL datagrams received.
+ * The datagrams go to the host of the Bumps Viewer end point, on the configured UDP port
+ * (by default the port of the end point).
+ * <p>
+ * The datagrams are not encrypted: the crew id and the positions travel in clear text.
+ * So the lane is refused for an https end point, whose requests are protected by TLS,
+ * and it is meant for the servers reached over http, for example on the local network of the race.
+ * <p>
+ * Layout of the datagrams (big-endian):
+ * - POSITION: type 'P', session id (8), sequence (4), send time in ms (8), fix time in ms (8),
+ *   latitude and longitude (4 + 4, in 1e-7 degrees), track number (2), crew id (1 + UTF-8, up to 64 bytes);
+ * - REPORT: type 'R', session id (8), datagrams received (4), highest sequence received (4),
+ *   median one-way latency in ms (4, signed: the clocks of the phone and of the server are not synchronized).
+ */
+class StreamDatagramSender {
+
+    static final byte TYPE_POSITION         = 'P';
+    static final byte TYPE_REPORT           = 'R';
+    static final int  REPORT_INTERVAL       = 10;           // The server reports every REPORT_INTERVAL datagrams received
+    static final int  MAX_DATAGRAM          = 128;          // The maximum size of the datagrams
+
+    private static final int MAX_CREW_ID    = 64;           // The maximum length of the crew id, in bytes
+    private static final int REPORT_SIZE    = 21;
+
+    /**
+     * A decoded POSITION datagram.
+     */
+    static class Position {
+        final long sessionId;
+        final long sequence;                // The sequence number of the datagram into the session
+        final long sendTime;                // The time the datagram was sent, in ms since epoch
+        final String crewId;
+        final StreamedFix fix;
+
+        Position(long sessionId, long sequence, long sendTime, String crewId, StreamedFix fix) {
+            this.sessionId = sessionId;
+            this.sequence = sequence;
+            this.sendTime = sendTime;
+            this.crewId = crewId;
+            this.fix = fix;
+        }
+    }
+
+    /**
+     * A decoded REPORT datagram.
+     */
+    static class Report {
+        final long sessionId;
+        final long received;
+        final long highestSequence;
+        final int latency;
+
+        Report(long sessionId, long received, long highestSequence, int latency) {
+            this.sessionId = sessionId;
+            this.received = received;
+            this.highestSequence = highestSequence;
+            this.latency = latency;
+        }
+
+        /**
+         * @return the fraction of the datagrams lost, up to the highest received
+         */
+        double getLossRate() {
+            return highestSequence > 0 ? Math.max(0, highestSequence - received) / (double) highestSequence : 0;
+        }
+    }
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final URI endPoint;
+    private final int port;                         // The UDP port of the server
+    private final DatagramSocket socket;
+    private final long sessionId = random.nextLong();
+    private final byte[] buffer = new byte[MAX_DATAGRAM];
+
+    private String pendingCrewId;                   // The position waiting to be sent, or null
+    private StreamedFix pendingFix;
+    private volatile boolean closed;
+
+    private long sequence;                          // The sequence of the last datagram sent
+    private long datagramsSent;
+    private long bytesSent;
+    private long conflatedPositions;                // The positions replaced by a newer one before being sent
+    private long sendErrors;
+    private volatile Report lastReport;
+
+    /**
+     * Opens a session and starts its threads.
+     * The address of the server is resolved by the sender thread.
+     *
+     * @param endPoint the base URI of the server
+     * @param port the UDP port of the server, or 0 for the port of the end point
+     * @throws IOException if the end point is https (the datagrams are not encrypted),
+     *                     or if the socket can't be created
+     */
+    StreamDatagramSender(URI endPoint, int port) throws IOException {
+        if ("https".equalsIgnoreCase(endPoint.getScheme())) {
+            throw new IOException("The datagrams are not encrypted: no datagram lane for the https end point " + endPoint);
+        }
+        this.endPoint = endPoint;
+        this.port = (port > 0) ? port : (endPoint.getPort() != -1 ? endPoint.getPort() : 80);
+        socket = new DatagramSocket();
+        Thread senderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, "StreamDatagramSender");
+        senderThread.setDaemon(true);
+        senderThread.start();
+        Thread receiverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "StreamDatagramReceiver");
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+    }
+
+    /**
+     * Offers the latest live position; it replaces the one not yet sent, if any.
+     * It never blocks.
+     */
+    synchronized void offer(String crewId, StreamedFix fix) {
+        if (pendingFix != null) conflatedPositions++;
+        pendingCrewId = crewId;
+        pendingFix = fix;
+        notifyAll();
+    }
+
+    /**
+     * Closes the session, logging its statistics.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        socket.close();
+        Log.w("myApp", "[#] StreamDatagramSender.java - " + getSummary());
+    }
+
+    long getSessionId() {
+        return sessionId;
+    }
+
+    synchronized long getDatagramsSent() {
+        return datagramsSent;
+    }
+
+    synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    synchronized long getConflatedPositions() {
+        return conflatedPositions;
+    }
+
+    /**
+     * @return the last REPORT of the server, or null if none arrived yet
+     */
+    Report getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * @return the statistics of the session, as a line of text
+     */
+    String getSummary() {
+        Report report = lastReport;
+        synchronized (this) {
+            return String.format(Locale.US, "Datagram session %016x: %d sent (%d bytes), %d conflated, %d send errors, ",
+                    sessionId, datagramsSent, bytesSent, conflatedPositions, sendErrors)
+                    + (report == null ? "no report from the server"
+                    : String.format(Locale.US, "%d received, loss %.1f%%, one-way latency p50 %d ms",
+                    report.received, report.getLossRate() * 100, report.latency));
+        }
+    }
+
+    /**
+     * The loop of the sender thread: sends the pending position, if any, until closed.
+     */
+    private void send() {
+        InetAddress address = null;
+        while (true) {
+            String crewId;
+            StreamedFix fix;
+            long datagramSequence;
+            synchronized (this) {
+                while ((pendingFix == null) && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) return;
+                crewId = pendingCrewId;
+                fix = pendingFix;
+                pendingCrewId = null;
+                pendingFix = null;
+                datagramSequence = ++sequence;
+            }
+            try {
+                if (address == null) address = InetAddress.getByName(endPoint.getHost());
+                int length = encodePosition(buffer, sessionId, datagramSequence, System.currentTimeMillis(), crewId, fix);
+                socket.send(new DatagramPacket(buffer, length, address, port));
+                synchronized (this) {
+                    datagramsSent++;
+                    bytesSent += length;
+                }
+            } catch (IOException e) {
+                // The position is lost, as a dropped datagram: the next one supersedes it
+                synchronized (this) {
+                    if (sendErrors++ == 0) Log.w("myApp", "[#] StreamDatagramSender.java - Unable to send the datagram: " + e);
+                }
+                address = null;                                 // Resolved again, for example after a change of network
+            }
+        }
+    }
+
+    /**
+     * The loop of the receiver thread: receives the REPORTs of the server until closed.
+     */
+    private void receive() {
+        byte[] data = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        while (!closed) {
+            try {
+                packet.setLength(data.length);
+                socket.receive(packet);
+                Report report = decodeReport(data, packet.getLength());
+                if ((report != null) && (report.sessionId == sessionId)) lastReport = report;
+            } catch (IOException e) {
+                if (!closed) Log.w("myApp", "[#] StreamDatagramSender.java - Unable to receive the reports: " + e);
+                return;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------- Encoding
+
+    /**
+     * Encodes a POSITION datagram.
+     *
+     * @return the length of the datagram into the buffer
+     */
+    static int encodePosition(byte[] buffer, long sessionId, long sequence, long sendTime, String crewId, StreamedFix fix) {
+        ByteBuffer out = ByteBuffer.wrap(buffer);
+        out.put(TYPE_POSITION);
+        out.putLong(sessionId);
+        out.putInt((int) sequence);
+        out.putLong(sendTime);
+        out.putLong(fix.time);
+        out.putInt((int) StreamBinaryCodec.toFixedPoint(fix.latitude));
+        out.putInt((int) StreamBinaryCodec.toFixedPoint(fix.longitude));
+        out.putShort((short) fix.trackNumber);
+        byte[] id = crewId != null ? crewId.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int idLength = Math.min(id.length, MAX_CREW_ID);
+        if (idLength < id.length) {
+            while ((idLength > 0) && ((id[idLength] & 0xC0) == 0x80)) idLength--;     // Not in the middle of a character
+        }
+        out.put((byte) idLength);
+        out.put(id, 0, idLength);
+        return out.position();
+    }
+
+    /**
+     * @return the POSITION datagram, or null if the data is not a valid one
+     */
+    static Position decodePosition(byte[] data, int length) {
+        if ((length < 40) || (data[0] != TYPE_POSITION)) return null;
+        ByteBuffer in = ByteBuffer.wrap(data, 1, length - 1);
+        long sessionId = in.getLong();
+        long sequence = in.getInt() & 0xFFFFFFFFL;
+        long sendTime = in.getLong();
+        long time = in.getLong();
+        double latitude = in.getInt() / 1e7;
+        double longitude = in.getInt() / 1e7;
+        int trackNumber = in.getShort();
+        int idLength = in.get() & 0xFF;
+        if (in.remaining() != idLength) return null;
+        String crewId = new String(data, in.position(), idLength, StandardCharsets.UTF_8);
+        return new Position(sessionId, sequence, sendTime, crewId, new StreamedFix(sequence, time, latitude, longitude, trackNumber));
+    }
+
+    /**
+     * Encodes a REPORT datagram.
+     *
+     * @return the length of the datagram into the buffer
+     */
+    static int encodeReport(byte[] buffer, long sessionId, long received, long highestSequence, int latency) {
+        ByteBuffer out = ByteBuffer.wrap(buffer);
+        out.put(TYPE_REPORT);
+        out.putLong(sessionId);
+        out.putInt((int) received);
+        out.putInt((int) highestSequence);
+        out.putInt(latency);
+        return out.position();
+    }
+
+    /**
+     * @return the REPORT datagram, or null if the data is not a valid one
+     */
+    static Report decodeReport(byte[] data, int length) {
+        if ((length != REPORT_SIZE) || (data[0] != TYPE_REPORT)) return null;
+        ByteBuffer in = ByteBuffer.wrap(data, 1, length - 1);
+        return new Report(in.getLong(), in.getInt() & 0xFFFFFFFFL, in.getInt() & 0xFFFFFFFFL, in.getInt());
+    }
+}
@@ -0,0 +1,77 @@
+package eu.ybenouag.gpslogger;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The live-position lane of the live streaming.
+ * <p>
+ * For the live race tracking only the newest position matters: the lane keeps just the latest
+ * fix of every crew, and a new fix replaces (conflates) the one not yet sent.
+ * So, when the uploads are slower than the fix rate, the lane never grows and the server
+ * always receives the current position, instead of positions minutes old.
+ * The lossless persistence of all the fixes is the job of the StreamOutbox.
+ */
+class StreamLiveLane {
+
+    /**
+     * The latest position of a crew.
+     */
+    static class LivePosition {
+        final String crewId;
+        final String crewName;
+        final StreamedFix fix;
+
+        LivePosition(String crewId, String crewName, StreamedFix fix) {
+            this.crewId = crewId;
+            this.crewName = crewName;
+            this.fix = fix;
+        }
+    }
+
+    private final Map<String, LivePosition> latestPositions = new LinkedHashMap<>();
+
+    private long offeredFixes;                  // The fixes offered to the lane
+    private long conflatedFixes;                // The fixes replaced by a newer one before being sent
+
+    /**
+     * Offers the latest position of a crew, replacing the previous one if not yet sent.
+     */
+    synchronized void offer(String crewId, String crewName, StreamedFix fix) {
+        offeredFixes++;
+        String key = String.valueOf(crewId);
+        LivePosition previous = latestPositions.remove(key);
+        if (previous != null) conflatedFixes++;
+        latestPositions.put(key, new LivePosition(crewId, crewName, fix));
+    }
+
+    /**
+     * @return the oldest offered among the latest positions, removing it from the lane, or null if empty
+     */
+    synchronized LivePosition poll() {
+        Iterator<LivePosition> iterator = latestPositions.values().iterator();
+        if (!iterator.hasNext()) return null;
+        LivePosition livePosition = iterator.next();
+        iterator.remove();
+        return livePosition;
+    }
+
+    /**
+     * @return the number of positions waiting to be sent (at most one per crew)
+     */
+    synchronized int getDepth() {
+        return latestPositions.size();
+    }
+
+    synchronized long getOfferedFixes() {
+        return offeredFixes;
+    }
+
+    /**
+     * @return the number of positions dropped because a newer one arrived before they were sent
+     */
+    synchronized long getConflatedFixes() {
+        return conflatedFixes;
+    }
+}
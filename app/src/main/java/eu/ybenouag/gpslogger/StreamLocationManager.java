@@ -1,46 +1,610 @@
 package eu.ybenouag.gpslogger;
 
-import org.json.simple.JSONObject;
+import android.util.Log;
 
-import java.util.Objects;
-import java.util.concurrent.ExecutionException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class StreamLocationManager {
 
+    public static final int  DEFAULT_BATCH_SIZE         = 10;       // The number of fixes that triggers the upload of a batch
+    public static final long DEFAULT_BATCH_WINDOW       = 5000;     // The time window (ms) for collecting a batch
+    public static final long DEFAULT_BATCH_MAX_LATENCY  = 2000;     // The maximum time (ms) a fix can wait into a batch
+    private static final long RETRY_DELAY               = 5000;     // The time (ms) before retrying a failed upload
+    private static final long ACK_TIMEOUT               = 10000;    // The time (ms) the channel can wait for an ACK before being reopened
+    private static final long RECONNECT_DELAY_MIN       = 500;      // The first delay (ms) before reopening the channel, before the jitter
+    private static final long RECONNECT_DELAY_MAX       = 30000;    // The maximum delay (ms) before reopening the channel
+    private static final int  CHANNEL_WINDOW            = 512;      // The maximum number of fixes sent on the channel and not yet acknowledged
+    private static final int  CHANNEL_FRAME_FIXES       = 32;       // The maximum number of fixes per frame
+    private static final int  BACKLOG_CHUNK_SIZE        = 10;       // The maximum number of backlogged fixes saved by a single request
+
     private static StreamLocationManager singleton;
 
     public static StreamLocationManager getInstance() {
         return singleton;
     }
 
-    private BumpsViewerStreamHandler bumpsViewerStreamHandler;
-    private BumpsViewerDBHandler bumpsViewerDBHandler;
+    /**
+     * The crew the positions belong to: the TeamDetailsManager, or a simulated crew on the JVM.
+     */
+    public interface CrewSource {
+        String getCrewId();
+        String getCrewName();
+    }
+
+    private final LocationUploader locationUploader = new LocationUploader();
+    private final StreamUploadPolicy uploadPolicy = new StreamUploadPolicy();
+    private final StreamLiveLane liveLane = new StreamLiveLane();                    // The latest-wins lane of the live position
+    private StreamOutbox outbox = StreamOutbox.inMemory(StreamOutbox.DEFAULT_CAPACITY);
+
+    private volatile int trackNumber;                               // Changed by the main thread only, read by the persist stage
+    private volatile CrewSource crewSource;                         // The crew of the positions, or null for the TeamDetailsManager
+
+    // Batching
+    private boolean batchingEnabled     = false;                    // If true the fixes are uploaded in batches
+    private int  batchSize              = DEFAULT_BATCH_SIZE;
+    private long batchWindow            = DEFAULT_BATCH_WINDOW;
+    private long batchMaxLatency        = DEFAULT_BATCH_MAX_LATENCY;
+
+    // Binary encoding
+    private boolean binaryEncodingEnabled   = false;                // If true the fixes are sent with the StreamBinaryCodec
+    private volatile boolean binaryEncodingAccepted = true;         // False if the server refused the binary encoding
 
-    private int trackNumber;
+    // Combined ingest
+    private volatile boolean combinedIngestSupported = true;        // False if the server only knows the separate endpoints
+
+    // The transport of the uploads
+    private volatile UploadTransport transport = HttpUploadTransport.create(null);
+
+    // Streaming channel
+    private boolean channelEnabled          = false;                // If true the fixes are sent over the StreamChannel
+    private volatile boolean channelSupported = true;               // False if the server refused the channel
+    private StreamChannel channel;                                  // The open channel, or null
+    private long channelSessionId;                                  // The session of the open channel
+    private String channelCrewId;                                   // The crew of the open channel
+    private boolean channelResumed;                                 // True when the server told where to resume
+    private long lastSentSequence;                                  // The last sequence number sent on the channel
+    private long lastAckTime;                                       // The time of the last ACK (or of the opening of the channel)
+    private long reconnectDelay         = RECONNECT_DELAY_MIN;
+    private long channelFramesSent;                                 // The frames sent on all the channels of the session
+    private long channelBytesSent;                                  // The payload bytes of the frames sent
+    private final StreamChannel.Listener channelListener = new ChannelListener();
+
+    // Datagram lane
+    private boolean datagramEnabled         = false;                // If true the live positions are sent over UDP
+    private int datagramPort;                                       // The UDP port of the server; 0 for the port of the end point
+    private StreamDatagramSender datagramSender;                    // The sender of the live positions over UDP, or null if disabled
+
+    // Drain of the outbox
+    private final AtomicBoolean isDrainQueued = new AtomicBoolean();    // True if a DrainJob is waiting into the upload stage
+    private final AtomicBoolean isLiveQueued = new AtomicBoolean();     // True if a LiveJob is waiting into the upload stage
+    private long claimedSequence;                                       // The last sequence taken by a DrainJob (uploads in flight)
+    private final TreeMap<Long, Long> uploadedRanges = new TreeMap<>(); // The uploaded fixes (first -> last sequence) waiting for older ones
+    private final Object channelSendLock = new Object();                // The DrainJobs send on the channel one at a time
+    private ScheduledFuture<?> drainFuture;                             // The timer of the next drain (batch window or retry)
+    private long retryTime;                                             // No drains before this time (after a failure)
+    private long serverInterval;                                        // The minimum interval (ms) between two sends wanted by the server
+    private long lastSendTime;                                          // The time of the last send of the outbox
+    private ScheduledExecutorService drainTimer;
+    private final Object drainSignal = new Object();                    // Notified when the outbox or the uploads change, for drainAndStop()
+    private long drainSignals;                                          // The notifications of drainSignal, guarded by it
 
     public StreamLocationManager() {
         singleton = this;
         resetTrackNumber();
+        locationUploader.setJobEndListener(new Runnable() {
+            @Override
+            public void run() {
+                signalDrain();
+            }
+        });
+    }
+
+    /**
+     * Sets the transport of the uploads, for example to a local stand-in of the server.
+     * The capabilities of the server (combined ingest and binary encoding) are probed again.
+     */
+    public void setTransport(UploadTransport transport) {
+        this.transport = transport;
+        combinedIngestSupported = true;
+        binaryEncodingAccepted = true;
+        channelSupported = true;
+        closeChannel();
+        synchronized (this) {
+            if (datagramEnabled) openDatagramSender();
+        }
+    }
+
+    public UploadTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets the crew of the positions, instead of the one of the TeamDetailsManager.
+     *
+     * @param crewSource the crew, or null for the TeamDetailsManager
+     */
+    public void setCrewSource(CrewSource crewSource) {
+        this.crewSource = crewSource;
+    }
+
+    private CrewSource getCrewSource() {
+        CrewSource crew = crewSource;
+        return crew != null ? crew : TeamDetailsManager.getInstance();
+    }
+
+    /**
+     * Replaces the in-memory outbox with a persistent one.
+     * The fixes left pending by a previous session (for example after a crash during the recording)
+     * are replayed.
+     *
+     * @param file the outbox file
+     */
+    public void openOutbox(File file) {
+        try {
+            StreamOutbox persistentOutbox = StreamOutbox.open(file, StreamOutbox.DEFAULT_CAPACITY);
+            synchronized (this) {
+                outbox = persistentOutbox;
+                claimedSequence = 0;
+                uploadedRanges.clear();
+            }
+            if (persistentOutbox.size() > 0) {
+                Log.w("myApp", "[#] StreamLocationManager.java - Replaying " + persistentOutbox.size() + " pending fixes");
+                drainNow();
+            }
+        } catch (IOException e) {
+            Log.w("myApp", "[#] StreamLocationManager.java - Unable to open the outbox, using memory: " + e);
+        }
+    }
+
+    /**
+     * @return the number of fixes not yet acknowledged by the server
+     */
+    public int getNumberOfPendingFixes() {
+        return getOutbox().size();
+    }
+
+    /**
+     * @return the sequence number that will be assigned to the next fix appended to the outbox
+     */
+    public long getNextSequence() {
+        return getOutbox().getNextSequence();
+    }
+
+    /**
+     * The last step of the shutdown of the app, once the recording pipeline has appended its fixes:
+     * - forces the outbox to the storage, so that the pending fixes survive the power off;
+     * - gives the uploads (the pending fixes included, without waiting for a batch or a retry)
+     *   the time left until the deadline, while something is in flight;
+     * - stops the upload stage and the channels, without waiting for the requests still in flight,
+     *   and forces the outbox again.
+     * The fixes still pending are replayed at the next start, by openOutbox().
+     * The StreamLocationManager can't upload anymore after this call.
+     *
+     * @param deadline the System.currentTimeMillis() after which the uploads are abandoned
+     * @return the number of fixes left into the outbox for the next start
+     */
+    public int drainAndStop(long deadline) {
+        StreamOutbox outbox = getOutbox();
+        outbox.force();                                                 // Durable before waiting for the network
+        flushBatch();
+        awaitDrained(outbox, deadline);
+        locationUploader.shutdown();
+        closeChannel();
+        synchronized (this) {
+            if (drainFuture != null) {
+                drainFuture.cancel(false);
+                drainFuture = null;
+            }
+            if (datagramSender != null) {
+                datagramSender.close();
+                datagramSender = null;
+            }
+        }
+        outbox.force();
+        int pendingFixes = outbox.size();
+        Log.w("myApp", "[#] StreamLocationManager.java - Stopped, " + pendingFixes + " fixes left for the next start");
+        return pendingFixes;
+    }
+
+    /**
+     * Waits until the outbox is empty, nothing is uploading anymore, or the deadline.
+     * It wakes up at every ACK and at the end of every upload job, so it returns as soon as the uploads end.
+     */
+    private void awaitDrained(StreamOutbox outbox, long deadline) {
+        while (true) {
+            long signals;
+            synchronized (drainSignal) {
+                signals = drainSignals;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if ((outbox.size() == 0) || (!isUploading()) || (remaining <= 0)) return;
+            try {
+                synchronized (drainSignal) {
+                    if (drainSignals == signals) drainSignal.wait(remaining);    // Unless something changed since the check
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wakes up awaitDrained(). drainSignal is never held while taking another lock, so it can be called anywhere.
+     */
+    private void signalDrain() {
+        synchronized (drainSignal) {
+            drainSignals++;
+            drainSignal.notifyAll();
+        }
+    }
+
+    /**
+     * @return true if an upload is waiting or in flight, or if the channel is open (the ACKs may arrive)
+     */
+    private boolean isUploading() {
+        if ((locationUploader.getQueueDepth() > 0) || (locationUploader.getInFlight(LocationUploader.LANE_LIVE) > 0)
+                || (locationUploader.getInFlight(LocationUploader.LANE_BULK) > 0)) return true;
+        return isChannelOpen();
+    }
+
+    private synchronized StreamOutbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Appends a position to the outbox and returns immediately.
+     * The upload stage drains the outbox: every position is sent to the combined ingest endpoint
+     * (or, on older servers, to the live stream endpoint and then saved as debug data);
+     * then it is acknowledged and removed from the outbox.
+     * When the batching is enabled the outbox is drained when it reaches the batch size
+     * or when the time window of its first position expires.
+     *
+     * The positions that the server doesn't need are discarded by the StreamUploadPolicy, only when
+     * its adaptive rate is enabled (the "Adaptive Upload Rate" preference, off by default):
+     * the positions discarded are neither streamed nor saved as debug data on the server,
+     * as the combined ingest does both with a single request. They stay into the track on the phone.
+     * When the policy is disabled every position is saved.
+     * When the outbox is backlogged (or batching), the position also takes the conflating live lane,
+     * so that the server receives the current position first.
+     * When the datagram lane is enabled, the live position is sent at once as a datagram instead.
+     *
+     * @param time the time of the fix, in milliseconds
+     * @param latitude the latitude of the fix
+     * @param longitude the longitude of the fix
+     * @param speed the speed of the fix, in m/s, or NOT_AVAILABLE
+     * @param bearing the bearing of the fix, in degrees, or NOT_AVAILABLE
+     */
+    public void streamLocationData(long time, double latitude, double longitude, float speed, float bearing) {
+        StreamedFix fix = persistLocationData(time, latitude, longitude, speed, bearing);
+        if (fix != null) scheduleUpload(fix);
+    }
+
+    /**
+     * The persistence step of streamLocationData(): applies the StreamUploadPolicy and appends
+     * the position to the outbox. It doesn't wait for the network.
+     * With the adaptive rate enabled, a position discarded by the policy is not saved on the server.
+     *
+     * @return the position appended, or null if the policy discarded it or the crew is not known yet
+     */
+    StreamedFix persistLocationData(long time, double latitude, double longitude, float speed, float bearing) {
+        int trackNumber = getCurrentTrackNumber();
+        if (!uploadPolicy.shouldUpload(time, latitude, longitude, speed, bearing, trackNumber)) return null;
+        CrewSource crew = getCrewSource();
+        long sequence = getOutbox().append(crew.getCrewId(), crew.getCrewName(), time, latitude, longitude, trackNumber);
+        if (sequence == GPSApplication.NOT_AVAILABLE) return null;     // Not validated yet: the pending fixes are kept
+        return new StreamedFix(sequence, time, latitude, longitude, trackNumber);
+    }
+
+    /**
+     * The upload step of streamLocationData(): hands off a position, already into the outbox,
+     * to the upload stage (or to the live lanes). It never blocks.
+     *
+     * @param fix the position returned by persistLocationData()
+     */
+    void scheduleUpload(StreamedFix fix) {
+        CrewSource crew = getCrewSource();
+        String crewId = crew.getCrewId();
+        StreamOutbox outbox = getOutbox();
+        boolean isDelayed;                                              // True if the fix will not be sent by the next request
+        StreamDatagramSender datagramSender;
+        synchronized (this) {
+            datagramSender = this.datagramSender;
+            boolean isChannelActive = isChannelActive();                // The channel sends every fix at once, without batching
+            isDelayed = (!isChannelActive && (batchingEnabled || (outbox.size() > 1))) || (System.currentTimeMillis() < retryTime);
+            if (System.currentTimeMillis() >= retryTime) {              // Not waiting to retry after a failure
+                if (isChannelActive || !batchingEnabled || (outbox.size() >= batchSize)) drainNow();
+                else if (drainFuture == null) {
+                    // The first fix of the batch starts the timer.
+                    // The window is capped by the max latency, in order to keep the live position fresh.
+                    scheduleDrain(Math.min(batchWindow, batchMaxLatency));
+                }
+            }
+        }
+        if (datagramSender != null) datagramSender.offer(crewId, fix);
+        else if (isDelayed) {
+            // The live position can't wait for the outbox: it takes the live lane
+            liveLane.offer(crewId, crew.getCrewName(), fix);
+            if (isLiveQueued.compareAndSet(false, true)) locationUploader.submit(new LiveJob(), LocationUploader.LANE_LIVE);
+        }
+    }
+
+    /**
+     * Hands off the pending fixes (if any) to the upload stage.
+     */
+    public void flushBatch() {
+        synchronized (this) {
+            retryTime = 0;
+        }
+        drainNow();
+    }
+
+    /**
+     * Queues a DrainJob into the bulk lane of the upload stage, unless one is already waiting.
+     */
+    private void drainNow() {
+        synchronized (this) {
+            if (drainFuture != null) {
+                drainFuture.cancel(false);
+                drainFuture = null;
+            }
+        }
+        if (isDrainQueued.compareAndSet(false, true)) locationUploader.submit(new DrainJob());
+    }
+
+    private synchronized void scheduleDrain(long delay) {
+        if (drainFuture != null) drainFuture.cancel(false);
+        drainFuture = getDrainTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (StreamLocationManager.this) {
+                    drainFuture = null;
+                }
+                drainNow();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledExecutorService getDrainTimer() {
+        if (drainTimer == null) {
+            drainTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "StreamDrainTimer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return drainTimer;
+    }
+
+    public synchronized boolean isBatchingEnabled() {
+        return batchingEnabled;
+    }
+
+    /**
+     * Sets the batching mode.
+     *
+     * @param enabled true to upload the fixes in batches
+     * @param size the number of fixes that triggers the upload of a batch
+     * @param window the time window, in milliseconds, for collecting a batch
+     * @param maxLatency the maximum time, in milliseconds, a fix can wait into a batch
+     */
+    public void setBatching(boolean enabled, int size, long window, long maxLatency) {
+        synchronized (this) {
+            batchingEnabled = enabled;
+            batchSize = Math.max(1, size);
+            batchWindow = Math.max(0, window);
+            batchMaxLatency = Math.max(0, maxLatency);
+        }
+        if (!enabled && (getOutbox().size() > 0)) flushBatch();
+    }
+
+    /**
+     * Enables the compact binary encoding of the uploads (see StreamBinaryCodec).
+     * If the server doesn't accept it, the uploads fall back to JSON.
+     */
+    public synchronized void setBinaryEncoding(boolean enabled) {
+        if (enabled && !binaryEncodingEnabled) binaryEncodingAccepted = true;      // Negotiates again
+        binaryEncodingEnabled = enabled;
+    }
+
+    /**
+     * @return true if the uploads are currently sent with the binary encoding
+     */
+    public synchronized boolean isBinaryEncodingActive() {
+        return binaryEncodingEnabled && binaryEncodingAccepted;
+    }
+
+    /**
+     * Enables the persistent streaming channel (see StreamChannel).
+     * If the server doesn't support it, the fixes are uploaded with the requests.
+     */
+    public void setStreamChannel(boolean enabled) {
+        synchronized (this) {
+            if (enabled && !channelEnabled) channelSupported = true;        // Negotiates again
+            channelEnabled = enabled;
+        }
+        if (!enabled) closeChannel();
+    }
+
+    /**
+     * @return true if the fixes are currently sent over the streaming channel
+     */
+    public synchronized boolean isChannelActive() {
+        return channelEnabled && channelSupported;
+    }
+
+    /**
+     * @return true if the streaming channel is connected
+     */
+    public synchronized boolean isChannelOpen() {
+        return (channel != null) && channel.isOpen();
+    }
+
+    /**
+     * Enables the datagram lane (see StreamDatagramSender): the live positions are sent at once over UDP,
+     * accepting some losses, while all the fixes are persisted by the outbox as usual.
+     * The datagrams are not encrypted: the lane stays off with an https end point.
+     * A new session starts at every enabling, or change of the port.
+     *
+     * @param enabled true to send the live positions over UDP
+     * @param port the UDP port of the server, or 0 for the port of the end point
+     */
+    public synchronized void setDatagramMode(boolean enabled, int port) {
+        if ((enabled == datagramEnabled) && (port == datagramPort)) return;
+        datagramEnabled = enabled;
+        datagramPort = port;
+        if (enabled) openDatagramSender();
+        else if (datagramSender != null) {
+            datagramSender.close();
+            datagramSender = null;
+        }
+    }
+
+    public synchronized boolean isDatagramModeActive() {
+        return datagramSender != null;
+    }
+
+    /**
+     * @return the sender of the datagram lane, or null if disabled
+     */
+    synchronized StreamDatagramSender getDatagramSender() {
+        return datagramSender;
     }
 
-    public void streamLocationData(double latitude,double longitude) throws ExecutionException, InterruptedException {
-        bumpsViewerStreamHandler= new BumpsViewerStreamHandler();
-        TeamDetailsManager teamDetailsManager = TeamDetailsManager.getInstance();
-        JSONObject statusStream = (JSONObject) this.bumpsViewerStreamHandler.execute(
-                teamDetailsManager.getCrewId(),
-                teamDetailsManager.getCrewName(),
-                latitude,
-                longitude).get();
-        if(Objects.equals(statusStream.get("status"), 1L)) {
-            bumpsViewerDBHandler = new BumpsViewerDBHandler();
-            JSONObject statusDB = (JSONObject) this.bumpsViewerDBHandler.execute(
-                    "saveDebugData",
-                    teamDetailsManager.getCrewId(),
-                    String.valueOf(latitude),
-                    String.valueOf(longitude),
-                    String.valueOf(getCurrentTrackNumber())).get();
-        }
-;    }
+    private void openDatagramSender() {
+        if (datagramSender != null) {
+            datagramSender.close();
+            datagramSender = null;
+        }
+        try {
+            datagramSender = new StreamDatagramSender(getTransport().getEndPoint(), datagramPort);
+        } catch (IOException e) {
+            Log.w("myApp", "[#] StreamLocationManager.java - Unable to open the datagram lane: " + e);
+        }
+    }
+
+    /**
+     * @return true if the fixes are uploaded with the combined ingest request,
+     *         false if the server only supports the separate stream and saveDebugData requests
+     */
+    public boolean isCombinedIngestActive() {
+        return combinedIngestSupported;
+    }
+
+    /**
+     * @return the policy that decides which fixes are uploaded, with its counters
+     */
+    StreamUploadPolicy getUploadPolicy() {
+        return uploadPolicy;
+    }
+
+    // ------------------------------------------------------------------------- Lanes metrics
+
+    /**
+     * @return the number of live positions waiting to be sent (at most one per crew)
+     */
+    public int getLiveLaneDepth() {
+        return liveLane.getDepth();
+    }
+
+    /**
+     * @return the number of live positions replaced by a newer one before being sent
+     */
+    public long getLiveLaneDrops() {
+        return liveLane.getConflatedFixes();
+    }
+
+    /**
+     * @return the number of fixes waiting to be persisted by the server
+     */
+    public int getPersistenceLaneDepth() {
+        return getOutbox().size();
+    }
+
+    /**
+     * @return the number of fixes dropped by the outbox for lack of room or for a change of crew
+     */
+    public long getPersistenceLaneDrops() {
+        return getOutbox().getDroppedFixes();
+    }
+
+    /**
+     * Builds the report of the metrics of the live streaming, for the debug screen and for the dump to file:
+     * the gauges of the lanes and of the transports, followed by the StreamMetrics.
+     *
+     * @return the report, as text
+     */
+    public String getMetricsReport() {
+        StringBuilder sb = new StringBuilder(2048);
+        long now = System.currentTimeMillis();
+        StreamOutbox outbox = getOutbox();
+        long oldestTime = outbox.getOldestTime();
+        sb.append(String.format(Locale.US, "Outbox: %d fixes pending, oldest %s, %d dropped\n",
+                outbox.size(), oldestTime == GPSApplication.NOT_AVAILABLE ? "-" : ((now - oldestTime) / 1000) + " s ago",
+                outbox.getDroppedFixes()));
+        sb.append(String.format(Locale.US, "Live lane: %d pending, %d offered, %d conflated\n",
+                liveLane.getDepth(), liveLane.getOfferedFixes(), liveLane.getConflatedFixes()));
+        for (int lane = 0; lane < LocationUploader.LANES; lane++) {
+            sb.append(String.format(Locale.US, "Upload stage, %s lane: %d queued, %d/%d in flight, %d submitted, %d dropped jobs\n",
+                    LocationUploader.LANE_NAMES[lane], locationUploader.getQueueDepth(lane), locationUploader.getInFlight(lane),
+                    locationUploader.getConcurrency(lane), locationUploader.getSubmittedJobs(lane), locationUploader.getDroppedJobs(lane)));
+        }
+        sb.append(String.format(Locale.US, "Upload policy: %d evaluated, %d uploaded, %d heartbeats\n",
+                uploadPolicy.getEvaluatedFixes(), uploadPolicy.getUploadedFixes(), uploadPolicy.getHeartbeats()));
+        for (int endpoint = 0; endpoint < BumpsViewerResilience.ENDPOINTS; endpoint++) {
+            BumpsViewerResilience resilience = BumpsViewerResilience.getInstance(endpoint);
+            sb.append(String.format(Locale.US, "Resilience, %s: circuit %s, %d calls, %d retries, %d failed, %d short-circuited\n",
+                    BumpsViewerResilience.ENDPOINT_NAMES[endpoint],
+                    resilience.getState() == BumpsViewerResilience.STATE_CLOSED ? "closed"
+                            : (resilience.getState() == BumpsViewerResilience.STATE_OPEN ? "open" : "half-open"),
+                    resilience.getCalls(), resilience.getRetries(), resilience.getFailedCalls(), resilience.getShortCircuitedCalls()));
+        }
+        BumpsViewerHttpClient httpClient = BumpsViewerHttpClient.getInstance();
+        sb.append(String.format(Locale.US, "HTTP: %d requests, %d connections opened, %d reused, %d bytes up, %d bytes down\n",
+                httpClient.getRequests(), httpClient.getConnectionsOpened(), httpClient.getConnectionsReused(),
+                httpClient.getBytesSent(), httpClient.getBytesReceived()));
+        synchronized (this) {
+            sb.append(String.format(Locale.US, "Channel: %s, %d frames, %d bytes up\n",
+                    !channelEnabled ? "disabled" : (!channelSupported ? "not supported" : (isChannelOpen() ? "open" : "closed")),
+                    channelFramesSent, channelBytesSent));
+            sb.append("Datagrams: ").append(datagramSender != null ? datagramSender.getSummary() : "disabled").append('\n');
+        }
+        StreamMetrics.getInstance().appendTo(sb);
+        return sb.toString();
+    }
+
+    public LocationUploader getLocationUploader() {
+        return locationUploader;
+    }
+
+    public void setUploadListener(LocationUploader.Listener listener) {
+        locationUploader.setListener(listener);
+    }
+
+    /**
+     * Sets the concurrency limits of the traffic classes of the upload stage.
+     *
+     * @param liveWindow the maximum number of live positions in flight
+     * @param bulkConcurrency the maximum number of uploads of the outbox in flight
+     */
+    public void setUploadConcurrency(int liveWindow, int bulkConcurrency) {
+        locationUploader.setConcurrency(LocationUploader.LANE_LIVE, liveWindow);
+        locationUploader.setConcurrency(LocationUploader.LANE_BULK, bulkConcurrency);
+    }
 
     public int getCurrentTrackNumber() {
         return this.trackNumber;
@@ -53,4 +617,427 @@ public class StreamLocationManager {
     public void resetTrackNumber() {
         this.trackNumber = 0;
     }
+
+    /**
+     * Uploads the oldest pending fixes of the outbox not yet taken by another DrainJob,
+     * with a single request (or a single batch), and acknowledges them.
+     * The DrainJobs run on the bulk lane of the upload stage: if more fixes are pending, a new DrainJob
+     * is queued at once, so that up to the bulk concurrency limit of chunks are in flight.
+     * A backlog is saved in chunks of BACKLOG_CHUNK_SIZE fixes, while the live lane sends the current position.
+     * The fixes are acknowledged in order: a chunk uploaded before an older one waits for it.
+     * In case of failure the fixes stay into the outbox and the drain is retried after RETRY_DELAY,
+     * or when the circuit breaker of the uploads (BumpsViewerResilience) closes.
+     * When the server asks for a minimum interval between the uploads (the HINT of the StreamChannel),
+     * the sends are spaced by it: the fixes recorded in the meantime wait into the outbox for the next send.
+     * The chunks are idempotent (session and sequence numbers), so a retry can't duplicate them on the server.
+     */
+    private class DrainJob implements LocationUploader.Job {
+        private int numberOfFixes;
+
+        @Override
+        public boolean upload() {
+            isDrainQueued.set(false);
+            synchronized (StreamLocationManager.this) {
+                long wait = lastSendTime + serverInterval - System.currentTimeMillis();
+                if (wait > 0) {
+                    // The server asked for a longer interval: the fixes wait into the outbox for the next send
+                    if (drainFuture == null) scheduleDrain(wait);
+                    return true;
+                }
+            }
+            if (isChannelActive()) {
+                Object sent;
+                synchronized (channelSendLock) {
+                    sent = sendToChannel();
+                }
+                if (sent != BumpsViewerStreamHandler.NOT_ACCEPTED) return (Boolean) sent;
+                Log.w("myApp", "[#] StreamLocationManager.java - Streaming channel not supported by the server, using the requests");
+                channelSupported = false;
+            }
+            StreamOutbox outbox = getOutbox();
+            boolean batching = isBatchingEnabled();
+            List<StreamedFix> fixes;
+            synchronized (StreamLocationManager.this) {
+                long wait = retryTime - System.currentTimeMillis();
+                if (wait > 0) {
+                    // Queued before a failure: the drain waits for the retry
+                    if (drainFuture == null) scheduleDrain(wait);
+                    return true;
+                }
+                long acknowledged = outbox.getNextSequence() - outbox.size() - 1;
+                long claimed = Math.max(claimedSequence, acknowledged);
+                long unclaimed = outbox.getNextSequence() - 1 - claimed;
+                fixes = outbox.peek(claimed, batching ? batchSize : (unclaimed > 1 ? BACKLOG_CHUNK_SIZE : 1));
+                if (fixes.isEmpty()) return true;
+                claimedSequence = fixes.get(fixes.size() - 1).sequence;
+                lastSendTime = System.currentTimeMillis();
+                unclaimed -= fixes.size();
+                if ((unclaimed > 0) && (!batching || (unclaimed >= batchSize))) drainNow();    // The next chunk, in parallel
+            }
+            long sessionId = outbox.getSessionId();
+            String crewId = outbox.getCrewId();
+            String crewName = outbox.getCrewName();
+            numberOfFixes = fixes.size();
+
+            // If newer fixes are pending, the live position is sent by the live lane:
+            // the chunk is only saved, so that it can't move the live position back in time.
+            boolean isNewest = fixes.get(fixes.size() - 1).sequence == outbox.getNextSequence() - 1;
+            boolean uploaded = isNewest ? uploadFixes(sessionId, crewId, crewName, fixes, batching || (fixes.size() > 1))
+                    : saveFixes(sessionId, crewId, crewName, fixes);
+            long first = fixes.get(0).sequence;
+            long last = fixes.get(fixes.size() - 1).sequence;
+            if (!uploaded) {
+                // Waits at least until the circuit breaker lets a trial call through
+                long retryDelay = Math.max(RETRY_DELAY, BumpsViewerResilience.getInstance(BumpsViewerResilience.ENDPOINT_UPLOADS).getRemainingOpenTime());
+                synchronized (StreamLocationManager.this) {
+                    if (outbox == StreamLocationManager.this.outbox) claimedSequence = Math.min(claimedSequence, first - 1);
+                    retryTime = System.currentTimeMillis() + retryDelay;
+                    scheduleDrain(retryDelay);
+                }
+                return false;
+            }
+            synchronized (StreamLocationManager.this) {
+                if (outbox != StreamLocationManager.this.outbox) return true;     // Replaced in the meantime
+                acknowledgeRange(outbox, first, last);
+                long unclaimed = outbox.getNextSequence() - 1 - Math.max(claimedSequence, outbox.getNextSequence() - outbox.size() - 1);
+                if (unclaimed > 0) {
+                    if (!batching || (unclaimed >= batchSize)) drainNow();
+                    else if (drainFuture == null) scheduleDrain(Math.min(batchWindow, batchMaxLatency));
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Sends the pending fixes not yet sent over the streaming channel, opening it if needed.
+         * It doesn't wait for the ACKs: the ChannelListener acknowledges the fixes into the outbox.
+         * If no ACK arrives within ACK_TIMEOUT the channel is reopened, and the server tells
+         * where to resume.
+         *
+         * @return TRUE or FALSE (the outcome of the sending), or NOT_ACCEPTED
+         *         if the server doesn't support the channel
+         */
+        private Object sendToChannel() {
+            StreamOutbox outbox = getOutbox();
+            if (outbox.size() == 0) return Boolean.TRUE;
+            String crewId = outbox.getCrewId();
+            String crewName = outbox.getCrewName();
+            StreamChannel channel;
+            try {
+                channel = openChannel(outbox.getSessionId(), crewId);
+            } catch (StreamChannel.HandshakeRejectedException e) {
+                return BumpsViewerStreamHandler.NOT_ACCEPTED;
+            } catch (IOException e) {
+                Log.w("myApp", "[#] StreamLocationManager.java - Unable to open the streaming channel: " + e);
+                scheduleReconnect();
+                return Boolean.FALSE;
+            }
+
+            List<StreamedFix> fixes;
+            synchronized (StreamLocationManager.this) {
+                if (channel != StreamLocationManager.this.channel) return Boolean.TRUE;    // Closed in the meantime
+                long acknowledged = outbox.getNextSequence() - outbox.size() - 1;
+                long inFlight = Math.max(0, lastSentSequence - acknowledged);
+                if (!channelResumed || (inFlight > 0)) {
+                    // Waiting for the RESUME or for the ACKs, that will drain again
+                    if (System.currentTimeMillis() - lastAckTime > ACK_TIMEOUT) {
+                        Log.w("myApp", "[#] StreamLocationManager.java - No reply on the streaming channel, reopening it");
+                        channel.close();
+                        return Boolean.FALSE;
+                    }
+                    if (!channelResumed || (inFlight >= CHANNEL_WINDOW)) {
+                        scheduleDrain(ACK_TIMEOUT);
+                        return Boolean.TRUE;
+                    }
+                } else lastAckTime = System.currentTimeMillis();    // The wait for the ACK starts now
+                fixes = outbox.peek((int) Math.min(outbox.size(), inFlight + CHANNEL_FRAME_FIXES));
+                int sent = 0;
+                while ((sent < fixes.size()) && (fixes.get(sent).sequence <= lastSentSequence)) sent++;
+                fixes = fixes.subList(sent, fixes.size());
+            }
+            if (fixes.isEmpty()) return Boolean.TRUE;
+            numberOfFixes = fixes.size();
+            byte[] message = StreamBinaryCodec.encode(outbox.getSessionId(), crewId, crewName, fixes);
+            try {
+                channel.send(message, message.length);
+            } catch (IOException e) {
+                return Boolean.FALSE;                                   // The ChannelListener reopens the channel
+            }
+            synchronized (StreamLocationManager.this) {
+                channelFramesSent++;
+                channelBytesSent += message.length;
+                lastSendTime = System.currentTimeMillis();
+                if (channel == StreamLocationManager.this.channel) lastSentSequence = fixes.get(fixes.size() - 1).sequence;
+                if (outbox.getNextSequence() - 1 > lastSentSequence) drainNow();
+                else scheduleDrain(ACK_TIMEOUT);                        // Checks that the ACK arrives
+            }
+            return Boolean.TRUE;
+        }
+
+        @Override
+        public int getNumberOfFixes() {
+            return numberOfFixes;
+        }
+    }
+
+    /**
+     * Acknowledges into the outbox the fixes uploaded by a DrainJob, and the ones of the newer chunks
+     * that were waiting for them. A chunk uploaded while an older one is still in flight is kept apart,
+     * so that a failure of the older one can't remove its fixes from the outbox.
+     */
+    private synchronized void acknowledgeRange(StreamOutbox outbox, long first, long last) {
+        uploadedRanges.put(first, last);
+        long acknowledged = outbox.getNextSequence() - outbox.size() - 1;
+        while (!uploadedRanges.isEmpty() && (uploadedRanges.firstKey() <= acknowledged + 1)) {
+            acknowledged = Math.max(acknowledged, uploadedRanges.pollFirstEntry().getValue());
+        }
+        outbox.acknowledge(acknowledged);
+        signalDrain();
+    }
+
+    /**
+     * @return the open streaming channel for the given session and crew, opening it if needed (blocking)
+     * @throws StreamChannel.HandshakeRejectedException if the server doesn't support the channel
+     * @throws IOException in case of network error
+     */
+    private StreamChannel openChannel(long sessionId, String crewId) throws IOException {
+        synchronized (this) {
+            if ((channel != null) && channel.isOpen()) {
+                if ((sessionId == channelSessionId) && String.valueOf(crewId).equals(channelCrewId)) return channel;
+                channel.close();                                        // The RESUME of the channel is for another session or crew
+            }
+        }
+        StreamChannel newChannel = StreamChannel.open(getTransport().getEndPoint(), sessionId, crewId,
+                BumpsViewerHttpClient.getInstance(), channelListener);
+        synchronized (this) {
+            channel = newChannel;
+            channelSessionId = sessionId;
+            channelCrewId = String.valueOf(crewId);
+            channelResumed = false;
+            lastAckTime = System.currentTimeMillis();
+        }
+        Log.w("myApp", "[#] StreamLocationManager.java - Streaming channel open");
+        return newChannel;
+    }
+
+    private void closeChannel() {
+        StreamChannel channelToClose;
+        synchronized (this) {
+            channelToClose = channel;
+        }
+        if (channelToClose != null) channelToClose.close();
+    }
+
+    /**
+     * Schedules the reopening of the channel after the reconnection delay, with full jitter,
+     * and doubles the delay for the next time.
+     */
+    private synchronized void scheduleReconnect() {
+        long delay = (long) (Math.random() * reconnectDelay);
+        reconnectDelay = Math.min(RECONNECT_DELAY_MAX, reconnectDelay * 2);
+        retryTime = System.currentTimeMillis() + delay;
+        scheduleDrain(delay);
+    }
+
+    /**
+     * Receives the messages of the server on the streaming channel.
+     */
+    private class ChannelListener implements StreamChannel.Listener {
+
+        @Override
+        public void onResume(StreamChannel channel, long sequence) {
+            StreamOutbox outbox = getOutbox();
+            synchronized (StreamLocationManager.this) {
+                if (channel != StreamLocationManager.this.channel) return;
+                // A server ahead of the outbox knows another session (for example a reinstall): nothing to skip
+                if (sequence < outbox.getNextSequence()) outbox.acknowledge(sequence);
+                lastSentSequence = outbox.getNextSequence() - outbox.size() - 1;
+                channelResumed = true;
+                lastAckTime = System.currentTimeMillis();
+                reconnectDelay = RECONNECT_DELAY_MIN;
+                retryTime = 0;
+            }
+            signalDrain();
+            Log.w("myApp", "[#] StreamLocationManager.java - Streaming channel resumed after sequence " + sequence
+                    + ", " + outbox.size() + " fixes to send");
+            if (outbox.size() > 0) drainNow();
+        }
+
+        @Override
+        public void onAcknowledged(StreamChannel channel, long sequence) {
+            StreamOutbox outbox = getOutbox();
+            synchronized (StreamLocationManager.this) {
+                if (channel != StreamLocationManager.this.channel) return;
+                if (sequence < outbox.getNextSequence()) outbox.acknowledge(sequence);
+                lastAckTime = System.currentTimeMillis();
+                if (outbox.getNextSequence() - 1 > lastSentSequence) drainNow();
+            }
+            signalDrain();
+        }
+
+        @Override
+        public void onHint(StreamChannel channel, long interval) {
+            Log.w("myApp", "[#] StreamLocationManager.java - The server asks for an upload interval of " + interval + " ms");
+            synchronized (StreamLocationManager.this) {
+                serverInterval = Math.max(0, interval);
+            }
+        }
+
+        @Override
+        public void onClosed(StreamChannel channel, IOException cause) {
+            synchronized (StreamLocationManager.this) {
+                if (channel != StreamLocationManager.this.channel) return;
+                StreamLocationManager.this.channel = null;
+                channelResumed = false;
+            }
+            signalDrain();
+            synchronized (StreamLocationManager.this) {
+                if (!isChannelActive()) return;
+            }
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Sends the latest live position, taken from the live lane, to the live stream endpoint.
+     * The position is skipped if in the meantime it has been delivered by a DrainJob.
+     * A failed live position is not retried: a newer one will follow, and the outbox keeps all of them.
+     */
+    private class LiveJob implements LocationUploader.Job {
+        private int numberOfFixes;
+
+        @Override
+        public boolean upload() {
+            isLiveQueued.set(false);
+            StreamLiveLane.LivePosition livePosition = liveLane.poll();
+            if ((livePosition == null) || getOutbox().isAcknowledged(livePosition.fix.sequence)) return true;
+            if ((liveLane.getDepth() > 0) && isLiveQueued.compareAndSet(false, true)) {
+                locationUploader.submit(new LiveJob(), LocationUploader.LANE_LIVE);
+            }
+            numberOfFixes = 1;
+            long sessionId = getOutbox().getSessionId();
+            if (isBinaryEncodingActive()) {
+                Object status = BumpsViewerStreamHandler.sendEncodedLocations(getTransport(), StreamBinaryCodec.encode(
+                        sessionId, livePosition.crewId, livePosition.crewName, Collections.singletonList(livePosition.fix)));
+                if (status != BumpsViewerStreamHandler.NOT_ACCEPTED) return BumpsViewerStreamHandler.isStatusOk(status);
+                Log.w("myApp", "[#] StreamLocationManager.java - Binary encoding not accepted by the server, falling back to JSON");
+                binaryEncodingAccepted = false;
+            }
+            return BumpsViewerStreamHandler.isStatusOk(BumpsViewerStreamHandler.sendLocation(
+                    getTransport(),
+                    sessionId,
+                    livePosition.crewId,
+                    livePosition.crewName,
+                    livePosition.fix));
+        }
+
+        @Override
+        public int getNumberOfFixes() {
+            return numberOfFixes;
+        }
+    }
+
+    /**
+     * Saves some positions as debug data, without updating the live position.
+     *
+     * @return true if the positions have been accepted by the server
+     */
+    private boolean saveFixes(long sessionId, String crewId, String crewName, List<StreamedFix> fixes) {
+        if (isBinaryEncodingActive()) {
+            Object status = BumpsViewerDBHandler.saveEncodedDebugData(getTransport(), StreamBinaryCodec.encode(sessionId, crewId, crewName, fixes));
+            if (status != BumpsViewerStreamHandler.NOT_ACCEPTED) return status != null;
+            Log.w("myApp", "[#] StreamLocationManager.java - Binary encoding not accepted by the server, falling back to JSON");
+            binaryEncodingAccepted = false;
+        }
+        return BumpsViewerDBHandler.saveDebugData(getTransport(), sessionId, crewId, fixes) != null;
+    }
+
+    /**
+     * Uploads some positions with the combined ingest request, that updates the live position
+     * and saves the debug data at once.
+     * If the server doesn't support it, the positions are uploaded with separate requests
+     * to the stream and to the saveDebugData endpoints, as the older servers expect.
+     *
+     * @return true if the positions have been accepted by the server
+     */
+    private boolean uploadFixes(long sessionId, String crewId, String crewName, List<StreamedFix> fixes, boolean batching) {
+        if (combinedIngestSupported) {
+            Object status = ingest(sessionId, crewId, crewName, fixes);
+            if (status != BumpsViewerStreamHandler.NOT_ACCEPTED) return BumpsViewerStreamHandler.isStatusOk(status);
+            Log.w("myApp", "[#] StreamLocationManager.java - Combined ingest not supported by the server, using the separate requests");
+            combinedIngestSupported = false;
+        }
+        if (isBinaryEncodingActive()) {
+            Object status = uploadEncoded(sessionId, crewId, crewName, fixes);
+            if (status != BumpsViewerStreamHandler.NOT_ACCEPTED) return (Boolean) status;
+            Log.w("myApp", "[#] StreamLocationManager.java - Binary encoding not accepted by the server, falling back to JSON");
+            binaryEncodingAccepted = false;
+        }
+        return batching ? uploadBatch(sessionId, crewId, crewName, fixes) : uploadFix(sessionId, crewId, crewName, fixes.get(0));
+    }
+
+    /**
+     * Sends some positions to the combined ingest endpoint, with the binary encoding if active.
+     * A server may support the combined ingest but not the binary encoding: in that case
+     * the request is repeated in JSON, and the binary encoding is disabled.
+     *
+     * @return the reply of the server, or NOT_ACCEPTED if the server doesn't support the combined ingest
+     */
+    private Object ingest(long sessionId, String crewId, String crewName, List<StreamedFix> fixes) {
+        if (!isBinaryEncodingActive()) return BumpsViewerStreamHandler.ingest(getTransport(), sessionId, crewId, crewName, fixes);
+        Object status = BumpsViewerStreamHandler.ingestEncoded(getTransport(), StreamBinaryCodec.encode(sessionId, crewId, crewName, fixes));
+        if (status != BumpsViewerStreamHandler.NOT_ACCEPTED) return status;
+        status = BumpsViewerStreamHandler.ingest(getTransport(), sessionId, crewId, crewName, fixes);
+        if (status != BumpsViewerStreamHandler.NOT_ACCEPTED) {
+            Log.w("myApp", "[#] StreamLocationManager.java - Binary encoding not accepted by the server, falling back to JSON");
+            binaryEncodingAccepted = false;
+        }
+        return status;
+    }
+
+    /**
+     * The upload of a single position: the stream request followed by the saveDebugData one.
+     */
+    private boolean uploadFix(long sessionId, String crewId, String crewName, StreamedFix fix) {
+        Object statusStream = BumpsViewerStreamHandler.sendLocation(
+                getTransport(),
+                sessionId,
+                crewId,
+                crewName,
+                fix);
+        if (!BumpsViewerStreamHandler.isStatusOk(statusStream)) return false;
+        Object statusDB = BumpsViewerDBHandler.saveDebugData(
+                getTransport(),
+                sessionId,
+                crewId,
+                fix);
+        return statusDB != null;
+    }
+
+    /**
+     * The upload of a batch of positions: one stream request and one saveDebugData request
+     * for all the fixes of the batch.
+     */
+    private boolean uploadBatch(long sessionId, String crewId, String crewName, List<StreamedFix> fixes) {
+        Object statusStream = BumpsViewerStreamHandler.sendLocations(getTransport(), sessionId, crewId, crewName, fixes);
+        if (!BumpsViewerStreamHandler.isStatusOk(statusStream)) return false;
+        return BumpsViewerDBHandler.saveDebugData(getTransport(), sessionId, crewId, fixes) != null;
+    }
+
+    /**
+     * The upload of some positions with the binary encoding: the same message is sent
+     * to the stream endpoint and to the saveDebugData one.
+     *
+     * @return TRUE or FALSE (the outcome of the upload), or NOT_ACCEPTED
+     *         if the server doesn't support the encoding
+     */
+    private Object uploadEncoded(long sessionId, String crewId, String crewName, List<StreamedFix> fixes) {
+        byte[] encodedFixes = StreamBinaryCodec.encode(sessionId, crewId, crewName, fixes);
+        Object statusStream = BumpsViewerStreamHandler.sendEncodedLocations(getTransport(), encodedFixes);
+        if (statusStream == BumpsViewerStreamHandler.NOT_ACCEPTED) return statusStream;
+        if (!BumpsViewerStreamHandler.isStatusOk(statusStream)) return Boolean.FALSE;
+        Object statusDB = BumpsViewerDBHandler.saveEncodedDebugData(getTransport(), encodedFixes);
+        if (statusDB == BumpsViewerStreamHandler.NOT_ACCEPTED) return statusDB;
+        return statusDB != null;
+    }
 }
@@ -0,0 +1,224 @@
+package eu.ybenouag.gpslogger;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The instrumentation of the upload path of the live streaming.
+ * <p>
+ * It replaces the logs on the hot path with counters and histograms updated without locks
+ * (a few atomic increments per request), that are formatted only when somebody looks at them:
+ * - a latency histogram for every request path, recorded by the HttpUploadTransport;
+ * - the replies by HTTP status, and the network errors;
+ * - a latency histogram of the upload jobs of every lane of the LocationUploader (live and bulk),
+ *   from the hand-off to the end of the job.
+ * The gauges (the depth of the outbox, the age of its oldest fix, the lanes, the bytes) are read
+ * from their owners when the report is built: see StreamLocationManager.getMetricsReport().
+ */
+class StreamMetrics {
+
+    private static final int MAX_STATUS = 600;
+
+    private static StreamMetrics singleton;
+
+    /**
+     * @return the instance shared by the upload path
+     */
+    static synchronized StreamMetrics getInstance() {
+        if (singleton == null) singleton = new StreamMetrics();
+        return singleton;
+    }
+
+    /**
+     * A histogram of durations, in microseconds, with log-linear buckets:
+     * 8 buckets for every power of two, so that the percentiles have an error below 12.5%,
+     * from 1 us up to ~12 days in 312 buckets. The recording is lock-free and allocation-free.
+     */
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS    = 3;
+        private static final int SUB_BUCKETS        = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT       = 40;           // The values are capped to 2^40 us
+        private static final int BUCKETS            = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long micros) {
+            long value = Math.max(0, Math.min(micros, (1L << MAX_EXPONENT) - 1));
+            buckets.incrementAndGet(index(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax;
+            while ((value > (currentMax = max.get())) && !max.compareAndSet(currentMax, value)) {
+                // Retries until the max is updated or a bigger value is recorded
+            }
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        long getMean() {
+            long n = count.get();
+            return n > 0 ? sum.get() / n : 0;
+        }
+
+        /**
+         * @param percentile the percentile, from 0 to 100
+         * @return the middle of the bucket of the given percentile, in microseconds, or 0 if empty
+         */
+        long getPercentile(double percentile) {
+            long n = count.get();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(middle(i), max.get());
+            }
+            return max.get();
+        }
+
+        static int index(long value) {
+            if (value < 2 * SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long middle(int index) {
+            if (index < 2 * SUB_BUCKETS) return index;
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int subBucket = index % SUB_BUCKETS;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            return (SUB_BUCKETS + subBucket) * width + width / 2;
+        }
+
+        /**
+         * Appends the summary of the histogram, in milliseconds.
+         */
+        void appendTo(StringBuilder sb) {
+            sb.append(String.format(Locale.US, "n=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f ms",
+                    getCount(), getMean() / 1000.0, getPercentile(50) / 1000.0, getPercentile(90) / 1000.0,
+                    getPercentile(99) / 1000.0, getMax() / 1000.0));
+        }
+    }
+
+    private final ConcurrentHashMap<String, Histogram> requestLatencies = new ConcurrentHashMap<>();    // By request path
+    private final AtomicLongArray statusCounts = new AtomicLongArray(MAX_STATUS);                      // The replies, by HTTP status
+    private final AtomicLong networkErrors = new AtomicLong();                                         // The requests without reply
+    private final Histogram[] uploadLatencies = new Histogram[LocationUploader.LANES];                 // By lane
+    private final AtomicLongArray uploadsCompleted = new AtomicLongArray(LocationUploader.LANES);
+    private final AtomicLongArray uploadsFailed = new AtomicLongArray(LocationUploader.LANES);
+    private final AtomicLongArray fixesUploaded = new AtomicLongArray(LocationUploader.LANES);
+    private final long startTime = System.currentTimeMillis();
+
+    private StreamMetrics() {
+        for (int lane = 0; lane < LocationUploader.LANES; lane++) uploadLatencies[lane] = new Histogram();
+    }
+
+    /**
+     * Records a request that received a reply.
+     *
+     * @param path the path of the request
+     * @param nanos the duration of the request
+     * @param status the HTTP status of the reply
+     */
+    void recordRequest(String path, long nanos, int status) {
+        getRequestLatency(path).record(nanos / 1000);
+        if ((status >= 0) && (status < MAX_STATUS)) statusCounts.incrementAndGet(status);
+    }
+
+    /**
+     * Records a request failed for a network error (also a timeout).
+     */
+    void recordNetworkError(String path, long nanos) {
+        getRequestLatency(path).record(nanos / 1000);
+        networkErrors.incrementAndGet();
+    }
+
+    /**
+     * Records the outcome of an upload job of the LocationUploader.
+     *
+     * @param lane the lane of the job (LocationUploader.LANE_LIVE or LANE_BULK)
+     * @param nanos the time from the hand-off to the end of the job
+     */
+    void recordUpload(int lane, long nanos, boolean uploaded, int numberOfFixes) {
+        uploadLatencies[lane].record(nanos / 1000);
+        if (uploaded) {
+            uploadsCompleted.incrementAndGet(lane);
+            fixesUploaded.addAndGet(lane, numberOfFixes);
+        } else uploadsFailed.incrementAndGet(lane);
+    }
+
+    private Histogram getRequestLatency(String path) {
+        Histogram histogram = requestLatencies.get(path);
+        if (histogram == null) {
+            histogram = new Histogram();
+            Histogram previous = requestLatencies.putIfAbsent(path, histogram);
+            if (previous != null) histogram = previous;
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the number of replies with the given HTTP status
+     */
+    long getStatusCount(int status) {
+        return ((status >= 0) && (status < MAX_STATUS)) ? statusCounts.get(status) : 0;
+    }
+
+    long getNetworkErrors() {
+        return networkErrors.get();
+    }
+
+    /**
+     * @return the latency histogram of the given path, or null if no requests
+     */
+    Histogram getRequestLatencyHistogram(String path) {
+        return requestLatencies.get(path);
+    }
+
+    /**
+     * @return the latency histogram of the upload jobs of the given lane
+     */
+    Histogram getUploadLatencyHistogram(int lane) {
+        return uploadLatencies[lane];
+    }
+
+    /**
+     * Appends the recorded metrics, one per line.
+     */
+    void appendTo(StringBuilder sb) {
+        sb.append(String.format(Locale.US, "Recording since %1$tF %1$tT\n", startTime));
+        for (int lane = 0; lane < LocationUploader.LANES; lane++) {
+            sb.append(String.format(Locale.US, "Upload jobs, %s lane: %d completed (%d fixes), %d failed\n",
+                    LocationUploader.LANE_NAMES[lane], uploadsCompleted.get(lane), fixesUploaded.get(lane), uploadsFailed.get(lane)));
+            sb.append("  hand-off to end: ");
+            uploadLatencies[lane].appendTo(sb);
+            sb.append('\n');
+        }
+        sb.append("Requests by path:").append('\n');
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(requestLatencies).entrySet()) {
+            sb.append("  ").append(entry.getKey()).append(": ");
+            entry.getValue().appendTo(sb);
+            sb.append('\n');
+        }
+        sb.append("Replies by status:");
+        for (int status = 0; status < MAX_STATUS; status++) {
+            long n = statusCounts.get(status);
+            if (n > 0) sb.append(' ').append(status).append('=').append(n);
+        }
+        sb.append(", network errors=").append(networkErrors.get()).append('\n');
+    }
+}
@@ -0,0 +1,349 @@
+package eu.ybenouag.gpslogger;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The store-and-forward outbox of the live streaming.
+ * <p>
+ * Every fix to be uploaded is appended here first, and it is removed only when the server
+ * acknowledges it. The outbox is a single segment file, memory-mapped, with a fixed-size header
+ * followed by fixed-size records:
+ * - the append writes the record and then moves the write offset: no system calls, no allocations;
+ * - the acknowledge moves the ack offset; when everything is acknowledged the segment is truncated;
+ * - the pages are flushed by the kernel, so the pending fixes survive the death of the process
+ *   and are replayed on the next start.
+ * The header also stores the crew identity of the pending fixes, in order to be able to replay them
+ * before the crew is registered again. The fixes are appended only with a known crew: the ones
+ * received before the crew is validated again (for example after a restart) are not streamed,
+ * and the pending fixes are kept. Only a change of the crew id discards them.
+ * <p>
+ * Every fix gets a sequence number, monotonic within the session of the outbox: a random id created
+ * with the outbox and stored into its header, so that a persistent outbox keeps its session
+ * (and its sequence) across the restarts, while a new outbox starts a new session.
+ * The uploads carry the session id and the sequence numbers, so that the server can store every fix
+ * exactly once and in order, whatever the retries and the order of arrival of the requests.
+ * When the segment is full, the pending records are compacted to the beginning of the segment;
+ * if there is no room anyway the oldest half of the pending fixes is dropped.
+ * <p>
+ * The outbox can also be created in memory, without persistence.
+ */
+class StreamOutbox {
+
+    private static final int MAGIC              = 0x42564F42;       // "BVOB"
+    private static final int VERSION            = 1;
+    static final int DEFAULT_CAPACITY           = 16384;            // The default number of records (~27 minutes at 10 Hz)
+
+    // Header layout
+    private static final int HEADER_SIZE        = 256;
+    private static final int OFFSET_MAGIC       = 0;
+    private static final int OFFSET_VERSION     = 4;
+    private static final int OFFSET_ACK         = 8;                // long: the position of the first pending record
+    private static final int OFFSET_WRITE       = 16;               // long: the position of the next record
+    private static final int OFFSET_SEQUENCE    = 24;               // long: the sequence number of the next record
+    private static final int OFFSET_CREW_ID     = 32;               // short length + UTF-8 bytes
+    private static final int OFFSET_CREW_NAME   = 134;              // short length + UTF-8 bytes
+    static final int MAX_CREW_LENGTH            = 100;              // The maximum length of the crew id and name, in bytes
+    private static final int OFFSET_SESSION     = 240;              // long: the id of the session
+
+    // Record layout
+    static final int RECORD_SIZE                = 40;
+    private static final int RECORD_SEQUENCE    = 0;                // long
+    private static final int RECORD_TIME        = 8;                // long
+    private static final int RECORD_LATITUDE    = 16;               // double
+    private static final int RECORD_LONGITUDE   = 24;               // double
+    private static final int RECORD_TRACK       = 32;               // int (+ 4 bytes spare)
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final ByteBuffer buffer;
+    private final int capacityBytes;
+    private String crewId;
+    private String crewName;
+    private long droppedFixes;
+
+    private StreamOutbox(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.capacityBytes = buffer.capacity();
+        if ((buffer.getInt(OFFSET_MAGIC) != MAGIC) || (buffer.getInt(OFFSET_VERSION) != VERSION)
+                || !isValidOffset(buffer.getLong(OFFSET_ACK)) || !isValidOffset(buffer.getLong(OFFSET_WRITE))
+                || (buffer.getLong(OFFSET_ACK) > buffer.getLong(OFFSET_WRITE))) {
+            buffer.putInt(OFFSET_MAGIC, MAGIC);
+            buffer.putInt(OFFSET_VERSION, VERSION);
+            buffer.putLong(OFFSET_ACK, HEADER_SIZE);
+            buffer.putLong(OFFSET_WRITE, HEADER_SIZE);
+            buffer.putLong(OFFSET_SEQUENCE, 1);
+            writeString(OFFSET_CREW_ID, null);
+            writeString(OFFSET_CREW_NAME, null);
+            buffer.putLong(OFFSET_SESSION, 0);
+        }
+        if (buffer.getLong(OFFSET_SESSION) == 0) {
+            long sessionId;
+            do {
+                sessionId = random.nextLong();
+            } while (sessionId == 0);                               // 0 stands for the uploads without session
+            buffer.putLong(OFFSET_SESSION, sessionId);
+        }
+        crewId = readString(OFFSET_CREW_ID);
+        crewName = readString(OFFSET_CREW_NAME);
+    }
+
+    /**
+     * Opens (or creates) the outbox file and maps it in memory.
+     * The pending fixes of the previous sessions are kept.
+     *
+     * @param file the segment file
+     * @param capacity the maximum number of pending records
+     */
+    static StreamOutbox open(File file, int capacity) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer mappedByteBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            return new StreamOutbox(mappedByteBuffer);      // The mapping stays valid after closing the file
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Creates an outbox in memory, without persistence.
+     *
+     * @param capacity the maximum number of pending records
+     */
+    static StreamOutbox inMemory(int capacity) {
+        return new StreamOutbox(ByteBuffer.allocate(HEADER_SIZE + capacity * RECORD_SIZE));
+    }
+
+    /**
+     * Appends a fix.
+     * If the crew id differs from the one of the pending fixes, the pending fixes are discarded;
+     * if only the crew name differs, it is updated.
+     * The crew id and name are truncated to MAX_CREW_LENGTH bytes (UTF-8), as stored into the header.
+     *
+     * @param crewId the crew id, or null if the crew is not known yet
+     * @return the sequence number assigned to the fix, or NOT_AVAILABLE if the crew is not known:
+     *         the fix is not appended
+     */
+    synchronized long append(String crewId, String crewName, long time, double latitude, double longitude, int trackNumber) {
+        if (crewId == null) return GPSApplication.NOT_AVAILABLE;
+        crewId = truncate(crewId);
+        crewName = truncate(crewName);
+        if (!crewId.equals(this.crewId)) {
+            if (size() > 0) {
+                Log.w("myApp", "[#] StreamOutbox.java - Crew changed: " + size() + " pending fixes discarded");
+                droppedFixes += size();
+                buffer.putLong(OFFSET_ACK, HEADER_SIZE);
+                buffer.putLong(OFFSET_WRITE, HEADER_SIZE);
+            }
+            this.crewId = crewId;
+            writeString(OFFSET_CREW_ID, crewId);
+        }
+        if (!equals(crewName, this.crewName)) {
+            this.crewName = crewName;
+            writeString(OFFSET_CREW_NAME, crewName);
+        }
+        long writeOffset = buffer.getLong(OFFSET_WRITE);
+        if (writeOffset + RECORD_SIZE > capacityBytes) {
+            compact();
+            writeOffset = buffer.getLong(OFFSET_WRITE);
+            if (writeOffset + RECORD_SIZE > capacityBytes) {
+                // No room: drop the oldest pending fixes, until the newest ones can be compacted
+                long ackOffset = buffer.getLong(OFFSET_ACK);
+                long halfOffset = (writeOffset + HEADER_SIZE) / 2;
+                long newAckOffset = HEADER_SIZE + ((halfOffset - HEADER_SIZE + RECORD_SIZE - 1) / RECORD_SIZE) * RECORD_SIZE;
+                droppedFixes += (newAckOffset - ackOffset) / RECORD_SIZE;
+                buffer.putLong(OFFSET_ACK, newAckOffset);
+                compact();
+                writeOffset = buffer.getLong(OFFSET_WRITE);
+            }
+        }
+        long sequence = buffer.getLong(OFFSET_SEQUENCE);
+        int position = (int) writeOffset;
+        buffer.putLong(position + RECORD_SEQUENCE, sequence);
+        buffer.putLong(position + RECORD_TIME, time);
+        buffer.putDouble(position + RECORD_LATITUDE, latitude);
+        buffer.putDouble(position + RECORD_LONGITUDE, longitude);
+        buffer.putInt(position + RECORD_TRACK, trackNumber);
+        buffer.putLong(OFFSET_SEQUENCE, sequence + 1);
+        buffer.putLong(OFFSET_WRITE, writeOffset + RECORD_SIZE);          // Commits the record
+        return sequence;
+    }
+
+    /**
+     * @param max the maximum number of fixes to return
+     * @return the oldest pending fixes, in order, without removing them
+     */
+    synchronized List<StreamedFix> peek(int max) {
+        return peek(0, max);
+    }
+
+    /**
+     * @param afterSequence the pending fixes up to this sequence number (included) are skipped,
+     *                      for example because they are being uploaded by another job
+     * @param max the maximum number of fixes to return
+     * @return the oldest pending fixes after the given sequence number, in order, without removing them
+     */
+    synchronized List<StreamedFix> peek(long afterSequence, int max) {
+        long readOffset = buffer.getLong(OFFSET_ACK);
+        long writeOffset = buffer.getLong(OFFSET_WRITE);
+        while ((readOffset < writeOffset) && (buffer.getLong((int) readOffset + RECORD_SEQUENCE) <= afterSequence)) {
+            readOffset += RECORD_SIZE;
+        }
+        int count = (int) Math.min(max, (writeOffset - readOffset) / RECORD_SIZE);
+        List<StreamedFix> fixes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int position = (int) readOffset + i * RECORD_SIZE;
+            fixes.add(new StreamedFix(
+                    buffer.getLong(position + RECORD_SEQUENCE),
+                    buffer.getLong(position + RECORD_TIME),
+                    buffer.getDouble(position + RECORD_LATITUDE),
+                    buffer.getDouble(position + RECORD_LONGITUDE),
+                    buffer.getInt(position + RECORD_TRACK)));
+        }
+        return fixes;
+    }
+
+    /**
+     * Removes the pending fixes up to the given sequence number (included).
+     * The segment is truncated when no fixes are pending.
+     */
+    synchronized void acknowledge(long sequence) {
+        long ackOffset = buffer.getLong(OFFSET_ACK);
+        long writeOffset = buffer.getLong(OFFSET_WRITE);
+        while ((ackOffset < writeOffset) && (buffer.getLong((int) ackOffset + RECORD_SEQUENCE) <= sequence)) {
+            ackOffset += RECORD_SIZE;
+        }
+        if (ackOffset == writeOffset) {
+            buffer.putLong(OFFSET_WRITE, HEADER_SIZE);
+            buffer.putLong(OFFSET_ACK, HEADER_SIZE);                // Truncates the segment
+        } else buffer.putLong(OFFSET_ACK, ackOffset);
+    }
+
+    /**
+     * @return the number of pending fixes
+     */
+    synchronized int size() {
+        return (int) ((buffer.getLong(OFFSET_WRITE) - buffer.getLong(OFFSET_ACK)) / RECORD_SIZE);
+    }
+
+    /**
+     * @return the time of the oldest pending fix, or NOT_AVAILABLE if none
+     */
+    synchronized long getOldestTime() {
+        long ackOffset = buffer.getLong(OFFSET_ACK);
+        if (ackOffset == buffer.getLong(OFFSET_WRITE)) return GPSApplication.NOT_AVAILABLE;
+        return buffer.getLong((int) ackOffset + RECORD_TIME);
+    }
+
+    /**
+     * @return the sequence number that will be assigned to the next fix
+     */
+    synchronized long getNextSequence() {
+        return buffer.getLong(OFFSET_SEQUENCE);
+    }
+
+    /**
+     * @return the id of the session of the sequence numbers
+     */
+    long getSessionId() {
+        return buffer.getLong(OFFSET_SESSION);
+    }
+
+    /**
+     * @return true if the fix with the given sequence number has been acknowledged (or dropped)
+     */
+    synchronized boolean isAcknowledged(long sequence) {
+        return sequence < getNextSequence() - size();
+    }
+
+    synchronized String getCrewId() {
+        return crewId;
+    }
+
+    synchronized String getCrewName() {
+        return crewName;
+    }
+
+    /**
+     * @return the number of pending fixes dropped for lack of room or for a change of crew
+     */
+    synchronized long getDroppedFixes() {
+        return droppedFixes;
+    }
+
+    /**
+     * Forces the content of the outbox to the storage device.
+     */
+    synchronized void force() {
+        if (buffer instanceof MappedByteBuffer) ((MappedByteBuffer) buffer).force();
+    }
+
+    /**
+     * Moves the pending records to the beginning of the segment.
+     * It is done only if the destination doesn't overlap the source, in order to keep
+     * the pending records valid in case the process dies during the copy.
+     */
+    private void compact() {
+        long ackOffset = buffer.getLong(OFFSET_ACK);
+        long pendingBytes = buffer.getLong(OFFSET_WRITE) - ackOffset;
+        if ((ackOffset == HEADER_SIZE) || (ackOffset - HEADER_SIZE < pendingBytes)) return;
+        ByteBuffer source = buffer.duplicate();
+        source.position((int) ackOffset);
+        source.limit((int) (ackOffset + pendingBytes));
+        ByteBuffer destination = buffer.duplicate();
+        destination.position(HEADER_SIZE);
+        destination.put(source);
+        buffer.putLong(OFFSET_WRITE, HEADER_SIZE + pendingBytes);
+        buffer.putLong(OFFSET_ACK, HEADER_SIZE);
+    }
+
+    private boolean isValidOffset(long offset) {
+        return (offset >= HEADER_SIZE) && (offset <= capacityBytes) && ((offset - HEADER_SIZE) % RECORD_SIZE == 0);
+    }
+
+    private void writeString(int offset, String value) {
+        if (value == null) {
+            buffer.putShort(offset, (short) -1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);     // Already truncated by append()
+        buffer.putShort(offset, (short) bytes.length);
+        for (int i = 0; i < bytes.length; i++) buffer.put(offset + 2 + i, bytes[i]);
+    }
+
+    /**
+     * @return the longest prefix of the value that takes at most MAX_CREW_LENGTH bytes in UTF-8,
+     *         cut on a character boundary, so that it reads back equal after a reopen
+     */
+    static String truncate(String value) {
+        if (value == null) return null;
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_CREW_LENGTH) return value;
+        int length = MAX_CREW_LENGTH;
+        while ((length > 0) && ((bytes[length] & 0xC0) == 0x80)) length--;     // Not in the middle of a character
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private String readString(int offset) {
+        int length = buffer.getShort(offset);
+        if ((length < 0) || (length > MAX_CREW_LENGTH)) return null;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = buffer.get(offset + 2 + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean equals(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+}
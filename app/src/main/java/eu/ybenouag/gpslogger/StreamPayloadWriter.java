@@ -0,0 +1,410 @@
+package eu.ybenouag.gpslogger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The writer of the JSON bodies of the uploads.
+ * <p>
+ * It writes straight into a reusable byte buffer, one per thread, instead of building a JSONObject,
+ * converting it to a String and then to bytes:
+ * - the numbers and the ISO 8601 timestamps are formatted digit by digit, without intermediate Strings
+ *   and without SimpleDateFormat;
+ * - the constant prefix with the session and the crew identity ({"crewId":"...","crewName":"...","session":"...",
+ *   and {"crew_id":"...","session":"...",) is encoded once per session, and copied into every body.
+ * The coordinates are written with 7 decimals (~1 cm), without the trailing zeros.
+ * The body is valid until the next use of the writer on the same thread:
+ * send it with getBuffer() and size().
+ */
+class StreamPayloadWriter {
+
+    private static final int INITIAL_CAPACITY   = 1024;
+
+    private static final ThreadLocal<StreamPayloadWriter> writers = new ThreadLocal<StreamPayloadWriter>() {
+        @Override
+        protected StreamPayloadWriter initialValue() {
+            return new StreamPayloadWriter();
+        }
+    };
+
+    // The constant parts of the bodies
+    private static final byte[] FIXES_OPEN          = ascii("\"fixes\":[");
+    private static final byte[] LOCATIONS_OPEN      = ascii("\"locations\":[");
+    private static final byte[] LATITUDE            = ascii("\"latitude\":");
+    private static final byte[] LONGITUDE           = ascii(",\"longitude\":");
+    private static final byte[] TIMESTAMP           = ascii("\"timestamp\":\"");
+    private static final byte[] SEQUENCE            = ascii("\"sequence\":");
+    private static final byte[] TRACK_NUM           = ascii("\"track_num\":");
+    private static final byte[] ARRAY_CLOSE         = ascii("]}");
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int size;
+
+    // The prefixes of the current session
+    private long prefixSessionId;
+    private String sessionCrewId;
+    private String sessionCrewName;
+    private byte[] streamPrefix;                            // {"crewId":"...","crewName":"...","session":"...",
+    private byte[] dbPrefix;                                // {"crew_id":"...","session":"...",
+
+    /**
+     * @return the writer of the calling thread, emptied
+     */
+    static StreamPayloadWriter get() {
+        StreamPayloadWriter writer = writers.get();
+        writer.size = 0;
+        return writer;
+    }
+
+    /**
+     * @return the buffer that contains the body; only the first size() bytes are valid
+     */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // ------------------------------------------------------------------------- Bodies
+
+    /**
+     * Writes the body of a position for the live stream endpoint:
+     * {"crewId":"...","crewName":"...","session":"...","sequence":...,"timestamp":"...","latitude":...,"longitude":...}
+     */
+    StreamPayloadWriter writeLocation(long sessionId, String crewId, String crewName, StreamedFix fix) {
+        writeSessionPrefix(sessionId, crewId, crewName);
+        write(streamPrefix);
+        writeSequence(fix.sequence);
+        write(TIMESTAMP);
+        writeTimestamp(fix.time);
+        writeByte('"');
+        writeByte(',');
+        write(LATITUDE);
+        writeCoordinate(fix.latitude);
+        write(LONGITUDE);
+        writeCoordinate(fix.longitude);
+        writeByte('}');
+        return this;
+    }
+
+    /**
+     * Writes the body of a batch of positions for the live stream endpoint:
+     * {"crewId":"...","crewName":"...","session":"...","fixes":[{"sequence":...,"latitude":...,"longitude":...,"timestamp":"..."},...]}
+     */
+    StreamPayloadWriter writeLocations(long sessionId, String crewId, String crewName, List<StreamedFix> fixes) {
+        writeSessionPrefix(sessionId, crewId, crewName);
+        write(streamPrefix);
+        write(FIXES_OPEN);
+        for (int i = 0; i < fixes.size(); i++) {
+            StreamedFix fix = fixes.get(i);
+            if (i > 0) writeByte(',');
+            writeByte('{');
+            writeSequence(fix.sequence);
+            write(LATITUDE);
+            writeCoordinate(fix.latitude);
+            write(LONGITUDE);
+            writeCoordinate(fix.longitude);
+            writeByte(',');
+            write(TIMESTAMP);
+            writeTimestamp(fix.time);
+            writeByte('"');
+            writeByte('}');
+        }
+        write(ARRAY_CLOSE);
+        return this;
+    }
+
+    /**
+     * Writes the body of a position for the saveDebugData endpoint:
+     * {"crew_id":"...","session":"...","sequence":...,"track_num":...,"timestamp":"...","latitude":...,"longitude":...}
+     */
+    StreamPayloadWriter writeDebugData(long sessionId, String crewId, StreamedFix fix) {
+        writeSessionPrefix(sessionId, crewId, sessionCrewName);
+        write(dbPrefix);
+        writeSequence(fix.sequence);
+        write(TRACK_NUM);
+        writeLong(fix.trackNumber);
+        writeByte(',');
+        write(TIMESTAMP);
+        writeTimestamp(fix.time);
+        writeByte('"');
+        writeByte(',');
+        write(LATITUDE);
+        writeCoordinate(fix.latitude);
+        write(LONGITUDE);
+        writeCoordinate(fix.longitude);
+        writeByte('}');
+        return this;
+    }
+
+    /**
+     * Writes the body of a batch of positions for the saveDebugData endpoint:
+     * {"crew_id":"...","session":"...","locations":[{"sequence":...,"track_num":...,"timestamp":"...","latitude":...,"longitude":...},...]}
+     */
+    StreamPayloadWriter writeDebugDataBatch(long sessionId, String crewId, List<StreamedFix> fixes) {
+        writeSessionPrefix(sessionId, crewId, sessionCrewName);
+        write(dbPrefix);
+        write(LOCATIONS_OPEN);
+        for (int i = 0; i < fixes.size(); i++) {
+            StreamedFix fix = fixes.get(i);
+            if (i > 0) writeByte(',');
+            writeByte('{');
+            writeSequence(fix.sequence);
+            write(TRACK_NUM);
+            writeLong(fix.trackNumber);
+            writeByte(',');
+            write(TIMESTAMP);
+            writeTimestamp(fix.time);
+            writeByte('"');
+            writeByte(',');
+            write(LATITUDE);
+            writeCoordinate(fix.latitude);
+            write(LONGITUDE);
+            writeCoordinate(fix.longitude);
+            writeByte('}');
+        }
+        write(ARRAY_CLOSE);
+        return this;
+    }
+
+    /**
+     * Writes the body of the combined ingest endpoint:
+     * {"crewId":"...","crewName":"...","session":"...","fixes":[{"sequence":...,"timestamp":"...","latitude":...,"longitude":...,"track_num":...},...]}
+     */
+    StreamPayloadWriter writeIngest(long sessionId, String crewId, String crewName, List<StreamedFix> fixes) {
+        writeSessionPrefix(sessionId, crewId, crewName);
+        write(streamPrefix);
+        write(FIXES_OPEN);
+        for (int i = 0; i < fixes.size(); i++) {
+            StreamedFix fix = fixes.get(i);
+            if (i > 0) writeByte(',');
+            writeByte('{');
+            writeSequence(fix.sequence);
+            write(TIMESTAMP);
+            writeTimestamp(fix.time);
+            writeByte('"');
+            writeByte(',');
+            write(LATITUDE);
+            writeCoordinate(fix.latitude);
+            write(LONGITUDE);
+            writeCoordinate(fix.longitude);
+            writeByte(',');
+            write(TRACK_NUM);
+            writeLong(fix.trackNumber);
+            writeByte('}');
+        }
+        write(ARRAY_CLOSE);
+        return this;
+    }
+
+    /**
+     * Writes the "sequence" member of a fix, followed by a comma.
+     */
+    private void writeSequence(long sequence) {
+        write(SEQUENCE);
+        writeLong(sequence);
+        writeByte(',');
+    }
+
+    // ------------------------------------------------------------------------- Session prefixes
+
+    /**
+     * Encodes the prefixes with the session and the crew identity, if they changed since the previous body.
+     * The session id is written as a hexadecimal string, since it doesn't fit into the numbers of JavaScript;
+     * it is omitted if 0.
+     */
+    private void writeSessionPrefix(long sessionId, String crewId, String crewName) {
+        if ((streamPrefix != null) && (sessionId == prefixSessionId) && equals(crewId, sessionCrewId) && equals(crewName, sessionCrewName)) return;
+        prefixSessionId = sessionId;
+        sessionCrewId = crewId;
+        sessionCrewName = crewName;
+        String session = sessionId != 0 ? String.format(Locale.US, "\"session\":\"%016x\",", sessionId) : "";
+        int mark = size;
+        writeByte('{');
+        writeAscii("\"crewId\":");
+        writeJsonString(crewId);
+        writeAscii(",\"crewName\":");
+        writeJsonString(crewName);
+        writeByte(',');
+        writeAscii(session);
+        streamPrefix = copy(mark);
+        size = mark;
+        writeByte('{');
+        writeAscii("\"crew_id\":");
+        writeJsonString(crewId);
+        writeByte(',');
+        writeAscii(session);
+        dbPrefix = copy(mark);
+        size = mark;
+    }
+
+    private byte[] copy(int from) {
+        byte[] bytes = new byte[size - from];
+        System.arraycopy(buffer, from, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    // ------------------------------------------------------------------------- Values
+
+    /**
+     * Writes a coordinate with 7 decimals, without the trailing zeros.
+     */
+    void writeCoordinate(double degrees) {
+        long units = Math.round(Math.abs(degrees) * 1e7);
+        if ((degrees < 0) && (units != 0)) writeByte('-');
+        writeLong(units / 10000000L);
+        long decimals = units % 10000000L;
+        if (decimals == 0) return;
+        int digits = 7;
+        while (decimals % 10 == 0) {
+            decimals /= 10;
+            digits--;
+        }
+        writeByte('.');
+        ensureCapacity(digits);
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[size + i] = (byte) ('0' + decimals % 10);
+            decimals /= 10;
+        }
+        size += digits;
+    }
+
+    /**
+     * Writes a long integer in decimal notation.
+     */
+    void writeLong(long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                writeAscii("-9223372036854775808");
+                return;
+            }
+            writeByte('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10) digits++;
+        ensureCapacity(digits);
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[size + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+    }
+
+    /**
+     * Writes a time as ISO 8601 UTC timestamp: yyyy-MM-ddTHH:mm:ss.SSSZ, the same format for all the bodies.
+     * The years must be in the range 0000..9999.
+     *
+     * @param time the time, in milliseconds since epoch
+     */
+    void writeTimestamp(long time) {
+        long days = time / 86400000L;
+        long millisOfDay = time % 86400000L;
+        if (millisOfDay < 0) {
+            millisOfDay += 86400000L;
+            days--;
+        }
+        // The civil date from the days since epoch (proleptic Gregorian calendar)
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        int seconds = (int) (millisOfDay / 1000);
+        ensureCapacity(24);
+        writeDigits(year, 4);
+        buffer[size++] = '-';
+        writeDigits(month, 2);
+        buffer[size++] = '-';
+        writeDigits(day, 2);
+        buffer[size++] = 'T';
+        writeDigits(seconds / 3600, 2);
+        buffer[size++] = ':';
+        writeDigits((seconds / 60) % 60, 2);
+        buffer[size++] = ':';
+        writeDigits(seconds % 60, 2);
+        buffer[size++] = '.';
+        writeDigits((int) (millisOfDay % 1000), 3);
+        buffer[size++] = 'Z';
+    }
+
+    /**
+     * Writes a JSON string, with quotes and escapes; null is written as null.
+     */
+    void writeJsonString(String value) {
+        if (value == null) {
+            writeAscii("null");
+            return;
+        }
+        writeByte('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                writeByte('\\');
+                writeByte(c);
+            } else if (c < 0x20) {
+                writeAscii("\\u00");
+                writeByte(Character.forDigit(c >> 4, 16));
+                writeByte(Character.forDigit(c & 0xF, 16));
+            } else if (c < 0x80) {
+                writeByte(c);
+            } else {
+                // Non-ASCII: rare (crew names are encoded once per session)
+                int end = i + 1;
+                if (Character.isHighSurrogate(c) && (end < value.length())) end++;
+                write(value.substring(i, end).getBytes(StandardCharsets.UTF_8));
+                i = end - 1;
+            }
+        }
+        writeByte('"');
+    }
+
+    // ------------------------------------------------------------------------- Bytes
+
+    private void writeDigits(int value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[size + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+    }
+
+    private void writeAscii(String value) {
+        ensureCapacity(value.length());
+        for (int i = 0; i < value.length(); i++) buffer[size++] = (byte) value.charAt(i);
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (size + additional <= buffer.length) return;
+        byte[] newBuffer = new byte[Math.max(buffer.length * 2, size + additional)];
+        System.arraycopy(buffer, 0, newBuffer, 0, size);
+        buffer = newBuffer;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static boolean equals(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+}
@@ -0,0 +1,139 @@
+package eu.ybenouag.gpslogger;
+
+import static eu.ybenouag.gpslogger.GPSApplication.NOT_AVAILABLE;
+
+/**
+ * A small pull parser for the replies of the upload endpoints, like {"status":1}.
+ * <p>
+ * The uploads only need the status field: the parser scans the bytes of the top level object
+ * and reads it, skipping all the other values (also nested objects and arrays),
+ * without building a tree of objects and Strings.
+ */
+class StreamReplyParser {
+
+    private static final byte[] STATUS = { 's', 't', 'a', 't', 'u', 's' };
+
+    private final byte[] data;
+    private final int length;
+    private int position;
+
+    private StreamReplyParser(byte[] data, int length) {
+        this.data = data;
+        this.length = length;
+    }
+
+    /**
+     * @param data the body of the reply (JSON, UTF-8)
+     * @return the integer value of the top level "status" field,
+     *         or NOT_AVAILABLE if missing, not integer or if the reply is malformed
+     */
+    static long parseStatus(byte[] data) {
+        return new StreamReplyParser(data, data.length).readStatus();
+    }
+
+    private long readStatus() {
+        skipWhitespaces();
+        if (!consume('{')) return NOT_AVAILABLE;
+        skipWhitespaces();
+        if (consume('}')) return NOT_AVAILABLE;
+        while (position < length) {
+            skipWhitespaces();
+            if ((position >= length) || (data[position] != '"')) return NOT_AVAILABLE;
+            boolean isStatus = isKey(STATUS);
+            if (!skipString()) return NOT_AVAILABLE;
+            skipWhitespaces();
+            if (!consume(':')) return NOT_AVAILABLE;
+            skipWhitespaces();
+            if (isStatus) return readLong();
+            if (!skipValue()) return NOT_AVAILABLE;
+            skipWhitespaces();
+            if (consume('}')) return NOT_AVAILABLE;
+            if (!consume(',')) return NOT_AVAILABLE;
+        }
+        return NOT_AVAILABLE;
+    }
+
+    /**
+     * @return true if the string at the current position (quotes excluded) equals the given key
+     */
+    private boolean isKey(byte[] key) {
+        int start = position + 1;
+        if (start + key.length >= length) return false;
+        for (int i = 0; i < key.length; i++) {
+            if (data[start + i] != key[i]) return false;
+        }
+        return data[start + key.length] == '"';
+    }
+
+    private long readLong() {
+        boolean negative = consume('-');
+        int start = position;
+        long value = 0;
+        while ((position < length) && (data[position] >= '0') && (data[position] <= '9')) {
+            value = value * 10 + (data[position++] - '0');
+        }
+        if ((position == start) || (position - start > 18)) return NOT_AVAILABLE;
+        if ((position < length) && ((data[position] == '.') || (data[position] == 'e') || (data[position] == 'E'))) {
+            return NOT_AVAILABLE;                           // Not an integer
+        }
+        return negative ? -value : value;
+    }
+
+    private boolean skipValue() {
+        if (position >= length) return false;
+        byte b = data[position];
+        if (b == '"') return skipString();
+        if ((b == '{') || (b == '[')) return skipContainer();
+        // Number or literal (true, false, null)
+        int start = position;
+        while ((position < length) && (data[position] != ',') && (data[position] != '}') && (data[position] != ']')
+                && !isWhitespace(data[position])) {
+            position++;
+        }
+        return position > start;
+    }
+
+    private boolean skipContainer() {
+        int depth = 0;
+        while (position < length) {
+            byte b = data[position];
+            if (b == '"') {
+                if (!skipString()) return false;
+                continue;
+            }
+            position++;
+            if ((b == '{') || (b == '[')) depth++;
+            else if ((b == '}') || (b == ']')) {
+                depth--;
+                if (depth == 0) return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean skipString() {
+        position++;                                         // The opening quote
+        while (position < length) {
+            byte b = data[position++];
+            if (b == '\\') position++;
+            else if (b == '"') return true;
+        }
+        return false;
+    }
+
+    private boolean consume(char c) {
+        if ((position < length) && (data[position] == c)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespaces() {
+        while ((position < length) && isWhitespace(data[position])) position++;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return (b == ' ') || (b == '\t') || (b == '\n') || (b == '\r');
+    }
+}
@@ -0,0 +1,205 @@
+package eu.ybenouag.gpslogger;
+
+import static eu.ybenouag.gpslogger.GPSApplication.NOT_AVAILABLE;
+
+/**
+ * Decides which of the recorded fixes the Bumps Viewer server actually needs.
+ * <p>
+ * The fixes are classified by speed:
+ * - stationary (below the stationary speed): only a heartbeat is uploaded, at a low rate,
+ *   for example when the boat is sitting at the bank between the divisions;
+ * - racing (above the racing speed): all the fixes are uploaded;
+ * - moving (in between): the track is simplified online. A fix is uploaded if the course changed
+ *   more than the bearing threshold, or if it is farther than the tolerance from the line predicted
+ *   by the last two uploaded fixes (dead reckoning), or if the max interval elapsed.
+ * The first fix of every track is always uploaded.
+ * The minimum interval between two uploads asked by the server (see StreamChannel) is not applied here:
+ * it only paces the sending of the outbox (see StreamLocationManager), without discarding fixes.
+ * <p>
+ * A fix that is not uploaded is not saved on the server either: the stream and the debug data
+ * are sent together (see StreamLocationManager). So the policy thins the track stored by the server,
+ * and it is applied only if enabled by the user; when disabled every fix is uploaded.
+ * <p>
+ * The counters of evaluated and uploaded fixes give the reduction ratio of the uploads.
+ */
+class StreamUploadPolicy {
+
+    static final float DEFAULT_STATIONARY_SPEED     = 0.5f;     // The speed (m/s) below which the boat is stationary
+    static final float DEFAULT_RACING_SPEED         = 3.0f;     // The speed (m/s) above which all the fixes are uploaded
+    static final long  DEFAULT_HEARTBEAT_INTERVAL   = 30000;    // The upload interval (ms) when stationary
+    static final long  DEFAULT_MAX_INTERVAL         = 5000;     // The maximum interval (ms) between two uploads when moving
+    static final float DEFAULT_BEARING_THRESHOLD    = 15f;      // The course change (degrees) that triggers an upload
+    static final float DEFAULT_TOLERANCE            = 5f;       // The deviation (m) from the predicted line that triggers an upload
+
+    private static final double EARTH_RADIUS        = 6371009;  // The mean radius of the Earth, in meters
+
+    private boolean enabled             = false;                // If false all the fixes are uploaded
+    private float stationarySpeed       = DEFAULT_STATIONARY_SPEED;
+    private float racingSpeed           = DEFAULT_RACING_SPEED;
+    private long  heartbeatInterval     = DEFAULT_HEARTBEAT_INTERVAL;
+    private long  maxInterval           = DEFAULT_MAX_INTERVAL;
+    private float bearingThreshold      = DEFAULT_BEARING_THRESHOLD;
+    private float tolerance             = DEFAULT_TOLERANCE;
+
+    // The last two uploaded fixes
+    private int    lastTrackNumber      = NOT_AVAILABLE;
+    private long   lastTime             = NOT_AVAILABLE;
+    private double lastLatitude;
+    private double lastLongitude;
+    private float  lastBearing          = NOT_AVAILABLE;
+    private long   prevTime             = NOT_AVAILABLE;
+    private double prevLatitude;
+    private double prevLongitude;
+
+    // Counters
+    private long evaluatedFixes;                                // The fixes evaluated by the policy
+    private long uploadedFixes;                                 // The fixes accepted for the upload
+    private long heartbeats;                                    // The fixes uploaded as stationary heartbeat
+
+    /**
+     * Sets the thresholds of the policy.
+     *
+     * @param enabled false to upload all the fixes
+     * @param stationarySpeed the speed, in m/s, below which the boat is stationary
+     * @param racingSpeed the speed, in m/s, above which all the fixes are uploaded
+     * @param heartbeatInterval the upload interval, in milliseconds, when stationary
+     * @param maxInterval the maximum interval, in milliseconds, between two uploads when moving
+     * @param bearingThreshold the course change, in degrees, that triggers an upload
+     * @param tolerance the deviation, in meters, from the predicted line that triggers an upload
+     */
+    synchronized void configure(boolean enabled, float stationarySpeed, float racingSpeed, long heartbeatInterval,
+                                long maxInterval, float bearingThreshold, float tolerance) {
+        this.enabled = enabled;
+        this.stationarySpeed = Math.max(0, stationarySpeed);
+        this.racingSpeed = Math.max(this.stationarySpeed, racingSpeed);
+        this.heartbeatInterval = Math.max(0, heartbeatInterval);
+        this.maxInterval = Math.max(0, maxInterval);
+        this.bearingThreshold = Math.max(0, bearingThreshold);
+        this.tolerance = Math.max(0, tolerance);
+    }
+
+    synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Evaluates a fix.
+     *
+     * @param time the time of the fix, in milliseconds
+     * @param latitude the latitude of the fix
+     * @param longitude the longitude of the fix
+     * @param speed the speed, in m/s, or NOT_AVAILABLE
+     * @param bearing the bearing, in degrees, or NOT_AVAILABLE
+     * @param trackNumber the number of the track
+     * @return true if the fix must be uploaded
+     */
+    synchronized boolean shouldUpload(long time, double latitude, double longitude, float speed, float bearing, int trackNumber) {
+        evaluatedFixes++;
+        if ((lastTime == NOT_AVAILABLE) || (trackNumber != lastTrackNumber) || (time < lastTime)) {
+            accept(time, latitude, longitude, bearing, trackNumber);
+            return true;
+        }
+        long elapsed = time - lastTime;
+        if (!enabled) {
+            accept(time, latitude, longitude, bearing, trackNumber);
+            return true;
+        }
+        if (speed == NOT_AVAILABLE) {
+            // Estimates the speed from the last uploaded fix
+            speed = (elapsed > 0) ? (float) (distance(lastLatitude, lastLongitude, latitude, longitude) * 1000 / elapsed) : 0;
+        }
+
+        boolean upload;
+        if (speed < stationarySpeed) {
+            upload = elapsed >= heartbeatInterval;
+            if (upload) heartbeats++;
+        } else if (speed >= racingSpeed) {
+            upload = true;
+        } else {
+            upload = (elapsed >= maxInterval)
+                    || ((bearing != NOT_AVAILABLE) && (lastBearing != NOT_AVAILABLE)
+                        && (Math.abs(angleDifference(bearing, lastBearing)) >= bearingThreshold))
+                    || (crossTrackDistance(latitude, longitude) > tolerance);
+        }
+        if (upload) accept(time, latitude, longitude, bearing, trackNumber);
+        return upload;
+    }
+
+    /**
+     * Forgets the uploaded fixes: the next fix will be uploaded.
+     */
+    synchronized void reset() {
+        lastTime = NOT_AVAILABLE;
+        prevTime = NOT_AVAILABLE;
+        lastBearing = NOT_AVAILABLE;
+        lastTrackNumber = NOT_AVAILABLE;
+    }
+
+    private void accept(long time, double latitude, double longitude, float bearing, int trackNumber) {
+        uploadedFixes++;
+        if (trackNumber == lastTrackNumber) {
+            prevTime = lastTime;
+            prevLatitude = lastLatitude;
+            prevLongitude = lastLongitude;
+        } else prevTime = NOT_AVAILABLE;
+        lastTrackNumber = trackNumber;
+        lastTime = time;
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+        lastBearing = bearing;
+    }
+
+    /**
+     * @return the distance, in meters, of the given position from the position predicted
+     *         by the last two uploaded fixes, or 0 if the prediction is not possible
+     */
+    private double crossTrackDistance(double latitude, double longitude) {
+        if ((prevTime == NOT_AVAILABLE) || (lastTime == prevTime)) return 0;
+        // Local equirectangular projection around the last uploaded fix, in meters
+        double cosLatitude = Math.cos(Math.toRadians(lastLatitude));
+        double ax = Math.toRadians(prevLongitude - lastLongitude) * cosLatitude * EARTH_RADIUS;
+        double ay = Math.toRadians(prevLatitude - lastLatitude) * EARTH_RADIUS;
+        double px = Math.toRadians(longitude - lastLongitude) * cosLatitude * EARTH_RADIUS;
+        double py = Math.toRadians(latitude - lastLatitude) * EARTH_RADIUS;
+        double length = Math.hypot(ax, ay);
+        if (length < 0.01) return Math.hypot(px, py);
+        return Math.abs(ax * py - ay * px) / length;            // The distance from the line through the last two fixes
+    }
+
+    private static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double x = Math.toRadians(longitude2 - longitude1) * Math.cos(Math.toRadians((latitude1 + latitude2) / 2));
+        double y = Math.toRadians(latitude2 - latitude1);
+        return Math.hypot(x, y) * EARTH_RADIUS;
+    }
+
+    /**
+     * @return the difference between two angles, in degrees, in the range [-180, 180)
+     */
+    private static float angleDifference(float a, float b) {
+        float difference = (a - b) % 360;
+        if (difference < -180) difference += 360;
+        else if (difference >= 180) difference -= 360;
+        return difference;
+    }
+
+    // ------------------------------------------------------------------------- Counters
+
+    synchronized long getEvaluatedFixes() {
+        return evaluatedFixes;
+    }
+
+    synchronized long getUploadedFixes() {
+        return uploadedFixes;
+    }
+
+    synchronized long getHeartbeats() {
+        return heartbeats;
+    }
+
+    /**
+     * @return the fraction of the evaluated fixes that has not been uploaded (0 = no reduction)
+     */
+    synchronized float getReductionRatio() {
+        return (evaluatedFixes == 0) ? 0 : 1f - (float) uploadedFixes / evaluatedFixes;
+    }
+}
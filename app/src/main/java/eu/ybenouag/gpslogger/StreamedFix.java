@@ -0,0 +1,21 @@
+package eu.ybenouag.gpslogger;
+
+/**
+ * A position handed off to the live streaming, together with the time
+ * of the fix and the number of the track it belongs to.
+ */
+class StreamedFix {
+    final long sequence;            // The sequence number assigned by the StreamOutbox
+    final long time;                // The time of the fix, in milliseconds since epoch (UTC)
+    final double latitude;
+    final double longitude;
+    final int trackNumber;
+
+    StreamedFix(long sequence, long time, double latitude, double longitude, int trackNumber) {
+        this.sequence = sequence;
+        this.time = time;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.trackNumber = trackNumber;
+    }
+}
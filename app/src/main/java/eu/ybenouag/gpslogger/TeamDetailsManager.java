@@ -8,7 +8,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
 
-public class TeamDetailsManager {
+public class TeamDetailsManager implements StreamLocationManager.CrewSource {
 
     private static TeamDetailsManager singleton;
 
@@ -22,27 +22,36 @@ public class TeamDetailsManager {
     private String division;
 
     private BumpsViewerDBHandler dbBumpsViewerDBHandler;
+    private volatile UploadTransport transport;
 
     private ArrayList<String> divisionList;
 
-    public TeamDetailsManager() throws IOException, ExecutionException, InterruptedException {
+    public TeamDetailsManager(UploadTransport transport) throws IOException, ExecutionException, InterruptedException {
         singleton = this;
+        this.transport = transport;
         this.updateDivisionList();
     }
 
+    /**
+     * Sets the transport of the requests, for example to a local stand-in of the server.
+     */
+    public void setTransport(UploadTransport transport) {
+        this.transport = transport;
+    }
+
     public ArrayList<String> getDivisionList() {
         return divisionList;
     }
 
     public void updateDivisionList() throws ExecutionException, InterruptedException {
-        this.dbBumpsViewerDBHandler = new BumpsViewerDBHandler();
+        this.dbBumpsViewerDBHandler = new BumpsViewerDBHandler(transport);
         JSONArray divisionList = (JSONArray) this.dbBumpsViewerDBHandler.execute("getDivisions", null).get();
         String[] divisionArray = (String[]) divisionList.toArray(new String[0]);
         this.divisionList = new ArrayList<>(Arrays.asList(divisionArray));
     }
 
     public boolean validateTeamInfo(String teamName, String division) throws ExecutionException, InterruptedException {
-        this.dbBumpsViewerDBHandler = new BumpsViewerDBHandler();
+        this.dbBumpsViewerDBHandler = new BumpsViewerDBHandler(transport);
         JSONObject team = (JSONObject) this.dbBumpsViewerDBHandler.execute("validateTeamInfo", teamName, division).get();
         if (!team.isEmpty()) {
             this.updateTeamInfo(team);
@@ -138,26 +138,28 @@ public class Track {
     // - Max Acceleration = 12 m/s^2
     // - Stabilization time = 4 s
     private final SpikesChecker altitudeFilter = new SpikesChecker(12, 4);
+    private final float[] distanceResults = new float[1];      // The distance computed by add()
 
     /**
-     * Add a LocationExtended to the Track, and updates the Track statistics.
+     * Add a FixRecord to the Track, and updates the Track statistics.
+     * It doesn't allocate anything, except for the name of a new Track.
      *
      * @param location the location to be added to the Track
      */
-    public void add(LocationExtended location) {
+    void add(FixRecord location) {
         if (numberOfLocations == 0) {
             // Init "Start" variables
-            latitudeStart = location.getLocation().getLatitude();
-            longitudeStart = location.getLocation().getLongitude();
-            if (location.getLocation().hasAltitude()) {
-                altitudeStart = location.getLocation().getAltitude();
+            latitudeStart = location.getLatitude();
+            longitudeStart = location.getLongitude();
+            if (location.hasAltitude()) {
+                altitudeStart = location.getAltitude();
             } else {
                 altitudeStart = NOT_AVAILABLE;
             }
             egmAltitudeCorrectionStart = location.getAltitudeEGM96Correction();
-            speedStart = location.getLocation().hasSpeed() ? location.getLocation().getSpeed() : NOT_AVAILABLE;
-            accuracyStart = location.getLocation().hasAccuracy() ? location.getLocation().getAccuracy() : STANDARD_ACCURACY;
-            timeStart = location.getLocation().getTime();
+            speedStart = location.getSpeed();
+            accuracyStart = location.hasAccuracy() ? location.getAccuracy() : STANDARD_ACCURACY;
+            timeStart = location.getTime();
 
             latitudeLastStepDistance = latitudeStart;
             longitudeLastStepDistance = longitudeStart;
@@ -183,18 +185,18 @@ public class Track {
 
         timeLastFix = timeEnd;
 
-        latitudeEnd = location.getLocation().getLatitude();
-        longitudeEnd = location.getLocation().getLongitude();
-        if (location.getLocation().hasAltitude()) {
-            altitudeEnd = location.getLocation().getAltitude();
+        latitudeEnd = location.getLatitude();
+        longitudeEnd = location.getLongitude();
+        if (location.hasAltitude()) {
+            altitudeEnd = location.getAltitude();
         } else {
             altitudeEnd = NOT_AVAILABLE;
         }
         egmAltitudeCorrectionEnd = location.getAltitudeEGM96Correction();
 
-        speedEnd = location.getLocation().hasSpeed() ? location.getLocation().getSpeed() : NOT_AVAILABLE;
-        accuracyEnd = location.getLocation().hasAccuracy() ? location.getLocation().getAccuracy() : STANDARD_ACCURACY;
-        timeEnd = location.getLocation().getTime();
+        speedEnd = location.getSpeed();
+        accuracyEnd = location.hasAccuracy() ? location.getAccuracy() : STANDARD_ACCURACY;
+        timeEnd = location.getTime();
 
         if (egmAltitudeCorrectionEnd == NOT_AVAILABLE) getEGMAltitudeCorrectionEnd();
         if (egmAltitudeCorrectionStart == NOT_AVAILABLE) getEGMAltitudeCorrectionStart();
@@ -222,17 +224,9 @@ public class Track {
 
         // --------------------------- Spaces (Distances) increment if distance > sum of accuracies
 
-        // -- Temp locations for "DistanceTo"
-        Location LastStepDistanceLoc = new Location("TEMP");
-        LastStepDistanceLoc.setLatitude(latitudeLastStepDistance);
-        LastStepDistanceLoc.setLongitude(longitudeLastStepDistance);
-
-        Location EndLoc = new Location("TEMP");
-        EndLoc.setLatitude(latitudeEnd);
-        EndLoc.setLongitude(longitudeEnd);
-        // -----------------------------------
-
-        distanceInProgress = LastStepDistanceLoc.distanceTo(EndLoc);
+        // -- As Location.distanceTo(), without temp locations
+        Location.distanceBetween(latitudeLastStepDistance, longitudeLastStepDistance, latitudeEnd, longitudeEnd, distanceResults);
+        distanceInProgress = distanceResults[0];
         float DeltaDistancePlusAccuracy = distanceInProgress + accuracyEnd;
 
         if (DeltaDistancePlusAccuracy < distanceInProgress + accuracyEnd) {
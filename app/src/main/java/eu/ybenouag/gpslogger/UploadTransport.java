@@ -0,0 +1,44 @@
+package eu.ybenouag.gpslogger;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * The transport of the requests to the Bumps Viewer server, used by the
+ * BumpsViewerStreamHandler and the BumpsViewerDBHandler on behalf of the
+ * StreamLocationManager and the TeamDetailsManager.
+ * <p>
+ * The requests are addressed by path (for example "/db/location"): the transport decides
+ * where and how they are sent. The HttpUploadTransport sends them to the production server,
+ * or to a local stand-in (see BumpsViewerLocalServer in the test sources) for the offline
+ * measurements of the throughput and the latency of the client stack.
+ * The implementations are used by several threads at the same time.
+ */
+public interface UploadTransport {
+
+    /**
+     * Executes a GET request.
+     *
+     * @param path the path of the request
+     * @return the reply of the server
+     * @throws IOException in case of network error
+     */
+    BumpsViewerHttpClient.Response get(String path) throws IOException;
+
+    /**
+     * Executes a POST request, whose body is the first bodyLength bytes of the given array.
+     *
+     * @param path the path of the request
+     * @param contentType the content type of the body
+     * @param body the buffer that contains the body
+     * @param bodyLength the length of the body in the buffer
+     * @return the reply of the server
+     * @throws IOException in case of network error
+     */
+    BumpsViewerHttpClient.Response post(String path, String contentType, byte[] body, int bodyLength) throws IOException;
+
+    /**
+     * @return the server reached by the transport, for the logs
+     */
+    URI getEndPoint();
+}
@@ -0,0 +1,48 @@
+package android.util;
+
+/**
+ * The android.util.Log of the unit tests and of the tools of the test source set.
+ * <p>
+ * The android.jar of the unit tests throws from every method, and the tests don't mask it
+ * with testOptions.unitTests.returnDefaultValues: this class, earlier on the classpath,
+ * replaces it and prints the messages to the standard error, as logcat would show them.
+ */
+public final class Log {
+
+    private Log() {}
+
+    public static int d(String tag, String msg) {
+        return print("D", tag, msg, null);
+    }
+
+    public static int i(String tag, String msg) {
+        return print("I", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg) {
+        return print("W", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return print("W", tag, msg, tr);
+    }
+
+    public static int w(String tag, Throwable tr) {
+        return print("W", tag, "", tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return print("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return print("E", tag, msg, tr);
+    }
+
+    private static int print(String priority, String tag, String msg, Throwable tr) {
+        String line = priority + "/" + tag + ": " + msg;
+        System.err.println(line);
+        if (tr != null) tr.printStackTrace();
+        return line.length();
+    }
+}
@@ -0,0 +1,430 @@
+package eu.ybenouag.gpslogger;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Measures the cost of the task queue of the AsyncUpdateThread of GPSApplication, per fix:
+ * - the dispatch alone, over a prebuilt sequence of tasks, comparing the String types of the
+ *   previous model with the int opcodes dispatched by a switch;
+ * - the hand-off on a single thread (add, take, dispatch), with the bytes allocated per fix:
+ *   a new String task into a LinkedBlockingQueue, as in the previous model, then with the
+ *   conflation of the fix updates, a new task into a LinkedBlockingQueue, as before the ring,
+ *   and the AsyncTODOQueue;
+ * - the throughput between two threads, the producer adding as fast as it can;
+ * - the wake-up latency of the consumer, between add() and the return of take(), with the fixes
+ *   spaced out as in the recording;
+ * for the LinkedBlockingQueue and for every wait strategy of the AsyncTODOQueue.
+ * The fixes arrive at 10 Hz and one every ten is recorded (prefGPSinterval = 1 s): 9 TASK_UPDATEFIX
+ * for every TASK_ADDLOCATION. The queues before the ring share a FixRecord, in order to measure only
+ * the tasks; the AsyncTODOQueue, that recycles the fixes it replaces, takes them from the pool, and the
+ * consumer recycles the ones it takes, as the AsyncUpdateThread does.
+ * (In the throughput between two threads the producer, much faster than the consumer, empties the
+ * pool: the records in flight into the ring are allocated. At 10 Hz the pool is never empty.)
+ * <p>
+ * First it checks the conflation and the order of the AsyncTODOQueue, with a consumer slower
+ * than the fixes, for every wait strategy and overflow policy: all the TASK_ADDLOCATIONs are
+ * executed in order, and the last fix update is the newest fix.
+ * <p>
+ * JMH is not part of the build: this is a plain harness, with a round of warm up.
+ * Run main() from the IDE (unit test classpath).
+ */
+public class AsyncTODOBenchmark {
+
+    private static final int FIXES              = 2000000;  // The fixes per round
+    private static final int ROUNDS             = 3;        // The measured rounds (after one of warm up)
+    private static final int RATE               = 10;       // The fixes per second
+    private static final int BURST              = RATE;     // The fixes queued before the consumer takes them (1 s)
+    private static final int TASKS_PER_BURST    = 2;        // The tasks of a burst after the conflation: a location and an update
+    private static final int BACKLOG_FIXES      = 20000;    // The fixes sent by the check of the conflation
+    private static final long UPDATE_COST       = 50000;    // The simulated cost (ns) of a task of the consumer
+    private static final int SMALL_CAPACITY     = 16;       // The ring of the checks of the overflow
+    private static final int LATENCY_SAMPLES    = 5000;     // The fixes of the measure of the wake-up latency
+    private static final long LATENCY_SPACING   = 100000;   // The time (ns) between two of them
+
+    // The previous model of the tasks
+    private static final String TASK_SHUTDOWN       = "TASK_SHUTDOWN";
+    private static final String TASK_NEWTRACK       = "TASK_NEWTRACK";
+    private static final String TASK_ADDLOCATION    = "TASK_ADDLOCATION";
+    private static final String TASK_UPDATEFIX      = "TASK_UPDATEFIX";
+
+    private static final String[] WAIT_NAMES = { "blocking", "parking", "spinning" };
+    private static final String[] OVERFLOW_NAMES = { "spill", "block", "drop" };
+
+    private static class LegacyTODO {
+        String taskType;
+        FixRecord location;
+    }
+
+    /**
+     * The queue before the ring: a new task for every fix, into a LinkedBlockingQueue,
+     * with the conflation guarded by a monitor.
+     */
+    private static class LinkedTODOQueue {
+        private final BlockingQueue<AsyncTODO> queue = new LinkedBlockingQueue<>();
+        private AsyncTODO pendingUpdateFix;
+
+        void add(int taskType, FixRecord location) {
+            AsyncTODO task = new AsyncTODO(taskType, location);
+            synchronized (this) {
+                if (taskType == AsyncTODO.TASK_UPDATEFIX) {
+                    if (pendingUpdateFix != null) {
+                        pendingUpdateFix.location = location;
+                        return;
+                    }
+                    pendingUpdateFix = task;
+                } else {
+                    if ((taskType == AsyncTODO.TASK_ADDLOCATION) && (pendingUpdateFix != null)) pendingUpdateFix.location = null;
+                    pendingUpdateFix = null;
+                }
+                queue.add(task);
+            }
+        }
+
+        AsyncTODO take() throws InterruptedException {
+            while (true) {
+                AsyncTODO task = queue.take();
+                synchronized (this) {
+                    if (task == pendingUpdateFix) pendingUpdateFix = null;
+                    if ((task.taskType != AsyncTODO.TASK_UPDATEFIX) || (task.location != null)) return task;
+                }
+            }
+        }
+    }
+
+    private static final FixRecord LOCATION = new FixRecord().set(new FixRecordTest.PlainLocation("gps"), GPSApplication.NOT_AVAILABLE, GPSApplication.NOT_AVAILABLE);
+
+    private static long added;                              // The tasks executed, by type
+    private static long updated;
+    private static long other;
+
+    public static void main(String[] args) throws Exception {
+        checkCoalescing(AsyncTODOQueue.DEFAULT_CAPACITY, AsyncTODOQueue.WAIT_BLOCKING, AsyncTODOQueue.OVERFLOW_SPILL);
+        checkCoalescing(SMALL_CAPACITY, AsyncTODOQueue.WAIT_BLOCKING, AsyncTODOQueue.OVERFLOW_SPILL);
+        checkCoalescing(SMALL_CAPACITY, AsyncTODOQueue.WAIT_PARKING, AsyncTODOQueue.OVERFLOW_SPILL);
+        checkCoalescing(SMALL_CAPACITY, AsyncTODOQueue.WAIT_SPINNING, AsyncTODOQueue.OVERFLOW_BLOCK);
+        checkCoalescing(SMALL_CAPACITY, AsyncTODOQueue.WAIT_PARKING, AsyncTODOQueue.OVERFLOW_BLOCK);
+        checkDrop();
+
+        System.out.println();
+        System.out.println(String.format(Locale.US, "%-52s %10s %12s", "Single thread, per fix (" + RATE + " Hz, 1 recorded every " + RATE + ")",
+                "ns/fix", "bytes/fix"));
+        for (int round = 0; round <= ROUNDS; round++) {
+            long legacyDispatch = measureLegacyDispatch();
+            long typedDispatch = measureTypedDispatch();
+            long[] legacyHandOff = measureLegacyHandOff();
+            long[] linkedHandOff = measureLinkedHandOff();
+            long[] ringHandOff = measureRingHandOff();
+            if (round == ROUNDS) {
+                print("dispatch, String types", legacyDispatch, -1);
+                print("dispatch, int opcodes + switch", typedDispatch, -1);
+                print("hand-off, new String task + LinkedBlockingQueue", legacyHandOff[0], legacyHandOff[1]);
+                print("hand-off, new task + LinkedBlockingQueue, coalesced", linkedHandOff[0], linkedHandOff[1]);
+                print("hand-off, AsyncTODOQueue ring, coalesced", ringHandOff[0], ringHandOff[1]);
+                System.out.println(String.format(Locale.US, "%-52s %10s %12s", "garbage of the tasks per hour at " + RATE + " Hz", "",
+                        (linkedHandOff[1] * RATE * 3600 / FIXES / 1024) + " -> " + (ringHandOff[1] * RATE * 3600 / FIXES / 1024) + " KiB"));
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format(Locale.US, "%-52s %10s %12s %9s %9s %9s", "Two threads",
+                "ns/fix", "bytes/fix", "p50 us", "p99 us", "max us"));
+        for (int round = 0; round <= ROUNDS; round++) {
+            boolean print = round == ROUNDS;
+            measureTwoThreads("LinkedBlockingQueue", -1, print);
+            for (int wait = AsyncTODOQueue.WAIT_BLOCKING; wait <= AsyncTODOQueue.WAIT_SPINNING; wait++) {
+                measureTwoThreads("AsyncTODOQueue, " + WAIT_NAMES[wait], wait, print);
+            }
+        }
+        System.out.println(String.format(Locale.US, "(%d added, %d updated, %d other)", added, updated, other));
+    }
+
+    private static void print(String name, long nanos, long bytes) {
+        System.out.println(String.format(Locale.US, "%-52s %10.1f %12s", name, nanos / (double) FIXES,
+                bytes < 0 ? "-" : String.format(Locale.US, "%.1f", bytes / (double) FIXES)));
+    }
+
+    /**
+     * @return true if the fix of the given index is recorded
+     */
+    private static boolean isRecorded(int fix) {
+        return fix % RATE == 0;
+    }
+
+    // ------------------------------------------------------------------------- Conflation and overflow
+
+    /**
+     * Sends the fixes as fast as possible to an AsyncTODOQueue, whose consumer spends UPDATE_COST
+     * on every task, and checks the order of the TASK_ADDLOCATIONs and the last fix update.
+     */
+    private static void checkCoalescing(int capacity, int waitStrategy, int overflowPolicy) throws InterruptedException {
+        final AsyncTODOQueue queue = new AsyncTODOQueue(capacity, waitStrategy, overflowPolicy);
+        final FixRecord[] fixes = new FixRecord[BACKLOG_FIXES];
+        FixRecordTest.PlainLocation location = new FixRecordTest.PlainLocation("gps");
+        for (int i = 0; i < BACKLOG_FIXES; i++) {
+            location.setTime(i);
+            fixes[i] = new FixRecord().set(location, GPSApplication.NOT_AVAILABLE, GPSApplication.NOT_AVAILABLE);
+        }
+        final long[] executed = new long[2];                // The TASK_ADDLOCATIONs and the TASK_UPDATEFIXs executed
+        final long[] lastAdded = { -RATE };
+        final long[] current = { -1 };                      // The time of the current fix, as set by the consumer
+        final boolean[] ordered = { true };
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        AsyncTODO task = queue.take();
+                        int taskType = task.taskType;
+                        if (taskType == AsyncTODO.TASK_SHUTDOWN) return;
+                        long time = task.location.getTime();
+                        if (taskType == AsyncTODO.TASK_ADDLOCATION) {
+                            if (time != lastAdded[0] + RATE) ordered[0] = false;
+                            lastAdded[0] = time;
+                            executed[0]++;
+                        } else executed[1]++;
+                        current[0] = time;
+                        task.location.recycle();
+                        long end = System.nanoTime() + UPDATE_COST;
+                        while (System.nanoTime() < end) {
+                            // Simulates the work of the AsyncUpdateThread
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Stops
+                }
+            }
+        });
+        consumer.start();
+        long start = System.nanoTime();
+        for (int i = 0; i < BACKLOG_FIXES; i++) {
+            queue.add(isRecorded(i) ? AsyncTODO.TASK_ADDLOCATION : AsyncTODO.TASK_UPDATEFIX, fixes[i]);
+        }
+        queue.add(AsyncTODO.TASK_SHUTDOWN, null);
+        consumer.join();
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format(Locale.US, "Conflation, %d slots, %s wait, %s on overflow (%d fixes sent at once, %d us per task):",
+                capacity, WAIT_NAMES[waitStrategy], OVERFLOW_NAMES[overflowPolicy], BACKLOG_FIXES, UPDATE_COST / 1000));
+        System.out.println(String.format(Locale.US, "  %d TASK_ADDLOCATION executed in order, %d TASK_UPDATEFIX executed, %d coalesced, %d spilled, in %d ms",
+                executed[0], executed[1], queue.getCoalescedUpdates(), queue.getSpilledTasks(), elapsed / 1000000));
+        if (!ordered[0] || (executed[0] != BACKLOG_FIXES / RATE) || (current[0] != BACKLOG_FIXES - 1)
+                || (executed[1] + queue.getCoalescedUpdates() != BACKLOG_FIXES - BACKLOG_FIXES / RATE)
+                || (queue.size() != 0)) {
+            throw new IllegalStateException("Locations lost or reordered, or stale current fix " + current[0]);
+        }
+    }
+
+    /**
+     * Fills a ring with OVERFLOW_DROP without consumer: the tasks beyond its capacity are dropped,
+     * the ones into the ring are taken in order.
+     */
+    private static void checkDrop() throws InterruptedException {
+        AsyncTODOQueue queue = new AsyncTODOQueue(SMALL_CAPACITY, AsyncTODOQueue.WAIT_SPINNING, AsyncTODOQueue.OVERFLOW_DROP);
+        int accepted = 0;
+        for (int i = 0; i < SMALL_CAPACITY * 2; i++) {
+            if (queue.add(AsyncTODO.TASK_NEWTRACK, null)) accepted++;
+        }
+        for (int i = 0; i < accepted; i++) queue.take();
+        System.out.println(String.format(Locale.US, "Drop, %d slots: %d tasks accepted, %d dropped",
+                SMALL_CAPACITY, accepted, queue.getDroppedTasks()));
+        if ((accepted != SMALL_CAPACITY) || (queue.getDroppedTasks() != SMALL_CAPACITY) || (queue.size() != 0)) {
+            throw new IllegalStateException("Wrong overflow");
+        }
+    }
+
+    // ------------------------------------------------------------------------- Dispatch
+
+    private static long measureLegacyDispatch() {
+        LegacyTODO[] tasks = new LegacyTODO[RATE];
+        for (int i = 0; i < RATE; i++) {
+            tasks[i] = new LegacyTODO();
+            tasks[i].taskType = isRecorded(i) ? TASK_ADDLOCATION : TASK_UPDATEFIX;
+            tasks[i].location = LOCATION;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < FIXES; i++) dispatch(tasks[i % RATE]);
+        return System.nanoTime() - start;
+    }
+
+    private static long measureTypedDispatch() {
+        AsyncTODO[] tasks = new AsyncTODO[RATE];
+        for (int i = 0; i < RATE; i++) {
+            tasks[i] = new AsyncTODO(isRecorded(i) ? AsyncTODO.TASK_ADDLOCATION : AsyncTODO.TASK_UPDATEFIX, LOCATION);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < FIXES; i++) dispatch(tasks[i % RATE]);
+        return System.nanoTime() - start;
+    }
+
+    // ------------------------------------------------------------------------- Hand-off on a single thread
+
+    /**
+     * @return the time, in nanoseconds, and the bytes allocated by the hand-off of the fixes
+     */
+    private static long[] measureLegacyHandOff() throws InterruptedException {
+        BlockingQueue<LegacyTODO> queue = new LinkedBlockingQueue<>();
+        long bytes = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < FIXES; i += BURST) {
+            for (int j = i; j < i + BURST; j++) {
+                LegacyTODO task = new LegacyTODO();
+                task.taskType = isRecorded(j) ? TASK_ADDLOCATION : TASK_UPDATEFIX;
+                task.location = LOCATION;
+                queue.add(task);
+            }
+            for (int j = 0; j < BURST; j++) dispatch(queue.take());
+        }
+        long elapsed = System.nanoTime() - start;
+        return new long[] { elapsed, getAllocatedBytes() - bytes };
+    }
+
+    /**
+     * @return the time, in nanoseconds, and the bytes allocated by the hand-off of the fixes
+     */
+    private static long[] measureLinkedHandOff() throws InterruptedException {
+        LinkedTODOQueue queue = new LinkedTODOQueue();
+        long bytes = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < FIXES; i += BURST) {
+            for (int j = i; j < i + BURST; j++) {
+                queue.add(isRecorded(j) ? AsyncTODO.TASK_ADDLOCATION : AsyncTODO.TASK_UPDATEFIX, LOCATION);
+            }
+            for (int j = 0; j < TASKS_PER_BURST; j++) dispatch(queue.take());
+        }
+        long elapsed = System.nanoTime() - start;
+        return new long[] { elapsed, getAllocatedBytes() - bytes };
+    }
+
+    /**
+     * @return the time, in nanoseconds, and the bytes allocated by the hand-off of the fixes
+     */
+    private static long[] measureRingHandOff() throws InterruptedException {
+        AsyncTODOQueue queue = new AsyncTODOQueue();
+        long bytes = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < FIXES; i += BURST) {
+            for (int j = i; j < i + BURST; j++) {
+                queue.add(isRecorded(j) ? AsyncTODO.TASK_ADDLOCATION : AsyncTODO.TASK_UPDATEFIX, FixRecord.obtain());
+            }
+            for (int j = 0; j < TASKS_PER_BURST; j++) dispatchAndRecycle(queue.take());
+        }
+        long elapsed = System.nanoTime() - start;
+        return new long[] { elapsed, getAllocatedBytes() - bytes };
+    }
+
+    // ------------------------------------------------------------------------- Two threads
+
+    /**
+     * Measures the throughput, then the wake-up latency, between a producer and a consumer thread.
+     * Only TASK_ADDLOCATIONs are sent, so that nothing is coalesced.
+     *
+     * @param waitStrategy the wait strategy of the AsyncTODOQueue, or -1 for the LinkedTODOQueue
+     */
+    private static void measureTwoThreads(String name, int waitStrategy, boolean print) throws InterruptedException {
+        // Throughput: the ring blocks the producer when full, instead of spilling
+        final AsyncTODOQueue ring = waitStrategy < 0 ? null
+                : new AsyncTODOQueue(AsyncTODOQueue.DEFAULT_CAPACITY, waitStrategy, AsyncTODOQueue.OVERFLOW_BLOCK);
+        final LinkedTODOQueue linked = waitStrategy < 0 ? new LinkedTODOQueue() : null;
+        final long[] producerBytes = new long[1];
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long bytes = getAllocatedBytes();
+                for (int i = 0; i < FIXES; i++) {
+                    if (ring != null) ring.add(AsyncTODO.TASK_ADDLOCATION, FixRecord.obtain());
+                    else linked.add(AsyncTODO.TASK_ADDLOCATION, LOCATION);
+                }
+                producerBytes[0] = getAllocatedBytes() - bytes;
+            }
+        });
+        long start = System.nanoTime();
+        producer.start();
+        for (int i = 0; i < FIXES; i++) {
+            if (ring != null) dispatchAndRecycle(ring.take());
+            else dispatch(linked.take());
+        }
+        long elapsed = System.nanoTime() - start;
+        producer.join();
+
+        // Wake-up latency: one fix every LATENCY_SPACING, the consumer waiting for it
+        final AsyncTODOQueue latencyRing = waitStrategy < 0 ? null
+                : new AsyncTODOQueue(AsyncTODOQueue.DEFAULT_CAPACITY, waitStrategy, AsyncTODOQueue.OVERFLOW_SPILL);
+        final LinkedTODOQueue latencyLinked = waitStrategy < 0 ? new LinkedTODOQueue() : null;
+        final long[] sendTimes = new long[LATENCY_SAMPLES];
+        producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long next = System.nanoTime();
+                for (int i = 0; i < LATENCY_SAMPLES; i++) {
+                    next += LATENCY_SPACING;
+                    while (System.nanoTime() < next) {
+                        // Waits for the next fix
+                    }
+                    sendTimes[i] = System.nanoTime();
+                    if (latencyRing != null) latencyRing.add(AsyncTODO.TASK_ADDLOCATION, FixRecord.obtain());
+                    else latencyLinked.add(AsyncTODO.TASK_ADDLOCATION, LOCATION);
+                }
+            }
+        });
+        long[] latencies = new long[LATENCY_SAMPLES];
+        producer.start();
+        for (int i = 0; i < LATENCY_SAMPLES; i++) {
+            if (latencyRing != null) dispatchAndRecycle(latencyRing.take());
+            else dispatch(latencyLinked.take());
+            latencies[i] = System.nanoTime() - sendTimes[i];
+        }
+        producer.join();
+        if (!print) return;
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.US, "%-52s %10.1f %12.1f %9.1f %9.1f %9.1f", name,
+                elapsed / (double) FIXES, producerBytes[0] / (double) FIXES,
+                latencies[LATENCY_SAMPLES / 2] / 1000.0, latencies[LATENCY_SAMPLES * 99 / 100] / 1000.0,
+                latencies[LATENCY_SAMPLES - 1] / 1000.0));
+    }
+
+    // ------------------------------------------------------------------------- The two dispatchers, as in the AsyncUpdateThread
+
+    private static void dispatch(LegacyTODO task) {
+        if (task.taskType.equals(TASK_SHUTDOWN)) other++;
+        if (task.taskType.equals(TASK_NEWTRACK)) other++;
+        if (task.taskType.equals(TASK_ADDLOCATION) && (task.location != null)) added++;
+        if (task.taskType.equals(TASK_UPDATEFIX) && (task.location != null)) updated++;
+    }
+
+    private static void dispatch(AsyncTODO task) {
+        switch (task.taskType) {
+            case AsyncTODO.TASK_SHUTDOWN:
+            case AsyncTODO.TASK_NEWTRACK:
+                other++;
+                break;
+            case AsyncTODO.TASK_ADDLOCATION:
+                if (task.location != null) added++;
+                break;
+            case AsyncTODO.TASK_UPDATEFIX:
+                if (task.location != null) updated++;
+                break;
+        }
+    }
+
+    /**
+     * Dispatches a task taken from the AsyncTODOQueue, then gives back its fix to the pool.
+     */
+    private static void dispatchAndRecycle(AsyncTODO task) {
+        dispatch(task);
+        if (task.location != null) task.location.recycle();
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or 0 if the JVM doesn't measure them
+     */
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
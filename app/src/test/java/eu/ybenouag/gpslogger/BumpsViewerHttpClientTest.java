@@ -0,0 +1,343 @@
+package eu.ybenouag.gpslogger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The reply parser and the connection pool of the BumpsViewerHttpClient, against an in-process server
+ * that sends scripted raw replies: the malformed, truncated and oversized replies must be IOExceptions
+ * that leave no connection in the pool, and the keep-alive connections must be reused (or retried once
+ * when the server closed them).
+ */
+public class BumpsViewerHttpClientTest {
+
+    private static final String OK = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+    private static final byte[] BODY = "{\"crewId\":\"1\",\"latitude\":52.2,\"longitude\":0.12}".getBytes(StandardCharsets.UTF_8);
+    private static final int REQUESTS = 20;             // The requests sent by the checks of the connection reuse
+
+    private ScriptedServer server;
+    private BumpsViewerHttpClient client;
+
+    /**
+     * A reply of the ScriptedServer.
+     */
+    private static class Reply {
+        final String raw;                               // The bytes sent (ISO-8859-1), or null to never reply
+        final boolean close;                            // Closes the connection after the reply
+
+        Reply(String raw, boolean close) {
+            this.raw = raw;
+            this.close = close;
+        }
+    }
+
+    /**
+     * A server that reads the requests on any connection, and answers each of them
+     * with the next scripted reply.
+     */
+    private static class ScriptedServer {
+        private final ServerSocket serverSocket;
+        private final BlockingQueue<Reply> replies = new LinkedBlockingQueue<>();
+        private final AtomicLong connectionsAccepted = new AtomicLong();
+        private final AtomicLong requestsReceived = new AtomicLong();
+
+        ScriptedServer() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            final Socket socket = serverSocket.accept();
+                            connectionsAccepted.incrementAndGet();
+                            Thread thread = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    serve(socket);
+                                }
+                            }, "ScriptedServer-connection");
+                            thread.setDaemon(true);
+                            thread.start();
+                        }
+                    } catch (IOException e) {
+                        // Stopped
+                    }
+                }
+            }, "ScriptedServer-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        void reply(String raw) {
+            replies.add(new Reply(raw, false));
+        }
+
+        void replyAndClose(String raw) {
+            replies.add(new Reply(raw, true));
+        }
+
+        URI getEndPoint() {
+            return URI.create("http://127.0.0.1:" + serverSocket.getLocalPort() + "/api/data-collection");
+        }
+
+        void stop() throws IOException {
+            serverSocket.close();
+        }
+
+        private void serve(Socket socket) {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                while (readRequest(in)) {
+                    requestsReceived.incrementAndGet();
+                    Reply reply = replies.poll(5, TimeUnit.SECONDS);
+                    if ((reply == null) || (reply.raw == null)) {
+                        in.read();                      // Never replies, until the client goes away
+                        break;
+                    }
+                    out.write(reply.raw.getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                    if (reply.close) break;
+                }
+            } catch (IOException | InterruptedException e) {
+                // The client closed the connection
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        }
+
+        /**
+         * Reads the head and the body of a request.
+         *
+         * @return false if the client closed the connection
+         */
+        private static boolean readRequest(InputStream in) throws IOException {
+            int contentLength = 0;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                if (line.toLowerCase(Locale.US).startsWith("content-length:")) contentLength = Integer.parseInt(line.substring(15).trim());
+            }
+            for (int i = 0; i < contentLength; i++) {
+                if (in.read() == -1) return false;
+            }
+            return true;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1) throw new IOException("Connection closed by the client");
+                if (c != '\r') line.write(c);
+            }
+            return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ScriptedServer();
+        client = new BumpsViewerHttpClient();
+        client.setTimeouts(2000, 2000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.evictAll();
+        server.stop();
+    }
+
+    private BumpsViewerHttpClient.Response post() throws IOException {
+        return client.post(server.getEndPoint(), "application/json", BODY);
+    }
+
+    /**
+     * Sends a request whose reply must be rejected, then checks that the connection has not been pooled.
+     */
+    private void assertRejected(String message) throws IOException {
+        try {
+            post();
+            fail(message);
+        } catch (IOException expected) {
+            // The reply is rejected
+        }
+        server.reply(OK);
+        assertEquals("ok", post().getBodyAsString());
+        assertEquals(0, client.getConnectionsReused());
+        assertEquals(2, client.getConnectionsOpened());
+    }
+
+    // ------------------------------------------------------------------------- Parser
+
+    @Test
+    public void chunkedBodyWithExtensionsAndTrailers() throws IOException {
+        server.reply("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;name=value\r\nhello\r\n6 ; ext\r\n world\r\n0\r\nX-Trailer: t\r\n\r\n");
+        server.reply(OK);
+        BumpsViewerHttpClient.Response response = post();
+        assertEquals(200, response.status);
+        assertEquals("hello world", response.getBodyAsString());
+
+        // The trailers have been consumed: the next reply is read from the start of its status line
+        assertEquals("ok", post().getBodyAsString());
+        assertEquals(1, client.getConnectionsReused());
+    }
+
+    @Test
+    public void noContentReplyHasEmptyBody() throws IOException {
+        server.reply("HTTP/1.1 204 No Content\r\n\r\n");
+        server.reply(OK);
+        assertEquals(0, post().body.length);
+        assertEquals("ok", post().getBodyAsString());
+        assertEquals(1, client.getConnectionsReused());
+    }
+
+    @Test
+    public void malformedStatusLineIsRejected() throws IOException {
+        server.reply("HTTP/1.1 2OO OK\r\nContent-Length: 0\r\n\r\n");
+        assertRejected("A malformed status code has been accepted");
+    }
+
+    @Test
+    public void nonHttpStatusLineIsRejected() throws IOException {
+        server.reply("SSH-2.0-OpenSSH_9.6\r\n\r\n");
+        assertRejected("A reply that is not HTTP has been accepted");
+    }
+
+    @Test
+    public void malformedChunkSizeIsRejected() throws IOException {
+        server.reply("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\nhello\r\n0\r\n\r\n");
+        assertRejected("A malformed chunk size has been accepted");
+    }
+
+    @Test
+    public void truncatedBodyIsRejected() throws IOException {
+        server.replyAndClose("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nabc");
+        assertRejected("A truncated body has been accepted");
+    }
+
+    @Test
+    public void truncatedChunkedBodyIsRejected() throws IOException {
+        server.replyAndClose("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n");
+        assertRejected("A chunked body without the last chunk has been accepted");
+    }
+
+    @Test
+    public void oversizedContentLengthIsRejected() throws IOException {
+        server.reply("HTTP/1.1 200 OK\r\nContent-Length: 2000000000\r\n\r\nok");
+        assertRejected("A body of 2 GB has been accepted");
+    }
+
+    @Test
+    public void oversizedChunkedBodyIsRejected() throws IOException {
+        StringBuilder reply = new StringBuilder("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n");
+        String chunk = new String(new char[1024]).replace('\0', 'x');
+        for (int i = 0; i <= BumpsViewerHttpClient.MAX_BODY_SIZE / 1024; i++) reply.append("400\r\n").append(chunk).append("\r\n");
+        server.replyAndClose(reply.append("0\r\n\r\n").toString());
+        assertRejected("A chunked body larger than MAX_BODY_SIZE has been accepted");
+    }
+
+    // ------------------------------------------------------------------------- Pool
+
+    @Test
+    public void keepAliveConnectionIsReused() throws IOException {
+        for (int i = 0; i < REQUESTS; i++) server.reply(OK);
+        for (int i = 0; i < REQUESTS; i++) assertEquals(200, post().status);
+        assertEquals(1, client.getConnectionsOpened());
+        assertEquals(REQUESTS - 1, client.getConnectionsReused());
+        assertEquals(1, server.connectionsAccepted.get());
+    }
+
+    @Test
+    public void connectionCloseIsNotReused() throws IOException {
+        server.reply("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok");
+        server.reply(OK);
+        assertEquals(200, post().status);
+        assertEquals(200, post().status);
+        assertEquals(2, client.getConnectionsOpened());
+        assertEquals(0, client.getConnectionsReused());
+        assertEquals(2, server.connectionsAccepted.get());
+    }
+
+    @Test
+    public void bodyUntilCloseIsNotReused() throws IOException {
+        server.replyAndClose("HTTP/1.1 200 OK\r\n\r\nuntil the end");
+        server.reply(OK);
+        assertEquals("until the end", post().getBodyAsString());
+        assertEquals("ok", post().getBodyAsString());
+        assertEquals(2, client.getConnectionsOpened());
+        assertEquals(0, client.getConnectionsReused());
+    }
+
+    @Test
+    public void stalePooledConnectionIsRetriedOnce() throws IOException {
+        server.replyAndClose(OK);                       // Pooled by the client, then closed by the server
+        server.reply(OK);
+        assertEquals(200, post().status);
+        assertEquals(200, post().status);
+        assertEquals(2, client.getConnectionsOpened());
+        assertEquals(1, client.getConnectionsReused());
+        assertEquals(2, server.connectionsAccepted.get());
+        assertEquals(2, server.requestsReceived.get());  // The request sent on the closed connection never arrived
+    }
+
+    @Test
+    public void readTimeoutIsNotRetried() throws IOException {
+        client.setTimeouts(2000, 200);
+        server.reply(OK);
+        server.reply(null);                             // The server is slow, not gone
+        assertEquals(200, post().status);
+        try {
+            post();
+            fail("The request has not timed out");
+        } catch (SocketTimeoutException expected) {
+            // Not sent again on a new connection
+        }
+        assertEquals(1, client.getConnectionsOpened());
+        assertEquals(1, server.connectionsAccepted.get());
+    }
+
+    // ------------------------------------------------------------------------- BumpsViewerLocalServer
+
+    @Test
+    public void localServerConnectionIsReused() throws IOException {
+        BumpsViewerLocalServer localServer = new BumpsViewerLocalServer(0);
+        localServer.start();
+        try {
+            URI uri = localServer.getEndPoint().resolve("/api/data-collection");
+            for (int i = 0; i < REQUESTS; i++) assertEquals(200, client.post(uri, "application/json", BODY).status);
+            assertEquals(1, client.getConnectionsOpened());
+            assertEquals(REQUESTS - 1, client.getConnectionsReused());
+            assertEquals(1, localServer.getConnectionsAccepted());
+            assertEquals(REQUESTS, localServer.getRequestsServed());
+        } finally {
+            client.evictAll();
+            localServer.stop();
+        }
+    }
+}
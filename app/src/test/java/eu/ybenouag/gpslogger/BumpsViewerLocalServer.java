@@ -0,0 +1,1635 @@
+package eu.ybenouag.gpslogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in of the Bumps Viewer server, runnable on the JVM.
+ * It speaks plain HTTP/1.1 with keep-alive, and counts the accepted connections
+ * and the served requests, in order to verify the connection reuse of the BumpsViewerHttpClient
+ * (see the BumpsViewerHttpClientTest).
+ * <p>
+ * The endpoints are implemented in memory:
+ * - /api/data-collection (and /batch) keeps the live position of every crew;
+ * - /db/location (and /batch) saves the debug data;
+ * - /api/ingest does both;
+ * - /db/team/name looks up the registered crews, /db/get-divisions lists the divisions;
+ * - /api/stream upgrades the connection to the WebSocket of the StreamChannel: it stores the fixes
+ *   of every frame (skipping the ones already stored) and acknowledges them;
+ * - the UDP port with the same number receives the datagrams of the StreamDatagramSender: it keeps
+ *   the live positions (discarding the late ones) and the loss and the latency of every session.
+ * The batch and the combined ingest endpoints also accept the binary encoding of the StreamBinaryCodec.
+ * The fixes that carry a session and a sequence number are stored once, in the order of the sequence,
+ * whatever the retries and the order of arrival of the requests; a live position older than the current one
+ * of the same session is discarded.
+ * The fallbacks of the client can be checked by behaving like an older server, with
+ * setBinaryAccepted(false), setIngestSupported(false) and setStreamSupported(false).
+ * <p>
+ * Run main() from the IDE (unit test classpath) to execute the measurements.
+ * Run main("serve", port) to keep it listening on all the interfaces, and set its address
+ * (like http://192.168.1.10:8091) as Server into the live streaming settings of the app.
+ */
+public class BumpsViewerLocalServer {
+
+    private static final int FIXES    = 600;             // The number of fixes of the simulated track (10 min at 1 Hz)
+    private static final int BATCH    = 10;              // The batch size for the size comparison
+    private static final int LATENCY_FIXES = 50;         // The number of fixes uploaded for the latency comparison
+    private static final long SIMULATED_RTT = 60;        // The simulated round trip time (ms) of the mobile link
+    private static final int STACK_FIXES = 500;          // The number of fixes uploaded for the measurement of the client stack
+    private static final long CHANNEL_INTERVAL = 100;    // The interval (ms) between the fixes sent for the channel latency
+    private static final int RESUME_FIXES = 200;         // The number of fixes sent for the check of the resume
+    private static final int DATAGRAMS = 300;            // The number of datagrams sent by the datagram check
+    private static final long DATAGRAM_INTERVAL = 10;    // The interval (ms) between the datagrams of the check
+    private static final int IDEMPOTENT_FIXES = 300;     // The number of fixes uploaded by the check of the idempotent uploads
+    private static final int UPLOAD_THREADS = 8;         // The threads that upload at the same time
+    private static final int LANES_FIXES = 100;          // The number of fixes streamed by the check of the priority lanes
+    private static final long LANES_INTERVAL = 50;       // The interval (ms) between the fixes of the check of the priority lanes
+    private static final long PERSISTENCE_DELAY = 300;   // The simulated time (ms) of the slow debug writes
+    private static final int SHUTDOWN_FIXES = 200;       // The fixes pending when the check of the shutdown stops the streaming
+    private static final long SHUTDOWN_DEADLINE = 1000;  // The time (ms) given to the uploads by the check of the shutdown
+    private static final long SHUTDOWN_UPLOAD_DELAY = 100;  // The simulated time (ms) of the uploads during the check of the shutdown
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final long   SESSION_ID = 0x5E5510A1B2C3D4E5L;  // The session of the sequence numbers of the simulated track
+    private static final String CREW_ID   = "1234";
+    private static final String CREW_NAME = "Jesus College M1";
+    private static final String DIVISION  = "Men's Division 1";
+
+    private final ServerSocket serverSocket;
+    private final DatagramSocket datagramSocket;
+    private final ScheduledExecutorService datagramDelayer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "BumpsViewerLocalServer-datagrams");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final ExecutorService connectionThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "BumpsViewerLocalServer-connection");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final AtomicLong connectionsAccepted = new AtomicLong();
+    private final AtomicLong requestsServed = new AtomicLong();
+    private final AtomicLong fixesDecoded = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();                 // All the bytes received, headers and frames included
+    private final AtomicLong streamConnections = new AtomicLong();
+    private final AtomicLong streamDuplicates = new AtomicLong();              // The fixes received again on the channel
+    private final AtomicLong streamGaps = new AtomicLong();                    // The fixes received on the channel after a missing one
+    private final AtomicLong duplicateLocations = new AtomicLong();            // The fixes received again, not stored
+    private final AtomicLong staleLivePositions = new AtomicLong();            // The live positions older than the current one
+    private volatile boolean binaryAccepted = true;
+    private volatile boolean ingestSupported = true;
+    private volatile long responseDelay = 0;
+    private final Map<String, Long> pathDelays = new ConcurrentHashMap<>();   // The additional delays of the replies, by path
+    private volatile int failureStatus = 0;
+    private volatile boolean streamSupported = true;
+    private volatile int streamDropAfter = 0;
+    private volatile long streamHint = 0;
+    private volatile double datagramLoss = 0;
+    private volatile long datagramDelay = 0;
+    private volatile long datagramJitter = 0;
+
+    // The data, in memory
+    private final List<String> divisions = new ArrayList<>();
+    private final Map<String, JSONObject> teams = new LinkedHashMap<>();       // The registered crews, by crew name and division
+    private final Map<String, StreamedFix> livePositions = new HashMap<>();    // The live position of every crew, by crew id
+    private final Map<String, Long> liveSessions = new HashMap<>();            // The session of the live position, by crew id
+    private final List<SavedLocation> savedLocations = new ArrayList<>();      // The debug data without sequence number
+    private final Map<String, TreeMap<Long, SavedLocation>> sequencedLocations = new LinkedHashMap<>(); // The debug data by crew and session, by sequence
+    private final Map<String, Long> streamSequences = new HashMap<>();         // The last sequence stored from the channel, by crew and session
+    private final Map<Long, DatagramSession> datagramSessions = new HashMap<>(); // The datagram sessions, by session id
+
+    /**
+     * The statistics of a session of datagrams.
+     */
+    static class DatagramSession {
+        long received;
+        long highestSequence;
+        long late;                                      // The datagrams arrived after a newer one, discarded
+        final List<Long> latencies = new ArrayList<>(); // The one-way latencies, in ms
+
+        /**
+         * @return the given percentile of the one-way latencies, in ms
+         */
+        long getLatency(int percentile) {
+            if (latencies.isEmpty()) return 0;
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            return sorted.get(Math.min(sorted.size() - 1, sorted.size() * percentile / 100));
+        }
+
+        double getLossRate() {
+            return highestSequence > 0 ? Math.max(0, highestSequence - received) / (double) highestSequence : 0;
+        }
+    }
+
+    /**
+     * A position saved as debug data.
+     */
+    static class SavedLocation {
+        final String crewId;
+        final long sequence;                            // The sequence number into the session, or 0
+        final int trackNumber;
+        final String timestamp;
+        final double latitude;
+        final double longitude;
+
+        SavedLocation(String crewId, long sequence, int trackNumber, String timestamp, double latitude, double longitude) {
+            this.crewId = crewId;
+            this.sequence = sequence;
+            this.trackNumber = trackNumber;
+            this.timestamp = timestamp;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    /**
+     * The reply to a request.
+     */
+    static class Reply {
+        final int status;
+        final String contentType;
+        final byte[] body;
+
+        Reply(int status, String json) {
+            this(status, "application/json", json.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Reply(int status, String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Creates the server, listening on the loopback interface.
+     *
+     * @param port the port, or 0 for an ephemeral one
+     */
+    public BumpsViewerLocalServer(int port) throws IOException {
+        this(port, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Creates the server, with some divisions and a registered crew.
+     *
+     * @param port the port, or 0 for an ephemeral one
+     * @param address the local address, or null for all the interfaces
+     */
+    public BumpsViewerLocalServer(int port, InetAddress address) throws IOException {
+        serverSocket = new ServerSocket(port, 50, address);
+        datagramSocket = new DatagramSocket(serverSocket.getLocalPort(), address);
+        divisions.addAll(Arrays.asList(DIVISION, "Men's Division 2", "Women's Division 1", "Women's Division 2"));
+        addTeam(CREW_ID, CREW_NAME, DIVISION);
+    }
+
+    /**
+     * Registers a crew, that can then be found by /db/team/name.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void addTeam(String crewId, String crewName, String division) {
+        JSONObject team = new JSONObject();
+        team.put("crew_id", crewId);
+        team.put("crew_name", crewName);
+        team.put("division", division);
+        teams.put(crewName + "\n" + division, team);
+        if (!divisions.contains(division)) divisions.add(division);
+    }
+
+    /**
+     * @return the live position of the given crew, or null if never received
+     */
+    public synchronized StreamedFix getLivePosition(String crewId) {
+        return livePositions.get(crewId);
+    }
+
+    /**
+     * @return the number of positions saved as debug data
+     */
+    public synchronized int getSavedLocations() {
+        int size = savedLocations.size();
+        for (TreeMap<Long, SavedLocation> locations : sequencedLocations.values()) size += locations.size();
+        return size;
+    }
+
+    /**
+     * @return the positions of the given crew saved as debug data: the ones of every session
+     *         in the order of the sequence numbers, then the ones without sequence number
+     */
+    public synchronized List<SavedLocation> getSavedLocations(String crewId) {
+        List<SavedLocation> crewLocations = new ArrayList<>();
+        for (TreeMap<Long, SavedLocation> locations : sequencedLocations.values()) {
+            if (!locations.isEmpty() && locations.firstEntry().getValue().crewId.equals(crewId)) crewLocations.addAll(locations.values());
+        }
+        for (SavedLocation location : savedLocations) {
+            if (location.crewId.equals(crewId)) crewLocations.add(location);
+        }
+        return crewLocations;
+    }
+
+    /**
+     * @return the number of fixes received again (for example by a retried request), and not stored
+     */
+    public long getDuplicateLocations() {
+        return duplicateLocations.get();
+    }
+
+    /**
+     * @return the number of live positions discarded because older than the current one
+     */
+    public long getStaleLivePositions() {
+        return staleLivePositions.get();
+    }
+
+    /**
+     * Forgets the received positions (not the crews and the divisions).
+     */
+    public synchronized void clearPositions() {
+        livePositions.clear();
+        liveSessions.clear();
+        savedLocations.clear();
+        sequencedLocations.clear();
+        streamSequences.clear();
+    }
+
+    public void start() {
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        connectionsAccepted.incrementAndGet();
+                        connectionThreads.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // Server closed
+                    }
+                }
+            }
+        }, "BumpsViewerLocalServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        Thread datagramThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiveDatagrams();
+            }
+        }, "BumpsViewerLocalServer-udp");
+        datagramThread.setDaemon(true);
+        datagramThread.start();
+    }
+
+    public void stop() throws IOException {
+        serverSocket.close();
+        datagramSocket.close();
+        connectionThreads.shutdownNow();
+        datagramDelayer.shutdownNow();
+    }
+
+    public URI getEndPoint() {
+        return URI.create("http://127.0.0.1:" + serverSocket.getLocalPort());
+    }
+
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.get();
+    }
+
+    public long getRequestsServed() {
+        return requestsServed.get();
+    }
+
+    /**
+     * @return the number of fixes received with the binary encoding
+     */
+    public long getFixesDecoded() {
+        return fixesDecoded.get();
+    }
+
+    /**
+     * @param accepted false to reply 415 Unsupported Media Type to the binary uploads
+     */
+    public void setBinaryAccepted(boolean accepted) {
+        binaryAccepted = accepted;
+    }
+
+    /**
+     * @param supported false to behave like an older server, without the combined ingest endpoint
+     */
+    public void setIngestSupported(boolean supported) {
+        ingestSupported = supported;
+    }
+
+    /**
+     * @param status the HTTP status of all the replies, in order to simulate a brownout; 0 to reply normally
+     */
+    public void setFailureStatus(int status) {
+        failureStatus = status;
+    }
+
+    /**
+     * @param supported false to behave like an older server, without the /api/stream endpoint
+     */
+    public void setStreamSupported(boolean supported) {
+        streamSupported = supported;
+    }
+
+    /**
+     * @param frames the number of frames after which the next stream connection is dropped,
+     *               without acknowledging the last one; 0 to never drop
+     */
+    public void setStreamDropAfter(int frames) {
+        streamDropAfter = frames;
+    }
+
+    /**
+     * @param interval the upload interval (ms) suggested to the new stream connections; 0 for none
+     */
+    public void setStreamHint(long interval) {
+        streamHint = interval;
+    }
+
+    /**
+     * Simulates a lossy mobile link for the datagrams.
+     *
+     * @param loss the fraction of the datagrams dropped at random
+     * @param delay the one-way delay (ms) added to every datagram
+     * @param jitter the maximum random delay (ms) added to the delay, that reorders some datagrams
+     */
+    public void setDatagramLink(double loss, long delay, long jitter) {
+        datagramLoss = loss;
+        datagramDelay = delay;
+        datagramJitter = jitter;
+    }
+
+    /**
+     * @return the statistics of the given datagram session, or null if none received
+     */
+    public synchronized DatagramSession getDatagramSession(long sessionId) {
+        return datagramSessions.get(sessionId);
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getStreamConnections() {
+        return streamConnections.get();
+    }
+
+    public long getStreamDuplicates() {
+        return streamDuplicates.get();
+    }
+
+    public long getStreamGaps() {
+        return streamGaps.get();
+    }
+
+    /**
+     * @param delay the time, in milliseconds, to wait before every reply, in order to simulate
+     *              the round trip time of a mobile link
+     */
+    public void setResponseDelay(long delay) {
+        responseDelay = delay;
+    }
+
+    /**
+     * @param path the path of the requests
+     * @param delay the additional time, in milliseconds, to wait before the replies to the given path,
+     *              in order to simulate a slow endpoint; 0 to remove it
+     */
+    public void setPathDelay(String path, long delay) {
+        if (delay > 0) pathDelays.put(path, delay);
+        else pathDelays.remove(path);
+    }
+
+    /**
+     * Handles a request.
+     *
+     * @param method the HTTP method
+     * @param path the path of the request
+     * @param contentType the content type of the body, or null
+     * @param body the body of the request
+     * @return the reply
+     */
+    Reply handle(String method, String path, String contentType, byte[] body) {
+        if (failureStatus != 0) return new Reply(failureStatus, "{\"error\":\"Simulated failure\"}");
+        if (path.equals("/api/ingest") && !ingestSupported) return new Reply(404, "{\"error\":\"Not found\"}");
+        if (method.equals("GET") && path.equals("/db/get-divisions")) return new Reply(200, getDivisions());
+        if (!method.equals("POST")) return new Reply(404, "{\"error\":\"Not found\"}");
+        try {
+            if (StreamBinaryCodec.CONTENT_TYPE.equals(contentType)) {
+                if (!binaryAccepted) return new Reply(415, "{\"error\":\"Unsupported media type\"}");
+                if (!path.equals("/api/data-collection/batch") && !path.equals("/db/location/batch") && !path.equals("/api/ingest")) {
+                    return new Reply(404, "{\"error\":\"Not found\"}");
+                }
+                StreamBinaryCodec.Message message = StreamBinaryCodec.decode(body);
+                fixesDecoded.addAndGet(message.fixes.size());
+                storeFixes(path, message.sessionId, message.crewId, message.fixes);
+                return new Reply(200, "{\"status\":1}");
+            }
+            JSONObject request = (JSONObject) new JSONParser().parse(new String(body, StandardCharsets.UTF_8));
+            String session = (String) request.get("session");
+            long sessionId = session != null ? Long.parseUnsignedLong(session, 16) : 0;
+            switch (path) {
+                case "/api/data-collection":
+                    storeLivePosition((String) request.get("crewId"), sessionId, request);
+                    return new Reply(200, "{\"status\":1}");
+                case "/api/data-collection/batch": {
+                    JSONArray fixes = (JSONArray) request.get("fixes");
+                    if (!fixes.isEmpty()) storeLivePosition((String) request.get("crewId"), sessionId, (JSONObject) fixes.get(fixes.size() - 1));
+                    return new Reply(200, "{\"status\":1}");
+                }
+                case "/db/location":
+                    saveLocation((String) request.get("crew_id"), sessionId, request);
+                    return new Reply(200, "{\"status\":1}");
+                case "/db/location/batch":
+                    for (Object location : (JSONArray) request.get("locations")) saveLocation((String) request.get("crew_id"), sessionId, (JSONObject) location);
+                    return new Reply(200, "{\"status\":1}");
+                case "/api/ingest": {
+                    JSONArray fixes = (JSONArray) request.get("fixes");
+                    for (Object fix : fixes) saveLocation((String) request.get("crewId"), sessionId, (JSONObject) fix);
+                    if (!fixes.isEmpty()) storeLivePosition((String) request.get("crewId"), sessionId, (JSONObject) fixes.get(fixes.size() - 1));
+                    return new Reply(200, "{\"status\":1}");
+                }
+                case "/db/team/name":
+                    return new Reply(200, findTeam((String) request.get("crew_name"), (String) request.get("division")));
+            }
+            return new Reply(404, "{\"error\":\"Not found\"}");
+        } catch (IOException | ParseException | ClassCastException | NullPointerException | NumberFormatException e) {
+            return new Reply(400, "{\"error\":\"Bad request: " + e.getClass().getSimpleName() + "\"}");
+        }
+    }
+
+    private synchronized String getDivisions() {
+        JSONArray list = new JSONArray();
+        list.addAll(divisions);
+        return list.toJSONString();
+    }
+
+    /**
+     * @return the registered crew, or an empty object if not found
+     */
+    private synchronized String findTeam(String crewName, String division) {
+        JSONObject team = teams.get(crewName + "\n" + division);
+        return team != null ? team.toJSONString() : "{}";
+    }
+
+    private void storeLivePosition(String crewId, long sessionId, JSONObject position) {
+        storeLivePosition(crewId, sessionId, new StreamedFix(getSequence(position), System.currentTimeMillis(),
+                ((Number) position.get("latitude")).doubleValue(), ((Number) position.get("longitude")).doubleValue(), 0));
+    }
+
+    /**
+     * Updates the live position of a crew, unless the current one is newer (same session, higher sequence).
+     */
+    private synchronized void storeLivePosition(String crewId, long sessionId, StreamedFix fix) {
+        StreamedFix current = livePositions.get(crewId);
+        Long currentSession = liveSessions.get(crewId);
+        if ((current != null) && (sessionId != 0) && (currentSession != null) && (currentSession == sessionId)
+                && (fix.sequence <= current.sequence)) {
+            staleLivePositions.incrementAndGet();
+            return;
+        }
+        livePositions.put(crewId, fix);
+        liveSessions.put(crewId, sessionId);
+    }
+
+    private void saveLocation(String crewId, long sessionId, JSONObject location) {
+        saveLocation(sessionId, new SavedLocation(crewId, getSequence(location), ((Number) location.get("track_num")).intValue(),
+                (String) location.get("timestamp"), ((Number) location.get("latitude")).doubleValue(), ((Number) location.get("longitude")).doubleValue()));
+    }
+
+    /**
+     * Saves a position as debug data, unless already saved (same crew, session and sequence number).
+     *
+     * @return true if saved, false if duplicate
+     */
+    private synchronized boolean saveLocation(long sessionId, SavedLocation location) {
+        if ((sessionId == 0) || (location.sequence == 0)) {
+            savedLocations.add(location);                           // Can't be deduplicated
+            return true;
+        }
+        String key = location.crewId + "\n" + sessionId;
+        TreeMap<Long, SavedLocation> locations = sequencedLocations.get(key);
+        if (locations == null) {
+            locations = new TreeMap<>();
+            sequencedLocations.put(key, locations);
+        }
+        if (locations.containsKey(location.sequence)) {
+            duplicateLocations.incrementAndGet();
+            return false;
+        }
+        locations.put(location.sequence, location);
+        return true;
+    }
+
+    /**
+     * @return the sequence number of a fix, or 0 if none
+     */
+    private static long getSequence(JSONObject fix) {
+        Number sequence = (Number) fix.get("sequence");
+        return sequence != null ? sequence.longValue() : 0;
+    }
+
+    /**
+     * Stores the fixes of a binary message, as the endpoint of the given path.
+     */
+    private synchronized void storeFixes(String path, long sessionId, String crewId, List<StreamedFix> fixes) {
+        if (fixes.isEmpty()) return;
+        if (!path.equals("/db/location/batch")) storeLivePosition(crewId, sessionId, fixes.get(fixes.size() - 1));
+        if (!path.equals("/api/data-collection/batch")) {
+            for (StreamedFix fix : fixes) {
+                saveLocation(sessionId, new SavedLocation(crewId, fix.sequence, fix.trackNumber,
+                        formatTimestamp(fix.time), fix.latitude, fix.longitude));
+            }
+        }
+    }
+
+    /**
+     * Stores the fixes received on the channel, skipping the ones already stored.
+     *
+     * @return the last sequence number stored for the crew and the session
+     */
+    private synchronized long storeStreamFixes(long sessionId, String crewId, List<StreamedFix> fixes) {
+        Long lastSequence = streamSequences.get(crewId + "\n" + sessionId);
+        long last = lastSequence != null ? lastSequence : 0;
+        for (StreamedFix fix : fixes) {
+            if (fix.sequence <= last) {
+                streamDuplicates.incrementAndGet();
+                continue;
+            }
+            if (fix.sequence != last + 1) streamGaps.incrementAndGet();
+            saveLocation(sessionId, new SavedLocation(crewId, fix.sequence, fix.trackNumber,
+                    formatTimestamp(fix.time), fix.latitude, fix.longitude));
+            storeLivePosition(crewId, sessionId, fix);
+            last = fix.sequence;
+        }
+        streamSequences.put(crewId + "\n" + sessionId, last);
+        return last;
+    }
+
+    private synchronized long getStreamSequence(long sessionId, String crewId) {
+        Long lastSequence = streamSequences.get(crewId + "\n" + sessionId);
+        return lastSequence != null ? lastSequence : 0;
+    }
+
+    private void receiveDatagrams() {
+        while (!datagramSocket.isClosed()) {
+            try {
+                byte[] data = new byte[StreamDatagramSender.MAX_DATAGRAM];
+                final DatagramPacket packet = new DatagramPacket(data, data.length);
+                datagramSocket.receive(packet);
+                final StreamDatagramSender.Position position = StreamDatagramSender.decodePosition(data, packet.getLength());
+                if ((position == null) || (Math.random() < datagramLoss)) continue;
+                long delay = datagramDelay + (long) (Math.random() * datagramJitter);
+                if (delay == 0) receiveDatagram(position, packet);
+                else datagramDelayer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        receiveDatagram(position, packet);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                // Server closed
+            }
+        }
+    }
+
+    /**
+     * Keeps the live position of a datagram, if not late, and the statistics of its session.
+     * Replies with a REPORT every REPORT_INTERVAL datagrams.
+     */
+    private void receiveDatagram(StreamDatagramSender.Position position, DatagramPacket packet) {
+        byte[] report = null;
+        int length = 0;
+        synchronized (this) {
+            DatagramSession session = datagramSessions.get(position.sessionId);
+            if (session == null) {
+                session = new DatagramSession();
+                datagramSessions.put(position.sessionId, session);
+            }
+            session.received++;
+            session.latencies.add(System.currentTimeMillis() - position.sendTime);
+            if (position.sequence > session.highestSequence) {
+                session.highestSequence = position.sequence;
+                livePositions.put(position.crewId, position.fix);
+                liveSessions.put(position.crewId, position.sessionId);
+            } else session.late++;
+            if (session.received % StreamDatagramSender.REPORT_INTERVAL == 0) {
+                report = new byte[StreamDatagramSender.MAX_DATAGRAM];
+                length = StreamDatagramSender.encodeReport(report, position.sessionId, session.received, session.highestSequence,
+                        (int) session.getLatency(50));
+            }
+        }
+        if (report != null) {
+            try {
+                datagramSocket.send(new DatagramPacket(report, length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                // Lost, as any datagram
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(new FilterInputStream(socket.getInputStream()) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) bytesReceived.addAndGet(n);
+                    return n;
+                }
+            });
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            boolean keepAlive = true;
+            while (keepAlive) {
+                String requestLine = readLine(in);
+                if ((requestLine == null) || requestLine.isEmpty()) break;
+                String[] parts = requestLine.split(" ");
+                if (parts.length < 3) break;
+                keepAlive = parts[2].equals("HTTP/1.1");
+                int contentLength = 0;
+                String contentType = null;
+                String upgrade = null;
+                String webSocketKey = null;
+                String line;
+                while (((line = readLine(in)) != null) && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon <= 0) continue;
+                    String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+                    String value = line.substring(colon + 1).trim();
+                    if (name.equals("content-length")) contentLength = Integer.parseInt(value);
+                    else if (name.equals("content-type")) contentType = value;
+                    else if (name.equals("connection")) keepAlive = !value.equalsIgnoreCase("close");
+                    else if (name.equals("upgrade")) upgrade = value;
+                    else if (name.equals("sec-websocket-key")) webSocketKey = value;
+                }
+                byte[] body = new byte[contentLength];
+                int offset = 0;
+                while (offset < contentLength) {
+                    int n = in.read(body, offset, contentLength - offset);
+                    if (n == -1) throw new IOException("Unexpected end of the body");
+                    offset += n;
+                }
+                String path = parts[1];
+                String crewId = null;
+                long sessionId = 0;
+                int query = path.indexOf('?');
+                if (query >= 0) {
+                    for (String parameter : path.substring(query + 1).split("&")) {
+                        if (parameter.startsWith("crewId=")) crewId = URLDecoder.decode(parameter.substring(7), "UTF-8");
+                        else if (parameter.startsWith("session=")) sessionId = Long.parseUnsignedLong(parameter.substring(8), 16);
+                    }
+                    path = path.substring(0, query);
+                }
+                if (parts[0].equals("GET") && path.equals(StreamChannel.PATH) && "websocket".equalsIgnoreCase(upgrade)
+                        && (webSocketKey != null) && streamSupported && (failureStatus == 0)) {
+                    serveStream(in, out, webSocketKey, sessionId, crewId);
+                    break;
+                }
+                Reply reply = handle(parts[0], path, contentType, body);
+                if (responseDelay > 0) sleep(responseDelay);
+                Long pathDelay = pathDelays.get(path);
+                if (pathDelay != null) sleep(pathDelay);
+                requestsServed.incrementAndGet();
+                String head = "HTTP/1.1 " + reply.status + " " + (reply.status == 200 ? "OK" : "Error") + "\r\n"
+                        + "Content-Type: " + reply.contentType + "\r\n"
+                        + "Content-Length: " + reply.body.length + "\r\n"
+                        + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+                out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+                out.write(reply.body);
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // Connection closed by the client
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+     * Upgrades the connection to a WebSocket and serves the frames of the StreamChannel.
+     * The server frames are a type byte followed by a big-endian value: RESUME (8 bytes) right after
+     * the handshake, then an ACK (8 bytes) for every frame of fixes; HINT (4 bytes) if set.
+     */
+    private void serveStream(InputStream in, OutputStream out, String webSocketKey, long sessionId, String crewId) throws IOException {
+        String accept;
+        try {
+            accept = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1")
+                    .digest((webSocketKey + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        streamConnections.incrementAndGet();
+        writeServerFrame(out, StreamChannel.FRAME_RESUME, getStreamSequence(sessionId, String.valueOf(crewId)), 8);
+        if (streamHint > 0) writeServerFrame(out, StreamChannel.FRAME_HINT, streamHint, 4);
+        int frames = 0;
+        while (true) {
+            int b0 = in.read();
+            int b1 = in.read();
+            if ((b0 == -1) || (b1 == -1)) return;
+            int opcode = b0 & 0x0F;
+            long length = b1 & 0x7F;
+            if (length == 126) length = readValue(in, 2);
+            else if (length == 127) length = readValue(in, 8);
+            if (((b1 & 0x80) == 0) || (length > 1 << 20)) throw new IOException("Unmasked or too big frame");
+            byte[] mask = new byte[4];
+            readFully(in, mask);
+            byte[] payload = new byte[(int) length];
+            readFully(in, payload);
+            for (int i = 0; i < payload.length; i++) payload[i] ^= mask[i & 3];
+            switch (opcode) {
+                case 0x2: {
+                    StreamBinaryCodec.Message message = StreamBinaryCodec.decode(payload);
+                    fixesDecoded.addAndGet(message.fixes.size());
+                    long last = storeStreamFixes(message.sessionId, message.crewId, message.fixes);
+                    frames++;
+                    if ((streamDropAfter > 0) && (frames >= streamDropAfter)) {
+                        streamDropAfter = 0;
+                        return;                                 // Dropped before the ACK
+                    }
+                    if (responseDelay > 0) sleep(responseDelay);
+                    writeServerFrame(out, StreamChannel.FRAME_ACK, last, 8);
+                    break;
+                }
+                case 0x8:
+                    out.write(new byte[] { (byte) 0x88, 0 });
+                    out.flush();
+                    return;
+                case 0x9:
+                    out.write(0x8A);
+                    out.write(payload.length);
+                    out.write(payload);
+                    out.flush();
+                    break;
+            }
+        }
+    }
+
+    private static void writeServerFrame(OutputStream out, byte type, long value, int size) throws IOException {
+        out.write(0x82);                                        // FIN + binary
+        out.write(1 + size);
+        out.write(type);
+        for (int i = size - 1; i >= 0; i--) out.write((int) (value >>> (8 * i)));
+        out.flush();
+    }
+
+    private static long readValue(InputStream in, int size) throws IOException {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            int b = in.read();
+            if (b == -1) throw new EOFException();
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private static void readFully(InputStream in, byte[] data) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            int n = in.read(data, offset, data.length - offset);
+            if (n == -1) throw new EOFException();
+            offset += n;
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if ((length > 0) && (sb.charAt(length - 1) == '\r')) sb.setLength(length - 1);
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Runs the measurements against a local server (the connection reuse of the BumpsViewerHttpClient
+     * is checked by the BumpsViewerHttpClientTest):
+     * - the bytes per fix of the JSON and of the binary uploads;
+     * - the per-fix latency of the separate stream + saveDebugData requests against the combined ingest one;
+     * - the throughput and the latency of the whole client stack, through an HttpUploadTransport;
+     * - the retries and the circuit breaker of the BumpsViewerResilience during a simulated brownout;
+     * - the idempotence of the uploads, and the priority of the live lane over slow debug writes;
+     * - the latency, the bytes per fix and the resume of the StreamChannel, and its fallback;
+     * - the loss rate and the one-way latency of a datagram session over a simulated lossy link.
+     * With the arguments "serve" and a port, it just serves on all the interfaces until killed.
+     */
+    public static void main(String[] args) throws Exception {
+        if ((args.length == 2) && args[0].equals("serve")) {
+            BumpsViewerLocalServer server = new BumpsViewerLocalServer(Integer.parseInt(args[1]), null);
+            server.start();
+            System.out.println("Serving on port " + args[1]);
+            Thread.sleep(Long.MAX_VALUE);
+        }
+        BumpsViewerLocalServer server = new BumpsViewerLocalServer(0);
+        server.start();
+        BumpsViewerHttpClient client = new BumpsViewerHttpClient();
+        try {
+            compareSizes(server, client);
+            compareLatencies(server, client);
+            measureClientStack(server);
+            checkResilience(server, client);
+            checkIdempotentUploads(server);
+            checkPriorityLanes(server);
+            checkShutdownDrain(server);
+            checkStreamChannel(server);
+            checkDatagrams(server);
+        } finally {
+            client.evictAll();
+            server.stop();
+        }
+    }
+
+    /**
+     * Compares the bytes per fix of the JSON and of the binary uploads of a simulated track,
+     * and checks that the binary uploads are decoded by the server without losses.
+     */
+    private static void compareSizes(BumpsViewerLocalServer server, BumpsViewerHttpClient client) throws IOException {
+        List<StreamedFix> track = simulatedTrack();
+        long jsonSingle = 0;
+        long jsonBatch = 0;
+        long binarySingle = 0;
+        long binaryBatch = 0;
+        for (int i = 0; i < FIXES; i++) {
+            StreamedFix fix = track.get(i);
+            jsonSingle += jsonSingleSize(CREW_ID, CREW_NAME, fix);
+            binarySingle += StreamBinaryCodec.encode(SESSION_ID, CREW_ID, CREW_NAME, track.subList(i, i + 1)).length * 2;
+        }
+        long decodedBefore = server.getFixesDecoded();
+        URI batchUri = server.getEndPoint().resolve("/api/data-collection/batch");
+        for (int i = 0; i < FIXES; i += BATCH) {
+            List<StreamedFix> batch = track.subList(i, Math.min(i + BATCH, FIXES));
+            jsonBatch += jsonBatchSize(CREW_ID, CREW_NAME, batch);
+            byte[] encoded = StreamBinaryCodec.encode(SESSION_ID, CREW_ID, CREW_NAME, batch);
+            binaryBatch += encoded.length * 2;
+            BumpsViewerHttpClient.Response response = client.post(batchUri, StreamBinaryCodec.CONTENT_TYPE, encoded);
+            if (response.status != 200) throw new IllegalStateException("Unexpected status " + response.status);
+        }
+        System.out.println();
+        System.out.println("Bytes per fix (stream + saveDebugData bodies, " + FIXES + " fixes):");
+        System.out.println("  JSON,   one fix per request:      " + (jsonSingle / FIXES));
+        System.out.println("  JSON,   batches of " + BATCH + ":            " + (jsonBatch / FIXES));
+        System.out.println("  Binary, one fix per request:      " + (binarySingle / FIXES));
+        System.out.println("  Binary, batches of " + BATCH + ":            " + (binaryBatch / FIXES));
+        if (server.getFixesDecoded() - decodedBefore != FIXES) throw new IllegalStateException("Fixes lost by the binary encoding");
+        List<StreamedFix> decoded = StreamBinaryCodec.decode(StreamBinaryCodec.encode(SESSION_ID, CREW_ID, CREW_NAME, track)).fixes;
+        for (int i = 0; i < FIXES; i++) {
+            if ((decoded.get(i).sequence != track.get(i).sequence) || (decoded.get(i).time != track.get(i).time)
+                    || (StreamBinaryCodec.toFixedPoint(decoded.get(i).latitude) != StreamBinaryCodec.toFixedPoint(track.get(i).latitude))
+                    || (StreamBinaryCodec.toFixedPoint(decoded.get(i).longitude) != StreamBinaryCodec.toFixedPoint(track.get(i).longitude))) {
+                throw new IllegalStateException("Fix " + i + " decoded incorrectly");
+            }
+        }
+        server.setBinaryAccepted(false);
+        if (client.post(batchUri, StreamBinaryCodec.CONTENT_TYPE, StreamBinaryCodec.encode(SESSION_ID, CREW_ID, CREW_NAME, track.subList(0, 1))).status != 415) {
+            throw new IllegalStateException("The binary encoding has not been refused");
+        }
+        server.setBinaryAccepted(true);
+    }
+
+    /**
+     * Measures the end-to-end latency of the upload of a single fix over a simulated mobile link,
+     * with the separate stream + saveDebugData requests (as before) and with the combined ingest request.
+     * Then checks the compatibility shim: a server without the ingest endpoint replies 404.
+     */
+    private static void compareLatencies(BumpsViewerLocalServer server, BumpsViewerHttpClient client) throws IOException {
+        server.setResponseDelay(SIMULATED_RTT);
+        List<StreamedFix> track = simulatedTrack().subList(0, LATENCY_FIXES);
+        URI streamUri = server.getEndPoint().resolve("/api/data-collection");
+        URI dbUri = server.getEndPoint().resolve("/db/location");
+        URI ingestUri = server.getEndPoint().resolve("/api/ingest");
+        long separateNanos = 0;
+        long combinedNanos = 0;
+        for (StreamedFix fix : track) {
+            long start = System.nanoTime();
+            client.post(streamUri, "application/json", jsonStreamBody(CREW_ID, CREW_NAME, fix).getBytes(StandardCharsets.UTF_8));
+            client.post(dbUri, "application/json", jsonDBBody(CREW_ID, fix).getBytes(StandardCharsets.UTF_8));
+            separateNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            BumpsViewerHttpClient.Response response = client.post(ingestUri, "application/json",
+                    jsonIngestBody(CREW_ID, CREW_NAME, Collections.singletonList(fix)).getBytes(StandardCharsets.UTF_8));
+            combinedNanos += System.nanoTime() - start;
+            if (response.status != 200) throw new IllegalStateException("Unexpected status " + response.status);
+        }
+        server.setResponseDelay(0);
+        System.out.println();
+        System.out.println("Per-fix upload latency (simulated RTT " + SIMULATED_RTT + " ms, " + LATENCY_FIXES + " fixes):");
+        System.out.println("  stream + saveDebugData:           " + TimeUnit.NANOSECONDS.toMillis(separateNanos / LATENCY_FIXES) + " ms");
+        System.out.println("  combined ingest:                  " + TimeUnit.NANOSECONDS.toMillis(combinedNanos / LATENCY_FIXES) + " ms");
+        server.setIngestSupported(false);
+        if (!BumpsViewerStreamHandler.isNotAccepted(client.post(ingestUri, "application/json",
+                jsonIngestBody(CREW_ID, CREW_NAME, track).getBytes(StandardCharsets.UTF_8)).status)) {
+            throw new IllegalStateException("The old server has not refused the combined ingest");
+        }
+        server.setIngestSupported(true);
+    }
+
+    /**
+     * Measures the throughput and the per-fix latency of the whole client stack (payload writer, handlers,
+     * resilience layer, keep-alive client and reply parser) against the in-memory endpoints,
+     * and checks that the stand-in received all the positions. Then executes the requests
+     * of the TeamDetailsManager.
+     */
+    private static void measureClientStack(BumpsViewerLocalServer server) throws IOException {
+        UploadTransport transport = new HttpUploadTransport(server.getEndPoint(), new BumpsViewerHttpClient());
+        List<StreamedFix> track = simulatedTrack().subList(0, STACK_FIXES);
+        server.clearPositions();
+
+        long[] latencies = new long[STACK_FIXES];
+        long start = System.nanoTime();
+        for (int i = 0; i < STACK_FIXES; i++) {
+            StreamedFix fix = track.get(i);
+            long fixStart = System.nanoTime();
+            if (!BumpsViewerStreamHandler.isStatusOk(BumpsViewerStreamHandler.sendLocation(transport, SESSION_ID, CREW_ID, CREW_NAME, fix))
+                    || !BumpsViewerStreamHandler.isStatusOk(BumpsViewerDBHandler.saveDebugData(transport, SESSION_ID, CREW_ID, fix))) {
+                throw new IllegalStateException("Upload of fix " + i + " failed");
+            }
+            latencies[i] = System.nanoTime() - fixStart;
+        }
+        long separateNanos = System.nanoTime() - start;
+        long duplicatesBefore = server.getDuplicateLocations();
+        start = System.nanoTime();
+        for (int i = 0; i < STACK_FIXES; i += BATCH) {
+            if (!BumpsViewerStreamHandler.isStatusOk(BumpsViewerStreamHandler.ingest(transport, SESSION_ID, CREW_ID, CREW_NAME,
+                    track.subList(i, Math.min(i + BATCH, STACK_FIXES))))) {
+                throw new IllegalStateException("Ingest of fix " + i + " failed");
+            }
+        }
+        long ingestNanos = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        System.out.println();
+        System.out.println("Client stack through the HttpUploadTransport (" + STACK_FIXES + " fixes, loopback):");
+        System.out.println("  stream + saveDebugData:           " + (STACK_FIXES * 1000000000L / separateNanos) + " fixes/s, latency p50 "
+                + percentile(latencies, 50) + " us, p95 " + percentile(latencies, 95) + " us, p99 " + percentile(latencies, 99) + " us");
+        System.out.println("  combined ingest, batches of " + BATCH + ":    " + (STACK_FIXES * 1000000000L / ingestNanos) + " fixes/s"
+                + " (the same fixes again: " + (server.getDuplicateLocations() - duplicatesBefore) + " duplicates not stored)");
+        StreamedFix last = track.get(STACK_FIXES - 1);
+        StreamedFix live = server.getLivePosition(CREW_ID);
+        if ((server.getSavedLocations() != STACK_FIXES) || (server.getDuplicateLocations() - duplicatesBefore != STACK_FIXES) || (live == null)
+                || (Math.abs(live.latitude - last.latitude) > 1e-7) || (Math.abs(live.longitude - last.longitude) > 1e-7)) {
+            throw new IllegalStateException("Positions lost: " + server.getSavedLocations() + " saved");
+        }
+
+        // The requests of the TeamDetailsManager.
+        // The body of validateTeamInfo is built with org.json, that is not available on the JVM: it is posted directly.
+        Object divisions = BumpsViewerDBHandler.request(transport, "getDivisions");
+        byte[] teamRequest = ("{\"crew_name\":\"" + CREW_NAME + "\",\"division\":\"" + DIVISION + "\"}").getBytes(StandardCharsets.UTF_8);
+        BumpsViewerHttpClient.Response team = transport.post("/db/team/name", "application/json", teamRequest, teamRequest.length);
+        System.out.println("  divisions:                        " + divisions);
+        System.out.println("  team:                             " + team.getBodyAsString());
+        if (!(divisions instanceof JSONArray) || !((JSONArray) divisions).contains(DIVISION) || !team.getBodyAsString().contains(CREW_ID)) {
+            throw new IllegalStateException("Unexpected team or divisions");
+        }
+
+        // The metrics recorded by the HttpUploadTransport
+        StreamMetrics metrics = StreamMetrics.getInstance();
+        StreamMetrics.Histogram ingestLatency = metrics.getRequestLatencyHistogram("/api/ingest");
+        StringBuilder report = new StringBuilder();
+        metrics.appendTo(report);
+        System.out.println("  metrics:");
+        for (String line : report.toString().split("\n")) System.out.println("    " + line);
+        if ((ingestLatency == null) || (ingestLatency.getCount() != STACK_FIXES / BATCH) || (metrics.getStatusCount(200) < 2 * STACK_FIXES)) {
+            throw new IllegalStateException("Requests missing from the metrics");
+        }
+    }
+
+    /**
+     * @return the given percentile of the sorted latencies, in microseconds
+     */
+    private static long percentile(long[] sortedLatencies, int percentile) {
+        int index = Math.min(sortedLatencies.length - 1, sortedLatencies.length * percentile / 100);
+        return TimeUnit.NANOSECONDS.toMicros(sortedLatencies[index]);
+    }
+
+    /**
+     * Uploads a track with all the kinds of requests at once (single, batch and ingest, JSON and binary),
+     * in random order, from several threads, and every request twice as if retried. Then checks that
+     * the stand-in stored every fix exactly once, in the order of the sequence, with the time of the fix,
+     * and that the live position is the newest fix.
+     */
+    private static void checkIdempotentUploads(BumpsViewerLocalServer server) throws Exception {
+        final UploadTransport transport = new HttpUploadTransport(server.getEndPoint(), new BumpsViewerHttpClient());
+        final long sessionId = new Random().nextLong();
+        final List<StreamedFix> track = simulatedTrack().subList(0, IDEMPOTENT_FIXES);
+        server.clearPositions();
+        long duplicatesBefore = server.getDuplicateLocations();
+        long staleBefore = server.getStaleLivePositions();
+
+        List<Callable<Boolean>> requests = new ArrayList<>();
+        for (int i = 0; i < IDEMPOTENT_FIXES; i += BATCH) {
+            final List<StreamedFix> fixes = track.subList(i, Math.min(i + BATCH, IDEMPOTENT_FIXES));
+            final byte[] encodedFixes = StreamBinaryCodec.encode(sessionId, CREW_ID, CREW_NAME, fixes);
+            for (int attempt = 0; attempt < 2; attempt++) {
+                requests.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return BumpsViewerStreamHandler.isStatusOk(BumpsViewerStreamHandler.ingest(transport, sessionId, CREW_ID, CREW_NAME, fixes));
+                    }
+                });
+                requests.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return BumpsViewerStreamHandler.isStatusOk(BumpsViewerStreamHandler.ingestEncoded(transport, encodedFixes));
+                    }
+                });
+                requests.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return BumpsViewerStreamHandler.isStatusOk(BumpsViewerDBHandler.saveDebugData(transport, sessionId, CREW_ID, fixes));
+                    }
+                });
+                requests.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return BumpsViewerStreamHandler.isStatusOk(BumpsViewerDBHandler.saveDebugData(transport, sessionId, CREW_ID, fixes.get(0)))
+                                && BumpsViewerStreamHandler.isStatusOk(BumpsViewerStreamHandler.sendLocation(transport, sessionId, CREW_ID, CREW_NAME, fixes.get(0)));
+                    }
+                });
+            }
+        }
+        Collections.shuffle(requests, new Random(1));
+        ExecutorService threads = Executors.newFixedThreadPool(UPLOAD_THREADS);
+        try {
+            for (Future<Boolean> result : threads.invokeAll(requests)) {
+                if (!result.get()) throw new IllegalStateException("Upload failed");
+            }
+        } finally {
+            threads.shutdown();
+        }
+
+        List<SavedLocation> saved = server.getSavedLocations(CREW_ID);
+        for (int i = 0; i < saved.size(); i++) {
+            SavedLocation location = saved.get(i);
+            StreamedFix fix = track.get(Math.min(i, IDEMPOTENT_FIXES - 1));
+            if ((location.sequence != fix.sequence) || (Math.abs(location.latitude - fix.latitude) > 1e-7)
+                    || !location.timestamp.equals(formatTimestamp(fix.time))) {
+                throw new IllegalStateException("Fix " + location.sequence + " at " + location.timestamp + " stored in place of " + fix.sequence);
+            }
+        }
+        StreamedFix live = server.getLivePosition(CREW_ID);
+        System.out.println();
+        System.out.println("Idempotent uploads: " + requests.size() + " requests (every one twice, shuffled) on " + UPLOAD_THREADS + " threads:");
+        System.out.println("  " + saved.size() + " of " + IDEMPOTENT_FIXES + " fixes stored in order, "
+                + (server.getDuplicateLocations() - duplicatesBefore) + " duplicates and "
+                + (server.getStaleLivePositions() - staleBefore) + " stale live positions discarded, live position " + (live != null ? live.sequence : "-"));
+        if ((saved.size() != IDEMPOTENT_FIXES) || (live == null) || (live.sequence != IDEMPOTENT_FIXES)) {
+            throw new IllegalStateException("Fixes lost or live position not the newest");
+        }
+    }
+
+    /**
+     * Streams a track through a StreamLocationManager while the persistence requests (ingest and debug data)
+     * are slow, and measures the time from every fix to the live position of the server reaching it:
+     * the live lane of the LocationUploader overtakes the chunks of the bulk lane.
+     * Then checks that every fix has been saved once the backlog is drained.
+     */
+    private static void checkPriorityLanes(BumpsViewerLocalServer server) throws Exception {
+        String[] persistencePaths = { "/api/ingest", "/db/location", "/db/location/batch" };
+        server.clearPositions();
+        for (String path : persistencePaths) server.setPathDelay(path, PERSISTENCE_DELAY);
+        StreamLocationManager manager = new StreamLocationManager();
+        manager.setCrewSource(new StreamLocationManager.CrewSource() {
+            @Override
+            public String getCrewId() {
+                return CREW_ID;
+            }
+
+            @Override
+            public String getCrewName() {
+                return CREW_NAME;
+            }
+        });
+        manager.setTransport(new HttpUploadTransport(server.getEndPoint(), new BumpsViewerHttpClient()));
+        List<StreamedFix> track = simulatedTrack().subList(0, LANES_FIXES);
+        long[] offerTimes = new long[LANES_FIXES];
+        long[] liveDelays = new long[LANES_FIXES];
+        int reached = 0;                                                // The fixes reached by the live position of the server
+        int offered = 0;
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + LANES_FIXES * LANES_INTERVAL + 20000;
+        try {
+            while ((reached < LANES_FIXES) && (System.currentTimeMillis() < deadline)) {
+                if ((offered < LANES_FIXES) && (System.nanoTime() >= start + TimeUnit.MILLISECONDS.toNanos(offered * LANES_INTERVAL))) {
+                    StreamedFix fix = track.get(offered);
+                    offerTimes[offered++] = System.nanoTime();
+                    manager.streamLocationData(System.currentTimeMillis(), fix.latitude, fix.longitude,
+                            GPSApplication.NOT_AVAILABLE, GPSApplication.NOT_AVAILABLE);
+                }
+                StreamedFix live = server.getLivePosition(CREW_ID);
+                long now = System.nanoTime();
+                while ((live != null) && (reached < offered) && (live.sequence > reached)) {
+                    liveDelays[reached] = now - offerTimes[reached];
+                    reached++;
+                }
+                sleep(1);
+            }
+            while ((manager.getNumberOfPendingFixes() > 0) && (System.currentTimeMillis() < deadline)) sleep(10);
+        } finally {
+            manager.getLocationUploader().shutdown();
+            for (String path : persistencePaths) server.setPathDelay(path, 0);
+        }
+        LocationUploader uploader = manager.getLocationUploader();
+        int saved = server.getSavedLocations(CREW_ID).size();
+        Arrays.sort(liveDelays, 0, reached);
+        System.out.println();
+        System.out.println("Priority lanes (" + LANES_FIXES + " fixes, one every " + LANES_INTERVAL + " ms, debug writes "
+                + PERSISTENCE_DELAY + " ms):");
+        System.out.println("  fix to live position:             p50 " + percentile(liveDelays, 50) + " us, p99 " + percentile(liveDelays, 99)
+                + " us, max " + TimeUnit.NANOSECONDS.toMicros(liveDelays[LANES_FIXES - 1]) + " us");
+        System.out.println("  live lane:                        " + uploader.getCompletedJobs(LocationUploader.LANE_LIVE) + " jobs");
+        System.out.println("  bulk lane:                        " + uploader.getCompletedJobs(LocationUploader.LANE_BULK) + " jobs, "
+                + saved + " of " + LANES_FIXES + " fixes saved");
+        if ((reached != LANES_FIXES) || (saved != LANES_FIXES) || (percentile(liveDelays, 99) >= PERSISTENCE_DELAY * 1000)) {
+            throw new IllegalStateException("The live position waited for the debug writes, or fixes lost");
+        }
+    }
+
+    /**
+     * Appends SHUTDOWN_FIXES fixes to a persistent outbox, faster than they can be uploaded, then stops
+     * the streaming with drainAndStop() and checks that:
+     * - it returns by the deadline, although the uploads are not finished;
+     * - every fix has been either saved by the server or left into the outbox file, for the next start.
+     */
+    private static void checkShutdownDrain(BumpsViewerLocalServer server) throws Exception {
+        String[] persistencePaths = { "/api/ingest", "/db/location", "/db/location/batch" };
+        server.clearPositions();
+        for (String path : persistencePaths) server.setPathDelay(path, SHUTDOWN_UPLOAD_DELAY);
+        File file = File.createTempFile("outbox", ".dat");
+        file.delete();
+        StreamLocationManager manager = new StreamLocationManager();
+        manager.setCrewSource(new StreamLocationManager.CrewSource() {
+            @Override
+            public String getCrewId() {
+                return CREW_ID;
+            }
+
+            @Override
+            public String getCrewName() {
+                return CREW_NAME;
+            }
+        });
+        manager.setTransport(new HttpUploadTransport(server.getEndPoint(), new BumpsViewerHttpClient()));
+        manager.openOutbox(file);
+        List<StreamedFix> track = simulatedTrack().subList(0, SHUTDOWN_FIXES);
+        int deferred;
+        long elapsed;
+        int replayed;
+        try {
+            long time = System.currentTimeMillis();
+            for (StreamedFix fix : track) {
+                manager.streamLocationData(time++, fix.latitude, fix.longitude, GPSApplication.NOT_AVAILABLE, GPSApplication.NOT_AVAILABLE);
+            }
+            long start = System.currentTimeMillis();
+            deferred = manager.drainAndStop(start + SHUTDOWN_DEADLINE);
+            elapsed = System.currentTimeMillis() - start;
+            sleep(SHUTDOWN_UPLOAD_DELAY * 3);                           // The requests abandoned in flight end
+            replayed = StreamOutbox.open(file, StreamOutbox.DEFAULT_CAPACITY).size();
+        } finally {
+            for (String path : persistencePaths) server.setPathDelay(path, 0);
+            file.delete();
+        }
+        int saved = server.getSavedLocations(CREW_ID).size();
+        System.out.println();
+        System.out.println("Shutdown drain (" + SHUTDOWN_FIXES + " fixes pending, uploads of " + SHUTDOWN_UPLOAD_DELAY
+                + " ms, deadline " + SHUTDOWN_DEADLINE + " ms):");
+        System.out.println("  stopped in " + elapsed + " ms: " + (SHUTDOWN_FIXES - deferred) + " fixes uploaded, " + deferred
+                + " deferred; " + saved + " saved by the server, " + replayed + " to replay at the next start");
+        if ((elapsed > SHUTDOWN_DEADLINE + SHUTDOWN_UPLOAD_DELAY) || (deferred == 0) || (replayed > deferred)
+                || (saved + replayed < SHUTDOWN_FIXES)) {
+            throw new IllegalStateException("The shutdown missed its deadline, or fixes lost");
+        }
+    }
+
+    /**
+     * Simulates a brownout (all the replies are 503) and checks that the calls are retried,
+     * that the circuit opens after FAILURE_THRESHOLD failures and that then the calls are short-circuited
+     * without reaching the server, while the breaker of another class of endpoints stays closed.
+     */
+    private static void checkResilience(BumpsViewerLocalServer server, final BumpsViewerHttpClient client) throws IOException {
+        BumpsViewerResilience resilience = new BumpsViewerResilience(client, "uploads");
+        BumpsViewerResilience teamResilience = new BumpsViewerResilience(client, "team");
+        final URI uri = server.getEndPoint().resolve("/api/ingest");
+        final byte[] body = jsonIngestBody(CREW_ID, CREW_NAME, simulatedTrack().subList(0, 1)).getBytes(StandardCharsets.UTF_8);
+        BumpsViewerResilience.Call call = new BumpsViewerResilience.Call() {
+            @Override
+            public BumpsViewerHttpClient.Response execute() throws IOException {
+                return client.post(uri, "application/json", body);
+            }
+        };
+        server.setFailureStatus(503);
+        long requestsBefore = server.getRequestsServed();
+        long start = System.nanoTime();
+        int shortCircuited = 0;
+        for (int i = 0; i < 10; i++) {
+            try {
+                resilience.execute(call);
+            } catch (BumpsViewerResilience.CircuitOpenException e) {
+                shortCircuited++;
+            }
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        server.setFailureStatus(0);
+        int teamStatus = teamResilience.execute(call, 1).status;
+        System.out.println();
+        System.out.println("Brownout (10 calls, all the replies 503):");
+        System.out.println("  requests reaching the server:     " + (server.getRequestsServed() - requestsBefore));
+        System.out.println("  retries:                          " + resilience.getRetries());
+        System.out.println("  short-circuited calls:            " + resilience.getShortCircuitedCalls());
+        System.out.println("  circuit state:                    " + (resilience.getState() == BumpsViewerResilience.STATE_OPEN ? "open" : "not open"));
+        System.out.println("  total time:                       " + elapsedMillis + " ms");
+        System.out.println("  other circuit, after the brownout: HTTP " + teamStatus + ", "
+                + (teamResilience.getState() == BumpsViewerResilience.STATE_CLOSED ? "closed" : "not closed"));
+        if ((resilience.getState() != BumpsViewerResilience.STATE_OPEN) || (shortCircuited == 0)
+                || (server.getRequestsServed() - requestsBefore != BumpsViewerResilience.FAILURE_THRESHOLD + 1)) {
+            throw new IllegalStateException("The circuit breaker did not open as expected");
+        }
+        if ((teamStatus != 200) || (teamResilience.getState() != BumpsViewerResilience.STATE_CLOSED)) {
+            throw new IllegalStateException("The open circuit of a class of endpoints refused the calls of another one");
+        }
+    }
+
+    /**
+     * Collects the messages of a StreamChannel, for the checks.
+     */
+    private static class ChannelEvents implements StreamChannel.Listener {
+        static final long CLOSED = -1;
+
+        final BlockingQueue<long[]> events = new LinkedBlockingQueue<>();     // { type, value }, type CLOSED when closed
+        volatile long hint;
+
+        @Override
+        public void onResume(StreamChannel channel, long sequence) {
+            events.add(new long[] { StreamChannel.FRAME_RESUME, sequence });
+        }
+
+        @Override
+        public void onAcknowledged(StreamChannel channel, long sequence) {
+            events.add(new long[] { StreamChannel.FRAME_ACK, sequence });
+        }
+
+        @Override
+        public void onHint(StreamChannel channel, long interval) {
+            hint = interval;
+        }
+
+        @Override
+        public void onClosed(StreamChannel channel, IOException cause) {
+            events.add(new long[] { CLOSED, 0 });
+        }
+
+        /**
+         * @return the next event, failing if none arrives within 5 seconds
+         */
+        long[] next() throws IOException {
+            try {
+                long[] event = events.poll(5, TimeUnit.SECONDS);
+                if (event == null) throw new IOException("No reply on the channel");
+                return event;
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Checks the StreamChannel against the /api/stream endpoint:
+     * - the latency from the send of a fix to its ACK (one fix every CHANNEL_INTERVAL), on the loopback
+     *   and over the simulated mobile link, against a combined ingest request per fix;
+     * - the bytes per fix on the wire of a frame and of an ingest request;
+     * - the resume after a dropped connection: the client sends again only the fixes not stored,
+     *   and the server receives them all, without gaps or duplicates;
+     * - the rejection of the handshake by an older server, that makes the client fall back to the requests.
+     */
+    private static void checkStreamChannel(BumpsViewerLocalServer server) throws IOException {
+        BumpsViewerHttpClient client = new BumpsViewerHttpClient();
+        UploadTransport transport = new HttpUploadTransport(server.getEndPoint(), client);
+        List<StreamedFix> track = simulatedTrack().subList(0, LATENCY_FIXES);
+        System.out.println();
+        System.out.println("Streaming channel (" + LATENCY_FIXES + " fixes, one every " + CHANNEL_INTERVAL + " ms):");
+        long[] channelBytes = new long[1];
+        long[] ingestBytes = new long[1];
+        for (long delay : new long[] { 0, SIMULATED_RTT }) {
+            server.clearPositions();
+            server.setResponseDelay(delay);
+            long[] channelLatencies = measureChannel(server, client, track, channelBytes);
+            long[] ingestLatencies = new long[LATENCY_FIXES];
+            long bytesBefore = server.getBytesReceived();
+            for (int i = 0; i < LATENCY_FIXES; i++) {
+                long start = System.nanoTime();
+                if (!BumpsViewerStreamHandler.isStatusOk(BumpsViewerStreamHandler.ingest(transport, SESSION_ID, CREW_ID, CREW_NAME, track.subList(i, i + 1)))) {
+                    throw new IllegalStateException("Ingest of fix " + i + " failed");
+                }
+                ingestLatencies[i] = System.nanoTime() - start;
+                sleep(CHANNEL_INTERVAL);
+            }
+            ingestBytes[0] = server.getBytesReceived() - bytesBefore;
+            Arrays.sort(ingestLatencies);
+            String link = delay == 0 ? "loopback" : "simulated RTT " + delay + " ms";
+            System.out.println("  send to ACK, " + link + ":" + spaces(26 - link.length()) + "p50 " + percentile(channelLatencies, 50)
+                    + " us, p95 " + percentile(channelLatencies, 95) + " us, p99 " + percentile(channelLatencies, 99) + " us");
+            System.out.println("  ingest request, " + link + ":" + spaces(23 - link.length()) + "p50 " + percentile(ingestLatencies, 50)
+                    + " us, p95 " + percentile(ingestLatencies, 95) + " us, p99 " + percentile(ingestLatencies, 99) + " us");
+        }
+        server.setResponseDelay(0);
+        System.out.println("  bytes per fix on the wire:        channel frame " + (channelBytes[0] / LATENCY_FIXES)
+                + " B, JSON ingest request " + (ingestBytes[0] / LATENCY_FIXES) + " B");
+
+        // Resume after a dropped connection
+        server.clearPositions();
+        server.setStreamDropAfter(7);
+        server.setStreamHint(2000);
+        long connectionsBefore = server.getStreamConnections();
+        long duplicatesBefore = server.getStreamDuplicates();
+        long gapsBefore = server.getStreamGaps();
+        StreamOutbox outbox = StreamOutbox.inMemory(StreamOutbox.DEFAULT_CAPACITY);
+        for (StreamedFix fix : simulatedTrack().subList(0, RESUME_FIXES)) {
+            outbox.append(CREW_ID, CREW_NAME, fix.time, fix.latitude, fix.longitude, fix.trackNumber);
+        }
+        long resumedAfter = 0;
+        long hint = 0;
+        while (outbox.size() > 0) {
+            ChannelEvents events = new ChannelEvents();                 // A listener per connection, not to mix their events
+            StreamChannel channel = StreamChannel.open(server.getEndPoint(), SESSION_ID, CREW_ID, client, events);
+            long[] event = events.next();
+            if (event[0] != StreamChannel.FRAME_RESUME) throw new IllegalStateException("No RESUME after the handshake");
+            if (event[1] > 0) {
+                outbox.acknowledge(event[1]);
+                resumedAfter = event[1];
+            }
+            // Pipelined frames of 10 fixes, up to 5 frames in flight
+            long lastSent = event[1];
+            while (channel.isOpen() && (outbox.size() > 0)) {
+                List<StreamedFix> fixes = outbox.peek(50);
+                for (int i = 0; i < fixes.size(); i += 10) {
+                    List<StreamedFix> frame = fixes.subList(i, Math.min(i + 10, fixes.size()));
+                    if (frame.get(frame.size() - 1).sequence <= lastSent) continue;
+                    byte[] message = StreamBinaryCodec.encode(SESSION_ID, CREW_ID, CREW_NAME, frame);
+                    try {
+                        channel.send(message, message.length);
+                    } catch (IOException e) {
+                        break;
+                    }
+                    lastSent = frame.get(frame.size() - 1).sequence;
+                }
+                event = events.next();
+                if (event[0] == ChannelEvents.CLOSED) break;
+                outbox.acknowledge(event[1]);
+            }
+            channel.close();
+            hint = Math.max(hint, events.hint);
+        }
+        server.setStreamHint(0);
+        StreamedFix live = server.getLivePosition(CREW_ID);
+        System.out.println("  resume after a dropped connection: " + server.getSavedLocations() + " of " + RESUME_FIXES + " fixes stored, "
+                + (server.getStreamConnections() - connectionsBefore) + " connections, "
+                + (server.getStreamDuplicates() - duplicatesBefore) + " duplicates, " + (server.getStreamGaps() - gapsBefore) + " gaps"
+                + ", resumed after " + resumedAfter + ", hint " + hint + " ms");
+        if ((server.getSavedLocations() != RESUME_FIXES) || (server.getStreamGaps() != gapsBefore)
+                || (server.getStreamDuplicates() != duplicatesBefore) || (server.getStreamConnections() - connectionsBefore != 2)
+                || (live == null) || (live.sequence != RESUME_FIXES) || (hint != 2000)) {
+            throw new IllegalStateException("Fixes lost or duplicated across the reconnection");
+        }
+
+        // An older server
+        server.setStreamSupported(false);
+        try {
+            StreamChannel.open(server.getEndPoint(), SESSION_ID, CREW_ID, client, new ChannelEvents()).close();
+            throw new IllegalStateException("The old server has not refused the channel");
+        } catch (StreamChannel.HandshakeRejectedException e) {
+            System.out.println("  older server:                     handshake rejected with HTTP " + e.status + ", fall back to the requests");
+        } finally {
+            server.setStreamSupported(true);
+            client.evictAll();
+        }
+    }
+
+    /**
+     * Sends DATAGRAMS live positions with a StreamDatagramSender, one every DATAGRAM_INTERVAL,
+     * over a simulated link with 5% of loss and 30-50 ms of one-way delay, and compares the statistics
+     * of the session measured by the server with the ones reported to the sender.
+     */
+    private static void checkDatagrams(BumpsViewerLocalServer server) throws IOException {
+        server.setDatagramLink(0.05, 30, 20);
+        List<StreamedFix> track = simulatedTrack().subList(0, DATAGRAMS);
+        StreamDatagramSender sender = new StreamDatagramSender(server.getEndPoint(), 0);
+        try {
+            for (StreamedFix fix : track) {
+                sender.offer(CREW_ID, fix);
+                sleep(DATAGRAM_INTERVAL);
+            }
+            sleep(500);                                         // The last datagrams and reports
+            DatagramSession session = server.getDatagramSession(sender.getSessionId());
+            StreamDatagramSender.Report report = sender.getLastReport();
+            System.out.println();
+            System.out.println("Datagram session (" + DATAGRAMS + " positions, one every " + DATAGRAM_INTERVAL
+                    + " ms, simulated 5% loss and 30-50 ms delay):");
+            System.out.println("  sent:                             " + sender.getDatagramsSent() + " datagrams, "
+                    + (sender.getBytesSent() / Math.max(1, sender.getDatagramsSent())) + " B each, "
+                    + sender.getConflatedPositions() + " conflated");
+            if (session == null) throw new IllegalStateException("No datagram received");
+            synchronized (server) {
+                System.out.println("  received by the server:           " + session.received + ", loss "
+                        + String.format(Locale.US, "%.1f%%", session.getLossRate() * 100) + ", " + session.late + " late discarded");
+                System.out.println("  one-way latency:                  p50 " + session.getLatency(50) + " ms, p95 " + session.getLatency(95)
+                        + " ms, p99 " + session.getLatency(99) + " ms");
+            }
+            System.out.println("  " + sender.getSummary());
+            if ((report == null) || (session.getLossRate() < 0.01) || (session.getLossRate() > 0.12)
+                    || (session.getLatency(50) < 30) || (session.getLatency(50) > 60) || (server.getLivePosition(CREW_ID) == null)) {
+                throw new IllegalStateException("Unexpected datagram statistics");
+            }
+        } finally {
+            sender.close();
+            server.setDatagramLink(0, 0, 0);
+        }
+    }
+
+    /**
+     * Sends the fixes over a StreamChannel, one frame every CHANNEL_INTERVAL, waiting for the ACK of each one.
+     *
+     * @param bytes returns the bytes received by the server for the frames
+     * @return the sorted latencies from the send to the ACK, in nanoseconds
+     */
+    private static long[] measureChannel(BumpsViewerLocalServer server, BumpsViewerHttpClient client, List<StreamedFix> track,
+                                         long[] bytes) throws IOException {
+        ChannelEvents events = new ChannelEvents();
+        StreamChannel channel = StreamChannel.open(server.getEndPoint(), SESSION_ID, CREW_ID, client, events);
+        try {
+            if (events.next()[0] != StreamChannel.FRAME_RESUME) throw new IllegalStateException("No RESUME after the handshake");
+            long[] latencies = new long[track.size()];
+            long bytesBefore = server.getBytesReceived();
+            for (int i = 0; i < track.size(); i++) {
+                byte[] message = StreamBinaryCodec.encode(SESSION_ID, CREW_ID, CREW_NAME, track.subList(i, i + 1));
+                long start = System.nanoTime();
+                channel.send(message, message.length);
+                long[] event = events.next();
+                latencies[i] = System.nanoTime() - start;
+                if ((event[0] != StreamChannel.FRAME_ACK) || (event[1] != track.get(i).sequence)) {
+                    throw new IllegalStateException("Unexpected reply to fix " + i);
+                }
+                sleep(CHANNEL_INTERVAL);
+            }
+            bytes[0] = server.getBytesReceived() - bytesBefore;
+            Arrays.sort(latencies);
+            return latencies;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the given time formatted as ISO 8601 UTC timestamp, with milliseconds, as the StreamPayloadWriter writes it
+     */
+    static String formatTimestamp(long time) {
+        DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return df.format(new Date(time));
+    }
+
+    private static String spaces(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) sb.append(' ');
+        return sb.toString();
+    }
+
+    /**
+     * @return a simulated track: a boat at ~4 m/s, one fix per second
+     */
+    static List<StreamedFix> simulatedTrack() {
+        List<StreamedFix> track = new ArrayList<>(FIXES);
+        for (int i = 0; i < FIXES; i++) {
+            track.add(new StreamedFix(i + 1, 1700000000000L + i * 1000L,
+                    52.2053 + i * 0.000025 + Math.sin(i / 20.0) * 0.00001, 0.1218 + i * 0.000031, 1));
+        }
+        return track;
+    }
+
+    // The JSON bodies below mirror the ones built by the handlers with org.json,
+    // that is not available on the JVM (the methods of the Android stubs throw).
+
+    private static String jsonStreamBody(String crewId, String crewName, StreamedFix fix) {
+        return "{\"crewId\":\"" + crewId + "\",\"crewName\":\"" + crewName + "\",\"latitude\":" + fix.latitude
+                + ",\"longitude\":" + fix.longitude + "}";
+    }
+
+    private static String jsonDBBody(String crewId, StreamedFix fix) {
+        return "{\"crew_id\":\"" + crewId + "\",\"track_num\":" + fix.trackNumber + ",\"timestamp\":\"2023-11-14T22:13:20Z\",\"latitude\":"
+                + fix.latitude + ",\"longitude\":" + fix.longitude + "}";
+    }
+
+    private static String jsonIngestBody(String crewId, String crewName, List<StreamedFix> fixes) {
+        StringBuilder body = new StringBuilder("{\"crewId\":\"" + crewId + "\",\"crewName\":\"" + crewName + "\",\"fixes\":[");
+        for (StreamedFix fix : fixes) {
+            if (fix != fixes.get(0)) body.append(',');
+            body.append("{\"sequence\":").append(fix.sequence)
+                    .append(",\"timestamp\":\"").append(formatTimestamp(fix.time))
+                    .append("\",\"latitude\":").append(fix.latitude).append(",\"longitude\":").append(fix.longitude)
+                    .append(",\"track_num\":").append(fix.trackNumber).append('}');
+        }
+        return body.append("]}").toString();
+    }
+
+    /**
+     * @return the size of the JSON bodies of the stream and saveDebugData requests of a single fix
+     */
+    private static int jsonSingleSize(String crewId, String crewName, StreamedFix fix) {
+        return jsonStreamBody(crewId, crewName, fix).length() + jsonDBBody(crewId, fix).length();
+    }
+
+    /**
+     * @return the size of the JSON bodies of the batched stream and saveDebugData requests
+     */
+    private static int jsonBatchSize(String crewId, String crewName, List<StreamedFix> fixes) {
+        StringBuilder stream = new StringBuilder("{\"crewId\":\"" + crewId + "\",\"crewName\":\"" + crewName + "\",\"fixes\":[");
+        StringBuilder db = new StringBuilder("{\"crew_id\":\"" + crewId + "\",\"locations\":[");
+        for (StreamedFix fix : fixes) {
+            stream.append("{\"latitude\":").append(fix.latitude).append(",\"longitude\":").append(fix.longitude)
+                    .append(",\"timestamp\":\"").append(formatTimestamp(fix.time)).append("\"},");
+            db.append("{\"track_num\":").append(fix.trackNumber).append(",\"timestamp\":\"").append(formatTimestamp(fix.time))
+                    .append("\",\"latitude\":").append(fix.latitude).append(",\"longitude\":").append(fix.longitude).append("},");
+        }
+        return stream.length() + 1 + db.length() + 1;
+    }
+}
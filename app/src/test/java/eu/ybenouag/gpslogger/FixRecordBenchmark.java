@@ -0,0 +1,154 @@
+package eu.ybenouag.gpslogger;
+
+import android.location.Location;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Measures the bytes allocated per fix on the path from onLocationChanged() to the track statistics,
+ * the hand-off excluded (see AsyncTODOBenchmark), on a single thread:
+ * - as before the FixRecords: a new LocationExtended in onLocationChanged(), another one in the
+ *   AsyncUpdateThread, and two temp Locations for the distance in Track.add();
+ * - with the FixRecords: one taken from the pool, copied into prevFix, prevRecordedFix and the
+ *   current fix, the distance computed by FixRecord.distanceTo(), then recycled.
+ * <p>
+ * The Locations are FixRecordTest.PlainLocations, as the Location of the unit tests has no values.
+ * The adapters and the distance of the FixRecords are checked by FixRecordTest.
+ * <p>
+ * Run main() from the IDE (unit test classpath).
+ */
+public class FixRecordBenchmark {
+
+    private static final int FIXES              = 2000000;  // The fixes per round
+    private static final int ROUNDS             = 3;        // The measured rounds (after one of warm up)
+    private static final int RATE               = 10;       // The fixes per second; one every RATE is recorded
+
+    private static double sink;                             // Keeps the results alive
+
+    // The fixes kept between two calls, as the fields of GPSApplication
+    private static LocationExtended prevLocationExtended;
+    private static LocationExtended prevRecordedLocationExtended;
+    private static LocationExtended currentLocationExtended;
+    private static FixRecord prevFix;
+    private static FixRecord prevRecordedFix;
+    private static final FixRecord currentFix = new FixRecord();
+
+    public static void main(String[] args) {
+        System.out.println(String.format(Locale.US, "%-52s %10s %12s", "Listener to track statistics, per fix (" + RATE + " Hz)",
+                "ns/fix", "bytes/fix"));
+        for (int round = 0; round <= ROUNDS; round++) {
+            long[] legacy = measureLegacy();
+            long[] records = measureRecords();
+            if (round == ROUNDS) {
+                print("new LocationExtended x2 + temp Locations", legacy);
+                print("FixRecord pool", records);
+                System.out.println(String.format(Locale.US, "%-52s %10s %12s", "garbage per hour at " + RATE + " Hz", "",
+                        (legacy[1] * RATE * 3600 / FIXES / 1024) + " -> " + (records[1] * RATE * 3600 / FIXES / 1024) + " KiB"));
+                System.out.println(String.format(Locale.US, "%d FixRecords allocated by the pool (%.0f m)", FixRecord.getAllocatedRecords(), sink));
+                if (records[1] / (double) FIXES >= 1) throw new IllegalStateException("The FixRecords allocate");
+            }
+        }
+    }
+
+    private static void print(String name, long[] measure) {
+        System.out.println(String.format(Locale.US, "%-52s %10.1f %12.1f", name,
+                measure[0] / (double) FIXES, measure[1] / (double) FIXES));
+    }
+
+    /**
+     * @return the fix of the given index: 1 m/s eastward, with or without the optional values
+     */
+    private static Location setFix(Location location, int fix) {
+        location.reset();
+        location.setLatitude(45.0);
+        location.setLongitude(9.0 + fix * 1.27e-5);
+        location.setTime(1700000000000L + fix * 100L);
+        if (fix % 7 != 0) location.setAltitude(120 + fix % 13);
+        if (fix % 5 != 0) location.setSpeed(fix % 3);
+        if (fix % 3 != 0) location.setBearing(90);
+        if (fix % 11 != 0) location.setAccuracy(4);
+        return location;
+    }
+
+    // ------------------------------------------------------------------------- Allocations
+
+    /**
+     * onLocationChanged(), the AsyncUpdateThread and the distance of Track.add(), as before the FixRecords.
+     *
+     * @return the time, in nanoseconds, and the bytes allocated
+     */
+    private static long[] measureLegacy() {
+        Location location = setFix(new FixRecordTest.PlainLocation("gps"), -RATE);
+        prevRecordedLocationExtended = new LocationExtended(location);
+        long bytes = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < FIXES; i++) {
+            // The listener
+            setFix(location, i);
+            LocationExtended eloc = new LocationExtended(location);
+            eloc.setNumberOfSatellites(8);
+            eloc.setNumberOfSatellitesUsedInFix(6);
+            prevLocationExtended = eloc;
+            // The AsyncUpdateThread
+            LocationExtended current = new LocationExtended(eloc.getLocation());
+            current.setNumberOfSatellites(eloc.getNumberOfSatellites());
+            current.setNumberOfSatellitesUsedInFix(eloc.getNumberOfSatellitesUsedInFix());
+            currentLocationExtended = current;
+            // Track.add()
+            if (i % RATE == 0) {
+                Location lastStepDistanceLoc = new FixRecordTest.PlainLocation("TEMP");
+                lastStepDistanceLoc.setLatitude(prevRecordedLocationExtended.getLatitude());
+                lastStepDistanceLoc.setLongitude(prevRecordedLocationExtended.getLongitude());
+                Location endLoc = new FixRecordTest.PlainLocation("TEMP");
+                endLoc.setLatitude(current.getLatitude());
+                endLoc.setLongitude(current.getLongitude());
+                sink += lastStepDistanceLoc.distanceTo(endLoc);
+                prevRecordedLocationExtended = eloc;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        return new long[] { elapsed, getAllocatedBytes() - bytes };
+    }
+
+    /**
+     * The same, with the FixRecords of GPSApplication and Track.
+     *
+     * @return the time, in nanoseconds, and the bytes allocated
+     */
+    private static long[] measureRecords() {
+        Location location = setFix(new FixRecordTest.PlainLocation("gps"), -RATE);
+        if (prevFix == null) prevFix = FixRecord.obtain();
+        if (prevRecordedFix == null) prevRecordedFix = FixRecord.obtain();
+        prevRecordedFix.set(location, 8, 6);
+        long bytes = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < FIXES; i++) {
+            // The listener
+            setFix(location, i);
+            FixRecord fix = FixRecord.obtain().set(location, 8, 6);
+            prevFix.copyFrom(fix);
+            // The AsyncUpdateThread
+            currentFix.copyFrom(fix);
+            // Track.add(), then the persistence stage
+            if (i % RATE == 0) {
+                sink += fix.distanceTo(prevRecordedFix);
+                prevRecordedFix.copyFrom(fix);
+            }
+            fix.recycle();
+        }
+        long elapsed = System.nanoTime() - start;
+        return new long[] { elapsed, getAllocatedBytes() - bytes };
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or 0 if the JVM doesn't measure them
+     */
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
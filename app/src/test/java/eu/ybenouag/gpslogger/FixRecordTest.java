@@ -0,0 +1,201 @@
+package eu.ybenouag.gpslogger;
+
+import android.location.Location;
+
+import org.junit.Test;
+
+import static eu.ybenouag.gpslogger.GPSApplication.NOT_AVAILABLE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+/**
+ * The adapters between the FixRecord and the Location / LocationExtended, and the distance of the records.
+ * <p>
+ * The android.location.Location of the unit tests is a stub that throws from every method,
+ * so the round trips go through PlainLocation, a Location that keeps its values in plain fields.
+ */
+public class FixRecordTest {
+
+    /**
+     * A Location with the values into plain fields, as the framework one.
+     * It is also the Location of the benchmarks of the test source set.
+     */
+    static class PlainLocation extends Location {
+        private final String provider;
+        private double latitude, longitude, altitude;
+        private float speed, bearing, accuracy;
+        private long time;
+        private boolean hasAltitude, hasSpeed, hasBearing, hasAccuracy;
+
+        PlainLocation(String provider) {
+            super(provider);
+            this.provider = provider;
+        }
+
+        @Override public String getProvider() { return provider; }
+        @Override public double getLatitude() { return latitude; }
+        @Override public void setLatitude(double latitude) { this.latitude = latitude; }
+        @Override public double getLongitude() { return longitude; }
+        @Override public void setLongitude(double longitude) { this.longitude = longitude; }
+        @Override public long getTime() { return time; }
+        @Override public void setTime(long time) { this.time = time; }
+        @Override public double getAltitude() { return altitude; }
+        @Override public void setAltitude(double altitude) { this.altitude = altitude; hasAltitude = true; }
+        @Override public boolean hasAltitude() { return hasAltitude; }
+        @Override public float getSpeed() { return speed; }
+        @Override public void setSpeed(float speed) { this.speed = speed; hasSpeed = true; }
+        @Override public boolean hasSpeed() { return hasSpeed; }
+        @Override public float getBearing() { return bearing; }
+        @Override public void setBearing(float bearing) { this.bearing = bearing; hasBearing = true; }
+        @Override public boolean hasBearing() { return hasBearing; }
+        @Override public float getAccuracy() { return accuracy; }
+        @Override public void setAccuracy(float accuracy) { this.accuracy = accuracy; hasAccuracy = true; }
+        @Override public boolean hasAccuracy() { return hasAccuracy; }
+        @Override public float distanceTo(Location dest) { return FixRecord.distanceBetween(latitude, longitude, dest.getLatitude(), dest.getLongitude()); }
+
+        @Override
+        public void reset() {
+            latitude = longitude = altitude = 0;
+            speed = bearing = accuracy = 0;
+            time = 0;
+            hasAltitude = hasSpeed = hasBearing = hasAccuracy = false;
+        }
+    }
+
+    /**
+     * @return the fix of the given index, with a different subset of the optional values
+     */
+    private static PlainLocation location(int fix) {
+        PlainLocation location = new PlainLocation("gps");
+        location.setLatitude(45.0 + fix * 1e-6);
+        location.setLongitude(9.0 + fix * 1.27e-5);
+        location.setTime(1700000000000L + fix * 100L);
+        if ((fix & 1) != 0) location.setAltitude(120.5 + fix);
+        if ((fix & 2) != 0) location.setSpeed(1.5f + fix);
+        if ((fix & 4) != 0) location.setBearing(90.25f);
+        if ((fix & 8) != 0) location.setAccuracy(4.5f);
+        return location;
+    }
+
+    private static void assertSameValues(Location expected, Location actual) {
+        assertEquals(expected.getLatitude(), actual.getLatitude(), 0);
+        assertEquals(expected.getLongitude(), actual.getLongitude(), 0);
+        assertEquals(expected.getTime(), actual.getTime());
+        assertEquals(expected.hasAltitude(), actual.hasAltitude());
+        assertEquals(expected.hasSpeed(), actual.hasSpeed());
+        assertEquals(expected.hasBearing(), actual.hasBearing());
+        assertEquals(expected.hasAccuracy(), actual.hasAccuracy());
+        if (expected.hasAltitude()) assertEquals(expected.getAltitude(), actual.getAltitude(), 0);
+        if (expected.hasSpeed()) assertEquals(expected.getSpeed(), actual.getSpeed(), 0);
+        if (expected.hasBearing()) assertEquals(expected.getBearing(), actual.getBearing(), 0);
+        if (expected.hasAccuracy()) assertEquals(expected.getAccuracy(), actual.getAccuracy(), 0);
+    }
+
+    @Test
+    public void setCopiesTheValuesOfTheLocation() {
+        for (int fix = 0; fix < 16; fix++) {
+            PlainLocation location = location(fix);
+            FixRecord record = new FixRecord().set(location, 8, 6);
+            assertEquals(location.getLatitude(), record.getLatitude(), 0);
+            assertEquals(location.getLongitude(), record.getLongitude(), 0);
+            assertEquals(location.getTime(), record.getTime());
+            assertEquals(location.hasAltitude() ? location.getAltitude() : NOT_AVAILABLE, record.getAltitude(), 0);
+            assertEquals(location.hasSpeed() ? location.getSpeed() : NOT_AVAILABLE, record.getSpeed(), 0);
+            assertEquals(location.hasBearing() ? location.getBearing() : NOT_AVAILABLE, record.getBearing(), 0);
+            assertEquals(location.hasAccuracy() ? location.getAccuracy() : NOT_AVAILABLE, record.getAccuracy(), 0);
+            assertEquals(location.hasAltitude(), record.hasAltitude());
+            assertEquals(location.hasSpeed(), record.hasSpeed());
+            assertEquals(location.hasBearing(), record.hasBearing());
+            assertEquals(location.hasAccuracy(), record.hasAccuracy());
+            assertEquals(8, record.getNumberOfSatellites());
+            assertEquals(6, record.getNumberOfSatellitesUsedInFix());
+        }
+    }
+
+    @Test
+    public void toLocationRoundTrip() {
+        PlainLocation reused = location(15);                              // All the optional values set
+        for (int fix = 0; fix < 16; fix++) {
+            PlainLocation location = location(fix);
+            FixRecord record = new FixRecord().set(location, NOT_AVAILABLE, NOT_AVAILABLE);
+            assertSame(reused, record.toLocation(reused));
+            assertSameValues(location, reused);                             // The values of the previous fix are cleared
+        }
+    }
+
+    @Test
+    public void locationExtendedOfRecordAsOfLocation() {
+        for (int fix = 0; fix < 16; fix++) {
+            PlainLocation location = location(fix);
+            LocationExtended expected = new LocationExtended(location);
+            expected.setNumberOfSatellites(8);
+            expected.setNumberOfSatellitesUsedInFix(6);
+            LocationExtended actual = new LocationExtended(new FixRecord().set(location, 8, 6), new PlainLocation("gps"));
+
+            assertSameValues(location, actual.getLocation());
+            assertEquals(expected.getLatitude(), actual.getLatitude(), 0);
+            assertEquals(expected.getLongitude(), actual.getLongitude(), 0);
+            assertEquals(expected.getAltitude(), actual.getAltitude(), 0);
+            assertEquals(expected.getSpeed(), actual.getSpeed(), 0);
+            assertEquals(expected.getBearing(), actual.getBearing(), 0);
+            assertEquals(expected.getAccuracy(), actual.getAccuracy(), 0);
+            assertEquals(expected.getTime(), actual.getTime());
+            assertEquals(expected.getAltitudeEGM96Correction(), actual.getAltitudeEGM96Correction(), 0);
+            assertEquals(expected.getAltitudeCorrected(2.5, false), actual.getAltitudeCorrected(2.5, false), 0);
+            assertEquals(expected.getNumberOfSatellites(), actual.getNumberOfSatellites());
+            assertEquals(expected.getNumberOfSatellitesUsedInFix(), actual.getNumberOfSatellitesUsedInFix());
+        }
+    }
+
+    @Test
+    public void copyFromAndRecycle() {
+        FixRecord original = new FixRecord().set(location(15), 8, 6);
+        FixRecord copy = FixRecord.obtain().copyFrom(original);
+        assertSameValues(original.toLocation(new PlainLocation("gps")), copy.toLocation(new PlainLocation("gps")));
+        assertEquals(8, copy.getNumberOfSatellites());
+        assertEquals(6, copy.getNumberOfSatellitesUsedInFix());
+
+        copy.recycle();
+        FixRecord reused = FixRecord.obtain();
+        assertFalse(reused.hasAltitude() || reused.hasSpeed() || reused.hasBearing() || reused.hasAccuracy());
+        assertEquals(NOT_AVAILABLE, reused.getNumberOfSatellites());
+        assertEquals(0, reused.getTime());
+        reused.recycle();
+    }
+
+    @Test
+    public void distanceOfTheWGS84Ellipsoid() {
+        // The quarter of the meridian, from the equator to the pole
+        assertEquals(10001965.729, FixRecord.distanceBetween(0, 0, 90, 0), 1);
+        assertEquals(0, FixRecord.distanceBetween(45, 9, 45, 9), 0);
+        assertEquals(FixRecord.distanceBetween(45, 9, 45.3, 9.4), FixRecord.distanceBetween(45.3, 9.4, 45, 9), 0.01);
+    }
+
+    @Test
+    public void shortDistancesAsTheLocalRadiiOfCurvature() {
+        double a = 6378137.0;
+        double e2 = 0.00669437999014;                                       // WGS84 first eccentricity squared
+        for (double latitude : new double[] { 0, 30, 45, 60, 80, 85, 89 }) {
+            double sin = Math.sin(Math.toRadians(latitude));
+            double w = Math.sqrt(1 - e2 * sin * sin);
+            double metersPerDegreeLatitude = Math.toRadians(1) * a * (1 - e2) / (w * w * w);
+            double metersPerDegreeLongitude = Math.toRadians(1) * a * Math.cos(Math.toRadians(latitude)) / w;
+            double dLatitude = 60 / metersPerDegreeLatitude;               // 60 m northward
+            double dLongitude = 80 / metersPerDegreeLongitude;             // 80 m eastward
+            double half = dLatitude / 2;
+            assertEquals(100, FixRecord.distanceBetween(latitude - half, 9, latitude + half, 9 + dLongitude), 0.01);
+            FixRecord from = new FixRecord().set(plainAt(latitude - half, 9), NOT_AVAILABLE, NOT_AVAILABLE);
+            FixRecord to = new FixRecord().set(plainAt(latitude + half, 9 + dLongitude), NOT_AVAILABLE, NOT_AVAILABLE);
+            assertEquals(100, from.distanceTo(to), 0.01);
+            assertEquals(from.distanceTo(to), to.distanceTo(from), 1e-3);
+        }
+    }
+
+    private static PlainLocation plainAt(double latitude, double longitude) {
+        PlainLocation location = new PlainLocation("gps");
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        return location;
+    }
+}
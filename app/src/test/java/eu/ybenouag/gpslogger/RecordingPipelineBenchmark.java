@@ -0,0 +1,173 @@
+package eu.ybenouag.gpslogger;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compares the latency of the UI publication of the fixes with a single recording thread,
+ * as before the pipeline, and with the RecordingStages of GPSApplication
+ * (track statistics, persistence, upload, UI publication), when the persistence stalls from
+ * time to time (a write to the flash memory, a GC pause).
+ * The work of the stages is simulated by busy waits of the given costs.
+ * <p>
+ * It also checks that every stage executes all the locations, in order.
+ * <p>
+ * Run main() from the IDE (unit test classpath).
+ */
+public class RecordingPipelineBenchmark {
+
+    private static final int FIXES              = 2000;     // The recorded fixes
+    private static final long FIX_INTERVAL      = 1000000;  // The time (ns) between two fixes (1 kHz, in order to be quick)
+    private static final long TRACK_COST        = 20000;    // The simulated cost (ns) of the track statistics
+    private static final long PERSISTENCE_COST  = 50000;    // The simulated cost (ns) of the append to the outbox
+    private static final long STALL_COST        = 40000000; // The simulated cost (ns) of a stall of the persistence
+    private static final int STALL_EVERY        = 500;      // The fixes between two stalls
+    private static final long UPLOAD_COST       = 10000;    // The simulated cost (ns) of the hand-off to the LocationUploader
+    private static final long UI_COST           = 100000;   // The simulated cost (ns) of the EventBus post
+
+    private static final long[] addTimes = new long[FIXES];         // The time each fix has been handed off
+    private static final long[] publishTimes = new long[FIXES];     // The time of its UI publication
+    private static final int[] lastExecuted = new int[3];           // The last fix executed by the track, persistence and upload stages
+    private static boolean isOrdered = true;
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println(String.format(Locale.US, "%d fixes every %d us; persistence %d us, stalled for %d ms every %d fixes",
+                FIXES, FIX_INTERVAL / 1000, PERSISTENCE_COST / 1000, STALL_COST / 1000000, STALL_EVERY));
+        System.out.println();
+        measureSingleThread();
+        System.out.println();
+        measurePipeline();
+    }
+
+    private static void spin(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            // Simulates the work
+        }
+    }
+
+    private static void execute(int stage, int fix) {
+        if (fix != lastExecuted[stage] + 1) isOrdered = false;
+        lastExecuted[stage] = fix;
+    }
+
+    private static void persist(int fix) {
+        execute(1, fix);
+        spin(fix % STALL_EVERY == STALL_EVERY - 1 ? STALL_COST : PERSISTENCE_COST);
+    }
+
+    private static void publish(int fix) {
+        spin(UI_COST);
+        publishTimes[fix] = System.nanoTime();
+    }
+
+    private static void reset() {
+        Arrays.fill(lastExecuted, -1);
+        Arrays.fill(publishTimes, 0);
+        isOrdered = true;
+    }
+
+    /**
+     * The AsyncUpdateThread before the pipeline: every fix is published after the previous one has been persisted.
+     */
+    private static void measureSingleThread() throws InterruptedException {
+        reset();
+        RecordingStage stage = new RecordingStage("single", RecordingStage.DEFAULT_CAPACITY, false, new RecordingStage.Handler() {
+            @Override
+            public void handle(int type, Object item) {
+                if (type != AsyncTODO.TASK_ADDLOCATION) return;
+                int fix = (Integer) item;
+                execute(0, fix);
+                spin(TRACK_COST);
+                persist(fix);
+                execute(2, fix);
+                spin(UPLOAD_COST);
+                publish(fix);
+            }
+        });
+        run(stage, new RecordingStage[] { stage });
+        print("Single thread", new RecordingStage[] { stage });
+    }
+
+    /**
+     * The stages of GPSApplication, wired in the same way.
+     */
+    private static void measurePipeline() throws InterruptedException {
+        reset();
+        final RecordingStage[] stages = new RecordingStage[4];
+        final RecordingStage ui = new RecordingStage("ui", RecordingStage.DEFAULT_CAPACITY, false, new RecordingStage.Handler() {
+            @Override
+            public void handle(int type, Object item) {
+                if (type == AsyncTODO.TASK_UPDATEFIX) publish((Integer) item);
+            }
+        });
+        final RecordingStage upload = new RecordingStage("upload", RecordingStage.DEFAULT_CAPACITY, false, new RecordingStage.Handler() {
+            @Override
+            public void handle(int type, Object item) {
+                if (type != AsyncTODO.TASK_ADDLOCATION) return;
+                execute(2, (Integer) item);
+                spin(UPLOAD_COST);
+            }
+        });
+        final RecordingStage persistence = new RecordingStage("persist", RecordingStage.DEFAULT_CAPACITY, false, new RecordingStage.Handler() {
+            @Override
+            public void handle(int type, Object item) {
+                if (type == AsyncTODO.TASK_ADDLOCATION) persist((Integer) item);
+                upload.add(type, item);
+            }
+        });
+        RecordingStage track = new RecordingStage("track", RecordingStage.DEFAULT_CAPACITY, false, new RecordingStage.Handler() {
+            @Override
+            public void handle(int type, Object item) {
+                if (type == AsyncTODO.TASK_ADDLOCATION) {
+                    execute(0, (Integer) item);
+                    spin(TRACK_COST);
+                    ui.add(AsyncTODO.TASK_UPDATEFIX, item);
+                } else ui.add(type, item);
+                persistence.add(type, item);
+            }
+        });
+        stages[0] = track;
+        stages[1] = persistence;
+        stages[2] = upload;
+        stages[3] = ui;
+        run(track, stages);
+        print("Pipeline", stages);
+    }
+
+    /**
+     * Hands off the fixes to the first stage at FIX_INTERVAL, then the TASK_SHUTDOWN, and waits for all the stages.
+     */
+    private static void run(RecordingStage first, RecordingStage[] stages) throws InterruptedException {
+        for (RecordingStage stage : stages) stage.start();
+        long next = System.nanoTime();
+        for (int i = 0; i < FIXES; i++) {
+            next += FIX_INTERVAL;
+            while (System.nanoTime() < next) {
+                // Waits for the next fix
+            }
+            addTimes[i] = System.nanoTime();
+            first.add(AsyncTODO.TASK_ADDLOCATION, i);
+        }
+        first.add(AsyncTODO.TASK_SHUTDOWN, null);
+        for (RecordingStage stage : stages) {
+            if (!stage.join(60000)) throw new IllegalStateException("Stage " + stage.getName() + " not terminated");
+        }
+    }
+
+    private static void print(String name, RecordingStage[] stages) {
+        long[] latencies = new long[FIXES];
+        for (int i = 0; i < FIXES; i++) {
+            if (publishTimes[i] == 0) throw new IllegalStateException("Fix " + i + " not published");
+            latencies[i] = publishTimes[i] - addTimes[i];
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.US, "%s: UI publication of the fixes p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                name, latencies[FIXES / 2] / 1e6, latencies[FIXES * 99 / 100] / 1e6, latencies[FIXES - 1] / 1e6));
+        for (RecordingStage stage : stages) System.out.print("  " + stage.getReport());
+        for (int last : lastExecuted) {
+            if (last != FIXES - 1) isOrdered = false;
+        }
+        if (!isOrdered) throw new IllegalStateException("Locations lost or reordered");
+    }
+}
@@ -0,0 +1,87 @@
+package eu.ybenouag.gpslogger;
+
+import java.util.Locale;
+
+/**
+ * Measures the cost of the decision per fix of the compiled RecordingRules, against the hand-written
+ * expressions of GPSApplication.onLocationChanged() (RecordingPolicyTest.LegacyPolicy),
+ * that computed the exact distance of every fix.
+ * <p>
+ * The fixes of the scenarios of RecordingPolicyTest are generated at 10 Hz, for all its filters;
+ * the decisions are compared once more on every scenario before measuring.
+ * The compilation of the rules is tested by RecordingRuleTest.
+ * <p>
+ * Run main() from the IDE (unit test classpath).
+ */
+public class RecordingPolicyBenchmark {
+
+    private static final int FIXES              = 200000;   // The fixes of a scenario
+    private static final int ROUNDS             = 3;        // The measured rounds (after one of warm up)
+
+    private static final String[] SCENARIOS = RecordingPolicyTest.SCENARIOS;
+    private static final String[] POLICIES = RecordingPolicyTest.POLICIES;
+
+    private static int decisionSink;
+
+    public static void main(String[] args) {
+        for (int policy = 0; policy < POLICIES.length; policy++) {
+            System.out.println(POLICIES[policy] + ": " + RecordingRule.fromPreferences(policy, 5, 10).compile());
+        }
+        System.out.println();
+        System.out.println(String.format(Locale.US, "%-22s %-12s %-9s %9s %9s %10s %12s %12s", "Scenario", "Filters", "Policy",
+                "recorded", "checks", "exact", "legacy ns", "compiled ns"));
+        double[] legacyTotals = new double[POLICIES.length];
+        double[] compiledTotals = new double[POLICIES.length];
+        for (int scenario = 0; scenario < SCENARIOS.length; scenario++) {
+            RecordingPolicyTest.RawFix[] rawFixes = RecordingPolicyTest.generate(scenario, FIXES);
+            FixRecord[] fixes = RecordingPolicyTest.toRecords(rawFixes);
+            for (float[] filter : RecordingPolicyTest.FILTERS) {
+                for (int policyType = 0; policyType < POLICIES.length; policyType++) {
+                    RecordingPolicy policy = RecordingPolicyTest.compare(SCENARIOS[scenario], rawFixes, fixes, policyType, filter);
+                    long legacy = Long.MAX_VALUE;
+                    long compiled = Long.MAX_VALUE;
+                    for (int round = 0; round <= ROUNDS; round++) {
+                        legacy = Math.min(legacy, measureLegacy(rawFixes, policyType, filter));
+                        compiled = Math.min(compiled, measurePolicy(fixes, policyType, filter));
+                    }
+                    legacyTotals[policyType] += legacy / (double) FIXES;
+                    compiledTotals[policyType] += compiled / (double) FIXES;
+                    System.out.println(String.format(Locale.US, "%-22s %-12s %-9s %9d %9d %9.2f%% %12.1f %12.1f", SCENARIOS[scenario],
+                            String.format(Locale.US, "%.0fs %.1fm", filter[0], filter[1]), POLICIES[policyType],
+                            policy.getRecordedFixes(), policy.getDistanceChecks(),
+                            policy.getDistanceChecks() == 0 ? 0 : policy.getExactDistances() * 100.0 / policy.getDistanceChecks(),
+                            legacy / (double) FIXES, compiled / (double) FIXES));
+                }
+            }
+        }
+        int cases = SCENARIOS.length * RecordingPolicyTest.FILTERS.length;
+        System.out.println("All the decisions match. Average per fix:");
+        for (int policy = 0; policy < POLICIES.length; policy++) {
+            System.out.println(String.format(Locale.US, "  %-9s legacy %6.1f ns, compiled %6.1f ns",
+                    POLICIES[policy], legacyTotals[policy] / cases, compiledTotals[policy] / cases));
+        }
+        System.out.println("(" + decisionSink + ")");
+    }
+
+    // ------------------------------------------------------------------------- Measures
+
+    private static RecordingPolicy newPolicy(int policyType, float[] filter) {
+        RecordingPolicy policy = new RecordingPolicy();
+        policy.setRule(RecordingRule.fromPreferences(policyType, filter[0], filter[1]));
+        return policy;
+    }
+
+    private static long measureLegacy(RecordingPolicyTest.RawFix[] fixes, int policyType, float[] filter) {
+        RecordingPolicyTest.LegacyPolicy legacy = new RecordingPolicyTest.LegacyPolicy(policyType, filter[0], filter[1]);
+        long start = System.nanoTime();
+        for (int i = 0; i < FIXES; i++) decisionSink += legacy.evaluate(fixes[i], true, false);
+        return System.nanoTime() - start;
+    }
+
+    private static long measurePolicy(FixRecord[] fixes, int policyType, float[] filter) {
+        RecordingPolicy policy = newPolicy(policyType, filter);
+        long start = System.nanoTime();
+        for (int i = 0; i < FIXES; i++) decisionSink += policy.evaluate(fixes[i], true, false);
+        return System.nanoTime() - start;
+    }
+}
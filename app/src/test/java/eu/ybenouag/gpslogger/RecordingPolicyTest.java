@@ -0,0 +1,358 @@
+package eu.ybenouag.gpslogger;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static eu.ybenouag.gpslogger.GPSApplication.NOT_AVAILABLE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The decisions of the compiled RecordingRules against the hand-written expressions
+ * of GPSApplication.onLocationChanged(), that computed the exact distance of every fix:
+ * - POLICY_FILTERS_OR: the previous code;
+ * - POLICY_FILTERS_AND: the variant in AND that was commented out, with the first point of a track;
+ * - POLICY_ADAPTIVE: the same expression written by hand.
+ * <p>
+ * The android.location.Location of the unit tests is a stub that throws from every method,
+ * so the legacy expressions work on the raw values of the fixes, with the exact distance
+ * of FixRecord.distanceBetween(), and the RecordingPolicy gets the same values through
+ * FixRecordTest.PlainLocation.
+ */
+public class RecordingPolicyTest {
+
+    static final String[] SCENARIOS = { "walk with stops", "drive", "still, GPS noise", "walk at 85 N", "drive across 180 E" };
+    static final String[] POLICIES = { "OR", "AND", "adaptive" };
+    static final float[][] FILTERS = {                      // The interval (s) and the distance (m) filters
+            { 0, 0 }, { 1, 0 }, { 0, 0.5f }, { 0, 5 }, { 0, 100 }, { 5, 10 }, { 30, 1000 } };
+
+    private static final long FIX_INTERVAL  = 100;          // The time between two generated fixes (ms)
+    private static final long START         = 1700000000000L;
+    private static final int FIXES          = 20000;        // The fixes of a scenario
+    private static final int NEW_TRACK_EVERY    = 5000;     // The fixes between two new tracks
+    private static final int PAUSE_EVERY        = 3000;     // The fixes between two pauses of the recording
+    private static final int PAUSE_FIXES        = 100;      // The fixes of a pause
+
+    /**
+     * The raw values of a fix; the missing ones are NOT_AVAILABLE.
+     */
+    static class RawFix {
+        double latitude;
+        double longitude;
+        long time;
+        float speed = NOT_AVAILABLE;
+        float bearing = NOT_AVAILABLE;
+        float accuracy = NOT_AVAILABLE;
+
+        RawFix(double latitude, double longitude, long time) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.time = time;
+        }
+
+        boolean hasSpeed() { return speed != NOT_AVAILABLE; }
+        boolean hasBearing() { return bearing != NOT_AVAILABLE; }
+        boolean hasAccuracy() { return accuracy != NOT_AVAILABLE; }
+
+        float distanceTo(RawFix other) {
+            return FixRecord.distanceBetween(latitude, longitude, other.latitude, other.longitude);
+        }
+
+        /**
+         * @return a FixRecord with the same values
+         */
+        FixRecord toRecord() {
+            FixRecordTest.PlainLocation location = new FixRecordTest.PlainLocation("gps");
+            location.setLatitude(latitude);
+            location.setLongitude(longitude);
+            location.setTime(time);
+            if (hasSpeed()) location.setSpeed(speed);
+            if (hasBearing()) location.setBearing(bearing);
+            if (hasAccuracy()) location.setAccuracy(accuracy);
+            return new FixRecord().set(location, 8, 6);
+        }
+    }
+
+    /**
+     * The previous code of onLocationChanged(), with the exact distance,
+     * and the other policies written the same way.
+     */
+    static class LegacyPolicy {
+        int policy;
+        float prefGPSinterval;
+        float prefGPSdistance;
+        RawFix prevFix;
+        RawFix prevRecordedFix;
+        boolean isPrevFixRecorded;
+
+        LegacyPolicy(int policy, float prefGPSinterval, float prefGPSdistance) {
+            this.policy = policy;
+            this.prefGPSinterval = prefGPSinterval;
+            this.prefGPSdistance = prefGPSdistance;
+        }
+
+        int evaluate(RawFix loc, boolean isRecording, boolean isTrackEmpty) {
+            int decision = RecordingPolicy.DECISION_UPDATE;
+            boolean forceRecord = false;
+            if ((prevFix != null) && (prevFix.hasSpeed()) && (loc.hasSpeed()) && (isRecording)
+                    && (((loc.speed == 0) && (prevFix.speed != 0)) || ((loc.speed != 0) && (prevFix.speed == 0)))) {
+                if (!isPrevFixRecorded) {
+                    decision |= RecordingPolicy.DECISION_RECORD_PREVIOUS;
+                    prevRecordedFix = prevFix;
+                    isPrevFixRecorded = true;
+                }
+                forceRecord = true;
+            }
+            if ((isRecording) && (policy == RecordingRule.POLICY_FILTERS_AND) && ((prevRecordedFix == null)
+                    || (forceRecord)
+                    || (((loc.time - prevRecordedFix.time) >= (prefGPSinterval * 1000.0f))
+                        && (loc.distanceTo(prevRecordedFix) >= prefGPSdistance))
+                    || (isTrackEmpty))) {
+                decision |= record(loc);
+            } else if ((isRecording) && (policy == RecordingRule.POLICY_ADAPTIVE) && ((prevRecordedFix == null)
+                    || (forceRecord)
+                    || (isTrackEmpty)
+                    || (((!loc.hasAccuracy()) || (loc.accuracy <= RecordingRule.ADAPTIVE_ACCURACY))
+                        && (((prefGPSinterval == 0) && (prefGPSdistance == 0))
+                            || ((prefGPSinterval > 0) && ((loc.time - prevRecordedFix.time) >= (prefGPSinterval * 1000.0f)))
+                            || ((prefGPSdistance > 0) && (loc.distanceTo(prevRecordedFix) >= prefGPSdistance))
+                            || ((loc.distanceTo(prevRecordedFix) >= RecordingRule.ADAPTIVE_MIN_DISTANCE)
+                                && (loc.hasBearing()) && (prevRecordedFix.hasBearing())
+                                && (getTurn(loc, prevRecordedFix) >= RecordingRule.ADAPTIVE_HEADING_CHANGE))
+                            || ((loc.hasSpeed()) && (prevRecordedFix.hasSpeed())
+                                && (Math.abs(loc.speed - prevRecordedFix.speed) >= RecordingRule.ADAPTIVE_SPEED_CHANGE)))))) {
+                decision |= record(loc);
+            } else if ((isRecording) && (policy == RecordingRule.POLICY_FILTERS_OR) && ((prevRecordedFix == null)
+                    || (forceRecord)
+                    || ((prefGPSinterval == 0) && (prefGPSdistance == 0))
+                    || ((prefGPSinterval > 0)
+                        && (prefGPSdistance > 0)
+                        && (((loc.time - prevRecordedFix.time) >= (prefGPSinterval * 1000.0f))
+                            || (loc.distanceTo(prevRecordedFix) >= prefGPSdistance)))
+                    || ((prefGPSinterval > 0)
+                        && (prefGPSdistance == 0)
+                        && ((loc.time - prevRecordedFix.time) >= (prefGPSinterval * 1000.0f)))
+                    || ((prefGPSinterval == 0)
+                        && (prefGPSdistance > 0)
+                        && ((loc.distanceTo(prevRecordedFix) >= prefGPSdistance)))
+                    || (isTrackEmpty))) {
+                decision |= record(loc);
+            } else isPrevFixRecorded = false;
+            prevFix = loc;
+            return decision;
+        }
+
+        private int record(RawFix loc) {
+            prevRecordedFix = loc;
+            isPrevFixRecorded = true;
+            return RecordingPolicy.DECISION_RECORD;
+        }
+
+        private static float getTurn(RawFix loc, RawFix other) {
+            float turn = Math.abs(loc.bearing - other.bearing) % 360;
+            return Math.min(turn, 360 - turn);
+        }
+    }
+
+    // ------------------------------------------------------------------------- Fixes
+
+    /**
+     * @return the fixes of a scenario, at 10 Hz, with a fixed seed
+     */
+    static RawFix[] generate(int scenario, int count) {
+        Random random = new Random(scenario);
+        RawFix[] fixes = new RawFix[count];
+        double latitude = 45.0;
+        double longitude = 9.0;
+        double speed = 1.4;
+        double heading = 0;
+        if (scenario == 3) latitude = 85.0;
+        if (scenario == 4) {
+            latitude = -17.0;
+            longitude = 179.9;
+            heading = 90;
+        }
+        int stopped = 0;
+        for (int i = 0; i < count; i++) {
+            switch (scenario) {
+                case 0:
+                case 3:
+                    // Walks, with a stop from time to time
+                    if (stopped > 0) stopped--;
+                    else if (random.nextInt(600) == 0) stopped = 50 + random.nextInt(300);
+                    speed = stopped > 0 ? 0 : 1.0 + random.nextDouble();
+                    heading += random.nextGaussian() * 5;
+                    break;
+                case 1:
+                case 4:
+                    speed = Math.max(0, Math.min(40, speed + random.nextGaussian()));
+                    heading += random.nextGaussian() * 2;
+                    break;
+                default:
+                    speed = 0;
+            }
+            double step = speed * FIX_INTERVAL / 1000.0;
+            latitude += step * Math.cos(Math.toRadians(heading)) / 111132.0;
+            longitude += step * Math.sin(Math.toRadians(heading)) / (111320.0 * Math.cos(Math.toRadians(latitude)));
+            if (longitude > 180) longitude -= 360;
+            double noise = scenario == 2 ? 3.0 / 111000 : 0;               // The fixes wander around a still position
+            RawFix fix = new RawFix(latitude + random.nextGaussian() * noise, longitude + random.nextGaussian() * noise,
+                    START + i * FIX_INTERVAL);
+            if (speed > 0) fix.bearing = (float) (((heading % 360) + 360) % 360);
+            if ((scenario != 2) || (i % 2 == 0)) fix.speed = (float) speed;                 // Sometimes without speed
+            if (i % 10 != 9) fix.accuracy = random.nextInt(50) == 0 ? 60 : 3 + random.nextInt(5);   // Sometimes inaccurate, or without accuracy
+            fixes[i] = fix;
+        }
+        return fixes;
+    }
+
+    static FixRecord[] toRecords(RawFix[] fixes) {
+        FixRecord[] records = new FixRecord[fixes.length];
+        for (int i = 0; i < fixes.length; i++) records[i] = fixes[i].toRecord();
+        return records;
+    }
+
+    // ------------------------------------------------------------------------- Checks
+
+    /**
+     * Evaluates all the fixes with both the policies, as onLocationChanged() does, stopping and restarting
+     * the recording and starting new tracks from time to time, and asserts that the decisions are the same.
+     *
+     * @return the RecordingPolicy, with its counters
+     */
+    static RecordingPolicy compare(String scenario, RawFix[] fixes, FixRecord[] records, int policyType, float[] filter) {
+        LegacyPolicy legacy = new LegacyPolicy(policyType, filter[0], filter[1]);
+        RecordingPolicy policy = new RecordingPolicy();
+        policy.setRule(RecordingRule.fromPreferences(policyType, filter[0], filter[1]));
+        int trackLocations = 0;
+        boolean wasRecording = false;
+        for (int i = 0; i < fixes.length; i++) {
+            boolean isRecording = i % PAUSE_EVERY >= PAUSE_FIXES;
+            if (isRecording != wasRecording) {                              // setRecording()
+                legacy.prevRecordedFix = null;
+                policy.resetRecordedFix();
+                wasRecording = isRecording;
+            }
+            if (i % NEW_TRACK_EVERY == 0) trackLocations = 0;
+            int expected = legacy.evaluate(fixes[i], isRecording, trackLocations == 0);
+            int actual = policy.evaluate(records[i], isRecording, trackLocations == 0);
+            assertEquals(String.format(Locale.US, "%s, fix %d, %s, filters %.0f s %.1f m",
+                    scenario, i, POLICIES[policyType], filter[0], filter[1]), expected, actual);
+            if ((actual & RecordingPolicy.DECISION_RECORD_PREVIOUS) != 0) {
+                assertEquals("Fix " + i + ": wrong previous fix", fixes[i - 1].time, policy.getPreviousFix().getTime());
+                trackLocations++;
+            }
+            if ((actual & RecordingPolicy.DECISION_RECORD) != 0) trackLocations++;
+        }
+        return policy;
+    }
+
+    @Test
+    public void decisionsMatchTheLegacyExpressions() {
+        for (int scenario = 0; scenario < SCENARIOS.length; scenario++) {
+            RawFix[] fixes = generate(scenario, FIXES);
+            FixRecord[] records = toRecords(fixes);
+            for (float[] filter : FILTERS) {
+                for (int policyType = 0; policyType < POLICIES.length; policyType++) {
+                    compare(SCENARIOS[scenario], fixes, records, policyType, filter);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void distanceFilterSkipsTheShortMovesOnly() {
+        RawFix[] fixes = generate(0, FIXES);
+        RecordingPolicy policy = compare(SCENARIOS[0], fixes, toRecords(fixes), RecordingRule.POLICY_FILTERS_OR, new float[] { 0, 5 });
+        assertTrue(policy.getRecordedFixes() > 0);
+        assertTrue(policy.getRecordedFixes() < FIXES / 10);               // Walking at ~1.5 m/s, ~1 fix every 3 s
+        assertTrue(policy.getExactDistances() < policy.getDistanceChecks());
+    }
+
+    /**
+     * The fixes just nearer and just farther than the distance filter, from the equator to near the pole,
+     * and across the antimeridian: where the local projection must fall back to the exact distance.
+     */
+    @Test
+    public void thresholdAdjacentDistances() {
+        double[][] origins = { { 0, 9 }, { 45, 9 }, { 79.99, 9 }, { 80.01, 9 }, { 85, 9 }, { 89.9, 9 }, { -17, 179.99999 }, { 60, -179.99999 } };
+        double[][] directions = { { 1, 0 }, { 0, 1 }, { 0.6, 0.8 }, { -0.6, -0.8 } };     // North, east, and two diagonals
+        float[] distances = { 0.5f, 5, 100, 1000 };
+        for (double[] origin : origins) {
+            for (double[] direction : directions) {
+                for (float distance : distances) {
+                    RawFix[] pair = bracket(origin[0], origin[1], direction, distance);
+                    String message = String.format(Locale.US, "%.5f %.5f, direction %.1f %.1f, %.1f m",
+                            origin[0], origin[1], direction[0], direction[1], distance);
+                    for (int policyType = 0; policyType < POLICIES.length; policyType++) {
+                        String nearer = message + ", nearer, " + POLICIES[policyType];
+                        String farther = message + ", farther, " + POLICIES[policyType];
+                        assertEquals(nearer, RecordingPolicy.DECISION_UPDATE, decide(nearer, policyType, 0, distance, origin, pair[0]));
+                        assertEquals(farther, RecordingPolicy.DECISION_RECORD, decide(farther, policyType, 0, distance, origin, pair[1]));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void thresholdAdjacentIntervals() {
+        double[] origin = { 45, 9 };
+        for (float interval : new float[] { 1, 5, 30 }) {
+            long limit = (long) (interval * 1000);
+            for (int policyType = 0; policyType < POLICIES.length; policyType++) {
+                String message = interval + " s, " + POLICIES[policyType];
+                assertEquals(message, RecordingPolicy.DECISION_UPDATE, decide(message, policyType, interval, 0, origin, new RawFix(45, 9, START + limit - 1)));
+                assertEquals(message, RecordingPolicy.DECISION_RECORD, decide(message, policyType, interval, 0, origin, new RawFix(45, 9, START + limit)));
+            }
+        }
+    }
+
+    /**
+     * Records a fix at the origin, then evaluates the given fix with both the policies.
+     *
+     * @return the decision, the same for both the policies
+     */
+    private static int decide(String message, int policyType, float interval, float distance, double[] origin, RawFix fix) {
+        RawFix first = new RawFix(origin[0], origin[1], START);
+        LegacyPolicy legacy = new LegacyPolicy(policyType, interval, distance);
+        RecordingPolicy policy = new RecordingPolicy();
+        policy.setRule(RecordingRule.fromPreferences(policyType, interval, distance));
+        assertEquals(RecordingPolicy.DECISION_RECORD, legacy.evaluate(first, true, true));
+        assertEquals(RecordingPolicy.DECISION_RECORD, policy.evaluate(first.toRecord(), true, true));
+        int expected = legacy.evaluate(fix, true, false);
+        assertEquals(message, expected, policy.evaluate(fix.toRecord(), true, false));
+        return expected;
+    }
+
+    /**
+     * Moves from the origin along a direction (the north and east components) until the exact distance
+     * reaches the given one.
+     *
+     * @return the last fix nearer than the distance, and the first one at the distance or farther
+     */
+    private static RawFix[] bracket(double latitude, double longitude, double[] direction, float distance) {
+        double near = 0;
+        double far = 2 * distance;
+        double middle = (near + far) / 2;
+        while ((middle != near) && (middle != far)) {
+            if (moved(latitude, longitude, direction, middle).distanceTo(new RawFix(latitude, longitude, START)) >= distance) far = middle;
+            else near = middle;
+            middle = (near + far) / 2;
+        }
+        return new RawFix[] { moved(latitude, longitude, direction, near), moved(latitude, longitude, direction, far) };
+    }
+
+    /**
+     * @return the fix at the given meters along a direction, on the local projection, one second after the origin
+     */
+    private static RawFix moved(double latitude, double longitude, double[] direction, double meters) {
+        double movedLatitude = latitude + meters * direction[0] / 111132.0;
+        double movedLongitude = longitude + meters * direction[1] / (111320.0 * Math.cos(Math.toRadians(latitude)));
+        if (movedLongitude > 180) movedLongitude -= 360;
+        if (movedLongitude < -180) movedLongitude += 360;
+        return new RawFix(movedLatitude, movedLongitude, START + 1000);
+    }
+}
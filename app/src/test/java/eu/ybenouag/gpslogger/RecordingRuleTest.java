@@ -0,0 +1,346 @@
+package eu.ybenouag.gpslogger;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The compilation of the RecordingRules into the disjunctive normal form: the flattening, the strictest
+ * thresholds, the subsumed clauses and the order by cost, on some rules written by hand and on random ones.
+ * <p>
+ * The programs of the random rules are evaluated by the RecordingPolicy on pairs of fixes made of raw values,
+ * and compared with the direct evaluation of the tree of the rule on the same values.
+ */
+public class RecordingRuleTest {
+
+    private static final long START = 1700000000000L;
+    private static final int RULES  = 400;                  // The random rules
+    private static final int CASES  = 150;                  // The pairs of fixes evaluated for every random rule
+
+    /**
+     * @return the compiled clauses of the rule, as printed by Program.toString()
+     */
+    private static String clauses(RecordingRule rule) {
+        String program = rule.compile().toString();
+        return program.substring(program.indexOf(" -> ") + 4);
+    }
+
+    // ------------------------------------------------------------------------- Rules written by hand
+
+    @Test
+    public void emptyRules() {
+        assertEquals("always", clauses(RecordingRule.allOf()));
+        assertEquals("never", clauses(RecordingRule.anyOf()));
+        assertEquals(0, RecordingRule.anyOf().compile().getClauses());
+    }
+
+    @Test
+    public void alwaysMakesTheOtherClausesUseless() {
+        assertEquals("always", clauses(RecordingRule.anyOf(RecordingRule.distance(10), RecordingRule.always(), RecordingRule.interval(5))));
+        assertEquals(1, RecordingRule.anyOf(RecordingRule.distance(10), RecordingRule.always()).compile().getClauses());
+    }
+
+    @Test
+    public void alwaysAndZeroDistanceAreDropped() {
+        assertEquals("distance >= 10 m", clauses(RecordingRule.allOf(RecordingRule.always(), RecordingRule.distance(10))));
+        assertEquals("interval >= 5 s", clauses(RecordingRule.allOf(RecordingRule.interval(5), RecordingRule.distance(0))));
+        assertEquals("always", clauses(RecordingRule.allOf(RecordingRule.distance(0), RecordingRule.distance(-1))));
+    }
+
+    @Test
+    public void strictestThresholdIsKept() {
+        assertEquals("accuracy <= 10 m & interval >= 5 s & distance >= 20 m", clauses(RecordingRule.allOf(RecordingRule.distance(10),
+                RecordingRule.interval(5), RecordingRule.distance(20), RecordingRule.accuracy(30), RecordingRule.accuracy(10))));
+    }
+
+    @Test
+    public void nestedRulesAreFlattened() {
+        assertEquals("track start | interval >= 5 s | distance >= 10 m", clauses(RecordingRule.anyOf(
+                RecordingRule.anyOf(RecordingRule.interval(5), RecordingRule.anyOf(RecordingRule.distance(10))),
+                RecordingRule.allOf(RecordingRule.allOf(RecordingRule.trackStart())))));
+        assertEquals("first point & interval >= 5 s & distance >= 10 m", clauses(RecordingRule.allOf(
+                RecordingRule.allOf(RecordingRule.distance(10), RecordingRule.allOf(RecordingRule.interval(5))), RecordingRule.firstPoint())));
+    }
+
+    @Test
+    public void allOfIsDistributedOverAnyOf() {
+        assertEquals("first point & track start | first point & interval >= 5 s | track start & distance >= 10 m | interval >= 5 s & distance >= 10 m",
+                clauses(RecordingRule.allOf(RecordingRule.anyOf(RecordingRule.distance(10), RecordingRule.firstPoint()),
+                        RecordingRule.anyOf(RecordingRule.interval(5), RecordingRule.trackStart()))));
+    }
+
+    @Test
+    public void subsumedClausesAreRemoved() {
+        assertEquals("interval >= 5 s", clauses(RecordingRule.anyOf(
+                RecordingRule.allOf(RecordingRule.interval(5), RecordingRule.distance(10)), RecordingRule.interval(5))));
+        assertEquals("distance >= 10 m", clauses(RecordingRule.anyOf(RecordingRule.distance(10), RecordingRule.distance(10))));
+        // Only the same threshold subsumes
+        assertEquals("interval >= 6 s | interval >= 5 s & distance >= 10 m", clauses(RecordingRule.anyOf(
+                RecordingRule.allOf(RecordingRule.interval(5), RecordingRule.distance(10)), RecordingRule.interval(6))));
+    }
+
+    @Test
+    public void startStopIsKeptBySimplification() {
+        assertTrue(RecordingRule.anyOf(RecordingRule.startStop(), RecordingRule.always()).compile().usesStartStop);
+        assertTrue(RecordingRule.fromPreferences(RecordingRule.POLICY_FILTERS_OR, 5, 10).compile().usesStartStop);
+        assertFalse(RecordingRule.anyOf(RecordingRule.interval(5), RecordingRule.distance(10)).compile().usesStartStop);
+    }
+
+    @Test
+    public void tooComplexRuleIsRejected() {
+        RecordingRule.allOf(filters(5)).compile();                         // 32 clauses of 5 terms
+        try {
+            RecordingRule.allOf(filters(6)).compile();                     // 64 clauses of 6 terms
+            fail("A rule of 384 terms compiled");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("Rule too complex: all(any(interval >= 1 s, distance >= 1 m), "));
+        }
+    }
+
+    private static RecordingRule[] filters(int count) {
+        RecordingRule[] rules = new RecordingRule[count];
+        for (int i = 0; i < count; i++) rules[i] = RecordingRule.anyOf(RecordingRule.interval(i + 1), RecordingRule.distance(i + 1));
+        return rules;
+    }
+
+    @Test
+    public void programToString() {
+        assertEquals("any(first point, start/stop, track start, any(interval >= 5 s, distance >= 10 m))"
+                        + " -> first point | track start | start/stop | interval >= 5 s | distance >= 10 m",
+                RecordingRule.fromPreferences(RecordingRule.POLICY_FILTERS_OR, 5, 10).compile().toString());
+        assertEquals("any(distance >= 0.5 m, heading change >= 30 deg) -> heading change >= 30 deg | distance >= 0.5 m",
+                RecordingRule.anyOf(RecordingRule.distance(0.5f), RecordingRule.headingChange(30)).compile().toString());
+        assertEquals("any() -> never", RecordingRule.anyOf().compile().toString());
+    }
+
+    // ------------------------------------------------------------------------- Random rules
+
+    /**
+     * A random rule, with the conditions of its tree, to evaluate it without compiling it.
+     */
+    private static class Node {
+        final int type;
+        final float value;
+        final Node[] children;
+        final RecordingRule rule;
+
+        Node(int type, float value, Node[] children, RecordingRule rule) {
+            this.type = type;
+            this.value = value;
+            this.children = children;
+            this.rule = rule;
+        }
+    }
+
+    /**
+     * A pair of fixes: the previous recorded one, and the one to evaluate.
+     */
+    private static class Case {
+        RecordingPolicyTest.RawFix previous;
+        RecordingPolicyTest.RawFix fix;
+        boolean hasPrevRecordedFix;
+        boolean isTrackEmpty;
+
+        boolean isStartOrStop() {
+            return (previous.hasSpeed()) && (fix.hasSpeed())
+                    && (((fix.speed == 0) && (previous.speed != 0)) || ((fix.speed != 0) && (previous.speed == 0)));
+        }
+    }
+
+    private static Node randomRule(Random random, int depth) {
+        if ((depth > 0) && (random.nextInt(3) != 0)) {
+            Node[] children = new Node[random.nextInt(4)];
+            RecordingRule[] rules = new RecordingRule[children.length];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = randomRule(random, depth - 1);
+                rules[i] = children[i].rule;
+            }
+            return random.nextBoolean() ? new Node(RecordingRule.RULE_ANY_OF, 0, children, RecordingRule.anyOf(rules))
+                    : new Node(RecordingRule.RULE_ALL_OF, 0, children, RecordingRule.allOf(rules));
+        }
+        int type = random.nextInt(RecordingRule.RULE_DISTANCE + 1);
+        switch (type) {
+            case RecordingRule.RULE_ALWAYS:
+                return new Node(type, 0, null, RecordingRule.always());
+            case RecordingRule.RULE_FIRST_POINT:
+                return new Node(type, 0, null, RecordingRule.firstPoint());
+            case RecordingRule.RULE_TRACK_START:
+                return new Node(type, 0, null, RecordingRule.trackStart());
+            case RecordingRule.RULE_START_STOP:
+                return new Node(type, 0, null, RecordingRule.startStop());
+            case RecordingRule.RULE_ACCURACY:
+                float accuracy = pick(random, 5, 10, 30);
+                return new Node(type, accuracy, null, RecordingRule.accuracy(accuracy));
+            case RecordingRule.RULE_INTERVAL:
+                float interval = pick(random, 1, 5, 10);
+                return new Node(type, interval, null, RecordingRule.interval(interval));
+            case RecordingRule.RULE_SPEED_CHANGE:
+                float speedChange = pick(random, 1, 2, 5);
+                return new Node(type, speedChange, null, RecordingRule.speedChange(speedChange));
+            case RecordingRule.RULE_HEADING_CHANGE:
+                float headingChange = pick(random, 15, 30, 90);
+                return new Node(type, headingChange, null, RecordingRule.headingChange(headingChange));
+            default:
+                float distance = pick(random, 0, 5, 10, 50);
+                return new Node(type, distance, null, RecordingRule.distance(distance));
+        }
+    }
+
+    private static float pick(Random random, float... values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static Case randomCase(Random random) {
+        Case c = new Case();
+        c.previous = new RecordingPolicyTest.RawFix(45 + random.nextDouble() * 0.01, 9 + random.nextDouble() * 0.01, START);
+        double meters = random.nextDouble() * 60;
+        double heading = Math.toRadians(random.nextDouble() * 360);
+        long elapsed = random.nextBoolean() ? random.nextInt(15000) : 1000 * (long) pick(random, 1, 5, 10) - random.nextInt(2);
+        c.fix = new RecordingPolicyTest.RawFix(c.previous.latitude + meters * Math.cos(heading) / 111132.0,
+                c.previous.longitude + meters * Math.sin(heading) / (111320.0 * Math.cos(Math.toRadians(c.previous.latitude))),
+                START + elapsed);
+        for (RecordingPolicyTest.RawFix fix : new RecordingPolicyTest.RawFix[] { c.previous, c.fix }) {
+            int speed = random.nextInt(3);                                  // Missing, still or moving
+            if (speed > 0) fix.speed = speed == 1 ? 0 : 0.5f + random.nextFloat() * 6;
+            if (random.nextInt(4) != 0) fix.bearing = random.nextFloat() * 360;
+            if (random.nextInt(4) != 0) fix.accuracy = 2 + random.nextFloat() * 48;
+        }
+        c.hasPrevRecordedFix = random.nextInt(5) != 0;
+        c.isTrackEmpty = random.nextInt(5) == 0;
+        return c;
+    }
+
+    /**
+     * @return true if the tree of the rule is met by the case, with the conditions described by RecordingRule
+     */
+    private static boolean isMet(Node node, Case c) {
+        RecordingPolicyTest.RawFix fix = c.fix;
+        RecordingPolicyTest.RawFix previous = c.previous;
+        switch (node.type) {
+            case RecordingRule.RULE_ANY_OF:
+                for (Node child : node.children) if (isMet(child, c)) return true;
+                return false;
+            case RecordingRule.RULE_ALL_OF:
+                for (Node child : node.children) if (!isMet(child, c)) return false;
+                return true;
+            case RecordingRule.RULE_ALWAYS:
+                return true;
+            case RecordingRule.RULE_FIRST_POINT:
+                return !c.hasPrevRecordedFix;
+            case RecordingRule.RULE_TRACK_START:
+                return c.isTrackEmpty;
+            case RecordingRule.RULE_START_STOP:
+                return c.isStartOrStop();
+            case RecordingRule.RULE_ACCURACY:
+                return (!fix.hasAccuracy()) || (fix.accuracy <= node.value);
+            case RecordingRule.RULE_INTERVAL:
+                return (!c.hasPrevRecordedFix) || ((fix.time - previous.time) >= (node.value * 1000.0f));
+            case RecordingRule.RULE_SPEED_CHANGE:
+                return (!c.hasPrevRecordedFix) || ((fix.hasSpeed()) && (previous.hasSpeed())
+                        && (Math.abs(fix.speed - previous.speed) >= node.value));
+            case RecordingRule.RULE_HEADING_CHANGE:
+                if (!c.hasPrevRecordedFix) return true;
+                if ((!fix.hasBearing()) || (!previous.hasBearing())) return false;
+                float turn = Math.abs(fix.bearing - previous.bearing) % 360;
+                return Math.min(turn, 360 - turn) >= node.value;
+            default:
+                return (!c.hasPrevRecordedFix) || (fix.distanceTo(previous) >= node.value);
+        }
+    }
+
+    /**
+     * @return true if the RecordingPolicy, with the compiled rule, records the fix of the case
+     */
+    private static boolean isRecorded(RecordingRule rule, Case c) {
+        RecordingPolicy policy = new RecordingPolicy();
+        policy.setRule(rule);
+        policy.stabilize(c.previous.toRecord());
+        if (!c.hasPrevRecordedFix) policy.resetRecordedFix();
+        return (policy.evaluate(c.fix.toRecord(), true, c.isTrackEmpty) & RecordingPolicy.DECISION_RECORD) != 0;
+    }
+
+    @Test
+    public void randomRulesMatchTheDirectEvaluation() {
+        Random random = new Random(1);
+        int compiled = 0;
+        int recorded = 0;
+        for (int r = 0; r < RULES; r++) {
+            Node node = randomRule(random, 3);
+            try {
+                node.rule.compile();
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            compiled++;
+            for (int i = 0; i < CASES; i++) {
+                Case c = randomCase(random);
+                boolean expected = isMet(node, c);
+                assertEquals(node.rule.compile() + ", case " + i, expected, isRecorded(node.rule, c));
+                if (expected) recorded++;
+            }
+        }
+        assertTrue(compiled > RULES * 9 / 10);
+        assertTrue((recorded > compiled * CASES / 10) && (recorded < compiled * CASES * 9 / 10));
+    }
+
+    @Test
+    public void randomRulesAreInNormalForm() {
+        Random random = new Random(2);
+        for (int r = 0; r < RULES; r++) {
+            RecordingRule.Program program;
+            try {
+                program = randomRule(random, 3).rule.compile();
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            String message = program.toString();
+            for (int i = 0; i < program.getClauses(); i++) {
+                int start = program.clauseStarts[i];
+                int end = program.clauseStarts[i + 1];
+                if (start == end) assertEquals(message, 1, program.getClauses());   // Always met: the only clause
+                for (int t = start; t < end; t++) {
+                    // Only conditions, each once, in order of cost
+                    assertTrue(message, (program.opcodes[t] > RecordingRule.RULE_ALWAYS) && (program.opcodes[t] <= RecordingRule.RULE_DISTANCE));
+                    assertTrue(message, (t == start) || (program.opcodes[t - 1] < program.opcodes[t]));
+                    assertFalse(message, (program.opcodes[t] == RecordingRule.RULE_DISTANCE) && (program.values[t] <= 0));
+                }
+                for (int j = 0; j < program.getClauses(); j++) {
+                    assertFalse(message, (i != j) && (contains(program, j, i)));
+                }
+                if (i > 0) assertTrue(message, compareCost(program, i - 1, i) <= 0);
+            }
+        }
+    }
+
+    /**
+     * @return true if every term of the clause is in the other clause, with the same threshold
+     */
+    private static boolean contains(RecordingRule.Program program, int clause, int other) {
+        for (int t = program.clauseStarts[clause]; t < program.clauseStarts[clause + 1]; t++) {
+            boolean isFound = false;
+            for (int o = program.clauseStarts[other]; o < program.clauseStarts[other + 1]; o++) {
+                isFound |= (program.opcodes[t] == program.opcodes[o]) && (program.values[t] == program.values[o]);
+            }
+            if (!isFound) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compares two clauses by their most expensive term, then by the next ones, then by their length.
+     */
+    private static int compareCost(RecordingRule.Program program, int clause, int other) {
+        int t = program.clauseStarts[clause + 1] - 1;
+        int o = program.clauseStarts[other + 1] - 1;
+        for (; (t >= program.clauseStarts[clause]) && (o >= program.clauseStarts[other]); t--, o--) {
+            if (program.opcodes[t] != program.opcodes[o]) return program.opcodes[t] - program.opcodes[o];
+        }
+        return (program.clauseStarts[clause + 1] - program.clauseStarts[clause])
+                - (program.clauseStarts[other + 1] - program.clauseStarts[other]);
+    }
+}
@@ -0,0 +1,59 @@
+package eu.ybenouag.gpslogger;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The POSITION datagrams of the StreamDatagramSender, and the refusal of the lane
+ * for the end points protected by TLS.
+ */
+public class StreamDatagramSenderTest {
+
+    private static final StreamedFix FIX = new StreamedFix(7, 1700000000000L, 45.1234567, -9.7654321, 3);
+
+    private static StreamDatagramSender.Position roundTrip(String crewId) {
+        byte[] buffer = new byte[StreamDatagramSender.MAX_DATAGRAM];
+        int length = StreamDatagramSender.encodePosition(buffer, 42, 7, 1700000000500L, crewId, FIX);
+        return StreamDatagramSender.decodePosition(buffer, length);
+    }
+
+    @Test
+    public void positionRoundTrip() {
+        StreamDatagramSender.Position position = roundTrip("crew-1");
+        assertEquals(42, position.sessionId);
+        assertEquals(7, position.sequence);
+        assertEquals(1700000000500L, position.sendTime);
+        assertEquals("crew-1", position.crewId);
+        assertEquals(FIX.time, position.fix.time);
+        assertEquals(FIX.latitude, position.fix.latitude, 1e-7);
+        assertEquals(FIX.longitude, position.fix.longitude, 1e-7);
+        assertEquals(FIX.trackNumber, position.fix.trackNumber);
+    }
+
+    @Test
+    public void longCrewIdIsCutOnCharacterBoundary() {
+        StringBuilder crewId = new StringBuilder("x");
+        for (int i = 0; i < 40; i++) crewId.append('\u00e9');         // 2 bytes each: 81 bytes, odd limit
+        String decoded = roundTrip(crewId.toString()).crewId;
+        byte[] bytes = decoded.getBytes(StandardCharsets.UTF_8);
+        assertEquals(63, bytes.length);
+        assertTrue(crewId.toString().startsWith(decoded));
+    }
+
+    @Test
+    public void httpsEndPointIsRefused() {
+        try {
+            new StreamDatagramSender(URI.create("https://example.com"), 9000).close();
+            fail("The datagram lane must not send in clear text next to an https end point");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
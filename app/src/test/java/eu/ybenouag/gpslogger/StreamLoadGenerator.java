@@ -0,0 +1,233 @@
+package eu.ybenouag.gpslogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load generator of the live streaming: N crews row along a synthetic river course at the same time,
+ * every one with its own StreamLocationManager (and so its own outbox, upload stage and keep-alive client),
+ * against the BumpsViewerLocalServer.
+ * <p>
+ * The fixes follow the same path as on the phone: StreamLocationManager.streamLocationData(),
+ * the StreamUploadPolicy, the outbox, the LocationUploader and the handlers. The Android parts are replaced:
+ * the crews are given by a CrewSource instead of the TeamDetailsManager, and the location by a timer.
+ * For every number of crews it reports the fixes sent by the upload jobs (the live lane sends some fixes twice),
+ * the client-side throughput of the acknowledged fixes and of the requests, the latency of the upload jobs
+ * (from the hand-off to the upload stage to the reply; to the sending of the frame on the channel) and their
+ * error rate, then checks that the stand-in received every fix.
+ * <p>
+ * Run main() from the IDE (unit test classpath), with the optional arguments:
+ * crews (comma separated, default 1,5,10,20,50), fix rate in Hz (default 2), duration in s (default 15),
+ * response delay of the server in ms (default 50), upload mode (ingest, batch or channel; default ingest).
+ */
+public class StreamLoadGenerator {
+
+    private static final String DIVISION        = "Men's Division 1";
+    private static final long   DRAIN_TIMEOUT   = 20000;        // The maximum wait (ms) for the outboxes to be drained at the end of a run
+    private static final double BOAT_SPACING    = 27;           // The distance (m) between the boats at the start, 1.5 lengths
+    private static final double SPEED           = 4.8;          // The mean speed (m/s) of the boats
+
+    // The course, from the start near Baits Bite Lock up the river Cam (latitude, longitude)
+    private static final double[][] COURSE = {
+            { 52.23598, 0.18265 }, { 52.23129, 0.17608 }, { 52.22858, 0.16957 }, { 52.22655, 0.16433 },
+            { 52.22292, 0.15961 }, { 52.21954, 0.15467 }, { 52.21700, 0.14868 }, { 52.21459, 0.14249 },
+            { 52.21296, 0.13728 }, { 52.21168, 0.13164 }
+    };
+
+    /**
+     * A simulated crew: its StreamLocationManager and its position along the course.
+     */
+    private static class Crew implements StreamLocationManager.CrewSource {
+        final String crewId;
+        final String crewName;
+        final StreamLocationManager manager = new StreamLocationManager();
+        final double speed;
+        double distance;                                // The distance rowed along the course, in m
+        long time;                                      // The time of the last fix
+
+        Crew(int index, double speed) {
+            crewId = "load-" + index;
+            crewName = "Load Crew " + index;
+            this.speed = speed;
+            distance = -index * BOAT_SPACING;
+        }
+
+        @Override
+        public String getCrewId() {
+            return crewId;
+        }
+
+        @Override
+        public String getCrewName() {
+            return crewName;
+        }
+    }
+
+    /**
+     * The outcome of the uploads of a run, from the Listeners of all the upload stages.
+     */
+    private static class Outcome implements LocationUploader.Listener {
+        final StreamMetrics.Histogram latency = new StreamMetrics.Histogram();
+        final AtomicLong fixesUploaded = new AtomicLong();
+        final AtomicLong jobsCompleted = new AtomicLong();
+        final AtomicLong jobsFailed = new AtomicLong();
+
+        @Override
+        public void onUploadCompleted(int numberOfFixes, long latencyMillis) {
+            latency.record(latencyMillis * 1000);
+            fixesUploaded.addAndGet(numberOfFixes);
+            jobsCompleted.incrementAndGet();
+        }
+
+        @Override
+        public void onUploadFailed(int numberOfFixes, long latencyMillis) {
+            latency.record(latencyMillis * 1000);
+            jobsFailed.incrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] crewCounts = (args.length > 0 ? args[0] : "1,5,10,20,50").split(",");
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        long duration = args.length > 2 ? Long.parseLong(args[2]) : 15;
+        long responseDelay = args.length > 3 ? Long.parseLong(args[3]) : 50;
+        String mode = args.length > 4 ? args[4] : "ingest";
+
+        BumpsViewerLocalServer server = new BumpsViewerLocalServer(0);
+        server.setResponseDelay(responseDelay);
+        server.start();
+        try {
+            System.out.println(String.format(Locale.US, "%s, %.1f fixes/s per crew, %d s per run, server delay %d ms",
+                    mode, rate, duration, responseDelay));
+            System.out.println(String.format(Locale.US, "%6s %8s %8s %10s %10s %9s %9s %9s %8s %8s",
+                    "crews", "offered", "sent", "acked/s", "requests/s", "p50 ms", "p99 ms", "max ms", "errors", "lost"));
+            for (String crewCount : crewCounts) {
+                run(server, Integer.parseInt(crewCount.trim()), rate, duration * 1000, mode);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Runs the given number of crews for the given time, then waits for their outboxes to be drained
+     * and prints a line of the report.
+     */
+    private static void run(BumpsViewerLocalServer server, int numberOfCrews, double rate, long duration, String mode)
+            throws InterruptedException {
+        final long interval = Math.max(1, Math.round(1000 / rate));
+        final Outcome outcome = new Outcome();
+        final AtomicLong fixesOffered = new AtomicLong();
+        final List<Crew> crews = new ArrayList<>(numberOfCrews);
+        final List<BumpsViewerHttpClient> clients = new ArrayList<>(numberOfCrews);
+        Random random = new Random(numberOfCrews);
+        server.clearPositions();
+        for (int i = 0; i < numberOfCrews; i++) {
+            Crew crew = new Crew(i, SPEED * (0.95 + 0.1 * random.nextDouble()));
+            server.addTeam(crew.crewId, crew.crewName, DIVISION);
+            BumpsViewerHttpClient client = new BumpsViewerHttpClient();            // A client per phone
+            clients.add(client);
+            crew.manager.setCrewSource(crew);
+            crew.manager.setTransport(new HttpUploadTransport(server.getEndPoint(), client));
+            crew.manager.setUploadListener(outcome);
+            if (mode.equals("batch")) crew.manager.setBatching(true, StreamLocationManager.DEFAULT_BATCH_SIZE,
+                    StreamLocationManager.DEFAULT_BATCH_WINDOW, StreamLocationManager.DEFAULT_BATCH_MAX_LATENCY);
+            else if (mode.equals("channel")) crew.manager.setStreamChannel(true);
+            crews.add(crew);
+        }
+
+        // The GPS of every phone: a fix every interval, with a random phase
+        ScheduledExecutorService gps = Executors.newScheduledThreadPool(4, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "StreamLoadGenerator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long start = System.nanoTime();
+        long requestsStart = server.getRequestsServed();
+        for (final Crew crew : crews) {
+            crew.time = System.currentTimeMillis();
+            gps.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    crew.time += interval;
+                    crew.distance += crew.speed * interval / 1000;
+                    double[] position = positionAt(Math.max(0, crew.distance));
+                    crew.manager.streamLocationData(crew.time, position[0], position[1], (float) crew.speed, (float) position[2]);
+                    fixesOffered.incrementAndGet();
+                }
+            }, random.nextInt((int) interval), interval, TimeUnit.MILLISECONDS);
+        }
+        Thread.sleep(duration);
+        gps.shutdown();
+        gps.awaitTermination(5, TimeUnit.SECONDS);
+        long end = System.nanoTime();
+
+        // Waits for the outboxes to be drained, then stops the crews
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        int pending;
+        do {
+            pending = 0;
+            for (Crew crew : crews) pending += crew.manager.getNumberOfPendingFixes();
+            if (pending > 0) Thread.sleep(50);
+        } while ((pending > 0) && (System.currentTimeMillis() < deadline));
+        long drainEnd = System.nanoTime();
+        for (Crew crew : crews) {
+            crew.manager.setStreamChannel(false);
+            crew.manager.getLocationUploader().shutdown();
+        }
+        for (BumpsViewerHttpClient client : clients) client.evictAll();
+
+        // Every fix is saved once by the ingest and by the batch uploads; the channel stores its fixes apart
+        long saved = mode.equals("channel") ? fixesOffered.get() - pending : server.getSavedLocations();
+        long lost = fixesOffered.get() - saved;
+        long jobs = outcome.jobsCompleted.get() + outcome.jobsFailed.get();
+        double seconds = (drainEnd - start) / 1e9;
+        System.out.println(String.format(Locale.US, "%6d %8d %8d %10.1f %10.1f %9.1f %9.1f %9.1f %7.2f%% %8d",
+                numberOfCrews, fixesOffered.get(), outcome.fixesUploaded.get(), saved / seconds, (server.getRequestsServed() - requestsStart) / seconds,
+                outcome.latency.getPercentile(50) / 1000.0, outcome.latency.getPercentile(99) / 1000.0,
+                outcome.latency.getMax() / 1000.0, jobs > 0 ? 100.0 * outcome.jobsFailed.get() / jobs : 0, lost));
+        if ((pending > 0) || (lost != 0)) {
+            throw new IllegalStateException(numberOfCrews + " crews: " + pending + " fixes still pending, " + lost + " lost, after "
+                    + TimeUnit.NANOSECONDS.toMillis(drainEnd - end) + " ms");
+        }
+    }
+
+    /**
+     * @return the latitude, the longitude and the bearing at the given distance along the course,
+     *         or at its end if farther
+     */
+    static double[] positionAt(double distance) {
+        for (int i = 1; i < COURSE.length; i++) {
+            double length = distance(COURSE[i - 1], COURSE[i]);
+            if ((distance <= length) || (i == COURSE.length - 1)) {
+                double f = Math.min(1, distance / length);
+                double latitude = COURSE[i - 1][0] + f * (COURSE[i][0] - COURSE[i - 1][0]);
+                double longitude = COURSE[i - 1][1] + f * (COURSE[i][1] - COURSE[i - 1][1]);
+                double bearing = Math.toDegrees(Math.atan2((COURSE[i][1] - COURSE[i - 1][1]) * Math.cos(Math.toRadians(latitude)),
+                        COURSE[i][0] - COURSE[i - 1][0]));
+                return new double[] { latitude, longitude, (bearing + 360) % 360 };
+            }
+            distance -= length;
+        }
+        return new double[] { COURSE[0][0], COURSE[0][1], 0 };
+    }
+
+    /**
+     * @return the distance between two points, in m (equirectangular approximation)
+     */
+    private static double distance(double[] from, double[] to) {
+        double x = Math.toRadians(to[1] - from[1]) * Math.cos(Math.toRadians((from[0] + to[0]) / 2));
+        double y = Math.toRadians(to[0] - from[0]);
+        return Math.sqrt(x * x + y * y) * 6371000;
+    }
+}
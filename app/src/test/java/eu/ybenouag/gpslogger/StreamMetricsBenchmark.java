@@ -0,0 +1,89 @@
+package eu.ybenouag.gpslogger;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the cost of the recording into a StreamMetrics.Histogram, by one thread and by
+ * several threads at the same time, and checks the accuracy of its percentiles against the exact ones
+ * of a log-normal sample of latencies (median 150 ms, like a mobile link).
+ * <p>
+ * Run main() from the IDE (unit test classpath).
+ */
+public class StreamMetricsBenchmark {
+
+    private static final int SAMPLES        = 1000000;      // The values recorded per thread
+    private static final int ROUNDS         = 5;            // The measured rounds (after one of warm up)
+    private static final int THREADS        = 4;
+
+    public static void main(String[] args) throws Exception {
+        long[] latencies = sample(SAMPLES, 1);
+        checkAccuracy(latencies);
+
+        System.out.println();
+        System.out.println(String.format(Locale.US, "%-36s %10s", "Recording", "ns/value"));
+        for (int round = 0; round <= ROUNDS; round++) {
+            long single = measure(latencies, 1);
+            long concurrent = measure(latencies, THREADS);
+            if (round == ROUNDS) {
+                System.out.println(String.format(Locale.US, "%-36s %10.1f", "1 thread", single / (double) SAMPLES));
+                System.out.println(String.format(Locale.US, "%-36s %10.1f", THREADS + " threads, same histogram",
+                        concurrent / (double) SAMPLES));
+            }
+        }
+    }
+
+    /**
+     * Compares the percentiles of the histogram with the exact ones.
+     */
+    private static void checkAccuracy(long[] latencies) {
+        StreamMetrics.Histogram histogram = new StreamMetrics.Histogram();
+        for (long latency : latencies) histogram.record(latency);
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.println(String.format(Locale.US, "%-12s %14s %14s %10s", "Percentile", "exact (us)", "histogram (us)", "error"));
+        for (double percentile : new double[] { 50, 90, 99, 99.9 }) {
+            long exact = sorted[(int) Math.ceil(sorted.length * percentile / 100) - 1];
+            long approximated = histogram.getPercentile(percentile);
+            double error = Math.abs(approximated - exact) / (double) exact;
+            System.out.println(String.format(Locale.US, "p%-11s %14d %14d %9.1f%%", percentile, exact, approximated, error * 100));
+            if (error > 0.125) throw new IllegalStateException("Percentile " + percentile + " out of the error bound");
+        }
+        if ((histogram.getCount() != latencies.length) || (histogram.getMax() != sorted[sorted.length - 1])) {
+            throw new IllegalStateException("Wrong count or max");
+        }
+    }
+
+    /**
+     * @return the time, in nanoseconds, taken by every thread to record the latencies into a shared histogram
+     */
+    private static long measure(final long[] latencies, int threads) throws InterruptedException {
+        final StreamMetrics.Histogram histogram = new StreamMetrics.Histogram();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long latency : latencies) histogram.record(latency);
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) worker.start();
+        for (Thread worker : workers) worker.join();
+        long elapsed = System.nanoTime() - start;
+        if (histogram.getCount() != (long) latencies.length * threads) throw new IllegalStateException("Values lost");
+        return elapsed;
+    }
+
+    /**
+     * @return a log-normal sample of latencies, in microseconds
+     */
+    private static long[] sample(int size, long seed) {
+        Random random = new Random(seed);
+        long[] values = new long[size];
+        for (int i = 0; i < size; i++) values[i] = (long) (150000 * Math.exp(0.6 * random.nextGaussian()));
+        return values;
+    }
+}
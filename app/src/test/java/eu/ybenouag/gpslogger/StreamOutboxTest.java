@@ -0,0 +1,95 @@
+package eu.ybenouag.gpslogger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The crew identity of the StreamOutbox across the reopens: the pending fixes must survive
+ * a restart of the process, whatever the crew known when the next fix is recorded.
+ */
+public class StreamOutboxTest {
+
+    private static final int CAPACITY = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void appendFixes(StreamOutbox outbox, String crewId, String crewName, int count) {
+        for (int i = 0; i < count; i++) outbox.append(crewId, crewName, 1700000000000L + i * 1000L, 45.0 + i * 1e-5, 9.0, 1);
+    }
+
+    @Test
+    public void pendingFixesSurviveRestartBeforeCrewIsValidated() throws Exception {
+        File file = folder.newFile("outbox");
+        appendFixes(StreamOutbox.open(file, CAPACITY), "crew-1", "The Crew", 3);
+
+        // After the restart the crew is null until validateTeamInfo() runs again
+        StreamOutbox reopened = StreamOutbox.open(file, CAPACITY);
+        assertEquals(GPSApplication.NOT_AVAILABLE, reopened.append(null, null, 1700000010000L, 45.1, 9.1, 1));
+        assertEquals(3, reopened.size());
+        assertEquals(0, reopened.getDroppedFixes());
+        assertEquals("crew-1", reopened.getCrewId());
+        assertEquals("The Crew", reopened.getCrewName());
+
+        // Then the same crew is validated again: the new fixes queue after the replayed ones
+        assertEquals(4, reopened.append("crew-1", "The Crew", 1700000011000L, 45.1, 9.1, 1));
+        assertEquals(4, reopened.size());
+    }
+
+    @Test
+    public void longMultiByteCrewNameStaysEqualAfterReopen() throws Exception {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < StreamOutbox.MAX_CREW_LENGTH; i++) name.append('\u00e9');  // 2 bytes each
+        String crewName = "x" + name;                                                   // Odd: the limit falls inside a character
+        File file = folder.newFile("outbox");
+        appendFixes(StreamOutbox.open(file, CAPACITY), "crew-1", crewName, 3);
+
+        StreamOutbox reopened = StreamOutbox.open(file, CAPACITY);
+        String stored = reopened.getCrewName();
+        assertTrue(stored.getBytes(StandardCharsets.UTF_8).length <= StreamOutbox.MAX_CREW_LENGTH);
+        assertTrue(crewName.startsWith(stored));
+        assertEquals(StreamOutbox.truncate(crewName), stored);
+
+        appendFixes(reopened, "crew-1", crewName, 1);
+        assertEquals(4, reopened.size());
+        assertEquals(0, reopened.getDroppedFixes());
+    }
+
+    @Test
+    public void truncateCutsOnCharacterBoundary() {
+        String threeBytes = "\u20ac";                                              // The euro sign: 3 bytes
+        StringBuilder value = new StringBuilder("ab");
+        while (value.length() < 60) value.append(threeBytes);
+        String truncated = StreamOutbox.truncate(value.toString());
+        byte[] bytes = truncated.getBytes(StandardCharsets.UTF_8);
+        assertEquals(2 + ((StreamOutbox.MAX_CREW_LENGTH - 2) / 3) * 3, bytes.length);
+        assertEquals(truncated, new String(bytes, StandardCharsets.UTF_8));
+        assertEquals("short", StreamOutbox.truncate("short"));
+    }
+
+    @Test
+    public void crewNameChangeKeepsPendingFixes() {
+        StreamOutbox outbox = StreamOutbox.inMemory(CAPACITY);
+        appendFixes(outbox, "crew-1", "Old name", 3);
+        appendFixes(outbox, "crew-1", "New name", 1);
+        assertEquals(4, outbox.size());
+        assertEquals("New name", outbox.getCrewName());
+    }
+
+    @Test
+    public void crewIdChangeDiscardsPendingFixes() {
+        StreamOutbox outbox = StreamOutbox.inMemory(CAPACITY);
+        appendFixes(outbox, "crew-1", "The Crew", 3);
+        appendFixes(outbox, "crew-2", "Other Crew", 1);
+        assertEquals(1, outbox.size());
+        assertEquals(3, outbox.getDroppedFixes());
+        assertEquals("crew-2", outbox.getCrewId());
+    }
+}
@@ -0,0 +1,301 @@
+package eu.ybenouag.gpslogger;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the allocations and the time per fix of the construction of the upload bodies
+ * and of the parsing of the replies, comparing:
+ * - the JSON object path: a JSONObject per body and per fix, a SimpleDateFormat per timestamp,
+ *   toString().getBytes(), and a JSONParser for the reply;
+ * - the StreamPayloadWriter and the StreamReplyParser.
+ * The JSON objects of json-simple stand in for the ones of org.json, that is not available on the JVM.
+ * It also verifies that the bodies written by the StreamPayloadWriter parse to the same values.
+ * <p>
+ * Run main() from the IDE (unit test classpath, json-simple included).
+ * The allocations are read from the HotSpot ThreadMXBean.
+ */
+public class StreamPayloadBenchmark {
+
+    private static final int WARMUP_ROUNDS  = 200;          // The rounds (of the whole track) before measuring
+    private static final int ROUNDS         = 200;          // The measured rounds
+    private static final int BATCH          = 10;           // The fixes per request in the batch scenarios
+    private static final long   SESSION_ID  = 0x5E5510A1B2C3D4E5L;
+    private static final String SESSION     = "5e5510a1b2c3d4e5";
+    private static final String CREW_ID     = "1234";
+    private static final String CREW_NAME   = "Jesus College M1";
+    private static final byte[] REPLY       = "{\"status\":1}".getBytes(StandardCharsets.UTF_8);
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long sink;                               // Keeps the results alive
+
+    /**
+     * A way of building the bodies of the upload of some fixes, and of reading the replies.
+     */
+    private interface Scenario {
+        void upload(List<StreamedFix> fixes);
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<StreamedFix> track = BumpsViewerLocalServer.simulatedTrack();
+        verify(track);
+
+        System.out.println(String.format(Locale.US, "%-36s %14s %14s", "Scenario (" + track.size() + " fixes)", "bytes/fix", "ns/fix"));
+        measure("Single fix, JSON objects", track, 1, new Scenario() {
+            @Override
+            public void upload(List<StreamedFix> fixes) {
+                StreamedFix fix = fixes.get(0);
+                sink += objectLocation(CREW_ID, CREW_NAME, fix).length;
+                sink += parseReply(REPLY);
+                sink += objectDebugData(CREW_ID, fix, fix.time).length;
+                sink += parseReply(REPLY);
+            }
+        });
+        measure("Single fix, payload writer", track, 1, new Scenario() {
+            @Override
+            public void upload(List<StreamedFix> fixes) {
+                StreamedFix fix = fixes.get(0);
+                sink += StreamPayloadWriter.get().writeLocation(SESSION_ID, CREW_ID, CREW_NAME, fix).size();
+                sink += StreamReplyParser.parseStatus(REPLY);
+                sink += StreamPayloadWriter.get().writeDebugData(SESSION_ID, CREW_ID, fix).size();
+                sink += StreamReplyParser.parseStatus(REPLY);
+            }
+        });
+        measure("Batch of " + BATCH + ", JSON objects", track, BATCH, new Scenario() {
+            @Override
+            public void upload(List<StreamedFix> fixes) {
+                sink += objectLocations(CREW_ID, CREW_NAME, fixes).length;
+                sink += parseReply(REPLY);
+                sink += objectDebugDataBatch(CREW_ID, fixes).length;
+                sink += parseReply(REPLY);
+            }
+        });
+        measure("Batch of " + BATCH + ", payload writer", track, BATCH, new Scenario() {
+            @Override
+            public void upload(List<StreamedFix> fixes) {
+                sink += StreamPayloadWriter.get().writeLocations(SESSION_ID, CREW_ID, CREW_NAME, fixes).size();
+                sink += StreamReplyParser.parseStatus(REPLY);
+                sink += StreamPayloadWriter.get().writeDebugDataBatch(SESSION_ID, CREW_ID, fixes).size();
+                sink += StreamReplyParser.parseStatus(REPLY);
+            }
+        });
+        measure("Ingest of " + BATCH + ", JSON objects", track, BATCH, new Scenario() {
+            @Override
+            public void upload(List<StreamedFix> fixes) {
+                sink += objectIngest(CREW_ID, CREW_NAME, fixes).length;
+                sink += parseReply(REPLY);
+            }
+        });
+        measure("Ingest of " + BATCH + ", payload writer", track, BATCH, new Scenario() {
+            @Override
+            public void upload(List<StreamedFix> fixes) {
+                sink += StreamPayloadWriter.get().writeIngest(SESSION_ID, CREW_ID, CREW_NAME, fixes).size();
+                sink += StreamReplyParser.parseStatus(REPLY);
+            }
+        });
+        if (sink == 42) System.out.println();
+    }
+
+    /**
+     * Runs the scenario on the whole track, in chunks of the given size, and prints
+     * the bytes allocated and the time per fix.
+     */
+    private static void measure(String name, List<StreamedFix> track, int chunk, Scenario scenario) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) run(track, chunk, scenario);
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) run(track, chunk, scenario);
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        long fixes = (long) ROUNDS * track.size();
+        System.out.println(String.format(Locale.US, "%-36s %14.1f %14.1f", name, (double) allocated / fixes, (double) elapsed / fixes));
+    }
+
+    private static void run(List<StreamedFix> track, int chunk, Scenario scenario) {
+        for (int from = 0; from < track.size(); from += chunk) {
+            scenario.upload(track.subList(from, Math.min(track.size(), from + chunk)));
+        }
+    }
+
+    /**
+     * Checks that the bodies written by the StreamPayloadWriter carry the same values
+     * of the ones built with the JSON objects, and that the replies are read the same way.
+     */
+    private static void verify(List<StreamedFix> track) throws ParseException {
+        JSONParser parser = new JSONParser();
+        List<StreamedFix> fixes = track.subList(0, BATCH);
+        StreamedFix fix = fixes.get(0);
+        check(parser, objectLocation(CREW_ID, CREW_NAME, fix),
+                StreamPayloadWriter.get().writeLocation(SESSION_ID, CREW_ID, CREW_NAME, fix));
+        check(parser, objectDebugData(CREW_ID, fix, fix.time),
+                StreamPayloadWriter.get().writeDebugData(SESSION_ID, CREW_ID, fix));
+        check(parser, objectLocations(CREW_ID, CREW_NAME, fixes),
+                StreamPayloadWriter.get().writeLocations(SESSION_ID, CREW_ID, CREW_NAME, fixes));
+        check(parser, objectDebugDataBatch(CREW_ID, fixes),
+                StreamPayloadWriter.get().writeDebugDataBatch(SESSION_ID, CREW_ID, fixes));
+        check(parser, objectIngest(CREW_ID, CREW_NAME, fixes),
+                StreamPayloadWriter.get().writeIngest(SESSION_ID, CREW_ID, "Jesus \"College\" M1\u00e9", fixes), "Jesus \"College\" M1\u00e9");
+
+        String[] replies = { "{\"status\":1}", " { \"message\" : \"ok, \\\"done\\\"\", \"data\":{\"status\":0}, \"status\" : 1 } ",
+                "{\"status\":0}", "{\"status\":-2}", "{\"error\":\"x\"}", "{\"status\":1.5}", "[1]", "{\"status\"", "" };
+        for (String reply : replies) {
+            Object expected;
+            try {
+                Object tree = parser.parse(reply);
+                Object status = (tree instanceof JSONObject) ? ((JSONObject) tree).get("status") : null;
+                expected = (status instanceof Long) ? status : (long) GPSApplication.NOT_AVAILABLE;
+            } catch (ParseException e) {
+                expected = (long) GPSApplication.NOT_AVAILABLE;
+            }
+            long status = StreamReplyParser.parseStatus(reply.getBytes(StandardCharsets.UTF_8));
+            if (!expected.equals(status)) throw new IllegalStateException("Reply " + reply + ": " + status + " instead of " + expected);
+        }
+        System.out.println("The bodies of the payload writer and the replies read by the pull parser match the JSON objects");
+    }
+
+    private static void check(JSONParser parser, byte[] expected, StreamPayloadWriter actual) throws ParseException {
+        check(parser, expected, actual, null);
+    }
+
+    private static void check(JSONParser parser, byte[] expected, StreamPayloadWriter actual, String crewName) throws ParseException {
+        Object expectedTree = parser.parse(new String(expected, StandardCharsets.UTF_8));
+        if (crewName != null) ((JSONObject) expectedTree).put("crewName", crewName);
+        Object actualTree = parser.parse(new String(actual.getBuffer(), 0, actual.size(), StandardCharsets.UTF_8));
+        if (!sameValues(expectedTree, actualTree)) {
+            throw new IllegalStateException("Different bodies:\n" + expectedTree + "\n" + actualTree);
+        }
+    }
+
+    /**
+     * @return true if the two JSON trees are equal, the coordinates compared to 7 decimals
+     */
+    private static boolean sameValues(Object expected, Object actual) {
+        if ((expected instanceof Number) && (actual instanceof Number)) {
+            return Math.abs(((Number) expected).doubleValue() - ((Number) actual).doubleValue()) < 0.6e-7;
+        }
+        if ((expected instanceof JSONObject) && (actual instanceof JSONObject)) {
+            JSONObject expectedObject = (JSONObject) expected;
+            JSONObject actualObject = (JSONObject) actual;
+            if (!expectedObject.keySet().equals(actualObject.keySet())) return false;
+            for (Object key : expectedObject.keySet()) {
+                if (!sameValues(expectedObject.get(key), actualObject.get(key))) return false;
+            }
+            return true;
+        }
+        if ((expected instanceof JSONArray) && (actual instanceof JSONArray)) {
+            JSONArray expectedArray = (JSONArray) expected;
+            JSONArray actualArray = (JSONArray) actual;
+            if (expectedArray.size() != actualArray.size()) return false;
+            for (int i = 0; i < expectedArray.size(); i++) {
+                if (!sameValues(expectedArray.get(i), actualArray.get(i))) return false;
+            }
+            return true;
+        }
+        return (expected != null) && expected.equals(actual);
+    }
+
+    // The JSON object path, as the handlers built the bodies before the StreamPayloadWriter
+
+    @SuppressWarnings("unchecked")
+    private static byte[] objectLocation(String crewId, String crewName, StreamedFix fix) {
+        JSONObject body = new JSONObject();
+        body.put("crewId", crewId);
+        body.put("crewName", crewName);
+        body.put("session", SESSION);
+        body.put("sequence", fix.sequence);
+        body.put("timestamp", BumpsViewerLocalServer.formatTimestamp(fix.time));
+        body.put("latitude", fix.latitude);
+        body.put("longitude", fix.longitude);
+        return body.toString().getBytes();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static byte[] objectDebugData(String crewId, StreamedFix fix, long time) {
+        JSONObject body = new JSONObject();
+        body.put("crew_id", crewId);
+        body.put("session", SESSION);
+        body.put("sequence", fix.sequence);
+        body.put("track_num", fix.trackNumber);
+        body.put("timestamp", BumpsViewerLocalServer.formatTimestamp(time));
+        body.put("latitude", fix.latitude);
+        body.put("longitude", fix.longitude);
+        return body.toString().getBytes();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static byte[] objectLocations(String crewId, String crewName, List<StreamedFix> fixes) {
+        JSONObject body = new JSONObject();
+        JSONArray locations = new JSONArray();
+        for (StreamedFix fix : fixes) {
+            JSONObject location = new JSONObject();
+            location.put("sequence", fix.sequence);
+            location.put("latitude", fix.latitude);
+            location.put("longitude", fix.longitude);
+            location.put("timestamp", BumpsViewerLocalServer.formatTimestamp(fix.time));
+            locations.add(location);
+        }
+        body.put("crewId", crewId);
+        body.put("crewName", crewName);
+        body.put("session", SESSION);
+        body.put("fixes", locations);
+        return body.toString().getBytes();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static byte[] objectDebugDataBatch(String crewId, List<StreamedFix> fixes) {
+        JSONObject body = new JSONObject();
+        JSONArray locations = new JSONArray();
+        for (StreamedFix fix : fixes) {
+            JSONObject location = new JSONObject();
+            location.put("sequence", fix.sequence);
+            location.put("track_num", fix.trackNumber);
+            location.put("timestamp", BumpsViewerLocalServer.formatTimestamp(fix.time));
+            location.put("latitude", fix.latitude);
+            location.put("longitude", fix.longitude);
+            locations.add(location);
+        }
+        body.put("crew_id", crewId);
+        body.put("session", SESSION);
+        body.put("locations", locations);
+        return body.toString().getBytes();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static byte[] objectIngest(String crewId, String crewName, List<StreamedFix> fixes) {
+        JSONObject body = new JSONObject();
+        JSONArray locations = new JSONArray();
+        for (StreamedFix fix : fixes) {
+            JSONObject location = new JSONObject();
+            location.put("sequence", fix.sequence);
+            location.put("timestamp", BumpsViewerLocalServer.formatTimestamp(fix.time));
+            location.put("latitude", fix.latitude);
+            location.put("longitude", fix.longitude);
+            location.put("track_num", fix.trackNumber);
+            locations.add(location);
+        }
+        body.put("crewId", crewId);
+        body.put("crewName", crewName);
+        body.put("session", SESSION);
+        body.put("fixes", locations);
+        return body.toString().getBytes();
+    }
+
+    private static long parseReply(byte[] reply) {
+        try {
+            Object status = ((JSONObject) new JSONParser().parse(new String(reply, StandardCharsets.UTF_8))).get("status");
+            return (status instanceof Long) ? (Long) status : GPSApplication.NOT_AVAILABLE;
+        } catch (ParseException e) {
+            return GPSApplication.NOT_AVAILABLE;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package eu.ybenouag.gpslogger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The fixes accepted by the StreamUploadPolicy: with the adaptive rate disabled (the default)
+ * every fix must reach the outbox, whatever the speed and the interval between the fixes.
+ */
+public class StreamUploadPolicyTest {
+
+    private static final long START = 1700000000000L;
+
+    @Test
+    public void disabledPolicyAcceptsEveryFix() {
+        StreamUploadPolicy policy = new StreamUploadPolicy();
+        for (int i = 0; i < 100; i++) {
+            // Stationary, fixes 200 ms apart: all of them are kept
+            assertTrue(policy.shouldUpload(START + i * 200L, 45.0, 9.0, 0f, GPSApplication.NOT_AVAILABLE, 1));
+        }
+        assertEquals(100, policy.getUploadedFixes());
+        assertEquals(0f, policy.getReductionRatio(), 0f);
+    }
+
+    @Test
+    public void enabledPolicySendsOnlyHeartbeatsWhenStationary() {
+        StreamUploadPolicy policy = new StreamUploadPolicy();
+        policy.configure(true, StreamUploadPolicy.DEFAULT_STATIONARY_SPEED, StreamUploadPolicy.DEFAULT_RACING_SPEED,
+                StreamUploadPolicy.DEFAULT_HEARTBEAT_INTERVAL, StreamUploadPolicy.DEFAULT_MAX_INTERVAL,
+                StreamUploadPolicy.DEFAULT_BEARING_THRESHOLD, StreamUploadPolicy.DEFAULT_TOLERANCE);
+        int uploaded = 0;
+        for (int i = 0; i <= 120; i++) {                                    // Two minutes, one fix per second
+            if (policy.shouldUpload(START + i * 1000L, 45.0, 9.0, 0f, GPSApplication.NOT_AVAILABLE, 1)) uploaded++;
+        }
+        assertEquals(1 + 120000 / StreamUploadPolicy.DEFAULT_HEARTBEAT_INTERVAL, uploaded);
+        assertEquals(120000 / StreamUploadPolicy.DEFAULT_HEARTBEAT_INTERVAL, policy.getHeartbeats());
+    }
+
+    @Test
+    public void newTrackIsAlwaysAccepted() {
+        StreamUploadPolicy policy = new StreamUploadPolicy();
+        policy.configure(true, 0.5f, 3f, 30000, 5000, 15f, 5f);
+        assertTrue(policy.shouldUpload(START, 45.0, 9.0, 0f, GPSApplication.NOT_AVAILABLE, 1));
+        assertTrue(policy.shouldUpload(START + 1000, 45.0, 9.0, 0f, GPSApplication.NOT_AVAILABLE, 2));
+    }
+}